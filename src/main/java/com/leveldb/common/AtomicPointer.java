@@ -31,4 +31,11 @@ public class AtomicPointer<V> {
         noBarrierStore(v);
     }
 
+    // Atomically set the value to "update" iff it currently is "expect"
+    // (compared by identity). Returns false if another thread got there
+    // first.
+    public boolean compareAndSet(V expect, V update) {
+        return rep_.compareAndSet(expect, update);
+    }
+
 }
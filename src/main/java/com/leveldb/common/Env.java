@@ -5,8 +5,12 @@ import com.leveldb.common.file._SequentialFile;
 import com.leveldb.common.file._WritableFile;
 import com.leveldb.util.DefaultEnv;
 
+import java.lang.reflect.Method;
 import java.nio.channels.FileLock;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 //import com.leveldb.common.file.FileLock;
 
@@ -54,6 +58,17 @@ public abstract class Env {
     // The returned file will only be accessed by one thread at a time.
     public abstract _WritableFile newWritableFile(String fname);
 
+    // Rename the file "old_fname" to "fname" and open it for writing from
+    // the start, like newWritableFile(). Meant for reusing a file whose
+    // contents are no longer needed, whose space is then already
+    // allocated; an Env that keeps the old contents (up to where they are
+    // overwritten) must say so, readers of the file have to cope with
+    // them. The default just renames and calls newWritableFile().
+    public _WritableFile reuseWritableFile(String fname, String old_fname) {
+        renameFile(old_fname, fname);
+        return newWritableFile(fname);
+    }
+
     // Returns true iff the named file exists.
     public abstract boolean fileExists(String fname);
 
@@ -118,6 +133,31 @@ public abstract class Env {
     // When "function(arg)" returns, the thread will be destroyed.
     public abstract void startThread(Function fun);
 
+    // Return a new executor for the DB's asynchronous operations
+    // (DB.writeAsync(), DB.getAsync()). The caller shuts it down when done.
+    //
+    // The default runs every task in a virtual thread of its own when the
+    // JVM has them (Java 21 on), and otherwise uses a small pool of daemon
+    // threads: tasks are short, an outstanding operation does not hold a
+    // thread while it waits.
+    public ExecutorService newAsyncExecutor() {
+        try {
+            Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) m.invoke(null);
+        } catch (Exception e) {
+            // no virtual threads in this JVM
+        }
+        int n = Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+        return Executors.newFixedThreadPool(n, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "leveldb-async");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
     // *path is set to a temporary directory that can be used for testing. It
     // may
     // or many not have just been created. The directory may or may not differ
@@ -180,6 +220,37 @@ public abstract class Env {
         return s;
     }
 
+    // A utility routine: copy the named file "src" to "target"
+    public static Status copyFile(Env env, String src, String target) {
+        if (!env.fileExists(src)) {
+            return Status.ioerror(new Slice(src), new Slice("file not found"));
+        }
+        _SequentialFile in = env.newSequentialFile(src);
+        _WritableFile out = env.newWritableFile(target);
+
+        int kBufferSize = 8192;
+        Status s = Status.OK();
+        while (s.ok()) {
+            Slice fragment = new Slice();
+            if (in.Read(kBufferSize, fragment) == null) {
+                break;
+            }
+            s = out.Append(fragment);
+        }
+        in.Close();
+        if (s.ok()) {
+            s = out.Sync();
+        }
+        Status close = out.Close();
+        if (s.ok()) {
+            s = close;
+        }
+        if (!s.ok()) {
+            env.deleteFile(target);
+        }
+        return s;
+    }
+
     // A utility routine: read contents of named file into *data
     public static String readFileToString(Env env, String fname) {
         ByteVector data = new ByteVector(128);
@@ -6,6 +6,7 @@ import com.leveldb.common.file._WritableFile;
 
 import java.nio.channels.FileLock;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
 
 public class EnvWrapper extends Env {
     // Initialize an EnvWrapper that delegates all calls to *target
@@ -31,6 +32,10 @@ public class EnvWrapper extends Env {
         return target_.newWritableFile(f);
     }
 
+    public _WritableFile reuseWritableFile(String f, String old_f) {
+        return target_.reuseWritableFile(f, old_f);
+    }
+
     public boolean fileExists(String f) {
         return target_.fileExists(f);
     }
@@ -75,6 +80,10 @@ public class EnvWrapper extends Env {
         target_.startThread(fun);
     }
 
+    public ExecutorService newAsyncExecutor() {
+        return target_.newAsyncExecutor();
+    }
+
     public String getTestDirectory() {
         return target_.getTestDirectory();
     }
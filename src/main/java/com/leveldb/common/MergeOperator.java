@@ -0,0 +1,126 @@
+package com.leveldb.common;
+
+import com.leveldb.util.util;
+
+import java.util.List;
+
+// A MergeOperator turns the operands written with DB.merge() for a key into
+// its value, so that a read-modify-write (a counter increment, an append to
+// a list) costs one blind write instead of a get() and a put() under a lock.
+//
+// Operands are stored as they are written. They are combined with the
+// value under them when the key is read, and when a compaction finds them
+// together with that value.
+public abstract class MergeOperator {
+
+    // Apply "operands", oldest first, to "existing_value", which is null if
+    // the key has no value under them (it never had one, or it was
+    // deleted). Returns the new value, or null if the operands cannot be
+    // applied; the read or compaction then fails with a corruption.
+    public abstract Slice fullMerge(Slice key, Slice existing_value,
+                                    List<Slice> operands);
+
+    // Combine two operands for "key", "left" being the older one, into a
+    // single operand with the same effect, if possible. Returns null if not.
+    // Compactions use it for operands whose value is in another level.
+    //
+    // The default implementation never combines operands.
+    public Slice partialMerge(Slice key, Slice left, Slice right) {
+        return null;
+    }
+
+    // The name of the merge operator, for messages.
+    //
+    // Names starting with "leveldb." are reserved and should not be used
+    // by any clients of this package.
+    public abstract String name();
+
+    // Return a builtin operator for 64-bit counters: values and operands
+    // are 8-byte numbers (util.putLong()), and merging adds them up. A key
+    // without a value counts from 0.
+    public static MergeOperator uint64AddOperator() {
+        return new MergeOperator() {
+            @Override
+            public Slice fullMerge(Slice key, Slice existing_value,
+                                   List<Slice> operands) {
+                long sum = 0;
+                if (existing_value != null) {
+                    if (existing_value.size() != 8) {
+                        return null;
+                    }
+                    sum = util.toLong(existing_value.data());
+                }
+                for (Slice operand : operands) {
+                    if (operand.size() != 8) {
+                        return null;
+                    }
+                    sum += util.toLong(operand.data());
+                }
+                return encode(sum);
+            }
+
+            @Override
+            public Slice partialMerge(Slice key, Slice left, Slice right) {
+                if (left.size() != 8 || right.size() != 8) {
+                    return null;
+                }
+                return encode(util.toLong(left.data())
+                        + util.toLong(right.data()));
+            }
+
+            private Slice encode(long n) {
+                byte[] buf = new byte[8];
+                util.putLong(buf, 0, n);
+                return new Slice(buf);
+            }
+
+            @Override
+            public String name() {
+                return "leveldb.UInt64AddOperator";
+            }
+        };
+    }
+
+    // Return a builtin operator for lists kept as strings: merging appends
+    // each operand to the value, separated by "delim".
+    public static MergeOperator stringAppendOperator(final byte delim) {
+        return new MergeOperator() {
+            @Override
+            public Slice fullMerge(Slice key, Slice existing_value,
+                                   List<Slice> operands) {
+                ByteVector result = new ByteVector();
+                boolean first = true;
+                if (existing_value != null) {
+                    result.append(existing_value.getBuffer(),
+                            existing_value.getOffset(), existing_value.size());
+                    first = false;
+                }
+                for (Slice operand : operands) {
+                    if (!first) {
+                        result.append(new byte[]{delim});
+                    }
+                    result.append(operand.getBuffer(), operand.getOffset(),
+                            operand.size());
+                    first = false;
+                }
+                return new Slice(result.getData());
+            }
+
+            @Override
+            public Slice partialMerge(Slice key, Slice left, Slice right) {
+                byte[] buf = new byte[left.size() + 1 + right.size()];
+                System.arraycopy(left.getBuffer(), left.getOffset(), buf, 0,
+                        left.size());
+                buf[left.size()] = delim;
+                System.arraycopy(right.getBuffer(), right.getOffset(), buf,
+                        left.size() + 1, right.size());
+                return new Slice(buf);
+            }
+
+            @Override
+            public String name() {
+                return "leveldb.StringAppendOperator";
+            }
+        };
+    }
+}
@@ -109,7 +109,10 @@ public class Slice implements Comparable<Slice> {
     // > 0 iff "*this" > "b"
     @Override
     public int compareTo(Slice b) {
-        return util.compareTo(data(), b.data());
+        // In place: a copy of both sides for every comparison would cost
+        // more than the comparison
+        return util.compareTo(data_, offset_, size_, b.data_, b.offset_,
+                b.size_);
     }
 
     // Return true iff "x" is a prefix of "*this"
@@ -174,4 +177,10 @@ public class Slice implements Comparable<Slice> {
     public int getOffset() {
         return this.offset_;
     }
+
+    // The array this slice points into, starting at getOffset(). Not a
+    // copy, unlike data(): callers must not modify it.
+    public byte[] getBuffer() {
+        return this.data_;
+    }
 }
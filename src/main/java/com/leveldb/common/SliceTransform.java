@@ -0,0 +1,41 @@
+package com.leveldb.common;
+
+/**
+ * Maps a user key to a shorter key (typically a prefix of it) that groups
+ * related keys together, e.g. all keys of one record or one tenant.
+ */
+public abstract class SliceTransform {
+
+    // The name of the transform. Used to detect a DB that was built with a
+    // different transform than the one it is opened with.
+    public abstract String name();
+
+    // Extract the transformed key of "key".
+    // REQUIRES: inDomain(key)
+    public abstract Slice transform(Slice key);
+
+    // Whether transform() can be applied to "key".
+    public abstract boolean inDomain(Slice key);
+
+    // Return a transform that maps a key to its first "prefix_len" bytes.
+    // Keys shorter than prefix_len are outside its domain.
+    public static SliceTransform newFixedPrefixTransform(final int prefix_len) {
+        return new SliceTransform() {
+            @Override
+            public String name() {
+                return "leveldb.FixedPrefix." + prefix_len;
+            }
+
+            @Override
+            public Slice transform(Slice key) {
+                assert (inDomain(key));
+                return new Slice(key.data(), prefix_len);
+            }
+
+            @Override
+            public boolean inDomain(Slice key) {
+                return key.size() >= prefix_len;
+            }
+        };
+    }
+}
@@ -36,6 +36,10 @@ public class Status {
         return new Status(Code.kIOError, msg, msg2);
     }
 
+    public static Status busy(Slice msg, Slice msg2) {
+        return new Status(Code.kBusy, msg, msg2);
+    }
+
     // Returns true iff the status indicates success.
     public boolean ok() {
         return (state_ == null);
@@ -46,6 +50,12 @@ public class Status {
         return code() == Code.kNotFound;
     }
 
+    // Returns true iff the status indicates a conflict with another
+    // writer; the operation may succeed if retried.
+    public boolean isBusy() {
+        return code() == Code.kBusy;
+    }
+
     // Return a string representation of this status suitable for printing.
     // Returns the string "OK" for success.
     public String toString() {
@@ -72,6 +82,9 @@ public class Status {
                 case Code.kIOError:
                     type = "IO error: ";
                     break;
+                case Code.kBusy:
+                    type = "Busy: ";
+                    break;
                 default:
                     type = "Unknow code: " + code();
                     break;
@@ -101,6 +114,7 @@ public class Status {
         static final int kNotSupported = 3;
         static final int kInvalidArgument = 4;
         static final int kIOError = 5;
+        static final int kBusy = 6;
         int value = 0;
 
         public Code(int c) {
@@ -4,6 +4,7 @@ import com.leveldb.common.file._RandomAccessFile;
 import com.leveldb.common.options.Options;
 import com.leveldb.common.options.ReadOptions;
 import com.leveldb.common.table.Block;
+import com.leveldb.common.table.FilterBlockReader;
 import com.leveldb.common.table.BlockHandle;
 import com.leveldb.common.table.Footer;
 import com.leveldb.common.table.TwoLevelIterator;
@@ -11,6 +12,16 @@ import com.leveldb.util.util;
 
 //2012-4-10 implement Table
 public class Table {
+    // Key in the metaindex block of the filter block, followed by the name
+    // of the filter policy that made it
+    public static final String kFilterBlockPrefix = "filter.";
+    // Key in the metaindex block of the prefix filter block, followed by the
+    // name of the prefix extractor
+    public static final String kPrefixFilterBlockPrefix = "prefixfilter.";
+    // Makes the prefix filter block: a single bloom filter over the
+    // distinct prefixes of all the keys of the table
+    public static final FilterPolicy kPrefixFilterPolicy = FilterPolicy
+            .newBloomFilterPolicy(10);
 
     class TableBlockReader implements TwoLevelIterator.BlockFunction {
 
@@ -42,7 +53,7 @@ public class Table {
             Cache block_cache = table.rep_.options.block_cache;
             Block block = new Block(null, 0, false); // is to be reassigned or
             // value be set
-            Cache.Handle cache_handle = null;
+            Cache.Handle[] cache_handle = new Cache.Handle[1];
 
             BlockHandle handle = new BlockHandle();
             // Slice input = index_value;
@@ -52,49 +63,10 @@ public class Table {
             // can add more features in the future.
 
             if (s != 0) {
-                boolean may_cache;
-                // with cache
-                if (block_cache != null) {
-                    // create a key by cache_id|offset, corresponding value is a
-                    // Block
-                    byte cache_key_buffer[] = new byte[16];
-                    util.putLong(cache_key_buffer, 0, table.rep_.cache_id);
-                    util.putLong(cache_key_buffer, 8, handle.offset());
-                    // !!! key in the cache is {table's cache_id, block's
-                    // offset}
-                    Slice key = new Slice(cache_key_buffer);
-                    // look up the key in the cache
-                    cache_handle = block_cache.lookup(key);
-                    // in the cache, just return
-                    if (cache_handle != null) {
-                        block = (Block) (block_cache.value(cache_handle));
-                    }
-                    // not in the cache, read the block and insert to the cache
-                    else {
-                        try {
-                            // !!! read (set) the block from the file according
-                            // to the #handle#,
-                            // which is a BlockHandle {offset, size}.
-                            may_cache = Block.ReadBlock(table.rep_.file,
-                                    options, handle, block);
-                            if (may_cache && options.fill_cache) {
-                                cache_handle = block_cache.insert(key, block,
-                                        block.size(), null); // DeleteCachedBlock
-                            }
-                        } catch (Exception e) {
-                            e.printStackTrace();
-                        }
-
-                    }
-                }
-                // without cache
-                else {
-                    try {
-                        may_cache = Block.ReadBlock(table.rep_.file, options,
-                                handle, block);
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                    }
+                try {
+                    block = table.ReadDataBlock(options, handle, cache_handle);
+                } catch (Exception e) {
+                    e.printStackTrace();
                 }
             }
 
@@ -102,13 +74,12 @@ public class Table {
             if (block != null) {
                 // !!! return a iterator of Block
                 iter = block.NewIterator(table.rep_.options.comparator);
-                if (cache_handle == null) {
-                    iter.registerCleanup(null, block, null); // no need
-                }
-                // release the handle from the cache
-                else {
+                // a block that is not in the cache goes away with the
+                // iterator, nothing to clean up
+                if (cache_handle[0] != null) {
+                    // release the handle from the cache
                     iter.registerCleanup(new ReleaseBlockFunction(),
-                            block_cache, cache_handle);
+                            block_cache, cache_handle[0]);
                 }
             } else {
                 iter = Iterator.newErrorIterator(Status.ioerror(new Slice(
@@ -118,6 +89,70 @@ public class Table {
         }
     }
 
+    /**
+     * Receives the entries InternalGet() finds, in order, from the first one
+     * at or past the key looked up.
+     */
+    public interface ResultHandler {
+        /**
+         * Handle the entry "key" -> "value". The key is only valid during the
+         * call; the value points into the contents of a block, which never
+         * change. Return true to be handed the next entry, false to stop.
+         */
+        boolean handleResult(Slice key, Slice value);
+    }
+
+    // Hands the entries of the data blocks the index block points to over
+    // to the ResultHandler of InternalGet()
+    private class DataBlockVisitor implements ResultHandler {
+        final ReadOptions options;
+        final Slice key;
+        final ResultHandler handler;
+        boolean first = true;
+        Status status = Status.OK();
+
+        DataBlockVisitor(ReadOptions options, Slice key, ResultHandler handler) {
+            this.options = options;
+            this.key = key;
+            this.handler = handler;
+        }
+
+        @Override
+        public boolean handleResult(Slice index_key, Slice index_value) {
+            BlockHandle handle = new BlockHandle();
+            if (handle.DecodeFrom(new ByteCollection(index_value.getBuffer(),
+                    index_value.getOffset())) == 0) {
+                status = Status.corruption(new Slice("bad block handle"), null);
+                return false;
+            }
+            if (first && rep_.filter != null
+                    && !rep_.filter.KeyMayMatch(handle.offset(), key)) {
+                // Not found
+                return false;
+            }
+            first = false;
+
+            Block block;
+            try {
+                block = ReadDataBlock(options, handle, null);
+            } catch (Exception e) {
+                status = Status.corruption(new Slice(e.getMessage()), null);
+                return false;
+            }
+            switch (block.Seek(rep_.options.comparator, key, handler)) {
+                case Block.kSeekStopped:
+                    return false;
+                case Block.kSeekCorrupted:
+                    status = Status.corruption(new Slice("bad entry in block"),
+                            null);
+                    return false;
+                default:
+                    // The handler wants more: go on with the next block
+                    return true;
+            }
+        }
+    }
+
     // information package for the table
     public static class Rep {
         Options options;
@@ -128,6 +163,8 @@ public class Table {
         BlockHandle metaindex_handle; // Handle to metaindex_block: saved from
         // footer
         Block index_block;
+        FilterBlockReader filter; // null if the table has no usable filter
+        Slice prefix_filter; // null if the table has no usable prefix filter
     }
 
     /**
@@ -186,6 +223,7 @@ public class Table {
             rep.cache_id = (options.block_cache != null ? options.block_cache
                     .newId() : 0);
             table = new Table(rep);
+            table.ReadMeta(footer);
         } else {
             if (index_block != null)
                 index_block = null;
@@ -242,6 +280,164 @@ public class Table {
         return result;
     }
 
+    /**
+     * Hand the entries of the table from the first one at or past "key" on
+     * over to "handler", until it asks to stop. Does what seeking an iterator
+     * of NewIterator() and stepping it would, without building one: a binary
+     * search in the index block, then one in the data block it points to,
+     * moving on to the next data block only if the handler wants more. If
+     * the filter of the table rules "key" out, no data block is read and
+     * nothing is handed over.
+     */
+    public Status InternalGet(ReadOptions options, Slice key,
+                              ResultHandler handler) {
+        DataBlockVisitor visitor = new DataBlockVisitor(options, key, handler);
+        if (rep_.index_block.Seek(rep_.options.comparator, key, visitor)
+                == Block.kSeekCorrupted) {
+            return Status.corruption(new Slice("bad entry in index block"),
+                    null);
+        }
+        return visitor.status;
+    }
+
+    /**
+     * The data block at "handle", from the block cache if the options have
+     * one, read from the file (and cached if options.fill_cache) otherwise.
+     * If cache_handle is non-null, cache_handle[0] is set to the handle of
+     * the block in the cache, or null if it is not cached.
+     */
+    Block ReadDataBlock(ReadOptions options, BlockHandle handle,
+                        Cache.Handle[] cache_handle) throws Exception {
+        Cache block_cache = rep_.options.block_cache;
+        Block block = new Block(null, 0, false);
+        Cache.Handle h = null;
+        if (block_cache != null) {
+            // !!! key in the cache is {table's cache_id, block's offset}
+            byte cache_key_buffer[] = new byte[16];
+            util.putLong(cache_key_buffer, 0, rep_.cache_id);
+            util.putLong(cache_key_buffer, 8, handle.offset());
+            Slice key = new Slice(cache_key_buffer);
+            h = block_cache.lookup(key);
+            if (h != null) {
+                block = (Block) (block_cache.value(h));
+            } else {
+                boolean may_cache = Block.ReadBlock(rep_.file, options, handle,
+                        block);
+                if (may_cache && options.fill_cache) {
+                    h = block_cache.insert(key, block, block.size(), null); // DeleteCachedBlock
+                }
+            }
+        } else {
+            Block.ReadBlock(rep_.file, options, handle, block);
+        }
+        if (cache_handle != null) {
+            cache_handle[0] = h;
+        }
+        return block;
+    }
+
+    /**
+     * Whether the table may have an entry for the internal key "key", as far
+     * as its filter can tell. If false, a lookup of "key" can skip the table
+     * without reading any of its data blocks. Always true for a table
+     * without a filter.
+     */
+    public boolean KeyMayMatch(Slice key) {
+        if (rep_.filter == null) {
+            return true;
+        }
+        Iterator index_iter = rep_.index_block
+                .NewIterator(rep_.options.comparator);
+        index_iter.seek(key);
+        if (!index_iter.valid()) {
+            // key is past the last key in the file
+            return false;
+        }
+        BlockHandle handle = new BlockHandle();
+        ByteCollection input = new ByteCollection(index_iter.value().data(), 0);
+        if (handle.DecodeFrom(input) == 0) {
+            return true;
+        }
+        return rep_.filter.KeyMayMatch(handle.offset(), key);
+    }
+
+    /**
+     * Whether the table may have keys that the prefix extractor of the
+     * options maps to "prefix", as far as its prefix filter can tell.
+     * Always true for a table without a prefix filter.
+     */
+    public boolean PrefixMayMatch(Slice prefix) {
+        if (rep_.prefix_filter == null) {
+            return true;
+        }
+        return kPrefixFilterPolicy.keyMayMatch(prefix, rep_.prefix_filter);
+    }
+
+    // Load the meta blocks of the table the options ask for. They are
+    // optional: a table whose meta blocks cannot be read is still usable.
+    private void ReadMeta(Footer footer) {
+        if (rep_.options.filter_policy == null
+                && rep_.options.prefix_extractor == null) {
+            return; // Do not need any metadata
+        }
+
+        ReadOptions opt = new ReadOptions();
+        opt.verify_checksums = rep_.options.paranoid_checks;
+        Block meta = new Block(null, 0, false);
+        try {
+            Block.ReadBlock(rep_.file, opt, footer.metaindex_handle(), meta);
+        } catch (Exception e) {
+            // Do not propagate errors since meta info is not needed for
+            // operation
+            return;
+        }
+
+        Iterator iter = meta.NewIterator(Comparator.bytewiseComparator());
+        if (rep_.options.filter_policy != null) {
+            Slice key = new Slice(kFilterBlockPrefix
+                    + rep_.options.filter_policy.name());
+            iter.seek(key);
+            if (iter.valid() && iter.key().compareTo(key) == 0) {
+                ReadFilter(iter.value());
+            }
+        }
+        if (rep_.options.prefix_extractor != null) {
+            Slice key = new Slice(kPrefixFilterBlockPrefix
+                    + rep_.options.prefix_extractor.name());
+            iter.seek(key);
+            if (iter.valid() && iter.key().compareTo(key) == 0) {
+                rep_.prefix_filter = ReadFilterContents(iter.value());
+            }
+        }
+    }
+
+    private void ReadFilter(Slice filter_handle_value) {
+        Slice contents = ReadFilterContents(filter_handle_value);
+        if (contents != null) {
+            rep_.filter = new FilterBlockReader(rep_.options.filter_policy,
+                    contents);
+        }
+    }
+
+    // The contents of the filter block at the encoded handle
+    // "filter_handle_value", null if they cannot be read: lookups then just
+    // go without the filter
+    private Slice ReadFilterContents(Slice filter_handle_value) {
+        BlockHandle filter_handle = new BlockHandle();
+        if (filter_handle.DecodeFrom(new ByteCollection(
+                filter_handle_value.data(), 0)) == 0) {
+            return null;
+        }
+
+        ReadOptions opt = new ReadOptions();
+        opt.verify_checksums = rep_.options.paranoid_checks;
+        try {
+            return Block.ReadBlockContents(rep_.file, opt, filter_handle);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
     private Rep rep_;
 
     public Table(Rep rep) {
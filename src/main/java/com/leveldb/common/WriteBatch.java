@@ -1,10 +1,13 @@
 package com.leveldb.common;
 
+import com.leveldb.common.db.ColumnFamilyHandle;
 import com.leveldb.common.db.MemTable;
+import com.leveldb.common.db.MemTableRep;
 import com.leveldb.util.SequenceNumber;
 import com.leveldb.util.ValueType;
 import com.leveldb.util.coding;
-import com.leveldb.util.util;
+
+import java.util.Arrays;
 
 //WriteBatch::rep_ :=
 //sequence: fixed64
@@ -12,7 +15,13 @@ import com.leveldb.util.util;
 //data: record[count]
 //record :=
 //kTypeValue varstring varstring         |
-//kTypeDeletion varstring
+//kTypeDeletion varstring |
+//kTypeMerge varstring varstring |
+//kTypeColumnFamilyValue varint32 varstring varstring |
+//kTypeColumnFamilyDeletion varint32 varstring |
+//kTypeColumnFamilyMerge varint32 varstring varstring
+//The varint32 is the id of the column family; the records without one
+//belong to the default column family.
 //varstring :=
 //len: varint32
 //data: uint8[len]
@@ -26,10 +35,21 @@ public class WriteBatch {
     // WriteBatch header has an 8-byte sequence number followed by a 4-byte
     // count.
     public static int kHeader = 12;
+    // Tags of the records of a column family other than the default one
+    static final byte kTypeColumnFamilyDeletion = 0x4;
+    static final byte kTypeColumnFamilyValue = 0x5;
+    static final byte kTypeColumnFamilyMerge = 0x6;
+    static final int kInitialCapacity = 64;
+    // rep_.bytes[0, size_) holds the batch; the rest is spare capacity, so
+    // that appending a record only copies the record itself.
     public ByteCollection rep_;
+    int size_;
+    // rep_.bytes belongs to somebody else (see WriteBatchInternal
+    // .SetContents()) and must be copied before it is modified.
+    boolean borrowed_;
 
     public WriteBatch() {
-        rep_ = new ByteCollection(null, -1);
+        rep_ = new ByteCollection(new byte[kInitialCapacity], -1);
         clear();
     }
 
@@ -41,30 +61,124 @@ public class WriteBatch {
      * @param value
      */
     public void put(Slice key, Slice value) { //
+        int key_size = key.size();
+        int value_size = value.size();
+        reserve(1 + coding.varintLength(key_size) + key_size
+                + coding.varintLength(value_size) + value_size);
         WriteBatchInternal.SetCount(this, WriteBatchInternal.count(this) + 1);
-        rep_.bytes = util.add(rep_.bytes, util.toBytes(ValueType.kTypeValue),
-                coding.putLengthPrefixedSlice(key),
-                coding.putLengthPrefixedSlice(value));
+        rep_.bytes[size_++] = ValueType.kTypeValue;
+        appendLengthPrefixedSlice(key);
+        appendLengthPrefixedSlice(value);
     }
 
     // If the database contains a mapping for "key", erase it. Else do nothing.
     public void delete(Slice key) {//
+        int key_size = key.size();
+        reserve(1 + coding.varintLength(key_size) + key_size);
+        WriteBatchInternal.SetCount(this, WriteBatchInternal.count(this) + 1);
+        rep_.bytes[size_++] = ValueType.kTypeDeletion;
+        appendLengthPrefixedSlice(key);
+    }
+
+    // Merge "value" into the database entry for "key", using
+    // Options.merge_operator. append: TypeMerge|key|value
+    public void merge(Slice key, Slice value) {
+        int key_size = key.size();
+        int value_size = value.size();
+        reserve(1 + coding.varintLength(key_size) + key_size
+                + coding.varintLength(value_size) + value_size);
         WriteBatchInternal.SetCount(this, WriteBatchInternal.count(this) + 1);
-        rep_.bytes = util.add(rep_.bytes,
-                util.toBytes(ValueType.kTypeDeletion),
-                coding.putLengthPrefixedSlice(key));
+        rep_.bytes[size_++] = ValueType.kTypeMerge;
+        appendLengthPrefixedSlice(key);
+        appendLengthPrefixedSlice(value);
+    }
+
+    // Same as above, in "column_family"
+    public void put(ColumnFamilyHandle column_family, Slice key, Slice value) {
+        if (column_family.getID() == 0) {
+            put(key, value);
+            return;
+        }
+        appendRecord(kTypeColumnFamilyValue, column_family.getID(), key, value);
+    }
+
+    public void delete(ColumnFamilyHandle column_family, Slice key) {
+        if (column_family.getID() == 0) {
+            delete(key);
+            return;
+        }
+        appendRecord(kTypeColumnFamilyDeletion, column_family.getID(), key,
+                null);
     }
 
-    // clear all updates buffered in this batch.
+    public void merge(ColumnFamilyHandle column_family, Slice key, Slice value) {
+        if (column_family.getID() == 0) {
+            merge(key, value);
+            return;
+        }
+        appendRecord(kTypeColumnFamilyMerge, column_family.getID(), key, value);
+    }
+
+    // Append a record of column family "id", without a value if null
+    private void appendRecord(byte tag, int id, Slice key, Slice value) {
+        int key_size = key.size();
+        int n = 1 + coding.varintLength(id) + coding.varintLength(key_size)
+                + key_size;
+        if (value != null) {
+            n += coding.varintLength(value.size()) + value.size();
+        }
+        reserve(n);
+        WriteBatchInternal.SetCount(this, WriteBatchInternal.count(this) + 1);
+        rep_.bytes[size_++] = tag;
+        size_ = coding.encodeVarint32(rep_.bytes, size_, id);
+        appendLengthPrefixedSlice(key);
+        if (value != null) {
+            appendLengthPrefixedSlice(value);
+        }
+    }
+
+    // clear all updates buffered in this batch. The buffer is kept for
+    // reuse.
     public void clear() {
-        rep_.bytes = new byte[kHeader];
+        if (borrowed_) {
+            rep_.bytes = new byte[kInitialCapacity];
+            borrowed_ = false;
+        }
+        Arrays.fill(rep_.bytes, 0, kHeader, (byte) 0);
+        size_ = kHeader;
+    }
+
+    // Make room for n more bytes after size_, growing the buffer
+    // geometrically so that building a batch costs amortized O(1) per byte.
+    void reserve(int n) {
+        int needed = size_ + n;
+        if (needed > rep_.bytes.length || borrowed_) {
+            int capacity = Math.max(rep_.bytes.length, kInitialCapacity);
+            while (capacity < needed) {
+                capacity <<= 1;
+            }
+            rep_.bytes = Arrays.copyOf(rep_.bytes, capacity);
+            borrowed_ = false;
+        }
+    }
+
+    private void appendLengthPrefixedSlice(Slice s) {
+        int n = s.size();
+        size_ = coding.encodeVarint32(rep_.bytes, size_, n);
+        System.arraycopy(s.getBuffer(), s.getOffset(), rep_.bytes, size_, n);
+        size_ += n;
     }
 
     // Support for iterating over the contents of a batch.
     public abstract class Handler {
+        // Column family of the record passed to put(), delete() or merge()
+        int column_family_;
+
         abstract void put(Slice key, Slice value);
 
         abstract void delete(Slice key);
+
+        abstract void merge(Slice key, Slice value);
     }
 
     /**
@@ -74,9 +188,8 @@ public class WriteBatch {
      * @return
      */
     public Status iterate(Handler handler) {
-        Slice input = new Slice(rep_.bytes);
         rep_.curr_pos = 0;
-        if (input.size() < kHeader) {
+        if (size_ < kHeader) {
             return Status.corruption(new Slice(
                     "malformed WriteBatch (too small)"), null);
         }
@@ -85,16 +198,30 @@ public class WriteBatch {
         rep_.curr_pos += kHeader;
         Slice key, value;
         int found = 0;
-        while (!rep_.STOP()) {
+        while (rep_.curr_pos < size_) {
             found++;
             byte tag = rep_.get();// input.get(0);
             // input.remove_prefix(1);
             rep_.curr_pos += 1;
+            handler.column_family_ = 0;
+            if (tag >= kTypeColumnFamilyDeletion
+                    && tag <= kTypeColumnFamilyMerge) {
+                handler.column_family_ = coding.getVarint32(rep_);
+                if (!rep_.OK() || rep_.curr_pos > size_) {
+                    return Status.corruption(new Slice(
+                            "bad WriteBatch column family"), null);
+                }
+                // The record is then the same as in the default family
+                tag -= kTypeColumnFamilyDeletion;
+            }
             switch (tag) {
                 case ValueType.kTypeValue:
                     try {
                         key = coding.getLengthPrefixedSlice(rep_);
                         value = coding.getLengthPrefixedSlice(rep_);
+                        if (rep_.curr_pos > size_) {
+                            throw new Exception("record past end of batch");
+                        }
                         handler.put(key, value);
                     } catch (Exception e) {
                         e.printStackTrace();
@@ -105,7 +232,9 @@ public class WriteBatch {
                 case ValueType.kTypeDeletion:
                     try {
                         key = coding.getLengthPrefixedSlice(rep_);
-
+                        if (rep_.curr_pos > size_) {
+                            throw new Exception("record past end of batch");
+                        }
                         handler.delete(key);
                     } catch (Exception e) {
                         e.printStackTrace();
@@ -113,6 +242,20 @@ public class WriteBatch {
                                 new Slice("bad WriteBatch delete"), null);
                     }
                     break;
+                case ValueType.kTypeMerge:
+                    try {
+                        key = coding.getLengthPrefixedSlice(rep_);
+                        value = coding.getLengthPrefixedSlice(rep_);
+                        if (rep_.curr_pos > size_) {
+                            throw new Exception("record past end of batch");
+                        }
+                        handler.merge(key, value);
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                        return Status.corruption(new Slice("bad WriteBatch merge"),
+                                null);
+                    }
+                    break;
                 default:
                     return Status.corruption(new Slice("unknown WriteBatch tag"),
                             null);
@@ -129,6 +272,13 @@ public class WriteBatch {
     // private String rep_; // See comment in write_batch.cc for the format of
     // rep_
 
+    // Finds the memtable of a column family for MemTableInserter
+    public interface ColumnFamilyMemTables {
+        // The memtable the updates of column family "id" go to, or null to
+        // skip them
+        MemTable memTableFor(int id);
+    }
+
     // Intentionally copyable
     public class MemTableInserter extends Handler {
         public MemTableInserter() {
@@ -136,15 +286,44 @@ public class WriteBatch {
         }
 
         SequenceNumber sequence_;
+        // memtable of the default column family, used when families_ is
+        // null; the updates of other families are then skipped
+        MemTable default_mem_;
+        ColumnFamilyMemTables families_;
+        // memtable of the current record, null if it is skipped
         MemTable mem_;
+        // other batches may be inserted into mem_ at the same time
+        boolean concurrent_;
+        // where this writer's last insert went, see MemTable.InsertHint()
+        MemTableRep.InsertHint hint_;
+        // number of inserts the hint saved a search for
+        long hint_hits_;
 
         void put(Slice key, Slice value) {
-            mem_.Add(sequence_, ValueType.kTypeValue, key, value);
-            sequence_.value++;
+            add(ValueType.kTypeValue, key, value);
         }
 
         void delete(Slice key) {
-            mem_.Add(sequence_, ValueType.kTypeDeletion, key, new Slice());
+            add(ValueType.kTypeDeletion, key, new Slice());
+        }
+
+        void merge(Slice key, Slice value) {
+            add(ValueType.kTypeMerge, key, value);
+        }
+
+        private void add(byte type, Slice key, Slice value) {
+            MemTable mem = families_ != null ? families_
+                    .memTableFor(column_family_)
+                    : (column_family_ == 0 ? default_mem_ : null);
+            if (mem != mem_) {
+                mem_ = mem;
+                hint_ = mem != null ? mem.InsertHint(concurrent_) : null;
+            }
+            if (mem != null && mem.Add(sequence_, type, key, value,
+                    concurrent_, hint_)) {
+                hint_hits_++;
+            }
+            // A skipped update still uses up its sequence number
             sequence_.value++;
         }
 
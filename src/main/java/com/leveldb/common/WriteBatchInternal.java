@@ -21,6 +21,7 @@ public class WriteBatchInternal {
 
     // Set the count for the number of entries in the batch.
     public static void SetCount(WriteBatch batch, int n) {
+        batch.reserve(0); // unshare a borrowed buffer
         util.putInt(batch.rep_.bytes, 8, n);
     }
 
@@ -32,38 +33,89 @@ public class WriteBatchInternal {
     // Store the specified number as the seqeunce number for the start of
     // this batch.
     public static void SetSequence(WriteBatch batch, SequenceNumber seq) {
+        batch.reserve(0); // unshare a borrowed buffer
         util.putLong(batch.rep_.bytes, 0, seq.value);
     }
 
     public static void SetSequence(WriteBatch batch, long seq) {
+        batch.reserve(0); // unshare a borrowed buffer
         util.putLong(batch.rep_.bytes, 0, seq);
     }
 
+    // The encoded batch. Points into the batch's buffer, so it is only
+    // valid until the batch is next modified.
     public static Slice Contents(WriteBatch batch) {
-        return new Slice(batch.rep_.bytes);
+        return new Slice(batch.rep_.bytes, 0, batch.size_);
     }
 
     public static int ByteSize(WriteBatch batch) {
-        return batch.rep_.bytes.length;
+        return batch.size_;
     }
 
+    // Make the batch use "contents" as its encoding. The bytes are not
+    // copied unless the batch is later modified, so contents must stay
+    // unchanged while the batch is read.
     public static void SetContents(WriteBatch b, Slice contents) {
         assert (contents.size() >= WriteBatch.kHeader);
-        b.rep_.bytes = contents.data();
+        if (contents.getOffset() == 0) {
+            b.rep_.bytes = contents.getBuffer();
+            b.borrowed_ = true;
+        } else {
+            b.rep_.bytes = contents.data();
+            b.borrowed_ = false;
+        }
+        b.size_ = contents.size();
     }
 
     public static Status InsertInto(WriteBatch b, MemTable memtable) {
+        return InsertInto(b, memtable, false);
+    }
+
+    // If "concurrent" is true, other threads may be inserting their own
+    // batches into memtable at the same time.
+    public static Status InsertInto(WriteBatch b, MemTable memtable,
+                                    boolean concurrent) {
+        return InsertInto(b, memtable, concurrent, null);
+    }
+
+    // Same as above. If hint_hits is non-null, adds to hint_hits[0] the
+    // number of entries whose insert position came from the writer's insert
+    // hint instead of a search.
+    public static Status InsertInto(WriteBatch b, MemTable memtable,
+                                    boolean concurrent, long[] hint_hits) {
+        return InsertInto(b, memtable, concurrent, hint_hits, null);
+    }
+
+    // Same as above, with the updates of each column family going to the
+    // memtable "families" returns for it. If "families" is null, those of
+    // the default family go to memtable and the others are skipped.
+    public static Status InsertInto(WriteBatch b, MemTable memtable,
+                                    boolean concurrent, long[] hint_hits,
+                                    WriteBatch.ColumnFamilyMemTables families) {
         MemTableInserter inserter = b.inserter;
         inserter.sequence_ = WriteBatchInternal.Sequence(b);
-        inserter.mem_ = memtable;
-        return b.iterate(inserter);
+        inserter.default_mem_ = memtable;
+        inserter.families_ = families;
+        inserter.mem_ = null;
+        inserter.concurrent_ = concurrent;
+        inserter.hint_ = null;
+        inserter.hint_hits_ = 0;
+        Status s = b.iterate(inserter);
+        inserter.mem_ = null;
+        inserter.hint_ = null;
+        if (hint_hits != null) {
+            hint_hits[0] += inserter.hint_hits_;
+        }
+        return s;
     }
 
     public static void Append(WriteBatch dst, WriteBatch src) {
+        assert (src.size_ >= WriteBatch.kHeader);
+        int n = src.size_ - WriteBatch.kHeader; //  remove Header of src
+        dst.reserve(n);
         SetCount(dst, count(dst) + count(src));
-        assert (src.rep_.bytes.length >= WriteBatch.kHeader);
-        byte[] src_ = src.rep_.bytes;
-        dst.rep_.bytes = util.add(dst.rep_.bytes,
-                util.end(src_, src_.length - WriteBatch.kHeader)); //  remove Header of src
+        System.arraycopy(src.rep_.bytes, WriteBatch.kHeader, dst.rep_.bytes,
+                dst.size_, n);
+        dst.size_ += n;
     }
 }
@@ -0,0 +1,7 @@
+package com.leveldb.common;
+
+// Same as _Comparable, for keys that are plain longs (e.g. arena
+// addresses), which are then never boxed to be compared
+public abstract class _LongComparable {
+    public abstract int compare(long k, long k2);
+}
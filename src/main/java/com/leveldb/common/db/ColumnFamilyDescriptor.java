@@ -0,0 +1,26 @@
+package com.leveldb.common.db;
+
+import com.leveldb.common.options.Options;
+
+// A column family to open with DB.open(): its name and the options it is
+// used with. Of these options, only those about the family's own data
+// (comparator, merge_operator, write_buffer_size, compression, block
+// settings...) count; those about the whole DB (env, info_log, WAL
+// settings...) are taken from the options the DB is opened with.
+public class ColumnFamilyDescriptor {
+    private final String name_;
+    private final Options options_;
+
+    public ColumnFamilyDescriptor(String name, Options options) {
+        name_ = name;
+        options_ = options;
+    }
+
+    public String getName() {
+        return name_;
+    }
+
+    public Options getOptions() {
+        return options_;
+    }
+}
@@ -0,0 +1,32 @@
+package com.leveldb.common.db;
+
+// A column family of a DB: a separate key space with its own options,
+// memtables and table files, sharing the log, the writer queue and the
+// background thread of the DB. Updates to several families can be made
+// atomically in one WriteBatch.
+//
+// Handles come from DB.open(), DB.createColumnFamily() and
+// DB.defaultColumnFamily(). A handle is no longer usable once its family
+// is dropped or the DB is closed.
+public class ColumnFamilyHandle {
+    // Name of the family that always exists, with id 0
+    public static final String kDefaultColumnFamilyName = "default";
+
+    final DBImpl db_;
+    private final int id_;
+    private final String name_;
+
+    ColumnFamilyHandle(DBImpl db, int id, String name) {
+        db_ = db;
+        id_ = id;
+        name_ = name;
+    }
+
+    public int getID() {
+        return id_;
+    }
+
+    public String getName() {
+        return name_;
+    }
+}
@@ -131,7 +131,6 @@ public class Compaction {
         for (int i = 0; i < config.kNumLevels; i++) {
             level_ptrs_[i] = 0;
             inputs_.add(new ArrayList<FileMetaData>());
-            grandparents_.add(new FileMetaData());
         }
     }
 
@@ -2,9 +2,8 @@ package com.leveldb.common.db;
 
 import com.leveldb.common.*;
 import com.leveldb.common.file.FileType;
-import com.leveldb.common.file._WritableFile;
 import com.leveldb.common.file.FileName;
-import com.leveldb.common.log.Writer;
+import com.leveldb.common.options.IngestExternalFileOptions;
 import com.leveldb.common.options.Options;
 import com.leveldb.common.options.ReadOptions;
 import com.leveldb.common.options.WriteOptions;
@@ -13,6 +12,7 @@ import com.leveldb.common.version.VersionEdit;
 import java.nio.channels.FileLock;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 //A DB is a persistent ordered map from keys to values.
 //A DB is safe for concurrent access from multiple threads without
@@ -44,6 +44,39 @@ public abstract class DB {
         return write(opt, batch);
     }
 
+    // Merge "value" into the database entry for "key" with
+    // options.merge_operator: the next read of "key" sees the operator
+    // applied to its current value (if any) and "value". Returns OK on
+    // success, and a non-OK status on error.
+    public Status merge(WriteOptions opt, Slice key, Slice value) {
+        WriteBatch batch = new WriteBatch();
+        batch.merge(key, value);
+        return write(opt, batch);
+    }
+
+    // Same as above, in "column_family"
+    public Status put(WriteOptions opt, ColumnFamilyHandle column_family,
+                      Slice key, Slice value) {
+        WriteBatch batch = new WriteBatch();
+        batch.put(column_family, key, value);
+        return write(opt, batch);
+    }
+
+    public Status delete(WriteOptions opt, ColumnFamilyHandle column_family,
+                         Slice key) {
+        WriteBatch batch = new WriteBatch();
+        batch.delete(column_family, key);
+        return write(opt, batch);
+    }
+
+    // With the merge_operator of the options of "column_family"
+    public Status merge(WriteOptions opt, ColumnFamilyHandle column_family,
+                        Slice key, Slice value) {
+        WriteBatch batch = new WriteBatch();
+        batch.merge(column_family, key, value);
+        return write(opt, batch);
+    }
+
     // Apply the specified updates to the database.
     // Returns OK on success, non-OK on failure.
     // Note: consider setting options.sync = true.
@@ -58,6 +91,58 @@ public abstract class DB {
     // May return some other Status on an error.
     public abstract Slice get(ReadOptions options, Slice key, Status s);
 
+    // Same as above, in "column_family"
+    public abstract Slice get(ReadOptions options,
+                              ColumnFamilyHandle column_family, Slice key,
+                              Status s);
+
+    // Look up several keys at once, in one snapshot (options.snapshot, or
+    // the current state). Returns the value of each key, in the order of
+    // "keys", and replaces the contents of "statuses" with the status of
+    // each lookup: OK, one for which Status::isNotFound() returns true (the
+    // value is then empty), or some other error.
+    //
+    // Cheaper than a get() per key: the DB state is pinned once, and each
+    // table file is searched once for all of its keys, in key order, with
+    // different files read in parallel on options.async_executor.
+    public abstract List<Slice> multiGet(ReadOptions options, List<Slice> keys,
+                                         List<Status> statuses);
+
+    // Like write(), but returns at once. The batch joins the same writer
+    // queue as synchronous writes and is committed with them; no thread
+    // waits for it meanwhile. The future completes with the status write()
+    // would have returned, in a thread of options.async_executor.
+    //
+    // The caller must not modify "updates" until the future is done.
+    public abstract CompletableFuture<Status> writeAsync(WriteOptions options,
+                                                         WriteBatch updates);
+
+    // Like get(), run in options.async_executor. The future completes with
+    // the value of "key", with null if there is no entry for it, and
+    // exceptionally (an IOException carrying the status) on other errors.
+    public abstract CompletableFuture<Slice> getAsync(ReadOptions options,
+                                                      Slice key);
+
+    // Turn bulk-load mode on or off. Meant for loading large amounts of
+    // fresh data, typically with nobody reading the DB meanwhile.
+    //
+    // While it is on, writes go to append-only memtables that are only
+    // sorted (in parallel) when they are flushed, writes are not slowed
+    // down or stopped because of level-0 files, and a flushed table whose
+    // key range overlaps nothing in the DB goes straight to the bottom
+    // level instead of level-0. Reads stay correct but reading the current
+    // memtable is expensive.
+    //
+    // Switching the mode starts a new memtable. Turning it off restores
+    // normal leveled behavior; level-0 files piled up meanwhile are then
+    // compacted as usual.
+    public abstract Status setBulkLoadMode(boolean enabled);
+
+    // Start an optimistic transaction (see Transaction), committed with
+    // "options". Its reads see the current state of the DB plus its own
+    // updates.
+    public abstract Transaction beginTransaction(WriteOptions options);
+
     // Return a heap-allocated iterator over the contents of the database.
     // The result of newIterator() is initially invalid (caller must
     // call one of the seek methods on the iterator before using it).
@@ -66,6 +151,10 @@ public abstract class DB {
     // The returned iterator should be deleted before this db is deleted.
     public abstract Iterator newIterator(ReadOptions options);
 
+    // Same as above, over the contents of "column_family"
+    public abstract Iterator newIterator(ReadOptions options,
+                                         ColumnFamilyHandle column_family);
+
     // Return a handle to the current DB state. Iterators created with
     // this handle will all observe a stable snapshot of the current DB
     // state. The caller must call releaseSnapshot(result) when the
@@ -89,8 +178,32 @@ public abstract class DB {
     // where <N> is an ASCII representation of a level number (e.g. "0").
     // "leveldb.stats" - returns a multi-line string that describes statistics
     // about the internal operation of the DB.
+    // "leveldb.num-immutable-mem-table" - number of full memtables waiting
+    // to be flushed.
+    // "leveldb.log-syncs" - number of times the log was synced for
+    // WriteOptions.sync writes.
+    // "leveldb.writes-per-sync" - average number of sync writes made
+    // durable by one of those syncs (group commit).
+    // "leveldb.memtable-inserts" - number of entries inserted into
+    // memtables since the DB was opened.
+    // "leveldb.memtable-insert-hint-hits" - how many of those went right
+    // after the writer's previous insert and so skipped the search for
+    // their position.
+    // "leveldb.unlogged-bytes" - bytes of updates written without the log
+    // (disable_wal) that are not flushed yet, i.e. would be lost by a
+    // crash.
+    // "leveldb.write-stall-stats" - returns a multi-line string with the
+    // number of writes slowed down and stopped because compactions fell
+    // behind, the time spent in each state, and the current write rate
+    // limit.
     public abstract boolean getProperty(Slice property, StringBuffer value);
 
+    // Same as above, for the properties of "column_family". Those about
+    // the log and the writes (e.g. "leveldb.log-syncs") are only kept for
+    // the whole DB, in its default column family.
+    public abstract boolean getProperty(ColumnFamilyHandle column_family,
+                                        Slice property, StringBuffer value);
+
     // For each i in [0,n-1], store in "sizes[i]", the approximate
     // file system space used by keys in "[range[i].start .. range[i].limit)".
     //
@@ -107,46 +220,55 @@ public abstract class DB {
 
     public abstract void compactRange(Slice begin, Slice end);
 
+    // Same as above, in "column_family"
+    public abstract void compactRange(ColumnFamilyHandle column_family,
+                                      Slice begin, Slice end);
+
+    // Return the handle of the default column family, the one the methods
+    // without a column family use
+    public abstract ColumnFamilyHandle defaultColumnFamily();
+
+    // Create column family "name", used with "options" (see
+    // ColumnFamilyDescriptor), and return its handle. Returns null after
+    // storing a non-OK status in s on error.
+    public abstract ColumnFamilyHandle createColumnFamily(Options options,
+                                                          String name,
+                                                          Status s);
+
+    // Drop "column_family" and delete its data. Its updates in batches
+    // written afterwards are ignored. The caller must be done reading it.
+    public abstract Status dropColumnFamily(ColumnFamilyHandle column_family);
+
+    // Add the table files "external_files", written by SstFileWriter, to
+    // the DB without rewriting them. Their key ranges must not overlap.
+    // Their entries become visible at once, atomically, as if written by a
+    // single write: they all get the next sequence number, so they hide
+    // the older updates of their keys. Each file goes to the bottom-most
+    // level where nothing overlaps it, flushing the memtable first if it
+    // holds keys in their ranges.
+    public abstract Status ingestExternalFile(List<String> external_files,
+                                              IngestExternalFileOptions options);
+
     // Possible extensions:
     // (1) Add a method to compact a range of keys
 
     public static DB open(Options options, String dbname) {
-        DB dbptr = null;
-        DBImpl impl = new DBImpl(options, dbname);
-        impl.getmutex().lock();
-        try {
-            VersionEdit edit = new VersionEdit();
-            Status s = impl.recover(edit); // Handles create_if_missing,
-            // error_if_exists
-            if (s.ok()) {
-                long new_log_number = impl.versions_.newFileNumber();
-                _WritableFile lfile = options.env.newWritableFile(FileName.logFileName(dbname, new_log_number));
-                {
-                    edit.setLogNumber(new_log_number);
-                    impl.logfile_ = lfile;
-                    impl.logfile_number_ = new_log_number;
-                    impl.log_ = new Writer(lfile);
-                    s = impl.versions_.logAndApply(edit, impl.mutex_);
-                }
-                if (s.ok()) {
-                    impl.deleteObsoleteFiles();
-                    impl.maybeScheduleCompaction();
-                }
-            }
-            if (s.ok()) {
-                dbptr = impl;
-            } else {
-                // wlu, 2012-7-10, bugFix: something goes wrong, release resources
-                impl.close();
-                impl = null;
-            }
-        }finally{
-            impl.mutex_.unlock();
-        }
-        return dbptr;
+        return open(options, dbname, new Status());
     }
 
     public static DB open(Options options, String dbname, Status s_) {
+        return open(options, dbname, new ArrayList<ColumnFamilyDescriptor>(),
+                new ArrayList<ColumnFamilyHandle>(), s_);
+    }
+
+    // Same as above, also opening the column families "column_families"
+    // and adding their handles to "handles", in the same order. Every
+    // column family of the database has to be listed; those that do not
+    // exist are created if options.create_if_missing. The default family
+    // (ColumnFamilyHandle.kDefaultColumnFamilyName) may be listed too.
+    public static DB open(Options options, String dbname,
+                          List<ColumnFamilyDescriptor> column_families,
+                          List<ColumnFamilyHandle> handles, Status s_) {
         DB dbptr = null;
         DBImpl impl = new DBImpl(options, dbname);
         impl.getmutex().lock();
@@ -156,15 +278,16 @@ public abstract class DB {
             // error_if_exists
             if (s.ok()) {
                 long new_log_number = impl.versions_.newFileNumber();
-                _WritableFile lfile = options.env.newWritableFile(FileName
-                        .logFileName(dbname, new_log_number));
                 {
                     edit.setLogNumber(new_log_number);
-                    impl.logfile_ = lfile;
-                    impl.logfile_number_ = new_log_number;
-                    impl.log_ = new Writer(lfile);
+                    impl.openLog(new_log_number);
+                    impl.mem_.SetLogNumber(new_log_number);
                     s = impl.versions_.logAndApply(edit, impl.mutex_);
                 }
+                if (s.ok()) {
+                    // Before any log goes: the column families replay them
+                    s = impl.openColumnFamilies(column_families, handles);
+                }
                 if (s.ok()) {
                     impl.deleteObsoleteFiles();
                     impl.maybeScheduleCompaction();
@@ -174,9 +297,8 @@ public abstract class DB {
                 dbptr = impl;
             } else {
                 // wlu, 2012-7-10, bugFix: something goes wrong, release resources
+                handles.clear();
                 impl.close();
-                impl = null;
-
             }
             s_.Status_(s);
         }finally {
@@ -210,6 +332,15 @@ public abstract class DB {
             long number;
             FileType type = new FileType();
             for (int i = 0; i < filenames.size(); i++) {
+                if (filenames.get(i).startsWith(DBImpl.kColumnFamilyDirPrefix)) {
+                    // The directory of a column family
+                    Status cs = destroyDB(dbname + "/" + filenames.get(i),
+                            options);
+                    if (s.ok()) {
+                        s = cs;
+                    }
+                    continue;
+                }
                 try {
                     number = FileName.parseFileName(filenames.get(i), type);
                 } catch (Exception e) {
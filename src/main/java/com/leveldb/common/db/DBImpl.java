@@ -5,10 +5,12 @@ import com.leveldb.common.Comparator;
 import com.leveldb.common.Iterator;
 import com.leveldb.common.comparator.InternalKeyComparator;
 import com.leveldb.common.file.FileType;
+import com.leveldb.common.file._RandomAccessFile;
 import com.leveldb.common.file._SequentialFile;
 import com.leveldb.common.file._WritableFile;
 import com.leveldb.common.file.FileName;
 import com.leveldb.common.log.Reader;
+import com.leveldb.common.options.IngestExternalFileOptions;
 import com.leveldb.common.options.Options;
 import com.leveldb.common.options.ReadOptions;
 import com.leveldb.common.options.WriteOptions;
@@ -23,9 +25,20 @@ import com.leveldb.util.Logging;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import java.io.IOException;
 import java.nio.channels.FileLock;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -80,9 +93,47 @@ public class DBImpl extends DB {
         boolean done;
         Condition cv;
 
+        // Set by the group leader when this writer should insert its own
+        // batch into the memtable (options_.allow_concurrent_memtable_write)
+        boolean insert_pending;
+        Writer leader;
+        // Leader only: number of group members still inserting
+        int pending_inserts;
+
+        // writeAsync() only: completed with status once done. Such a writer
+        // has no thread waiting for it, until it reaches the front of the
+        // queue and a task of async_executor_ leads its group (leading).
+        CompletableFuture<Status> future;
+        boolean leading;
+
+        // Not written to the log (WriteOptions/Options.disable_wal)
+        boolean disable_wal;
+
+        // Transaction.commit() only: the batch is written only if none of
+        // the keys the transaction tracks changed after its snapshot
+        Transaction txn;
+
+        // NULL batch only: the column family switched to a new memtable, if
+        // not the default one (see flushMemTable())
+        DBImpl flush_family;
+
         Writer(ReentrantLock mu) {
             cv = mu.newCondition();
         }
+
+        // Whether a thread waits on cv for this writer
+        boolean hasThread() {
+            return future == null || leading;
+        }
+    }
+
+    // A group of writes that is in the log and waits to be, or is being,
+    // applied to the memtable (options_.enable_pipelined_write).
+    class WriteGroup {
+        Writer leader;
+        List<Writer> members = new ArrayList<Writer>();
+        long first_sequence;
+        long last_sequence;
     }
 
     // members
@@ -91,6 +142,8 @@ public class DBImpl extends DB {
     Options options_; // options_.comparator == &internal_comparator_
     boolean owns_info_log_;
     boolean owns_cache_;
+    Executor async_executor_;
+    boolean owns_async_executor_;
     String dbname_;
 
     // table_cache_ provides its own synchronization
@@ -104,14 +157,23 @@ public class DBImpl extends DB {
     com.leveldb.common.log.Writer log_;
     Condition bg_cv_; // Signalled when background work finishes
     MemTable mem_;
-    MemTable imm_; // Memtable being compacted
-    // So bg thread can detect non-NULL imm_
+    // Immutable memtables waiting to be compacted, oldest first. At most
+    // options_.max_write_buffer_number - 1 of them.
+    LinkedList<MemTable> imm_ = new LinkedList<MemTable>();
+    // So bg thread can detect a non-empty imm_ (holds the oldest one)
     // TODO maybe change to AtomicBoolean
     AtomicPointer<MemTable> has_imm_ = new AtomicPointer<MemTable>(null);
 
     long logfile_number_;
 
-    SnapshotList snapshots_ = new SnapshotList();
+    // Obsolete log files kept for reuse (options_.recycle_log_file_num),
+    // oldest first. Only logs this DB wrote itself, numbered from
+    // first_log_number_ on, are recycled: older ones may not be in the
+    // recyclable format. Guarded by mutex_.
+    LinkedList<Long> log_recycle_files_ = new LinkedList<Long>();
+    long first_log_number_;
+
+    SnapshotList snapshots_;
 
     // Set of table files to protect from deletion because they are
     // part of ongoing compactions.
@@ -120,6 +182,46 @@ public class DBImpl extends DB {
     // Has a background compaction been scheduled or is running?
     boolean bg_compaction_scheduled_;
 
+    // Is bulk-load mode on? See DB.setBulkLoadMode(). Guarded by mutex_.
+    boolean bulk_load_;
+    // options_ with the append-only memtable used in bulk-load mode
+    Options bulk_load_options_;
+
+    // Memtable inserts, and those of them whose position came from the
+    // writer's insert hint instead of a search (see MemTable.InsertHint())
+    AtomicLong memtable_inserts_ = new AtomicLong();
+    AtomicLong memtable_hint_hits_ = new AtomicLong();
+
+    // Every update with a larger sequence number is in mem_ or imm_, not
+    // yet flushed to a table (see checkConflicts()). Guarded by mutex_.
+    long flushed_sequence_;
+
+    // Pipelined writes: groups that have been logged, in sequence order.
+    // The front one is being applied to mem_. Guarded by mutex_.
+    LinkedList<WriteGroup> memtable_groups_ = new LinkedList<WriteGroup>();
+
+    // Number of log syncs, and of the writes they made durable. Sync
+    // writers queued behind the one syncing are committed as one group
+    // with the next sync, so under concurrency one sync serves several
+    // writes. Guarded by mutex_.
+    long log_syncs_;
+    long log_synced_writes_;
+
+    // Slows writes down while compactions are behind (see
+    // compactionPressure()), and the resulting stall statistics. Guarded
+    // by mutex_.
+    WriteController write_controller_;
+    long delayed_writes_;
+    long delayed_micros_;
+    long stopped_writes_;
+    long stopped_micros_;
+
+    // Writes slow down once a level holds this many times its target size
+    static final double kSlowdownScore = 2.0;
+
+    // Prefix of the directories of column families in that of the DB
+    static final String kColumnFamilyDirPrefix = "cf-";
+
     // Information for a manual compaction
     class ManualCompaction {
         int level;
@@ -135,9 +237,23 @@ public class DBImpl extends DB {
     Queue<Writer> writers_ = new LinkedList<Writer>();
     WriteBatch tmp_batch_;
 
-    public final ReentrantLock mutex_ = new ReentrantLock();
+    public final ReentrantLock mutex_;
+
+    // Column families (see ColumnFamilyHandle). The DB itself is the
+    // default family; every other family is a DBImpl of its own, stored in
+    // a directory of the DB, whose parent_ is the DB. It shares the mutex,
+    // the snapshots and the background thread of the DB, and its updates
+    // go through the writer queue and the log of the DB.
+    final DBImpl parent_; // null for the DB itself
+    final ColumnFamilyHandle handle_;
+    // The families other than the default one, by id. Only used in the DB
+    // itself. Replaced rather than modified, under mutex_, so that
+    // memtable inserts can read it without the lock.
+    volatile Map<Integer, DBImpl> families_ = new TreeMap<Integer, DBImpl>();
 
     AtomicBoolean shutting_down_ = new AtomicBoolean(false);
+    // Whether scheduleFlush() has a flush pending, or the DB is closed
+    AtomicBoolean flush_scheduled_ = new AtomicBoolean(false);
 
     // Have we encountered a background error in paranoid mode?
     Status bg_error_ = new Status();
@@ -181,6 +297,10 @@ public class DBImpl extends DB {
         Options result = new Options();
         result.Options_(src);
         result.comparator = icmp;
+        result.filter_policy = (src.filter_policy != null) ? new InternalFilterPolicy(
+                src.filter_policy) : null;
+        result.prefix_extractor = (src.prefix_extractor != null) ? new InternalKeySliceTransform(
+                src.prefix_extractor) : null;
         clipToRange(result.max_open_files, 20, 50000);
         clipToRange(result.write_buffer_size, 64 << 10, 1 << 30);
         clipToRange(result.block_size, 1 << 10, 4 << 20);
@@ -199,27 +319,63 @@ public class DBImpl extends DB {
         if (result.block_cache == null) {
             result.block_cache = Cache.newLRUCache(8 << 20);
         }
+        if (result.async_executor == null) {
+            result.async_executor = src.env.newAsyncExecutor();
+        }
         return result;
     }
 
     public DBImpl(Options options, String dbname) {
+        this(null, 0, ColumnFamilyHandle.kDefaultColumnFamilyName, options,
+                dbname);
+    }
+
+    // Column family "id" of parent, or the DB itself if parent is null
+    private DBImpl(DBImpl parent, int id, String name, Options options,
+                   String dbname) {
+        if (parent != null) {
+            // What the whole DB uses comes from the DB
+            Options family = new Options();
+            family.Options_(options);
+            family.env = parent.env_;
+            family.info_log = parent.options_.info_log;
+            if (family.block_cache == null) {
+                family.block_cache = parent.options_.block_cache;
+            }
+            family.async_executor = parent.async_executor_;
+            family.paranoid_checks = parent.options_.paranoid_checks;
+            if (family.write_buffer_manager == null) {
+                family.write_buffer_manager = parent.options_.write_buffer_manager;
+            }
+            options = family;
+        }
+        parent_ = parent;
+        handle_ = new ColumnFamilyHandle(parent != null ? parent : this, id,
+                name);
+        mutex_ = parent != null ? parent.mutex_ : new ReentrantLock();
+        snapshots_ = parent != null ? parent.snapshots_ : new SnapshotList();
         env_ = options.env;
         internal_comparator_ = new InternalKeyComparator(options.comparator);
         options_ = sanitizeOptions(dbname, internal_comparator_, options);
         owns_info_log_ = options_.info_log != options.info_log;
         owns_cache_ = options_.block_cache != options.block_cache;
+        async_executor_ = options_.async_executor;
+        owns_async_executor_ = options_.async_executor != options.async_executor;
         dbname_ = dbname;
         db_lock_ = null;
         // shutting_down_ = null;
-        bg_cv_ = mutex_.newCondition();
-        mem_ = new MemTable(internal_comparator_);
-        imm_ = null;
+        bg_cv_ = parent != null ? parent.bg_cv_ : mutex_.newCondition();
+        mem_ = new MemTable(internal_comparator_, options_);
+        imm_.clear();
         logfile_ = null;
         logfile_number_ = 0;
         log_ = null;
         tmp_batch_ = new WriteBatch();
         bg_compaction_scheduled_ = false;
+        bulk_load_ = false;
+        bulk_load_options_ = null;
         manual_compaction_ = null;
+        write_controller_ = new WriteController(options_.delayed_write_rate);
         mem_.Ref();
         has_imm_.releaseStore(null);
 
@@ -248,151 +404,1017 @@ public class DBImpl extends DB {
         return super.delete(options, key);
     }
 
+    @Override
+    public Status merge(WriteOptions options, Slice key, Slice value) {
+        if (options_.merge_operator == null) {
+            return Status.notSupported(new Slice(
+                    "merge without Options.merge_operator"), null);
+        }
+        return super.merge(options, key, value);
+    }
+
     @Override
     public Status write(WriteOptions options, WriteBatch my_batch) {
-        Status status = Status.OK();
+        return write(options, my_batch, null);
+    }
+
+    // Write my_batch as the commit of txn, if not null (see Writer.txn)
+    Status write(WriteOptions options, WriteBatch my_batch, Transaction txn) {
         Writer w = new Writer(mutex_);
         w.batch = my_batch;
+        w.txn = txn;
         w.sync = options.sync;
+        w.disable_wal = options.disable_wal || options_.disable_wal;
         w.done = false;
+        if (w.sync && w.disable_wal) {
+            return Status.invalidArgument(new Slice(
+                    "sync write without the log"), new Slice());
+        }
+        return queueWrite(w);
+    }
+
+    // Switch column family "family" of this DB to a new memtable, through
+    // the writer queue
+    Status switchMemTable(DBImpl family) {
+        Writer w = new Writer(mutex_);
+        w.flush_family = family;
+        return queueWrite(w);
+    }
 
+    // Queue w and wait until its write is done
+    private Status queueWrite(Writer w) {
         // MutexLock l(&mutex_);
         mutex_.lock();
         try {
             writers_.add(w);
-            while (!w.done && w != writers_.peek()) {
+            while (!w.done && !w.insert_pending && w != writers_.peek()) {
                 w.cv.awaitUninterruptibly(); // wait here
             }
+            if (w.insert_pending) {
+                // The leader has logged our batch, apply it ourselves
+                insertPendingBatch(w);
+                while (!w.done) {
+                    w.cv.awaitUninterruptibly();
+                }
+            }
             if (w.done) {
                 return w.status;
             }
+            return leadWrite(w);
+        } finally {
+            mutex_.unlock();
+        }
+    }
+
+    @Override
+    public CompletableFuture<Status> writeAsync(WriteOptions options,
+                                                WriteBatch updates) {
+        Writer w = new Writer(mutex_);
+        w.batch = updates;
+        w.sync = options.sync;
+        w.disable_wal = options.disable_wal || options_.disable_wal;
+        w.done = false;
+        w.future = new CompletableFuture<Status>();
+        if (w.sync && w.disable_wal) {
+            w.future.complete(Status.invalidArgument(new Slice(
+                    "sync write without the log"), new Slice()));
+            return w.future;
+        }
+
+        mutex_.lock();
+        try {
+            writers_.add(w);
+            if (w == writers_.peek()) {
+                scheduleLeader(w);
+            }
+        } finally {
+            mutex_.unlock();
+        }
+        return w.future;
+    }
+
+    @Override
+    public List<Slice> multiGet(ReadOptions options, List<Slice> keys,
+                                List<Status> statuses) {
+        final int n = keys.size();
+        mutex_.lock();
+        SequenceNumber snapshot;
+        if (options.snapshot != null) {
+            snapshot = ((SnapshotImpl) (options.snapshot)).number_;
+        } else {
+            snapshot = versions_.LastSequence();
+        }
+        MemTable mem = mem_;
+        // newest first, the order in which they have to be searched
+        List<MemTable> imms = new ArrayList<MemTable>(imm_);
+        Collections.reverse(imms);
+        Version current = versions_.current();
+        mem.Ref();
+        for (MemTable imm : imms) {
+            imm.Ref();
+        }
+        current.Ref();
+        mutex_.unlock();
+
+        // Look the keys up in key order
+        final List<Slice> user_keys = keys;
+        final Comparator ucmp = user_comparator();
+        Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new java.util.Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return ucmp.compare(user_keys.get(a), user_keys.get(b));
+            }
+        });
+
+        Slice[] values = new Slice[n];
+        Status[] status = new Status[n];
+        List<LookupKey> pending = new ArrayList<LookupKey>();
+        List<Integer> pending_index = new ArrayList<Integer>();
+        List<MergeContext> pending_merges = new ArrayList<MergeContext>();
+        for (int i : order) {
+            LookupKey lkey = new LookupKey(keys.get(i), snapshot);
+            Slice result = new Slice();
+            Status s = new Status();
+            MergeContext merge = new MergeContext(options_.merge_operator,
+                    keys.get(i));
+            boolean done = mem.Get(lkey, result, s, merge) != null || !s.ok();
+            for (int j = 0; !done && j < imms.size(); j++) {
+                done = imms.get(j).Get(lkey, result, s, merge) != null
+                        || !s.ok();
+            }
+            if (done) {
+                values[i] = result;
+                status[i] = s;
+            } else {
+                pending.add(lkey);
+                pending_index.add(i);
+                pending_merges.add(merge);
+            }
+        }
+
+        boolean have_stat_update = false;
+        Version.GetStats stats = new Version.GetStats();
+        if (!pending.isEmpty()) {
+            Slice[] found = new Slice[pending.size()];
+            Status[] found_status = new Status[pending.size()];
+            current.MultiGet(options, pending, pending_merges
+                            .toArray(new MergeContext[pending.size()]), found,
+                    found_status, async_executor_, stats);
+            have_stat_update = true;
+            for (int j = 0; j < pending.size(); j++) {
+                values[pending_index.get(j)] = found[j];
+                status[pending_index.get(j)] = found_status[j];
+            }
+        }
+
+        mutex_.lock();
+        if (have_stat_update && current.UpdateStats(stats)) {
+            maybeScheduleCompaction();
+        }
+        mem.Unref();
+        for (MemTable imm : imms) {
+            imm.Unref();
+        }
+        current.Unref();
+        mutex_.unlock();
+
+        List<Slice> result = new ArrayList<Slice>(n);
+        statuses.clear();
+        for (int i = 0; i < n; i++) {
+            result.add(values[i] == null ? new Slice() : values[i]);
+            statuses.add(status[i]);
+        }
+        return result;
+    }
+
+    @Override
+    public CompletableFuture<Slice> getAsync(final ReadOptions options,
+                                             final Slice key) {
+        final CompletableFuture<Slice> result = new CompletableFuture<Slice>();
+        async_executor_.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Status s = new Status();
+                    Slice value = get(options, key, s);
+                    if (s.ok()) {
+                        result.complete(value);
+                    } else if (s.isNotFound()) {
+                        result.complete(null);
+                    } else {
+                        result.completeExceptionally(new IOException(s.toString()));
+                    }
+                } catch (RuntimeException e) {
+                    result.completeExceptionally(e);
+                }
+            }
+        });
+        return result;
+    }
+
+    // Commit the group led by w, the writer at the front of the queue
+    // REQUIRES: mutex_ is held
+    private Status leadWrite(Writer w) {
+        WriteBatch my_batch = w.batch;
+        if (w.txn != null) {
+            Status s = checkConflicts(w.txn);
+            if (!s.ok()) {
+                writers_.poll();
+                wakeQueueHead();
+                return s;
+            }
+        }
+        if (options_.enable_pipelined_write && my_batch != null) {
+            return pipelinedWrite(w);
+        }
+
+        // May temporarily unlock and wait.
+        Status status = makeRoomForWrite(my_batch != null ? null
+                : (w.flush_family != null ? w.flush_family : this));
+        SequenceNumber last_sequence = versions_.LastSequence();
+        Writer last_writer = w;
+        boolean synced = false;
+        if (status.ok() && my_batch != null) { // NULL batch is for
+            // compactions
+            Writer[] group_last = new Writer[1];
+            WriteBatch updates = buildBatchGroup(group_last);
+            last_writer = group_last[0];
+            chargeWrite(updates);
+            WriteBatchInternal
+                    .SetSequence(updates, last_sequence.value + 1);
+            boolean parallel = options_.allow_concurrent_memtable_write
+                    && concurrentInsertSupported() && last_writer != w;
+
+            if (w.disable_wal) {
+                mem_.AddUnloggedBytes(WriteBatchInternal.ByteSize(updates));
+            }
+
+            // Add to log and apply to memtable. We can release the lock
+            // during this phase since &w is currently responsible for
+            // logging
+            // and protects against concurrent loggers and concurrent writes
+            // into mem_.
+            {
+                mutex_.unlock();
+                if (!w.disable_wal) {
+                    status = log_.AddRecord(WriteBatchInternal
+                            .Contents(updates));
+                }
+                if (status.ok() && w.sync) {
+                    status = logfile_.Sync();
+                    synced = true;
+                }
+                if (status.ok() && !parallel) {
+                    status = insertInto(updates, mem_, false);
+                }
+                mutex_.lock();
+            }
+            if (status.ok() && parallel) {
+                status = insertGroupInParallel(w,
+                        groupMembers(last_writer),
+                        last_sequence.value + 1);
+            }
+            last_sequence.value += WriteBatchInternal.count(updates);
+            if (updates == tmp_batch_)
+                tmp_batch_.clear();
+
+            setLastSequence(last_sequence);
+        }
+
+        if (synced) {
+            log_syncs_++;
+        }
+        List<Writer> detached = new ArrayList<Writer>();
+        while (true) {
+            Writer ready = writers_.peek();
+            writers_.poll();
+            if (synced && ready.batch != null) {
+                log_synced_writes_++;
+            }
+            if (ready != w) {
+                ready.status = status;
+                ready.done = true;
+                if (ready.hasThread()) {
+                    ready.cv.signal(); // just signal not signalAll ... why?
+                } else {
+                    detached.add(ready);
+                }
+            }
+            if (ready == last_writer)
+                break;
+        }
+        completeFutures(detached);
+
+        // Notify new head of write queue
+        wakeQueueHead(); // signal the next round...
+        return status;
+    }
+
+    // Returns busy if a key read or written by txn has an entry newer than
+    // the snapshot of txn, i.e. someone else changed it meanwhile.
+    //
+    // REQUIRES: mutex_ is held
+    // REQUIRES: txn is committed by the writer at the front of the queue,
+    // so that no other write is under way
+    private Status checkConflicts(Transaction txn) {
+        while (!memtable_groups_.isEmpty()) {
+            // Earlier pipelined writes are not all in mem_ yet
+            bg_cv_.awaitUninterruptibly();
+        }
+        long snapshot = txn.snapshot().number_.value;
+        if (snapshot >= flushed_sequence_) {
+            // Every update after the snapshot is still in a memtable
+            for (Slice key : txn.trackedKeys()) {
+                long seq = mem_.GetLatestSequence(key);
+                for (int i = imm_.size() - 1; seq < 0 && i >= 0; i--) {
+                    seq = imm_.get(i).GetLatestSequence(key);
+                }
+                if (seq > snapshot) {
+                    return Status.busy(new Slice("write conflict on key"), key);
+                }
+            }
+            return Status.OK();
+        }
+
+        // Some of them may have been flushed: look the keys up in the
+        // whole DB. The snapshot keeps compactions from folding changes
+        // into entries as old as itself.
+        Iterator iter = newInternalIterator(new ReadOptions(),
+                new SequenceNumber(0));
+        Status s = Status.OK();
+        mutex_.unlock();
+        try {
+            for (Slice key : txn.trackedKeys()) {
+                iter.seek(new LookupKey(key, SequenceNumber.MaxSequenceNumber)
+                        .internal_key());
+                if (!iter.valid()) {
+                    continue;
+                }
+                ParsedInternalKey ikey = InternalKey.ParseInternalKey_(iter
+                        .key());
+                if (ikey != null
+                        && user_comparator().compare(ikey.user_key, key) == 0
+                        && ikey.sequence.value > snapshot) {
+                    s = Status.busy(new Slice("write conflict on key"), key);
+                    break;
+                }
+            }
+            if (s.ok()) {
+                s = iter.status();
+            }
+        } finally {
+            mutex_.lock();
+        }
+        return s;
+    }
+
+    // Have the writer at the front of the queue lead the next group
+    // REQUIRES: mutex_ is held
+    private void wakeQueueHead() {
+        Writer head = writers_.peek();
+        if (head == null) {
+            return;
+        }
+        if (head.hasThread()) {
+            head.cv.signal();
+        } else {
+            scheduleLeader(head);
+        }
+    }
+
+    // Lead the group of the asynchronous writer w, now at the front of the
+    // queue, in a task of async_executor_
+    // REQUIRES: mutex_ is held
+    private void scheduleLeader(final Writer w) {
+        w.leading = true;
+        async_executor_.execute(new Runnable() {
+            @Override
+            public void run() {
+                Status s;
+                mutex_.lock();
+                try {
+                    s = w.done ? w.status : leadWrite(w);
+                } finally {
+                    mutex_.unlock();
+                }
+                w.future.complete(s);
+            }
+        });
+    }
+
+    // Complete the futures of done asynchronous writers in a task of
+    // async_executor_, so that whatever depends on them does not run under
+    // mutex_
+    private void completeFutures(final List<Writer> writers) {
+        if (writers.isEmpty()) {
+            return;
+        }
+        async_executor_.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (Writer m : writers) {
+                    m.future.complete(m.status);
+                }
+            }
+        });
+    }
+
+    // The writers from the front of the queue up to last_writer
+    // REQUIRES: mutex_ is held
+    private List<Writer> groupMembers(Writer last_writer) {
+        List<Writer> group = new ArrayList<Writer>();
+        java.util.Iterator<Writer> iter = writers_.iterator();
+        while (true) {
+            Writer m = iter.next();
+            group.add(m);
+            if (m == last_writer) {
+                break;
+            }
+        }
+        return group;
+    }
+
+    // Every writer of the group inserts its own batch into mem_, the leader
+    // included, each with the sequence numbers it would have got in the
+    // combined batch. Returns once all of them are done.
+    //
+    // REQUIRES: mutex_ is held
+    // REQUIRES: the group has been written to the log, and nobody else is
+    // writing to mem_
+    private Status insertGroupInParallel(Writer leader, List<Writer> group,
+                                         long first_sequence) {
+        long seq = first_sequence;
+        leader.status = Status.OK();
+        leader.pending_inserts = 0;
+        // Writers without a thread of their own are inserted by the leader
+        List<Writer> detached = new ArrayList<Writer>();
+        for (Writer m : group) {
+            if (m.batch != null) {
+                WriteBatchInternal.SetSequence(m.batch, seq);
+                seq += WriteBatchInternal.count(m.batch);
+                if (m != leader) {
+                    if (!m.hasThread()) {
+                        detached.add(m);
+                        continue;
+                    }
+                    m.leader = leader;
+                    m.insert_pending = true;
+                    leader.pending_inserts++;
+                    m.cv.signal();
+                }
+            }
+        }
+
+        MemTable mem = mem_;
+        mutex_.unlock();
+        Status s = insertInto(leader.batch, mem, true);
+        for (Writer m : detached) {
+            if (s.ok()) {
+                s = insertInto(m.batch, mem, true);
+            }
+        }
+        mutex_.lock();
+        while (leader.pending_inserts > 0) {
+            leader.cv.awaitUninterruptibly();
+        }
+        return s.ok() ? leader.status : s;
+    }
+
+    // The write path of options_.enable_pipelined_write. The leader logs
+    // its group as write() does, but then leaves the writer queue at once,
+    // so that the next group is logged while this one is applied to the
+    // memtable. Groups are applied, and their sequence numbers published,
+    // in the order in which they were logged.
+    //
+    // REQUIRES: mutex_ is held
+    // REQUIRES: w is at the front of the writer queue and has a batch
+    private Status pipelinedWrite(Writer w) {
+        // May temporarily unlock and wait.
+        Status status = makeRoomForWrite(null);
+        Writer last_writer = w;
+        WriteGroup group = new WriteGroup();
+        group.leader = w;
+        // Sequence numbers continue from the last group still in the
+        // pipeline, which are not published yet
+        group.first_sequence = (memtable_groups_.isEmpty() ? versions_
+                .LastSequence().value : memtable_groups_.getLast().last_sequence) + 1;
+        group.last_sequence = group.first_sequence - 1;
+        boolean synced = false;
+        if (status.ok()) {
+            Writer[] group_last = new Writer[1];
+            WriteBatch updates = buildBatchGroup(group_last);
+            last_writer = group_last[0];
+            chargeWrite(updates);
+            WriteBatchInternal.SetSequence(updates, group.first_sequence);
+            group.last_sequence += WriteBatchInternal.count(updates);
+            if (w.disable_wal) {
+                // mem_ is the memtable the group is applied to, see
+                // makeRoomForWrite()
+                mem_.AddUnloggedBytes(WriteBatchInternal.ByteSize(updates));
+            }
+            mutex_.unlock();
+            if (!w.disable_wal) {
+                status = log_.AddRecord(WriteBatchInternal.Contents(updates));
+            }
+            if (status.ok() && w.sync) {
+                status = logfile_.Sync();
+                synced = true;
+            }
+            mutex_.lock();
+            if (updates == tmp_batch_) {
+                tmp_batch_.clear();
+            }
+        }
+
+        // Leave the writer queue and let the next group at the log
+        if (synced) {
+            log_syncs_++;
+        }
+        while (true) {
+            Writer ready = writers_.poll();
+            group.members.add(ready);
+            if (synced && ready.batch != null) {
+                log_synced_writes_++;
+            }
+            if (ready == last_writer) {
+                break;
+            }
+        }
+        wakeQueueHead();
+        if (!status.ok()) {
+            finishGroup(group, status, w);
+            return status;
+        }
+
+        // Wait for the groups logged before this one to be applied. The
+        // group at the front applies all the groups queued behind it as
+        // well, so this one may be applied by an earlier leader.
+        memtable_groups_.addLast(group);
+        while (true) {
+            if (w.insert_pending) {
+                insertPendingBatch(w);
+            }
+            if (w.done || memtable_groups_.getFirst() == group) {
+                break;
+            }
+            w.cv.awaitUninterruptibly();
+        }
+        if (w.done) {
+            return w.status;
+        }
+
+        List<WriteGroup> applied = new ArrayList<WriteGroup>(memtable_groups_);
+        List<Writer> members = new ArrayList<Writer>();
+        for (WriteGroup g : applied) {
+            members.addAll(g.members);
+        }
+
+        // mem_ stays the same until memtable_groups_ is empty again (see
+        // makeRoomForWrite)
+        boolean parallel = options_.allow_concurrent_memtable_write
+                && concurrentInsertSupported() && members.size() > 1;
+        if (parallel) {
+            status = insertGroupInParallel(w, members, group.first_sequence);
+        } else {
+            MemTable mem = mem_;
+            mutex_.unlock();
+            long seq = group.first_sequence;
+            for (Writer m : members) {
+                if (m.batch != null && status.ok()) {
+                    WriteBatchInternal.SetSequence(m.batch, seq);
+                    seq += WriteBatchInternal.count(m.batch);
+                    status = insertInto(m.batch, mem, false);
+                }
+            }
+            mutex_.lock();
+        }
+
+        // Publish the updates and hand over to the next group
+        setLastSequence(new SequenceNumber(applied.get(
+                applied.size() - 1).last_sequence));
+        for (int i = 0; i < applied.size(); i++) {
+            memtable_groups_.removeFirst();
+        }
+        if (!memtable_groups_.isEmpty()) {
+            memtable_groups_.getFirst().leader.cv.signal();
+        } else {
+            bg_cv_.signalAll(); // makeRoomForWrite() may be waiting
+        }
+        for (WriteGroup g : applied) {
+            finishGroup(g, status, w);
+        }
+        return status;
+    }
+
+    // Wake up the members of the group other than self with status
+    // REQUIRES: mutex_ is held
+    private void finishGroup(WriteGroup group, Status status, Writer self) {
+        List<Writer> detached = new ArrayList<Writer>();
+        for (Writer m : group.members) {
+            if (m != self) {
+                m.status = status;
+                m.done = true;
+                if (m.hasThread()) {
+                    m.cv.signal();
+                } else {
+                    detached.add(m);
+                }
+            }
+        }
+        completeFutures(detached);
+    }
+
+    // Insert w's batch into mem_ for the group leader that asked for it
+    // (see insertGroupInParallel)
+    // REQUIRES: mutex_ is held
+    private void insertPendingBatch(Writer w) {
+        MemTable mem = mem_;
+        mutex_.unlock();
+        Status s = insertInto(w.batch, mem, true);
+        mutex_.lock();
+        w.insert_pending = false;
+        if (!s.ok() && w.leader.status.ok()) {
+            w.leader.status = s;
+        }
+        if (--w.leader.pending_inserts == 0) {
+            w.leader.cv.signal();
+        }
+    }
+
+    // Insert batch into mem, the memtable of the default family, counting
+    // the inserts for the memtable-insert-hint-hits property. The updates
+    // of the other column families go to their current memtable.
+    private Status insertInto(WriteBatch batch, final MemTable mem,
+                              boolean concurrent) {
+        final Map<Integer, DBImpl> families = families_;
+        WriteBatch.ColumnFamilyMemTables memtables = null;
+        if (!families.isEmpty()) {
+            memtables = new WriteBatch.ColumnFamilyMemTables() {
+                @Override
+                public MemTable memTableFor(int id) {
+                    if (id == 0) {
+                        return mem;
+                    }
+                    // Updates of a dropped family are ignored
+                    DBImpl cf = families.get(id);
+                    return cf != null ? cf.mem_ : null;
+                }
+            };
+        }
+        return insertInto(batch, mem, concurrent, memtables);
+    }
+
+    // Insert the updates of this column family in a recovered batch into
+    // mem
+    private Status replayInto(WriteBatch batch, final MemTable mem) {
+        WriteBatch.ColumnFamilyMemTables memtables = null;
+        if (parent_ != null) {
+            final int id = handle_.getID();
+            memtables = new WriteBatch.ColumnFamilyMemTables() {
+                @Override
+                public MemTable memTableFor(int family) {
+                    return family == id ? mem : null;
+                }
+            };
+        }
+        return insertInto(batch, mem, false, memtables);
+    }
+
+    private Status insertInto(WriteBatch batch, MemTable mem,
+                              boolean concurrent,
+                              WriteBatch.ColumnFamilyMemTables memtables) {
+        long[] hint_hits = new long[1];
+        Status s = WriteBatchInternal.InsertInto(batch, mem, concurrent,
+                hint_hits, memtables);
+        memtable_inserts_.addAndGet(WriteBatchInternal.count(batch));
+        if (hint_hits[0] > 0) {
+            memtable_hint_hits_.addAndGet(hint_hits[0]);
+        }
+        return s;
+    }
+
+    // Whether the memtables of every column family take concurrent inserts
+    private boolean concurrentInsertSupported() {
+        if (!options_.memtable_factory.isInsertConcurrentlySupported()) {
+            return false;
+        }
+        for (DBImpl cf : families_.values()) {
+            if (!cf.options_.memtable_factory.isInsertConcurrentlySupported()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Set the last sequence number, which the column families share
+    // REQUIRES: mutex_ is held
+    private void setLastSequence(SequenceNumber s) {
+        versions_.SetLastSequence(s);
+        for (DBImpl cf : families_.values()) {
+            cf.versions_.SetLastSequence(new SequenceNumber(s.value));
+        }
+    }
+
+    // Directory of the logs: that of the DB
+    private String logDir() {
+        return parent_ != null ? parent_.dbname_ : dbname_;
+    }
+
+    // The oldest log that a column family still needs
+    // REQUIRES: mutex_ is held
+    private long minLogNumber() {
+        long n = versions_.LogNumber();
+        for (DBImpl cf : families_.values()) {
+            n = Math.min(n, cf.versions_.LogNumber());
+        }
+        return n;
+    }
+
+    // Wait until w, with a NULL batch, is at the front of the writer queue
+    // and no pipelined write is being applied either: no write is under way
+    // until exitWriterQueue(w).
+    // REQUIRES: mutex_ is held
+    private void enterWriterQueue(Writer w) {
+        writers_.add(w);
+        while (w != writers_.peek()) {
+            w.cv.awaitUninterruptibly();
+        }
+        while (!memtable_groups_.isEmpty()) {
+            bg_cv_.awaitUninterruptibly();
+        }
+    }
 
-            // May temporarily unlock and wait.
-            status = makeRoomForWrite(my_batch == null);
-            SequenceNumber last_sequence = versions_.LastSequence();
-            Writer last_writer = w;
-            if (status.ok() && my_batch != null) { // NULL batch is for
-                // compactions
-                WriteBatch updates = buildBatchGroup(last_writer);
-                WriteBatchInternal
-                        .SetSequence(updates, last_sequence.value + 1);
-                last_sequence.value += WriteBatchInternal.count(updates);
-
-                // Add to log and apply to memtable. We can release the lock
-                // during this phase since &w is currently responsible for
-                // logging
-                // and protects against concurrent loggers and concurrent writes
-                // into mem_.
-                {
-                    mutex_.unlock();
-                    status = log_.AddRecord(WriteBatchInternal
-                            .Contents(updates));
-                    if (status.ok() && options.sync) {
-                        status = logfile_.Sync();
-                    }
-                    if (status.ok()) {
-                        status = WriteBatchInternal.InsertInto(updates, mem_);
-                    }
-                    mutex_.lock();
-                }
-                if (updates == tmp_batch_)
-                    tmp_batch_.clear();
+    // REQUIRES: mutex_ is held
+    private void exitWriterQueue(Writer w) {
+        assert (writers_.peek() == w);
+        writers_.poll();
+        wakeQueueHead();
+    }
 
-                versions_.SetLastSequence(last_sequence);
+    // Make room for a write in every column family, and switch "force" (if
+    // not null) to a new memtable
+    // REQUIRES: mutex_ is held
+    // REQUIRES: this thread is currently at the front of the writer queue
+    private Status makeRoomForWrite(DBImpl force) {
+        mutex_.isHeldByCurrentThread();
+        assert (!writers_.isEmpty());
+        WriteBufferManager manager = options_.write_buffer_manager;
+        if (manager != null) {
+            reportMemTableUsage();
+            for (DBImpl cf : families_.values()) {
+                cf.reportMemTableUsage();
             }
-
-            while (true) {
-                Writer ready = writers_.peek();
-                writers_.poll();
-                if (ready != w) {
-                    ready.status = status;
-                    ready.done = true;
-                    ready.cv.signal(); // just signal not signalAll ... why?
+            if (force == null && manager.shouldFlush()) {
+                // Over the budget shared with other DBs: make room by
+                // flushing the largest memtable of all
+                DBImpl largest = manager.largest();
+                if (largest == this || (largest != null
+                        && families_.get(largest.handle_.getID()) == largest)) {
+                    force = largest;
+                } else if (largest != null) {
+                    largest.scheduleFlush();
                 }
-                if (ready == last_writer)
-                    break;
             }
-
-            // Notify new head of write queue
-            if (!writers_.isEmpty()) {
-                writers_.peek().cv.signal(); // signal the next round...
+        }
+        Status s = makeRoomInFamily(this, force == this);
+        for (DBImpl cf : families_.values()) {
+            if (!s.ok()) {
+                break;
             }
+            s = cf.makeRoomInFamily(this, force == cf);
+        }
+        return s;
+    }
 
-        } finally {
-            mutex_.unlock();
+    // Report the memory of the memtables of this column family to
+    // options_.write_buffer_manager
+    // REQUIRES: mutex_ is held
+    private void reportMemTableUsage() {
+        long mutable = mem_.IsEmpty() ? 0 : mem_.ApproximateMemoryUsage();
+        long total = mem_.ApproximateMemoryUsage();
+        for (MemTable imm : imm_) {
+            total += imm.ApproximateMemoryUsage();
         }
-        return status;
+        options_.write_buffer_manager.update(this, total, mutable);
+    }
 
+    // Switch this column family to a new memtable from async_executor_, in
+    // the writer queue of the DB, unless that is already pending. Used when
+    // a write of another DB finds this one holding the largest memtable
+    // under a shared WriteBufferManager.
+    void scheduleFlush() {
+        if (!flush_scheduled_.compareAndSet(false, true)) {
+            return;
+        }
+        final DBImpl db = parent_ != null ? parent_ : this;
+        try {
+            async_executor_.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        db.switchMemTable(DBImpl.this);
+                    } finally {
+                        flush_scheduled_.set(false);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Being closed
+            flush_scheduled_.set(false);
+        }
     }
 
+    // Make room in the memtable of this column family of "db", whose log
+    // is switched along with the memtable
     // REQUIRES: mutex_ is held
     // REQUIRES: this thread is currently at the front of the writer queue
-    private Status makeRoomForWrite(boolean force) {
-        mutex_.isHeldByCurrentThread();
-        assert (!writers_.isEmpty());
+    private Status makeRoomInFamily(DBImpl db, boolean force) {
         boolean allow_delay = !force;
+        boolean stopped = false;
+        long delay;
         Status s = Status.OK();
         while (true) {
             if (!bg_error_.ok()) {
                 // Yield previous error
                 s = bg_error_;
                 break;
-            } else if (allow_delay
-                    && versions_.NumLevelFiles(0) >= config.kL0_SlowdownWritesTrigger) {
-                // We are getting close to hitting a hard limit on the number of
-                // L0 files. Rather than delaying a single write by several
-                // seconds when we hit the hard limit, start delaying each
-                // individual write by 1ms to reduce latency variance. Also,
-                // this delay hands over some CPU to the compaction thread in
-                // case it is sharing the same core as the writer.
+            } else if (allow_delay && !bulk_load_
+                    && (delay = writeDelay()) > 0) {
+                // Compactions are falling behind. Rather than delaying a
+                // single write by several seconds when we hit the hard
+                // limit, slow down every write to the rate write_controller_
+                // allows, the more the further behind. Also, this delay
+                // hands over some CPU to the compaction thread in case it is
+                // sharing the same core as the writer.
                 mutex_.unlock();
-                env_.sleepForMicroseconds(1000);
+                env_.sleepForMicroseconds((int) Math.min(delay,
+                        Integer.MAX_VALUE));
+                mutex_.lock();
+                delayed_writes_++;
+                delayed_micros_ += delay;
                 allow_delay = false; // Do not delay a single write more than
                 // once
-                mutex_.lock();
             } else if (!force
                     && (mem_.ApproximateMemoryUsage() <= options_.write_buffer_size)) {
                 // There is room in current memtable
                 break;
-            } else if (imm_ != null) {
-                // We have filled up the current memtable, but the previous
-                // one is still being compacted, so we wait.
-                bg_cv_.awaitUninterruptibly();
-            } else if (versions_.NumLevelFiles(0) >= config.kL0_StopWritesTrigger) {
+            } else if (imm_.size() >= options_.max_write_buffer_number - 1) {
+                // We have filled up the current memtable, but as many
+                // previous ones as we may keep are still waiting to be
+                // compacted, so we wait.
+                stopped = waitForCompaction(stopped);
+            } else if (!bulk_load_
+                    && versions_.NumLevelFiles(0) >= config.kL0_StopWritesTrigger) {
                 // There are too many level-0 files.
                 LOG.info("There are too many level-0 files. waiting...\n");
+                stopped = waitForCompaction(stopped);
+            } else if (!db.memtable_groups_.isEmpty()) {
+                // Pipelined writes are still being applied to mem_, which
+                // must not be replaced under them.
                 bg_cv_.awaitUninterruptibly();
             } else {
                 // Attempt to switch to a new memtable and trigger compaction of
                 // old
                 assert (versions_.PrevLogNumber() == 0);
-                long new_log_number = versions_.newFileNumber();
-                _WritableFile lfile = env_.newWritableFile(FileName
-                        .logFileName(dbname_, new_log_number));
-                if (!s.ok()) {
-                    break;
-                }
-
-                // close before reset
-                logfile_.Close();
-                logfile_ = lfile;
-                logfile_number_ = new_log_number;
-                log_ = new com.leveldb.common.log.Writer(lfile);
-                imm_ = mem_;
-                has_imm_.releaseStore(imm_);
-                mem_ = new MemTable(internal_comparator_);
+                long new_log_number = db.versions_.newFileNumber();
+
+                // Closes the old log once the new one is ready
+                db.openLog(new_log_number);
+                mem_.SetLastSequence(versions_.LastSequence().value);
+                mem_.MarkReadOnly();
+                imm_.addLast(mem_);
+                has_imm_.releaseStore(imm_.getFirst());
+                mem_ = new MemTable(internal_comparator_,
+                        bulk_load_ ? bulk_load_options_ : options_);
                 mem_.Ref();
+                // Updates of the new memtable are in this log or later ones
+                mem_.SetLogNumber(new_log_number);
                 force = false; // Do not force another compaction if have room
                 LOG.info("Attempt to switch to a new memtable and trigger compaction of old");
                 maybeScheduleCompaction();
             }
         }
+        if (stopped) {
+            stopped_writes_++;
+        }
         return s;
     }
 
+    // Make a log file for log "number" the current log, reusing a recycled
+    // log file if there is one, and close the previous log
+    // REQUIRES: mutex_ is held
+    // REQUIRES: this thread is at the front of the writer queue, or the DB
+    // is being opened, so that nothing else uses the log meanwhile
+    void openLog(long number) {
+        String fname = FileName.logFileName(dbname_, number);
+        _WritableFile lfile = null;
+        if (!log_recycle_files_.isEmpty()) {
+            long old_number = log_recycle_files_.removeFirst();
+            LOG.info("reuse log #" + old_number + " as #" + number);
+            lfile = env_.reuseWritableFile(fname,
+                    FileName.logFileName(dbname_, old_number));
+        }
+        if (lfile == null) {
+            lfile = env_.newWritableFile(fname);
+            if (lfile != null && options_.preallocate_log_files) {
+                // Writing the zeros takes a while: readers and compactions
+                // may go on meanwhile, as the file is not in use yet
+                mutex_.unlock();
+                try {
+                    lfile.Allocate(options_.write_buffer_size
+                            + options_.write_buffer_size / 10);
+                } finally {
+                    mutex_.lock();
+                }
+            }
+        }
+        if (logfile_ != null) {
+            logfile_.Close();
+        }
+        if (first_log_number_ == 0) {
+            first_log_number_ = number;
+        }
+        logfile_ = lfile;
+        logfile_number_ = number;
+        log_ = new com.leveldb.common.log.Writer(lfile, number,
+                options_.recycle_log_file_num > 0);
+    }
+
+    // Whether the obsolete log file "number" is kept for reuse
+    // REQUIRES: mutex_ is held
+    private boolean recycleLog(long number) {
+        if (log_recycle_files_.contains(number)) {
+            return true;
+        }
+        if (log_recycle_files_.size() < options_.recycle_log_file_num
+                && first_log_number_ != 0 && number >= first_log_number_) {
+            log_recycle_files_.addLast(number);
+            return true;
+        }
+        return false;
+    }
+
+    // How far compactions are behind, from 0 (not at all) to 1 (writes are
+    // about to be stopped): the most of how close level-0 is to
+    // kL0_StopWritesTrigger, how far the fullest level is beyond
+    // kSlowdownScore, and how many immutable memtables wait behind the one
+    // being flushed.
+    // REQUIRES: mutex_ is held
+    private double compactionPressure() {
+        double pressure = 0;
+        int level0_files = versions_.NumLevelFiles(0);
+        if (level0_files >= config.kL0_SlowdownWritesTrigger) {
+            pressure = (double) (level0_files - config.kL0_SlowdownWritesTrigger + 1)
+                    / (config.kL0_StopWritesTrigger - config.kL0_SlowdownWritesTrigger);
+        }
+        double score = versions_.current().compaction_score_;
+        if (score > kSlowdownScore) {
+            pressure = Math.max(pressure, (score - kSlowdownScore)
+                    / kSlowdownScore);
+        }
+        if (options_.max_write_buffer_number > 2 && imm_.size() > 1) {
+            pressure = Math.max(pressure, (double) (imm_.size() - 1)
+                    / (options_.max_write_buffer_number - 2));
+        }
+        return Math.min(pressure, 1.0);
+    }
+
+    // Microseconds the write at the front of the queue has to wait for
+    // compactions to catch up
+    // REQUIRES: mutex_ is held
+    private long writeDelay() {
+        long now = env_.nowMicros();
+        write_controller_.setPressure(compactionPressure(), now);
+        return write_controller_.delayMicros(now);
+    }
+
+    // Charge a group of writes to write_controller_
+    // REQUIRES: mutex_ is held
+    private void chargeWrite(WriteBatch updates) {
+        if (write_controller_.isDelayed()) {
+            write_controller_.charge(WriteBatchInternal.ByteSize(updates),
+                    env_.nowMicros());
+        }
+    }
+
+    // Wait for a background compaction while writes are stopped. Returns
+    // true, to be passed back in by the next wait of the same write.
+    // REQUIRES: mutex_ is held
+    private boolean waitForCompaction(boolean stopped) {
+        long start = env_.nowMicros();
+        bg_cv_.awaitUninterruptibly();
+        stopped_micros_ += env_.nowMicros() - start;
+        return true;
+    }
+
     // REQUIRES: Writer list must be non-empty
     // REQUIRES: First writer must have a non-NULL batch
-    private WriteBatch buildBatchGroup(Writer last_writer) {
+    // last_writer[0] is set to the last writer included in the group
+    private WriteBatch buildBatchGroup(Writer[] last_writer) {
         assert (!writers_.isEmpty());
         Writer first = writers_.peek();
         WriteBatch result = first.batch;
@@ -408,7 +1430,7 @@ public class DBImpl extends DB {
             max_size = size + (128 << 10);
         }
 
-        last_writer = first;
+        last_writer[0] = first;
         java.util.Iterator<Writer> iter = writers_.iterator();// begin();
         iter.next();
         // ++iter; // Advance past "first"
@@ -419,6 +1441,19 @@ public class DBImpl extends DB {
                 // non-sync write.
                 break;
             }
+            if (w.disable_wal != first.disable_wal) {
+                // The whole group is logged or none of it
+                break;
+            }
+            if (w.txn != null) {
+                // A transaction is checked against all the writes before
+                // it, which it waits for by leading its own group
+                break;
+            }
+            if (w.batch == null) {
+                // Only a group leader switches memtables
+                break;
+            }
 
             if (w.batch != null) {
                 size += WriteBatchInternal.ByteSize(w.batch);
@@ -437,7 +1472,7 @@ public class DBImpl extends DB {
                 }
                 WriteBatchInternal.Append(result, w.batch);
             }
-            last_writer = w;
+            last_writer[0] = w;
         }
         return result;
     }
@@ -456,10 +1491,12 @@ public class DBImpl extends DB {
         }
 
         MemTable mem = mem_;
-        MemTable imm = imm_;
+        // newest first, the order in which they have to be searched
+        List<MemTable> imms = new ArrayList<MemTable>(imm_);
+        Collections.reverse(imms);
         Version current = versions_.current();
         mem.Ref();
-        if (imm != null) {
+        for (MemTable imm : imms) {
             imm.Ref();
         }
         current.Ref();
@@ -474,13 +1511,20 @@ public class DBImpl extends DB {
             // (if
             // any).
             LookupKey lkey = new LookupKey(key, snapshot);
-            if (mem.Get(lkey, result, s) != null) {
-                // different as original codes
-
-            } else if (imm != null && imm.Get(lkey, result, s) != null) {
-                // Done
-            } else {
-                result.setData_(current.Get(options, lkey, stats, new Status[]{new Status()}));
+            s = new Status();
+            MergeContext merge = new MergeContext(options_.merge_operator, key);
+            boolean done = mem.Get(lkey, result, s, merge) != null
+                    || !s.ok();
+            for (int i = 0; !done && i < imms.size(); i++) {
+                done = imms.get(i).Get(lkey, result, s, merge) != null
+                        || !s.ok();
+            }
+            if (!done) {
+                Status[] vs = new Status[]{new Status()};
+                result.setData_(current.Get(options, lkey, stats, vs, merge));
+                if (!vs[0].ok() && !vs[0].isNotFound()) {
+                    s = vs[0];
+                }
                 have_stat_update = true;
             }
             mutex_.lock();
@@ -490,13 +1534,15 @@ public class DBImpl extends DB {
             maybeScheduleCompaction();
         }
         mem.Unref();
-        if (imm != null) {
+        for (MemTable imm : imms) {
             imm.Unref();
         }
         current.Unref();
 
         mutex_.unlock();
-        if (result.size() == 0) {
+        if (!s.ok() && !s.isNotFound()) {
+            st.Status_(s);
+        } else if (result.size() == 0) {
             st.Status_(Status.notFound(
                     new Slice("value of key '" + key.toString()
                             + "' is not found."), null));
@@ -537,6 +1583,35 @@ public class DBImpl extends DB {
     }
 
     public void close() {
+        // Let a flush scheduled by scheduleFlush() finish, and keep any
+        // other from starting
+        while (!flush_scheduled_.compareAndSet(false, true)) {
+            env_.sleepForMicroseconds(1000);
+        }
+
+        // Updates written without the log only survive in a table file.
+        // Those of every column family are counted in the memtables of the
+        // default one.
+        mutex_.lock();
+        boolean unlogged = parent_ == null && mem_ != null
+                && unloggedBytes() > 0;
+        mutex_.unlock();
+        if (unlogged) {
+            flushMemTable();
+            for (DBImpl cf : families_.values()) {
+                cf.flushMemTable();
+            }
+        }
+
+        // The column families use the log and the background thread
+        mutex_.lock();
+        Collection<DBImpl> families = families_.values();
+        families_ = new TreeMap<Integer, DBImpl>();
+        mutex_.unlock();
+        for (DBImpl cf : families) {
+            cf.close();
+        }
+
         // Wait for background work to finish
         mutex_.lock();
         // shutting_down_.releaseStore(this); // Any non-NULL value is ok
@@ -547,6 +1622,9 @@ public class DBImpl extends DB {
                 e.printStackTrace();
             }
         }
+        if (options_.write_buffer_manager != null) {
+            options_.write_buffer_manager.remove(this);
+        }
         mutex_.unlock();
 
         if (db_lock_ != null) {
@@ -557,8 +1635,10 @@ public class DBImpl extends DB {
         versions_ = null;
         if (mem_ != null)
             mem_.Unref();
-        if (imm_ != null)
-            imm_.Unref();
+        for (MemTable imm : imm_) {
+            imm.Unref();
+        }
+        imm_.clear();
         tmp_batch_ = null;
         log_ = null;
         if (logfile_ != null) {
@@ -574,6 +1654,10 @@ public class DBImpl extends DB {
             options_.info_log.Close();
             options_.info_log = null;
         }
+        if (parent_ != null) {
+            // The rest belongs to the DB
+            return;
+        }
         // wlu,
         if (options_.info_log != null) {
             options_.info_log.Close();
@@ -585,6 +1669,9 @@ public class DBImpl extends DB {
 
         // terminate the scheduled threads
         env_.endSchedule();
+        if (owns_async_executor_) {
+            ((ExecutorService) async_executor_).shutdown();
+        }
 
     }
 
@@ -713,12 +1800,14 @@ public class DBImpl extends DB {
         String current_user_key = "";
         boolean has_current_user_key = false;
         long last_sequence_for_key = SequenceNumber.kMaxSequenceNumber;
+        MergeHelper merge = new MergeHelper(user_comparator(),
+                options_.merge_operator);
         for (; input.valid() && !shutting_down_.get(); ) {
             // Prioritize immutable compaction work
             if (has_imm_.noBarrierLoad() != null) {
                 long imm_start = env_.nowMicros();
                 mutex_.lock();
-                if (imm_ != null) {
+                if (!imm_.isEmpty()) {
                     compactMemTable();
                     bg_cv_.signalAll(); // Wakeup makeRoomForWrite() if
                     // necessary
@@ -786,27 +1875,27 @@ public class DBImpl extends DB {
 
             // #endif
 
-            if (!drop) {
-                // open output file if necessary
-                if (compact.builder == null) {
-                    status = openCompactionOutputFile(compact);
-                    if (!status.ok()) {
-                        break;
-                    }
+            if (!drop && ikey != null
+                    && ikey.type.value == ValueType.kTypeMerge
+                    && ikey.sequence.value <= compact.smallest_snapshot.value) {
+                // No snapshot separates this operand from the older entries
+                // of the key (dropped by rule (A) after it): combine them.
+                merge.mergeUntil(input, ikey,
+                        compact.compaction.IsBaseLevelForKey(ikey.user_key));
+                for (int i = 0; i < merge.keys.size() && status.ok(); i++) {
+                    status = addCompactionOutput(compact, input,
+                            merge.keys.get(i), merge.values.get(i));
                 }
-                if (compact.builder.NumEntries() == 0) {
-                    compact.current_output().smallest.DecodeFrom(key);
+                if (!status.ok()) {
+                    break;
                 }
-                compact.current_output().largest.DecodeFrom(key);
-                compact.builder.Add(key, input.value());
+                continue;
+            }
 
-                // close output file if it is big enough
-                if (compact.builder.FileSize() >= compact.compaction
-                        .MaxOutputFileSize()) {
-                    status = finishCompactionOutputFile(compact, input);
-                    if (!status.ok()) {
-                        break;
-                    }
+            if (!drop) {
+                status = addCompactionOutput(compact, input, key, input.value());
+                if (!status.ok()) {
+                    break;
                 }
             }
 
@@ -847,23 +1936,70 @@ public class DBImpl extends DB {
         return status;
     }
 
+    // Add an entry to the current output of "compact", opening and finishing
+    // output files as needed
+    private Status addCompactionOutput(CompactionState compact, Iterator input,
+                                       Slice key, Slice value) {
+        // open output file if necessary
+        if (compact.builder == null) {
+            Status status = openCompactionOutputFile(compact);
+            if (!status.ok()) {
+                return status;
+            }
+        }
+        if (compact.builder.NumEntries() == 0) {
+            compact.current_output().smallest.DecodeFrom(key);
+        }
+        compact.current_output().largest.DecodeFrom(key);
+        compact.builder.Add(key, value);
+
+        // close output file if it is big enough
+        if (compact.builder.FileSize() >= compact.compaction
+                .MaxOutputFileSize()) {
+            return finishCompactionOutputFile(compact, input);
+        }
+        return Status.OK();
+    }
+
     /**
      * write memtable data to leve0 or higher; call: Builder.BuildTable; add a
      * CompactStatus to the selected level
      */
     private Status writeLevel0Table(MemTable mem, VersionEdit edit, Version base) {
+        return writeLevel0Table(Collections.singletonList(mem), edit, base);
+    }
+
+    // Same as above, merging the contents of several memtables into a
+    // single table.
+    private Status writeLevel0Table(List<MemTable> mems, VersionEdit edit,
+                                    Version base) {
+        return writeLevel0Table(mems, edit, base, versions_.newFileNumber());
+    }
+
+    // Same as above, for a table numbered "number" in advance
+    private Status writeLevel0Table(List<MemTable> mems, VersionEdit edit,
+                                    Version base, long number) {
         assert (mutex_.isHeldByCurrentThread());// AssertHeld();
         long start_micros = env_.nowMicros();
         FileMetaData meta = new FileMetaData();
-        meta.setNumber(versions_.newFileNumber());
+        meta.setNumber(number);
         pending_outputs_.add(meta.getNumber());
-        Iterator iter = mem.NewIterator();
         LOG.info("Level-0 table #" + meta.number
-                + ": started (in writeLevel0Table(...))");
+                + ": started (in writeLevel0Table(...)) from " + mems.size()
+                + " memtable(s)");
 
         Status s;
         {
             mutex_.unlock();
+            // Outside the lock: some memtable reps (e.g. the vector rep)
+            // sort their entries when the first iterator is created.
+            Iterator[] children = new Iterator[mems.size()];
+            for (int i = 0; i < children.length; i++) {
+                mems.get(i).MarkReadOnly();
+                children[i] = mems.get(i).NewIterator();
+            }
+            Iterator iter = MergingIterator.NewMergingIterator(
+                    internal_comparator_, children, children.length);
             s = Builder.BuildTable(dbname_, env_, options_, table_cache_, iter,
                     meta);
             mutex_.lock();
@@ -871,7 +2007,6 @@ public class DBImpl extends DB {
 
         LOG.info("Level-0 table #" + meta.number + ": " + meta.file_size
                 + " bytes " + s.toString());
-        iter = null;
         pending_outputs_.remove(meta.getNumber());
 
         // Note that if file_size is zero, the file has been deleted and
@@ -881,8 +2016,9 @@ public class DBImpl extends DB {
             Slice min_user_key = meta.getSmallest().user_key();
             Slice max_user_key = meta.getLargest().user_key();
             if (base != null) {
-                level = base.PickLevelForMemTableOutput(min_user_key,
-                        max_user_key);
+                level = bulk_load_ ? base.PickLevelForBulkLoadOutput(
+                        min_user_key, max_user_key) : base
+                        .PickLevelForMemTableOutput(min_user_key, max_user_key);
             }
             edit.addFile(level, meta.getNumber(), meta.getFile_size(),
                     meta.getSmallest(), meta.getLargest());
@@ -895,15 +2031,19 @@ public class DBImpl extends DB {
         return s;
     }
 
+    // Flush every immutable memtable queued so far into one level-0 (or
+    // higher) table.
     Status compactMemTable() {
         assert (mutex_.isHeldByCurrentThread());
-        assert (imm_ != null);
+        assert (!imm_.isEmpty());
 
-        // Save the contents of the memtable as a new Table
+        // Save the contents of the memtables as a new Table. More may be
+        // queued while we work; they are left for the next round.
+        List<MemTable> mems = new ArrayList<MemTable>(imm_);
         VersionEdit edit = new VersionEdit();
         Version base = versions_.current();
         base.Ref();
-        Status s = writeLevel0Table(imm_, edit, base);
+        Status s = writeLevel0Table(mems, edit, base);
         base.Unref();
 
         if (s.ok() && shutting_down_.get()) {
@@ -911,18 +2051,32 @@ public class DBImpl extends DB {
                     "Deleting DB during memtable compaction"), null);
         }
 
-        // Replace immutable memtable with the generated Table
+        // Replace immutable memtables with the generated Table
         if (s.ok()) {
             edit.setPrevLogNumber(0);
-            edit.setLogNumber(logfile_number_); // Earlier logs no longer needed
+            // Earlier logs no longer needed: keep the log of the oldest
+            // memtable that is still unflushed
+            long log_number = imm_.size() > mems.size() ? imm_.get(
+                    mems.size()).LogNumber() : mem_.LogNumber();
+            edit.setLogNumber(log_number);
+            // Logs are numbered by the DB, apart from the tables of a
+            // column family
+            versions_.MarkFileNumberUsed(log_number);
             s = versions_.logAndApply(edit, mutex_); // TODO
         }
 
         if (s.ok()) {
             // Commit to the new state
-            imm_.Unref();
-            imm_ = null;
-            has_imm_.releaseStore(null); // set to null
+            for (MemTable m : mems) {
+                flushed_sequence_ = Math.max(flushed_sequence_,
+                        m.LastSequence());
+                m.Unref();
+                imm_.removeFirst();
+            }
+            has_imm_.releaseStore(imm_.isEmpty() ? null : imm_.getFirst());
+            if (options_.write_buffer_manager != null) {
+                reportMemTableUsage();
+            }
             deleteObsoleteFiles();
         }
 
@@ -949,7 +2103,7 @@ public class DBImpl extends DB {
             return;
         }
 
-        if (imm_ != null) {
+        if (!imm_.isEmpty()) {
             compactMemTable();
             return;
         }
@@ -989,7 +2143,7 @@ public class DBImpl extends DB {
             FileMetaData f = c.input(0, 0);
             c.edit().deleteFile(c.level(), f.getNumber());
             c.edit().addFile(c.level() + 1, f.getNumber(), f.getFile_size(),
-                    f.getSmallest(), f.getLargest());
+                    f.getSmallest(), f.getLargest(), f.getGlobal_seqno());
             status = versions_.logAndApply(c.edit(), mutex_);
             VersionSet.LevelSummaryStorage tmp = new VersionSet.LevelSummaryStorage();
             LOG.info("Moved " + (f.getNumber()) + "to level-" + (c.level() + 1)
@@ -1016,56 +2170,422 @@ public class DBImpl extends DB {
             }
         }
 
-        if (is_manual) {
-            ManualCompaction m = manual_compaction_;
-            if (!status.ok()) {
-                m.done = true;
+        if (is_manual) {
+            ManualCompaction m = manual_compaction_;
+            if (!status.ok()) {
+                m.done = true;
+            }
+            if (!m.done) {
+                // We only compacted part of the requested range. Update *m
+                // to the range that is left to be compacted.
+                m.tmp_storage = manual_end;
+                m.begin = m.tmp_storage;
+            }
+            manual_compaction_ = null;
+        }
+    }
+
+    @Override
+    public Iterator newIterator(ReadOptions options) {
+        if (options.prefix != null && options_.prefix_extractor == null) {
+            return Iterator.newErrorIterator(Status.invalidArgument(new Slice(
+                    "prefix seek without Options.prefix_extractor"), null));
+        }
+        SequenceNumber latest_snapshot = new SequenceNumber(0);
+        Iterator internal_iter = newInternalIterator(options, latest_snapshot);
+        Iterator iter = DBIter
+                .NewDBIterator(
+                        dbname_,
+                        env_,
+                        user_comparator(),
+                        options_.merge_operator,
+                        internal_iter,
+                        (options.snapshot != null ? ((SnapshotImpl) (options.snapshot)).number_
+                                : latest_snapshot));
+        if (options.prefix != null) {
+            iter = new PrefixIterator(iter, ((InternalKeySliceTransform) options_
+                    .prefix_extractor).user_transform(), options.prefix);
+        }
+        return iter;
+    }
+
+    @Override
+    public Snapshot getSnapshot() {
+        mutex_.lock();
+        try {
+            return snapshots_.New(versions_.LastSequence());
+        } finally {
+            mutex_.unlock();
+        }
+    }
+
+    @Override
+    public void releaseSnapshot(Snapshot snapshot) {
+        mutex_.lock();
+        try {
+            snapshots_.Delete((SnapshotImpl) (snapshot));
+        } finally {
+            mutex_.unlock();
+        }
+    }
+
+    @Override
+    public Transaction beginTransaction(WriteOptions options) {
+        return new Transaction(this, options,
+                (SnapshotImpl) getSnapshot());
+    }
+
+    @Override
+    public Status merge(WriteOptions options, ColumnFamilyHandle column_family,
+                        Slice key, Slice value) {
+        Status s = new Status();
+        DBImpl cf = family(column_family, s);
+        if (cf == null) {
+            return s;
+        }
+        if (cf.options_.merge_operator == null) {
+            return Status.notSupported(new Slice(
+                    "merge without Options.merge_operator"), null);
+        }
+        return super.merge(options, column_family, key, value);
+    }
+
+    @Override
+    public Slice get(ReadOptions options, ColumnFamilyHandle column_family,
+                     Slice key, Status s) {
+        DBImpl cf = family(column_family, s);
+        return cf != null ? cf.get(options, key, s) : new Slice();
+    }
+
+    @Override
+    public Iterator newIterator(ReadOptions options,
+                                ColumnFamilyHandle column_family) {
+        Status s = new Status();
+        DBImpl cf = family(column_family, s);
+        return cf != null ? cf.newIterator(options) : Iterator
+                .newErrorIterator(s);
+    }
+
+    @Override
+    public boolean getProperty(ColumnFamilyHandle column_family,
+                               Slice property, StringBuffer value) {
+        DBImpl cf = family(column_family, new Status());
+        return cf != null && cf.getProperty(property, value);
+    }
+
+    @Override
+    public void compactRange(ColumnFamilyHandle column_family, Slice begin,
+                             Slice end) {
+        DBImpl cf = family(column_family, new Status());
+        if (cf != null) {
+            cf.compactRange(begin, end);
+        }
+    }
+
+    @Override
+    public ColumnFamilyHandle defaultColumnFamily() {
+        return handle_;
+    }
+
+    @Override
+    public ColumnFamilyHandle createColumnFamily(Options options, String name,
+                                                 Status s) {
+        ColumnFamilyHandle[] handle = new ColumnFamilyHandle[1];
+        mutex_.lock();
+        try {
+            Writer w = new Writer(mutex_);
+            enterWriterQueue(w);
+            try {
+                s.Status_(createColumnFamily(options, name, handle));
+            } finally {
+                exitWriterQueue(w);
+            }
+        } finally {
+            mutex_.unlock();
+        }
+        return s.ok() ? handle[0] : null;
+    }
+
+    @Override
+    public Status dropColumnFamily(ColumnFamilyHandle column_family) {
+        Status s = new Status();
+        DBImpl cf = family(column_family, s);
+        if (cf == null) {
+            return s;
+        }
+        if (cf == this) {
+            return Status.invalidArgument(new Slice(
+                    "cannot drop the default column family"), null);
+        }
+        mutex_.lock();
+        try {
+            Writer w = new Writer(mutex_);
+            enterWriterQueue(w);
+            try {
+                if (families_.get(column_family.getID()) != cf) {
+                    return Status.invalidArgument(new Slice(
+                            "column family already dropped: "), new Slice(
+                            column_family.getName()));
+                }
+                VersionEdit edit = new VersionEdit();
+                edit.dropColumnFamily(column_family.getID());
+                s = logAndApplyInForeground(edit);
+                if (!s.ok()) {
+                    return s;
+                }
+                // Its updates still in the logs are ignored from now on
+                Map<Integer, DBImpl> families = new TreeMap<Integer, DBImpl>(
+                        families_);
+                families.remove(column_family.getID());
+                families_ = families;
+                cf.shutting_down_.set(true);
+            } finally {
+                exitWriterQueue(w);
+            }
+        } finally {
+            mutex_.unlock();
+        }
+        cf.close();
+        return DB.destroyDB(cf.dbname_, options_);
+    }
+
+    // A file given to ingestExternalFile()
+    private static class ExternalFile {
+        String path;
+        long size;
+        // First and last entries, with sequence number 0
+        ParsedInternalKey smallest;
+        ParsedInternalKey largest;
+        long number; // In the DB
+    }
+
+    @Override
+    public Status ingestExternalFile(List<String> external_files,
+                                     IngestExternalFileOptions options) {
+        List<ExternalFile> files = new ArrayList<ExternalFile>();
+        for (String path : external_files) {
+            ExternalFile f = new ExternalFile();
+            Status s = readExternalFile(path, f);
+            if (!s.ok()) {
+                return s;
+            }
+            files.add(f);
+        }
+        if (files.isEmpty()) {
+            return Status.OK();
+        }
+        final Comparator ucmp = user_comparator();
+        Collections.sort(files, new java.util.Comparator<ExternalFile>() {
+            @Override
+            public int compare(ExternalFile a, ExternalFile b) {
+                return ucmp.compare(a.smallest.user_key, b.smallest.user_key);
+            }
+        });
+        for (int i = 1; i < files.size(); i++) {
+            if (ucmp.compare(files.get(i).smallest.user_key,
+                    files.get(i - 1).largest.user_key) <= 0) {
+                return Status.invalidArgument(new Slice(
+                        "overlapping external files: "), new Slice(
+                        files.get(i).path));
+            }
+        }
+
+        // Bring the files in under table numbers of the DB, kept from
+        // deleteObsoleteFiles() until they are in the version
+        mutex_.lock();
+        try {
+            for (ExternalFile f : files) {
+                f.number = versions_.newFileNumber();
+                pending_outputs_.add(f.number);
+            }
+        } finally {
+            mutex_.unlock();
+        }
+        Status s = Status.OK();
+        int added = 0;
+        while (added < files.size() && s.ok()) {
+            ExternalFile f = files.get(added);
+            String fname = FileName.tableFileName(dbname_, f.number);
+            s = options.move_files ? env_.renameFile(f.path, fname) : Env
+                    .copyFile(env_, f.path, fname);
+            if (s.ok()) {
+                added++;
+            }
+        }
+
+        mutex_.lock();
+        try {
+            if (s.ok()) {
+                Writer w = new Writer(mutex_);
+                enterWriterQueue(w);
+                try {
+                    s = addExternalFiles(files);
+                } finally {
+                    exitWriterQueue(w);
+                }
             }
-            if (!m.done) {
-                // We only compacted part of the requested range. Update *m
-                // to the range that is left to be compacted.
-                m.tmp_storage = manual_end;
-                m.begin = m.tmp_storage;
+            if (!s.ok()) {
+                for (int i = 0; i < added; i++) {
+                    ExternalFile f = files.get(i);
+                    String fname = FileName.tableFileName(dbname_, f.number);
+                    if (options.move_files) {
+                        env_.renameFile(fname, f.path);
+                    } else {
+                        env_.deleteFile(fname);
+                    }
+                }
             }
-            manual_compaction_ = null;
+            for (ExternalFile f : files) {
+                pending_outputs_.remove(f.number);
+            }
+        } finally {
+            mutex_.unlock();
         }
+        return s;
     }
 
-    @Override
-    public Iterator newIterator(ReadOptions options) {
-        SequenceNumber latest_snapshot = new SequenceNumber(0);
-        Iterator internal_iter = newInternalIterator(options, latest_snapshot);
-        return DBIter
-                .NewDBIterator(
-                        dbname_,
-                        env_,
-                        user_comparator(),
-                        internal_iter,
-                        (options.snapshot != null ? ((SnapshotImpl) (options.snapshot)).number_
-                                : latest_snapshot));
+    // Check that "path" is a table written by SstFileWriter and store what
+    // ingestExternalFile() needs to know about it in f
+    private Status readExternalFile(String path, ExternalFile f) {
+        if (!env_.fileExists(path)) {
+            return Status.ioerror(new Slice(path), new Slice("file not found"));
+        }
+        f.path = path;
+        f.size = env_.getFileSize(path);
+        _RandomAccessFile file = env_.newRandomAccessFile(path);
+        Table table = Table.Open(options_, file, f.size);
+        if (table == null) {
+            file.Close();
+            return Status.corruption(new Slice("not a table file: "),
+                    new Slice(path));
+        }
+        Iterator iter = table.NewIterator(new ReadOptions());
+        iter.seekToFirst();
+        if (iter.valid()) {
+            f.smallest = InternalKey.ParseInternalKey_(new Slice(iter.key()
+                    .data()));
+        }
+        iter.seekToLast();
+        if (iter.valid()) {
+            f.largest = InternalKey.ParseInternalKey_(new Slice(iter.key()
+                    .data()));
+        }
+        Status s = iter.status();
+        file.Close();
+        if (s.ok() && (f.smallest == null || f.largest == null
+                || f.smallest.sequence.value != 0
+                || f.largest.sequence.value != 0)) {
+            s = Status.invalidArgument(new Slice(
+                    "not written by SstFileWriter: "), new Slice(path));
+        }
+        return s;
     }
 
-    @Override
-    public Snapshot getSnapshot() {
-        mutex_.lock();
-        try {
-            return snapshots_.New(versions_.LastSequence());
-        } finally {
-            mutex_.unlock();
+    // Add the external files, now under table numbers of the DB, to the
+    // version, as the next write of the DB
+    // REQUIRES: mutex_ is held
+    // REQUIRES: this thread is at the front of the writer queue
+    private Status addExternalFiles(List<ExternalFile> files) {
+        // Reads search the memtables before the tables, so their keys in
+        // the ranges of the files, which are older, must be flushed first
+        boolean overlap = false;
+        for (ExternalFile f : files) {
+            overlap = overlap || memTablesOverlap(f.smallest.user_key,
+                    f.largest.user_key);
+        }
+        if (overlap) {
+            Status s = makeRoomForWrite(this);
+            if (!s.ok()) {
+                return s;
+            }
+            while (!imm_.isEmpty() && bg_error_.ok()) {
+                bg_cv_.awaitUninterruptibly();
+            }
+            if (!imm_.isEmpty()) {
+                return bg_error_;
+            }
+        }
+
+        // No compaction may change the levels before the files are placed
+        while (bg_compaction_scheduled_) {
+            bg_cv_.awaitUninterruptibly();
+        }
+        SequenceNumber sequence = new SequenceNumber(
+                versions_.LastSequence().value + 1);
+        Version current = versions_.current();
+        VersionEdit edit = new VersionEdit();
+        for (ExternalFile f : files) {
+            int level = current.PickLevelForIngestedFile(f.smallest.user_key,
+                    f.largest.user_key);
+            edit.addFile(level, f.number, f.size, new InternalKey(
+                    f.smallest.user_key, sequence, f.smallest.type),
+                    new InternalKey(f.largest.user_key, sequence,
+                            f.largest.type), sequence.value);
+        }
+        // Recorded along with the files: the sequence number must not be
+        // reused once they are in
+        setLastSequence(sequence);
+        Status s = logAndApplyInForeground(edit);
+        if (s.ok()) {
+            // The files are entries not held in a memtable: conflict checks
+            // of older snapshots must look for them in the tables
+            flushed_sequence_ = Math.max(flushed_sequence_, sequence.value);
         }
+        return s;
     }
 
-    @Override
-    public void releaseSnapshot(Snapshot snapshot) {
-        mutex_.lock();
-        snapshots_.Delete((SnapshotImpl) (snapshot));
+    // Whether the memtables hold keys in [smallest, largest]
+    // REQUIRES: mutex_ is held
+    private boolean memTablesOverlap(Slice smallest, Slice largest) {
+        List<MemTable> mems = new ArrayList<MemTable>(imm_);
+        mems.add(mem_);
+        Slice target = new InternalKey(smallest, new SequenceNumber(
+                SequenceNumber.kMaxSequenceNumber), new ValueType(
+                ValueType.kValueTypeForSeek)).Encode();
+        for (MemTable mem : mems) {
+            Iterator iter = mem.NewIterator();
+            iter.seek(target);
+            if (iter.valid() && user_comparator().compare(
+                    InternalKey.ExtractUserKey(iter.key()), largest) <= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
 
+    // The column family of "column_family", or null after storing an error
+    // in s if it is not a family of this DB, or has been dropped
+    private DBImpl family(ColumnFamilyHandle column_family, Status s) {
+        if (column_family.db_ != this) {
+            s.Status_(Status.invalidArgument(new Slice(
+                    "column family of another DB: "), new Slice(
+                    column_family.getName())));
+            return null;
+        }
+        if (column_family.getID() == 0) {
+            return this;
+        }
+        DBImpl cf = families_.get(column_family.getID());
+        if (cf == null) {
+            s.Status_(Status.invalidArgument(new Slice(
+                    "column family dropped: "), new Slice(
+                    column_family.getName())));
+        }
+        return cf;
     }
 
     @Override
     public boolean getProperty(Slice property, StringBuffer value) {
+        mutex_.lock();
+        try {
+            return getPropertyLocked(property, value);
+        } finally {
+            mutex_.unlock();
+        }
+    }
 
-        mutex_.tryLock();
+    // REQUIRES: mutex_ is held
+    private boolean getPropertyLocked(Slice property, StringBuffer value) {
         Slice in = property;
         Slice prefix = new Slice("leveldb.");
         if (!in.starts_with(prefix)) {
@@ -1106,9 +2626,38 @@ public class DBImpl extends DB {
         } else if (in.compareTo(new Slice("sstables")) == 0) {
             value.append(versions_.current().DebugString());
             return true;
+        } else if (in.compareTo(new Slice("num-immutable-mem-table")) == 0) {
+            value.append(imm_.size());
+            return true;
+        } else if (in.compareTo(new Slice("log-syncs")) == 0) {
+            value.append(log_syncs_);
+            return true;
+        } else if (in.compareTo(new Slice("writes-per-sync")) == 0) {
+            value.append(log_syncs_ == 0 ? 0.0 : (double) log_synced_writes_
+                    / log_syncs_);
+            return true;
+        } else if (in.compareTo(new Slice("memtable-inserts")) == 0) {
+            value.append(memtable_inserts_.get());
+            return true;
+        } else if (in.compareTo(new Slice("memtable-insert-hint-hits")) == 0) {
+            value.append(memtable_hint_hits_.get());
+            return true;
+        } else if (in.compareTo(new Slice("unlogged-bytes")) == 0) {
+            value.append(unloggedBytes());
+            return true;
+        } else if (in.compareTo(new Slice("write-stall-stats")) == 0) {
+            value.append("                    Write stalls\n"
+                    + "State    Writes Time(sec)\n"
+                    + "-------------------------\n");
+            value.append("delayed " + delayed_writes_ + " "
+                    + delayed_micros_ / 1e6 + "\n");
+            value.append("stopped " + stopped_writes_ + " "
+                    + stopped_micros_ / 1e6 + "\n");
+            value.append("delayed write rate (bytes/sec) "
+                    + write_controller_.rate() + "\n");
+            return true;
         }
 
-        mutex_.unlock();
         return false;
 
     }
@@ -1217,18 +2766,64 @@ public class DBImpl extends DB {
         }
     }
 
+    // Turn bulk-load mode on or off, see DB.setBulkLoadMode()
+    @Override
+    public Status setBulkLoadMode(boolean enabled) {
+        mutex_.lock();
+        try {
+            if (bulk_load_ == enabled) {
+                return Status.OK();
+            }
+            if (bulk_load_options_ == null) {
+                bulk_load_options_ = new Options();
+                bulk_load_options_.Options_(options_);
+                bulk_load_options_.memtable_factory = MemTableRepFactory
+                        .newVectorRepFactory();
+            }
+            bulk_load_ = enabled;
+            LOG.info("Bulk-load mode " + (enabled ? "on" : "off"));
+        } finally {
+            mutex_.unlock();
+        }
+        // NULL batch forces a switch to a new memtable of the right kind;
+        // when leaving, this also sends the append-only one to be flushed
+        Status s = write(new WriteOptions(), null);
+        if (s.ok() && !enabled) {
+            mutex_.lock();
+            maybeScheduleCompaction();
+            mutex_.unlock();
+        }
+        return s;
+    }
+
+    // Bytes written without the log that only the memtables hold
+    // REQUIRES: mutex_ is held
+    private long unloggedBytes() {
+        long n = mem_.UnloggedBytes();
+        for (MemTable imm : imm_) {
+            n += imm.UnloggedBytes();
+        }
+        return n;
+    }
+
     // Force current memtable contents to be compacted.
     public Status TEST_CompactMemTable() {
+        return flushMemTable();
+    }
+
+    // Switch to a new memtable and wait until the memtables are flushed
+    Status flushMemTable() {
         // NULL batch means just wait for earlier writes to be done
-        Status s = write(new WriteOptions(), null);
+        Status s = parent_ != null ? parent_.switchMemTable(this) : write(
+                new WriteOptions(), null);
         if (s.ok()) {
             // Wait until the compaction completes
             mutex_.lock();
             try {
-                while (imm_ != null && bg_error_.ok()) {
+                while (!imm_.isEmpty() && bg_error_.ok()) {
                     bg_cv_.await();
                 }
-                if (imm_ != null) {
+                if (!imm_.isEmpty()) {
                     s = bg_error_;
                 }
 
@@ -1245,7 +2840,7 @@ public class DBImpl extends DB {
         ReentrantLock mu;
         Version version;
         MemTable mem;
-        MemTable imm;
+        List<MemTable> imm;
     }
 
     static class CleanupIteratorState implements Function {
@@ -1254,8 +2849,9 @@ public class DBImpl extends DB {
             IterState state = (IterState) (args[0]);
             state.mu.lock();
             state.mem.Unref();
-            if (state.imm != null)
-                state.imm.Unref();
+            for (MemTable imm : state.imm) {
+                imm.Unref();
+            }
             state.version.Unref();
             state.mu.unlock();
 
@@ -1269,12 +2865,18 @@ public class DBImpl extends DB {
         latest_snapshot.value = versions_.LastSequence().value;
 
         // Collect together all needed child iterators
+        // In prefix-seek mode, the memtables and files whose filters rule
+        // the prefix out are left out of the merge
         List<Iterator> list = new ArrayList<Iterator>();
-        list.add(mem_.NewIterator());
+        if (options.prefix == null || mem_.PrefixMayMatch(options.prefix)) {
+            list.add(mem_.NewIterator());
+        }
         mem_.Ref();
-        if (imm_ != null) {
-            list.add(imm_.NewIterator());
-            imm_.Ref();
+        for (MemTable imm : imm_) {
+            if (options.prefix == null || imm.PrefixMayMatch(options.prefix)) {
+                list.add(imm.NewIterator());
+            }
+            imm.Ref();
         }
 
         versions_.current().AddIterators(options, list);
@@ -1316,7 +2918,7 @@ public class DBImpl extends DB {
 
         cleanup.mu = mutex_;
         cleanup.mem = mem_;
-        cleanup.imm = imm_;
+        cleanup.imm = new ArrayList<MemTable>(imm_);
         cleanup.version = versions_.current();
         internal_iter
                 .registerCleanup(new CleanupIteratorState(), cleanup, null);
@@ -1344,10 +2946,22 @@ public class DBImpl extends DB {
         }
     }
 
+    // Return the compaction pressure writes are currently slowed down for,
+    // from 0 to 1.
+    public double TEST_CompactionPressure() {
+        mutex_.lock();
+        try {
+            return compactionPressure();
+        } finally {
+            mutex_.unlock();
+        }
+    }
+
     private Status newDB() {
         VersionEdit new_db = new VersionEdit();
         new_db.setComparatorName(new Slice(user_comparator().name()));
-        new_db.setLogNumber(0);
+        // A new column family has nothing in the logs of the DB so far
+        new_db.setLogNumber(parent_ != null ? parent_.logfile_number_ : 0);
         new_db.setNextFile(2);
         new_db.setLastSequence(new SequenceNumber(0));
 
@@ -1401,8 +3015,10 @@ public class DBImpl extends DB {
         }
 
         Status s = null;
+        boolean created = false;
         if (!env_.fileExists(FileName.currentFileName(dbname_))) {
             if (options_.create_if_missing) {
+                created = true;
                 s = newDB();
                 if (!s.ok()) {
                     return s;
@@ -1431,12 +3047,15 @@ public class DBImpl extends DB {
             // produced by an older version of leveldb.
             long min_log = versions_.LogNumber();
             long prev_log = versions_.PrevLogNumber();
-            List<String> filenames = env_.getChildren(dbname_);
+            List<String> filenames = env_.getChildren(logDir());
 
             long number;
             FileType type = new FileType();
             List<Long> logs = new ArrayList<Long>();
             for (int i = 0; i < filenames.size(); i++) {
+                if (filenames.get(i).startsWith(kColumnFamilyDirPrefix)) {
+                    continue;
+                }
                 try {
                     number = FileName.parseFileName(filenames.get(i), type);
                 } catch (Exception e) {
@@ -1448,17 +3067,22 @@ public class DBImpl extends DB {
                     logs.add(number);
                 }
             }
+            if (created && parent_ != null) {
+                // A new column family has no updates in the logs yet, the
+                // last of which is being written meanwhile
+                logs.clear();
+            }
 
             // recover in the order in which the logs were generated
             Collections.sort(logs);
             for (int i = 0; i < logs.size(); i++) {
-                s = recoverLogFile(logs.get(i), edit, max_sequence);
-
                 // The previous incarnation may not have written any MANIFEST
                 // records after allocating this log number. So we manually
-                // update the file number allocation counter in VersionSet.
+                // update the file number allocation counter in VersionSet,
+                // before the replay numbers its tables.
                 versions_.MarkFileNumberUsed(logs.get(i));
             }
+            s = recoverLogFiles(logs, edit, max_sequence);
 
             if (s.ok()) {
                 if (versions_.LastSequence().value < max_sequence.value) {
@@ -1466,10 +3090,165 @@ public class DBImpl extends DB {
                 }
             }
         }
+        // The recovered updates may be in tables or in mem_
+        flushed_sequence_ = versions_.LastSequence().value;
+
+        return s;
+    }
+
+    // Open the column families "column_families" of the DB (see DB.open()),
+    // adding their handles to "handles", once the DB itself is recovered
+    // and has its new log. Every family of the DB has to be in the list;
+    // those not in the DB are created if options_.create_if_missing.
+    // REQUIRES: mutex_ is held
+    Status openColumnFamilies(List<ColumnFamilyDescriptor> column_families,
+                              List<ColumnFamilyHandle> handles) {
+        Map<String, Integer> ids = new HashMap<String, Integer>();
+        for (Map.Entry<Integer, String> e : versions_.ColumnFamilies()
+                .entrySet()) {
+            ids.put(e.getValue(), e.getKey());
+        }
+        Set<String> names = new HashSet<String>();
+        for (ColumnFamilyDescriptor d : column_families) {
+            names.add(d.getName());
+        }
+        for (String name : ids.keySet()) {
+            if (!names.contains(name)) {
+                return Status.invalidArgument(new Slice(
+                        "column family not opened: "), new Slice(name));
+            }
+        }
+
+        Status s = Status.OK();
+        Writer w = new Writer(mutex_);
+        enterWriterQueue(w);
+        try {
+            for (ColumnFamilyDescriptor d : column_families) {
+                if (d.getName().equals(
+                        ColumnFamilyHandle.kDefaultColumnFamilyName)) {
+                    handles.add(handle_);
+                    continue;
+                }
+                ColumnFamilyHandle[] handle = new ColumnFamilyHandle[1];
+                Integer id = ids.get(d.getName());
+                if (id != null) {
+                    s = openColumnFamily(id, d.getName(), d.getOptions(),
+                            handle);
+                } else if (options_.create_if_missing) {
+                    s = createColumnFamily(d.getOptions(), d.getName(), handle);
+                } else {
+                    s = Status.invalidArgument(new Slice(d.getName()),
+                            new Slice("does not exist (create_if_missing is false)"));
+                }
+                if (!s.ok()) {
+                    break;
+                }
+                handles.add(handle[0]);
+            }
+        } finally {
+            exitWriterQueue(w);
+        }
+        return s;
+    }
+
+    // Create column family "name" and store its handle in handle[0]
+    // REQUIRES: mutex_ is held
+    // REQUIRES: this thread is at the front of the writer queue
+    private Status createColumnFamily(Options options, String name,
+                                      ColumnFamilyHandle[] handle) {
+        if (name.equals(ColumnFamilyHandle.kDefaultColumnFamilyName)
+                || versions_.ColumnFamilies().containsValue(name)) {
+            return Status.invalidArgument(new Slice(
+                    "column family already exists: "), new Slice(name));
+        }
+        int id = versions_.MaxColumnFamily() + 1;
+        // Left over by a creation that did not complete
+        DB.destroyDB(columnFamilyDir(dbname_, id), options_);
+        Status s = openColumnFamily(id, name, options, handle);
+        if (s.ok()) {
+            // The family exists once it is in the MANIFEST of the DB
+            VersionEdit edit = new VersionEdit();
+            edit.addColumnFamily(id, name);
+            edit.setMaxColumnFamily(id);
+            s = logAndApplyInForeground(edit);
+            if (!s.ok()) {
+                DBImpl cf = families_.get(id);
+                Map<Integer, DBImpl> families = new TreeMap<Integer, DBImpl>(
+                        families_);
+                families.remove(id);
+                families_ = families;
+                cf.close();
+                DB.destroyDB(cf.dbname_, options_);
+            }
+        }
+        return s;
+    }
 
+    // Open column family "id", creating it if it does not exist, and store
+    // its handle in handle[0]
+    // REQUIRES: mutex_ is held
+    // REQUIRES: this thread is at the front of the writer queue
+    private Status openColumnFamily(int id, String name, Options options,
+                                    ColumnFamilyHandle[] handle) {
+        Options family = new Options();
+        family.Options_(options);
+        family.create_if_missing = true;
+        family.error_if_exists = false;
+        DBImpl cf = new DBImpl(this, id, name, family, columnFamilyDir(
+                dbname_, id));
+        VersionEdit edit = new VersionEdit();
+        Status s = cf.recover(edit);
+        if (s.ok()) {
+            // The updates replayed from older logs are in tables now. Logs
+            // are numbered by the DB, apart from the tables of the family.
+            edit.setLogNumber(logfile_number_);
+            cf.versions_.MarkFileNumberUsed(logfile_number_);
+            s = cf.versions_.logAndApply(edit, mutex_);
+        }
+        if (!s.ok()) {
+            cf.close();
+            return s;
+        }
+        cf.mem_.SetLogNumber(logfile_number_);
+        long last_sequence = Math.max(versions_.LastSequence().value,
+                cf.versions_.LastSequence().value);
+        setLastSequence(new SequenceNumber(last_sequence));
+        cf.versions_.SetLastSequence(new SequenceNumber(last_sequence));
+
+        Map<Integer, DBImpl> families = new TreeMap<Integer, DBImpl>(families_);
+        families.put(id, cf);
+        families_ = families;
+        cf.deleteObsoleteFiles();
+        cf.maybeScheduleCompaction();
+        handle[0] = cf.handle_;
+        return s;
+    }
+
+    // Apply "edit" to the versions of the DB from a foreground thread,
+    // once the background work of the DB, which may apply edits of its
+    // own, is over
+    // REQUIRES: mutex_ is held
+    Status logAndApplyInForeground(VersionEdit edit) {
+        while (bg_compaction_scheduled_) {
+            bg_cv_.awaitUninterruptibly();
+        }
+        bg_compaction_scheduled_ = true;
+        Status s;
+        try {
+            s = versions_.logAndApply(edit, mutex_);
+        } finally {
+            bg_compaction_scheduled_ = false;
+            bg_cv_.signalAll();
+        }
+        maybeScheduleCompaction();
         return s;
     }
 
+    // Directory of column family "id" of DB "dbname"
+    static String columnFamilyDir(String dbname, int id) {
+        return dbname + "/" + kColumnFamilyDirPrefix + id;
+    }
+
     // for recoverLogFile
     private void maybeIgnoreError(Status s) {
         if (s.ok() || options_.paranoid_checks) {
@@ -1482,7 +3261,7 @@ public class DBImpl extends DB {
 
     public void deleteObsoleteFiles() {
         // Make a set of all of the live files
-        Set<Long> live = pending_outputs_;
+        Set<Long> live = new HashSet<Long>(pending_outputs_);
         versions_.AddLiveFiles(live);
 
         List<String> filenames = env_.getChildren(dbname_); // Ignoring errors
@@ -1490,6 +3269,9 @@ public class DBImpl extends DB {
         long number;
         FileType type = new FileType();
         for (int i = 0; i < filenames.size(); i++) {
+            if (filenames.get(i).startsWith(kColumnFamilyDirPrefix)) {
+                continue;
+            }
             try {
                 number = FileName.parseFileName(filenames.get(i), type);
             } catch (Exception e) {
@@ -1500,8 +3282,8 @@ public class DBImpl extends DB {
                 boolean keep = true;
                 switch (type.value) {
                     case FileType.kLogFile:
-                        keep = ((number >= versions_.LogNumber()) || (number == versions_
-                                .PrevLogNumber()));
+                        keep = ((number >= minLogNumber()) || (number == versions_
+                                .PrevLogNumber()) || recycleLog(number));
                         break;
                     case FileType.kDescriptorFile:
                         // Keep my manifest file, and any newer incarnations'
@@ -1539,113 +3321,257 @@ public class DBImpl extends DB {
         }
     }
 
-    private Status recoverLogFile(long log_number, VersionEdit edit,
-                                  SequenceNumber max_sequence) {
-        class LogReporter extends Reader.Reporter {
-            Env env;
-            Logger info_log;
-            String fname;
-            Status status; // NULL if options_.paranoid_checks==false
-
-            @Override
-            public void Corruption(int bytes, Status status) {
-                LOG.info((this.status == null ? "(ignoring error) " : "")
-                        + fname + ": dropping " + bytes + " bytes; " + status);
-                if (this.status != null && this.status.ok())
-                    this.status = status;
-
-            }
+    private class LogReporter extends Reader.Reporter {
+        String fname;
+        Status status; // null if options_.paranoid_checks==false
 
+        @Override
+        public void Corruption(int bytes, Status status) {
+            LOG.info((this.status == null ? "(ignoring error) " : "")
+                    + fname + ": dropping " + bytes + " bytes; " + status);
+            if (this.status != null && this.status.ok())
+                this.status = status;
         }
-        // Env* env;
-        // Logger* info_log;
-        // const char* fname;
-        // Status* status; // NULL if options_.paranoid_checks==false
-        // virtual void corruption(size_t bytes, const Status& s) {
-        // Log(info_log, "%s%s: dropping %d bytes; %s",
-        // (this->status == NULL ? "(ignoring error) " : ""),
-        // fname, static_cast<int>(bytes), s.ToString().c_str());
-        // if (this->status != NULL && this->status->ok()) *this->status = s;
-        // }
-        // };
+    }
 
-        if (!mutex_.isHeldByCurrentThread()) {
-            return null;
-        }
+    // The batches of a log file, read and checked by a recovery thread
+    private static class RecoveredLog {
+        long number;
+        List<WriteBatch> batches = new ArrayList<WriteBatch>();
+        long bytes;
+        Status status;
+    }
+
+    // Read the records of log "log_number" into batches. Needs no lock.
+    private RecoveredLog readLogFile(long log_number) {
+        RecoveredLog log = new RecoveredLog();
+        log.number = log_number;
 
         // open the log file
-        String fname = FileName.logFileName(dbname_, log_number);
+        String fname = FileName.logFileName(logDir(), log_number);
         _SequentialFile file = env_.newSequentialFile(fname);
-        Status status = new Status();
-        // maybeIgnoreError(status);
-        // return status;
 
         // Create the log reader.
         LogReporter reporter = new LogReporter();
-        reporter.env = env_;
-        reporter.info_log = options_.info_log;
         reporter.fname = fname;
-        reporter.status = (options_.paranoid_checks ? status : null);
+        reporter.status = (options_.paranoid_checks ? new Status() : null);
         // We intentially make log::Reader do checksumming even if
         // paranoid_checks==false so that corruptions cause entire commits
         // to be skipped instead of propagating bad information (like overly
         // large sequence numbers).
-        Reader reader = new Reader(file, reporter, true/* checksum */, 0/* initial_offset */);
-        LOG.info("Recovering log #" + log_number);
+        Reader reader = new Reader(file, reporter, true/* checksum */, 0/* initial_offset */,
+                log_number);
 
-        // Read all the records and add to a memtable
         byte[] scratch = new byte[0];
         Slice record = new Slice();
-        WriteBatch batch = new WriteBatch();
-        MemTable mem = null;
-        while (reader.ReadRecord(record, scratch) && status.ok()) {
+        while (reader.ReadRecord(record, scratch)
+                && (reporter.status == null || reporter.status.ok())) {
             if (record.size() < 12) {
                 reporter.Corruption(record.size(), Status.corruption(new Slice(
                         "log record too small"), new Slice()));
                 continue;
             }
-            WriteBatchInternal.SetContents(batch, record);
+            // The record points into the reader's buffers: copy it
+            WriteBatch batch = new WriteBatch();
+            WriteBatchInternal.SetContents(batch, new Slice(record.data()));
+            log.batches.add(batch);
+            log.bytes += record.size();
+        }
+        file.Close();
+        log.status = (reporter.status == null ? Status.OK() : reporter.status);
+        return log;
+    }
 
-            if (mem == null) {
-                mem = new MemTable(internal_comparator_);
-                mem.Ref();
-            }
-            status = WriteBatchInternal.InsertInto(batch, mem);
-            maybeIgnoreError(status);
-            if (!status.ok()) {
-                break;
-            }
-            long last_seq = WriteBatchInternal.Sequence(batch).value
-                    + WriteBatchInternal.count(batch) - 1;
-            if (last_seq > max_sequence.value) {
-                max_sequence.value = last_seq;
-            }
+    // Replay the log files "logs", oldest first, into level-0 tables.
+    //
+    // Up to options_.recovery_threads threads read logs ahead of the replay
+    // (see readLogFile()) and write out the memtables it fills. The batches
+    // are applied by this thread in the order they were logged, i.e. in
+    // sequence order.
+    // REQUIRES: mutex_ is held
+    private Status recoverLogFiles(List<Long> logs, VersionEdit edit,
+                                   SequenceNumber max_sequence) {
+        assert (mutex_.isHeldByCurrentThread());
+        if (logs.isEmpty()) {
+            return Status.OK();
+        }
+        int threads = Math.max(options_.recovery_threads, 1);
+        ExecutorService pool = Executors.newFixedThreadPool(threads,
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "leveldb-recovery");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        List<Future<RecoveredLog>> reads = new ArrayList<Future<RecoveredLog>>();
+        LinkedList<Future<Status>> flushes = new LinkedList<Future<Status>>();
+        long start_micros = env_.nowMicros();
+        long bytes = 0;
+        long batches = 0;
+        int tables = 0;
+        Status status = Status.OK();
+        MemTable mem = null;
 
-            if (mem.ApproximateMemoryUsage() > options_.write_buffer_size) {
-                status = writeLevel0Table(mem, edit, null);
+        // Nothing else uses the DB yet; the lock is only taken to number
+        // and install the tables.
+        mutex_.unlock();
+        try {
+            for (int i = 0; i < logs.size() && i < threads; i++) {
+                reads.add(submitLogRead(pool, logs.get(i)));
+            }
+            for (int i = 0; i < logs.size() && status.ok(); i++) {
+                RecoveredLog log = awaitRecovery(reads.get(i));
+                reads.set(i, null);
+                if (i + threads < logs.size()) {
+                    reads.add(submitLogRead(pool, logs.get(i + threads)));
+                }
+                LOG.info("Recovering log #" + log.number + ": "
+                        + log.batches.size() + " batches, " + log.bytes
+                        + " bytes");
+                status = log.status;
                 if (!status.ok()) {
-                    // Reflect errors immediately so that conditions like full
-                    // file-systems cause the DB::open() to fail.
                     break;
                 }
-                mem.Unref();
-                mem = null;
+
+                for (WriteBatch batch : log.batches) {
+                    if (mem == null) {
+                        mem = new MemTable(internal_comparator_, options_);
+                        mem.Ref();
+                    }
+                    status = replayInto(batch, mem);
+                    maybeIgnoreError(status);
+                    if (!status.ok()) {
+                        break;
+                    }
+                    long last_seq = WriteBatchInternal.Sequence(batch).value
+                            + WriteBatchInternal.count(batch) - 1;
+                    if (last_seq > max_sequence.value) {
+                        max_sequence.value = last_seq;
+                    }
+
+                    if (mem.ApproximateMemoryUsage() > options_.write_buffer_size) {
+                        status = submitRecoveryFlush(pool, mem, edit, flushes,
+                                threads);
+                        mem = null;
+                        tables++;
+                        if (!status.ok()) {
+                            // Reflect errors immediately so that conditions
+                            // like full file-systems cause the DB::open() to
+                            // fail.
+                            break;
+                        }
+                    }
+                }
+                if (status.ok() && mem != null) {
+                    status = submitRecoveryFlush(pool, mem, edit, flushes,
+                            threads);
+                    mem = null;
+                    tables++;
+                }
+                bytes += log.bytes;
+                batches += log.batches.size();
+                long micros = Math.max(env_.nowMicros() - start_micros, 1);
+                LOG.info("Recovered " + (i + 1) + " of " + logs.size()
+                        + " logs, " + bytes + " bytes at "
+                        + (bytes * 1000000L / micros >> 10) + " KB/s");
             }
-        }
 
-        if (status.ok() && mem != null) {
-            status = writeLevel0Table(mem, edit, null);
-            // Reflect errors immediately so that conditions like full
-            // file-systems cause the DB::open() to fail.
+            // Wait for the tables still being written
+            while (!flushes.isEmpty()) {
+                Status s = awaitRecovery(flushes.removeFirst());
+                if (status.ok()) {
+                    status = s;
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+            mutex_.lock();
         }
-
-        if (mem != null)
+        if (mem != null) {
             mem.Unref();
-        file.Close();
-        file = null;
+        }
+
+        long micros = Math.max(env_.nowMicros() - start_micros, 1);
+        LOG.info("Recovered " + logs.size() + " logs (" + batches
+                + " batches, " + bytes + " bytes) into " + tables
+                + " tables in " + micros / 1000 + " ms, "
+                + (bytes * 1000000L / micros >> 10) + " KB/s; "
+                + status.toString());
         return status;
     }
 
+    private Future<RecoveredLog> submitLogRead(ExecutorService pool,
+                                               final long log_number) {
+        return pool.submit(new Callable<RecoveredLog>() {
+            @Override
+            public RecoveredLog call() {
+                return readLogFile(log_number);
+            }
+        });
+    }
+
+    // Write "mem" out on a recovery thread, after waiting for the oldest
+    // flush if "max_flushes" are running already. The table is numbered
+    // now, so that tables of newer memtables get higher numbers: reads
+    // search level-0 newest (highest number) first.
+    // REQUIRES: mutex_ is not held
+    private Status submitRecoveryFlush(ExecutorService pool, final MemTable mem,
+                                       final VersionEdit edit,
+                                       LinkedList<Future<Status>> flushes,
+                                       int max_flushes) {
+        Status s = Status.OK();
+        while (flushes.size() >= max_flushes && s.ok()) {
+            s = awaitRecovery(flushes.removeFirst());
+        }
+        if (!s.ok()) {
+            mem.Unref();
+            return s;
+        }
+        final long number;
+        mutex_.lock();
+        try {
+            number = versions_.newFileNumber();
+            pending_outputs_.add(number);
+        } finally {
+            mutex_.unlock();
+        }
+        flushes.addLast(pool.submit(new Callable<Status>() {
+            @Override
+            public Status call() {
+                mutex_.lock();
+                try {
+                    return writeLevel0Table(Collections.singletonList(mem),
+                            edit, null, number);
+                } finally {
+                    mutex_.unlock();
+                    mem.Unref();
+                }
+            }
+        }));
+        return s;
+    }
+
+    private static <T> T awaitRecovery(Future<T> f) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return f.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    throw new RuntimeException(e.getCause());
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
     public void maybeScheduleCompaction() {
         assert (mutex_.isHeldByCurrentThread());
         if (bg_compaction_scheduled_) {
@@ -1654,7 +3580,7 @@ public class DBImpl extends DB {
         } else if (shutting_down_.get()) {
             // DB is being deleted; no more background compactions
             LOG.info("DB is being deleted");
-        } else if (imm_ == null && manual_compaction_ == null
+        } else if (imm_.isEmpty() && manual_compaction_ == null
                 && !versions_.NeedsCompaction()) {
             // No work to be done
             LOG.info("No work to be done");
@@ -4,6 +4,9 @@ import com.leveldb.common.*;
 import com.leveldb.util.SequenceNumber;
 import com.leveldb.util.ValueType;
 
+import java.util.ArrayList;
+import java.util.List;
+
 //Memtables and sstables that make the DB representation contain
 //(userkey,seq,type) => uservalue entries.  DBIter
 //combines multiple entries for the same userkey found in the DB
@@ -13,6 +16,7 @@ class DBIter extends Iterator {
     String dbname_;
     Env env_;
     Comparator user_comparator_;
+    MergeOperator merge_operator_;
     Iterator iter_;
     SequenceNumber sequence_;
 
@@ -21,10 +25,14 @@ class DBIter extends Iterator {
     ByteVector saved_value_; // == current raw value when direction_==kReverse
     int direction_;
     boolean valid_;
+    // The current entry is the result of merge operands, kept in saved_key_
+    // and saved_value_ also when direction_==kForward
+    boolean merged_;
 
     // Which direction is the iterator currently moving?
     // (1) When moving forward, the internal iterator is positioned at
-    // the exact entry that yields this->key(), this->value()
+    // the exact entry that yields this->key(), this->value(), or if that
+    // is a merge operand, just after the entries merged into it
     // (2) When moving backwards, the internal iterator is positioned
     // just before all entries whose user key == this->key().
     static class Direction {
@@ -32,15 +40,17 @@ class DBIter extends Iterator {
         public static final int kReverse = 1;
     }
 
-    public DBIter(String dbname, Env env, Comparator cmp, Iterator iter,
-                  SequenceNumber s) {
+    public DBIter(String dbname, Env env, Comparator cmp,
+                  MergeOperator merge_operator, Iterator iter, SequenceNumber s) {
         dbname_ = dbname;
         env_ = env;
         user_comparator_ = cmp;
+        merge_operator_ = merge_operator;
         iter_ = iter;
         sequence_ = s;
         direction_ = Direction.kForward;
         valid_ = false;
+        merged_ = false;
         saved_key_ = new ByteVector();
         saved_value_ = new ByteVector();
     }
@@ -51,14 +61,14 @@ class DBIter extends Iterator {
 
     public Slice key() {
         assert (valid_);
-        return (direction_ == Direction.kForward) ? InternalKey
+        return (direction_ == Direction.kForward && !merged_) ? InternalKey
                 .ExtractUserKey(iter_.key()) : new Slice(saved_key_.getData());
     }
 
     public Slice value() {
         assert (valid_);
-        return (direction_ == Direction.kForward) ? iter_.value() : new Slice(
-                saved_value_.getData());
+        return (direction_ == Direction.kForward && !merged_) ? iter_.value()
+                : new Slice(saved_value_.getData());
     }
 
     public Status status() {
@@ -112,6 +122,18 @@ class DBIter extends Iterator {
                 saved_key_.clear();
                 return;
             }
+        } else if (merged_) {
+            // iter_ is already past the entries merged into this->key(),
+            // which saved_key_ holds: skip whatever is left of them.
+            merged_ = false;
+            ClearSavedValue();
+            if (!iter_.valid()) {
+                valid_ = false;
+                saved_key_.clear();
+                return;
+            }
+            FindNextUserEntry(true, saved_key_);
+            return;
         }
 
         // Temporarily use saved_key_ as storage for key to skip.
@@ -147,6 +169,19 @@ class DBIter extends Iterator {
                             return;
                         }
                         break;
+                    case ValueType.kTypeMerge:
+                        if (skipping
+                                && user_comparator_.compare(
+                                ikey.user_key,
+                                new Slice(skip.getRawRef(), 0, skip
+                                        .getSize())) <= 0) {
+                            // Entry hidden
+                        } else {
+                            SaveKey(ikey.user_key, saved_key_);
+                            MergeValuesNewToOld();
+                            return;
+                        }
+                        break;
                 }
             }
             iter_.next();
@@ -155,14 +190,59 @@ class DBIter extends Iterator {
         valid_ = false;
     }
 
+    // iter_ is at a merge operand for the user key in saved_key_, the newest
+    // entry of the key visible here. Apply it and the older operands to the
+    // value under them, leaving the result in saved_value_ and iter_ just
+    // after the entries used.
+    void MergeValuesNewToOld() {
+        Slice user_key = new Slice(saved_key_.getData());
+        MergeContext merge = new MergeContext(merge_operator_, user_key);
+        merge.add(new Slice(iter_.value().data()));
+        Slice base = null;
+        for (iter_.next(); iter_.valid(); iter_.next()) {
+            ParsedInternalKey ikey = ParseKey();
+            if (ikey == null
+                    || user_comparator_.compare(ikey.user_key, user_key) != 0
+                    || ikey.type.value == ValueType.kTypeDeletion) {
+                break;
+            }
+            if (ikey.type.value == ValueType.kTypeValue) {
+                base = new Slice(iter_.value().data());
+                break;
+            }
+            merge.add(new Slice(iter_.value().data()));
+        }
+
+        Status s = new Status();
+        Slice merged = merge.merge(base, s);
+        if (merged == null) {
+            status_ = s;
+            valid_ = false;
+            saved_key_.clear();
+            return;
+        }
+        saved_value_.set(merged.data());
+        merged_ = true;
+        valid_ = true;
+    }
+
     public void prev() {
         assert (valid_);
 
         if (direction_ == Direction.kForward) { // Switch directions?
             // iter_ is pointing at the current entry. Scan backwards until
             // the key changes so we can use the normal reverse scanning code.
-            assert (iter_.valid()); // Otherwise valid_ would have been false
-            SaveKey(InternalKey.ExtractUserKey(iter_.key()), saved_key_);
+            if (merged_) {
+                // iter_ is past the entries for this->key(), already in
+                // saved_key_
+                merged_ = false;
+                if (!iter_.valid()) {
+                    iter_.seekToLast();
+                }
+            } else {
+                assert (iter_.valid()); // Otherwise valid_ would have been false
+                SaveKey(InternalKey.ExtractUserKey(iter_.key()), saved_key_);
+            }
             while (true) {
                 iter_.prev();
                 if (!iter_.valid()) {
@@ -187,11 +267,15 @@ class DBIter extends Iterator {
         assert (direction_ == Direction.kReverse);
 
         ValueType value_type = ValueType.TypeDeletion;
+        // Merge operands for the key in saved_key_, oldest first, and
+        // whether they apply to a value in saved_value_
+        List<Slice> operands = new ArrayList<Slice>();
+        boolean has_base = false;
         if (iter_.valid()) {
             do {
                 ParsedInternalKey ikey = ParseKey();
                 if (ikey.sequence.value <= sequence_.value) {
-                    if ((value_type != ValueType.TypeDeletion)
+                    if ((value_type.value != ValueType.kTypeDeletion)
                             && user_comparator_.compare(ikey.user_key,
                             new Slice(saved_key_.getRawRef(), 0,
                                     saved_key_.getSize())) < 0) {
@@ -199,10 +283,20 @@ class DBIter extends Iterator {
                         // previous keys,
                         break;
                     }
-                    value_type = ikey.type;
-                    if (value_type.value == ValueType.kTypeDeletion) {
+                    if (ikey.type.value == ValueType.kTypeDeletion) {
                         saved_key_.clear();
                         ClearSavedValue();
+                        operands.clear();
+                        has_base = false;
+                    } else if (ikey.type.value == ValueType.kTypeMerge) {
+                        if (value_type.value == ValueType.kTypeDeletion) {
+                            // Nothing under this operand
+                            SaveKey(InternalKey.ExtractUserKey(iter_.key()),
+                                    saved_key_);
+                            ClearSavedValue();
+                            has_base = false;
+                        }
+                        operands.add(new Slice(iter_.value().data()));
                     } else {
                         Slice raw_value = iter_.value();
                         if (saved_value_.getCapacity() > raw_value.size() + 1048576) {
@@ -211,12 +305,32 @@ class DBIter extends Iterator {
                         SaveKey(InternalKey.ExtractUserKey(iter_.key()),
                                 saved_key_);
                         saved_value_.set(raw_value.data());
+                        operands.clear();
+                        has_base = true;
                     }
+                    value_type = ikey.type;
                 }
                 iter_.prev();
             } while (iter_.valid());
         }
 
+        if (value_type.value == ValueType.kTypeMerge) {
+            MergeContext merge = new MergeContext(merge_operator_, new Slice(
+                    saved_key_.getData()));
+            for (int i = operands.size() - 1; i >= 0; i--) {
+                merge.add(operands.get(i));
+            }
+            Status s = new Status();
+            Slice merged = merge.merge(has_base ? new Slice(saved_value_
+                    .getData()) : null, s);
+            if (merged == null) {
+                status_ = s;
+                value_type = ValueType.TypeDeletion; // end with the error
+            } else {
+                saved_value_.set(merged.data());
+            }
+        }
+
         if (value_type.value == ValueType.kTypeDeletion) {
             // End
             valid_ = false;
@@ -230,6 +344,7 @@ class DBIter extends Iterator {
 
     public void seek(Slice target) {
         direction_ = Direction.kForward;
+        merged_ = false;
         ClearSavedValue();
         saved_key_.clear();
         // wlu:Debug issue, 2012-5-29: need to set new bytes to saved_key_
@@ -246,6 +361,7 @@ class DBIter extends Iterator {
 
     public void seekToFirst() {
         direction_ = Direction.kForward;
+        merged_ = false;
         ClearSavedValue();
         iter_.seekToFirst();
         if (iter_.valid()) {
@@ -257,15 +373,18 @@ class DBIter extends Iterator {
 
     public void seekToLast() {
         direction_ = Direction.kReverse;
+        merged_ = false;
         ClearSavedValue();
         iter_.seekToLast();
         FindPrevUserEntry();
     }
 
     public static Iterator NewDBIterator(String dbname, Env env,
-                                         Comparator user_key_comparator, Iterator internal_iter,
+                                         Comparator user_key_comparator,
+                                         MergeOperator merge_operator,
+                                         Iterator internal_iter,
                                          SequenceNumber sequence) {
-        return new DBIter(dbname, env, user_key_comparator, internal_iter,
-                sequence);
+        return new DBIter(dbname, env, user_key_comparator, merge_operator,
+                internal_iter, sequence);
     }
 }
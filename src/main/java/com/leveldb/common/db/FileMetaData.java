@@ -9,11 +9,15 @@ public class FileMetaData {
     // [need to init the two members]
     public InternalKey smallest = new InternalKey(); // Smallest internal key served by table
     public InternalKey largest = new InternalKey(); // Largest internal key served by table
+    // Sequence number of every entry of an ingested file (see
+    // DB.ingestExternalFile()), whatever the table holds; 0 if none
+    public long global_seqno;
 
     public FileMetaData() {
         refs = 0;
         allowed_seeks = 1 << 30;
         file_size = 0;
+        global_seqno = 0;
     }
 
     public int getRefs() {
@@ -64,5 +68,13 @@ public class FileMetaData {
         this.largest = largest;
     }
 
+    public long getGlobal_seqno() {
+        return global_seqno;
+    }
+
+    public void setGlobal_seqno(long global_seqno) {
+        this.global_seqno = global_seqno;
+    }
+
 
 }
@@ -0,0 +1,94 @@
+package com.leveldb.common.db;
+
+import com.leveldb.common.Slice;
+import com.leveldb.common.SliceTransform;
+import com.leveldb.util.JenkinsHash;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * MemTableRep that hashes entries by the prefix of their user key into a
+ * fixed number of buckets, each an independent SkipList created on first
+ * use. A point lookup only searches the bucket of its key.
+ * <p/>
+ * Keys outside the domain of the prefix extractor are hashed as a whole.
+ */
+class HashSkipListRep extends MemTableRep {
+    private final EntryComparator cmp_;
+    private final SliceTransform transform_;
+    private final AtomicReferenceArray<SkipList> buckets_;
+    // Node bytes of all buckets, shared by their skiplists
+    private final LongAdder nodes_memory_usage_;
+
+    HashSkipListRep(EntryComparator cmp, SliceTransform transform,
+                    int bucket_count) {
+        cmp_ = cmp;
+        transform_ = transform;
+        buckets_ = new AtomicReferenceArray<SkipList>(
+                bucket_count);
+        nodes_memory_usage_ = new LongAdder();
+    }
+
+    private int bucketIndex(Slice user_key) {
+        Slice prefix = transform_.inDomain(user_key) ? transform_
+                .transform(user_key) : user_key;
+        byte[] b = prefix.data();
+        int h = JenkinsHash.hash(b, 0, b.length, 0);
+        return (h & 0x7fffffff) % buckets_.length();
+    }
+
+    private SkipList getOrCreateBucket(int idx) {
+        SkipList bucket = buckets_.get(idx);
+        if (bucket == null) {
+            bucket = new SkipList(cmp_, false, nodes_memory_usage_);
+            if (!buckets_.compareAndSet(idx, null, bucket)) {
+                // another writer created it first
+                bucket = buckets_.get(idx);
+            }
+        }
+        return bucket;
+    }
+
+    @Override
+    public void insert(long entry) {
+        getOrCreateBucket(bucketIndex(cmp_.userKey(entry))).insert(entry);
+    }
+
+    @Override
+    public void insertConcurrently(long entry) {
+        getOrCreateBucket(bucketIndex(cmp_.userKey(entry)))
+                .insertConcurrently(entry);
+    }
+
+    @Override
+    public RepIterator newLookupIterator(Slice user_key) {
+        SkipList bucket = buckets_
+                .get(bucketIndex(user_key));
+        if (bucket == null) {
+            return new SortedEntriesIterator(new long[0], 0);
+        }
+        return new SkipListRep.Iter(bucket);
+    }
+
+    // Ordered scans have to see every bucket: merge them as they go
+    @Override
+    public RepIterator newIterator() {
+        List<RepIterator> children = new ArrayList<RepIterator>();
+        for (int i = 0; i < buckets_.length(); i++) {
+            SkipList bucket = buckets_.get(i);
+            if (bucket != null) {
+                children.add(new SkipListRep.Iter(bucket));
+            }
+        }
+        return new MergingRepIterator(cmp_, children
+                .toArray(new RepIterator[children.size()]));
+    }
+
+    @Override
+    public long approximateMemoryUsage() {
+        return buckets_.length() * 8L + nodes_memory_usage_.sum();
+    }
+}
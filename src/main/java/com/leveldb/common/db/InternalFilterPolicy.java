@@ -0,0 +1,39 @@
+package com.leveldb.common.db;
+
+import com.leveldb.common.FilterPolicy;
+import com.leveldb.common.Slice;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Filter policy wrapper that converts from internal keys to user keys
+public class InternalFilterPolicy extends FilterPolicy {
+    private final FilterPolicy user_policy_;
+
+    public InternalFilterPolicy(FilterPolicy p) {
+        user_policy_ = p;
+    }
+
+    public FilterPolicy user_policy() {
+        return user_policy_;
+    }
+
+    @Override
+    public String name() {
+        return user_policy_.name();
+    }
+
+    @Override
+    public byte[] createFilter(List<Slice> keys) {
+        List<Slice> user_keys = new ArrayList<Slice>(keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            user_keys.add(InternalKey.ExtractUserKey(keys.get(i)));
+        }
+        return user_policy_.createFilter(user_keys);
+    }
+
+    @Override
+    public boolean keyMayMatch(Slice key, Slice filter) {
+        return user_policy_.keyMayMatch(InternalKey.ExtractUserKey(key), filter);
+    }
+}
@@ -23,7 +23,7 @@ public class InternalKey {
 
     public static long PackSequenceAndType(SequenceNumber seq, ValueType t) {
         assert (seq.value <= kMaxSequenceNumber);
-        assert (t.value <= ValueType.kTypeValue);
+        assert (t.value <= ValueType.kTypeMerge);
         return (seq.value << 8) | t.value; // lshift 8 bits and concat one byte
     }
 
@@ -121,7 +121,7 @@ public class InternalKey {
         result.sequence = new SequenceNumber(num >> 8);
         result.type = new ValueType(c);
         result.user_key = new Slice(internal_key.data(), 0, n - 8);
-        if (c <= (ValueType.kTypeValue)) {
+        if (c <= (ValueType.kTypeMerge)) {
             return result;
         }
         return null;
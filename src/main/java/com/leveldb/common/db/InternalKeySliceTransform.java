@@ -0,0 +1,33 @@
+package com.leveldb.common.db;
+
+import com.leveldb.common.Slice;
+import com.leveldb.common.SliceTransform;
+
+// Prefix extractor wrapper that applies the user's extractor to the user
+// key of internal keys, as tables see them
+public class InternalKeySliceTransform extends SliceTransform {
+    private final SliceTransform user_transform_;
+
+    public InternalKeySliceTransform(SliceTransform t) {
+        user_transform_ = t;
+    }
+
+    public SliceTransform user_transform() {
+        return user_transform_;
+    }
+
+    @Override
+    public String name() {
+        return user_transform_.name();
+    }
+
+    @Override
+    public Slice transform(Slice key) {
+        return user_transform_.transform(InternalKey.ExtractUserKey(key));
+    }
+
+    @Override
+    public boolean inDomain(Slice key) {
+        return user_transform_.inDomain(InternalKey.ExtractUserKey(key));
+    }
+}
@@ -14,7 +14,7 @@ public class LookupKey {
     // and the value type is embedded as the low 8 bits in the sequence
     // number in internal keys, we need to use the highest-numbered
     // ValueType, not the lowest).
-    static ValueType kValueTypeForSeek = new ValueType(ValueType.kTypeValue);
+    static ValueType kValueTypeForSeek = ValueType.ValueTypeForSeek;
 
     // Initialize *this for looking up user_key at a snapshot with
     // the specified sequence number.
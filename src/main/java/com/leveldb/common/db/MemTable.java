@@ -1,24 +1,26 @@
 package com.leveldb.common.db;
 
 import com.leveldb.common.*;
+import com.leveldb.common.comparator.BytewiseComparatorImpl;
 import com.leveldb.common.comparator.InternalKeyComparator;
-import com.leveldb.common.db.MemTable.KeyComparator;
+import com.leveldb.common.options.Options;
+import com.leveldb.util.Arena;
+import com.leveldb.util.DynamicBloom;
 import com.leveldb.util.SequenceNumber;
 import com.leveldb.util.ValueType;
 import com.leveldb.util.coding;
 import com.leveldb.util.util;
 
-import java.util.concurrent.atomic.AtomicLong;
-
 //import com.leveldb.common.Table;
 
 class MemTableIterator extends com.leveldb.common.Iterator {
 
-    private SkipListIterator<Slice, KeyComparator> iter_;
-    String tmp_; // For passing to EncodeKey
+    private final MemTable mem_;
+    private final MemTableRep.RepIterator iter_;
 
-    public MemTableIterator(SkipList<Slice, KeyComparator> table) {
-        iter_ = new SkipListIterator<Slice, KeyComparator>(table);
+    public MemTableIterator(MemTable mem) {
+        mem_ = mem;
+        iter_ = mem.table_.newIterator();
     }
 
     @Override
@@ -38,17 +40,11 @@ class MemTableIterator extends com.leveldb.common.Iterator {
 
     }
 
-    // encode to s.size | s.data
-    public byte[] EncodeKey(Slice target) {
-        byte[] scratch = new byte[0];
-        scratch = util.add(scratch, coding.putVarint32(target.size()),
-                target.data());
-        return scratch;
-    }
-
+    // k is an internal key; no need to copy it into the arena for the
+    // search, the rep compares entries against it in place
     @Override
     public void seek(Slice k) {
-        iter_.seek(new Slice(EncodeKey(k)));
+        iter_.seek(mem_.probe(k));
 
     }
 
@@ -64,19 +60,15 @@ class MemTableIterator extends com.leveldb.common.Iterator {
 
     }
 
-    private ByteCollection l4key_value = null;
-
+    // get user-key|[sequencenumber <<8 | type]
     @Override
     public Slice key() {
-        l4key_value = new ByteCollection(iter_.key().data(), 0);
-        return coding.getLengthPrefixedSlice(l4key_value);// get
-        // user-key|[sequencenumber
-        // <<8 | type]
+        return mem_.internalKeyAt(iter_.key());
     }
 
     @Override
     public Slice value() {
-        return coding.getLengthPrefixedSlice(l4key_value);
+        return mem_.valueAt(iter_.key());
     }
 
     @Override
@@ -92,44 +84,119 @@ class MemTableIterator extends com.leveldb.common.Iterator {
 // internal_key bytes : byte[internal_key.size()]
 // value_size : varint32 of value.size()
 // value bytes : byte[value.size()]
+//
+// Entries are packed back to back into the memtable's Arena; the
+// MemTableRep (a skiplist unless Options.memtable_factory says otherwise)
+// only holds the arena address of each entry.
 public class MemTable {
 
     /**
-     * key.size|key.data|val.size|val.data
-     * <p/>
-     * #wlu: 2012-5-29, Debug compare(Slice k, Slice k2)#
+     * Orders arena addresses by the internal keys stored at them.
      * <p/>
-     * because bytes inserted to SkilList is internalkey_len|internal_key|...,
-     * we need to extract the internal key first before compare. internal_key:
-     * userkey|[sequencenumber << 8 | type]
+     * Each address points at internalkey_len|internal_key|..., internal_key:
+     * userkey|[sequencenumber << 8 | type]. With the bytewise user
+     * comparator, keys are compared where they lie in the arena; other
+     * comparators get Slices of it (copies, for direct slabs).
      */
-    class KeyComparator extends _Comparable<Slice> {
+    class KeyComparator extends MemTableRep.EntryComparator {
         InternalKeyComparator comparator;
+        final boolean bytewise_;
 
         KeyComparator(InternalKeyComparator c) {
             comparator = c;
+            bytewise_ = c.user_comparator() instanceof BytewiseComparatorImpl;
+        }
+
+        @Override
+        public int compare(long a_entry, long b_entry) {
+            int a_length = arena_.getVarint32(a_entry);
+            int b_length = arena_.getVarint32(b_entry);
+            long a_ptr = a_entry + coding.varintLength(a_length);
+            long b_ptr = b_entry + coding.varintLength(b_length);
+            int r = bytewise_ ? arena_.compare(a_ptr, a_length - 8, b_ptr,
+                    b_length - 8) : comparator.user_comparator().compare(
+                    arena_.slice(a_ptr, a_length - 8),
+                    arena_.slice(b_ptr, b_length - 8));
+            if (r == 0) {
+                r = compareTags(arena_.getLong(a_ptr + a_length - 8),
+                        arena_.getLong(b_ptr + b_length - 8));
+            }
+            return r;
         }
 
-        int compare(byte[] a, byte[] b) {
-            Slice as = coding.getLengthPrefixedSlice(a);
-            Slice bs = coding.getLengthPrefixedSlice(b);
-            return comparator.compare(as, bs);
+        // Same, for an entry and an internal key that is not in the arena
+        int compare(long entry, Slice internal_key) {
+            int key_length = arena_.getVarint32(entry);
+            long key_ptr = entry + coding.varintLength(key_length);
+            byte[] buf = internal_key.getBuffer();
+            int off = internal_key.getOffset();
+            int user_key_length = internal_key.size() - 8;
+            int r = compareUserKey(key_ptr, key_length - 8, buf, off,
+                    user_key_length);
+            if (r == 0) {
+                r = compareTags(arena_.getLong(key_ptr + key_length - 8),
+                        util.toLong(buf, off + user_key_length));
+            }
+            return r;
+        }
+
+        // Compare the user key of "length" bytes at arena address key_ptr
+        // with user_key
+        int compareUserKey(long key_ptr, int length, Slice user_key) {
+            return compareUserKey(key_ptr, length, user_key.getBuffer(),
+                    user_key.getOffset(), user_key.size());
+        }
+
+        private int compareUserKey(long key_ptr, int length, byte[] b,
+                                   int off, int blen) {
+            if (bytewise_) {
+                return arena_.compare(key_ptr, length, b, off, blen);
+            }
+            return comparator.user_comparator().compare(
+                    arena_.slice(key_ptr, length), new Slice(b, off, blen));
+        }
+
+        // Decreasing sequence number, then decreasing type
+        private int compareTags(long a, long b) {
+            return a > b ? -1 : (a < b ? +1 : 0);
         }
 
         @Override
-        public int compare(Slice k, Slice k2) {
-            Slice as = coding.getLengthPrefixedSlice(k.data());
-            Slice bs = coding.getLengthPrefixedSlice(k2.data());
-            return comparator.compare(as, bs);
+        public Slice userKey(long entry) {
+            int key_length = arena_.getVarint32(entry);
+            return arena_.slice(entry + coding.varintLength(key_length),
+                    key_length - 8);
         }
     }
 
     // MemTables are reference counted. The initial reference count
     // is zero and the caller must call Ref() at least once.
     public MemTable(InternalKeyComparator icomparator) {
+        this(icomparator, new Options());
+    }
+
+    public MemTable(InternalKeyComparator icomparator, Options options) {
         comparator_ = new KeyComparator(icomparator);
         refs_ = 0;
-        table_ = new SkipList<Slice, KeyComparator>(comparator_);
+        arena_ = new Arena(ArenaBlockSize(options.write_buffer_size),
+                options.direct_memtable_arena);
+        table_ = options.memtable_factory.createMemTableRep(comparator_);
+        insert_hint_ = table_.newInsertHint();
+        if (options.memtable_bloom_size_ratio > 0) {
+            long bits = (long) (options.write_buffer_size * 8L
+                    * options.memtable_bloom_size_ratio);
+            bloom_ = new DynamicBloom(Math.max(bits, 64), kBloomProbes);
+        } else {
+            bloom_ = null;
+        }
+        // The DB gives the extractor over internal keys, the memtable works
+        // with user keys
+        SliceTransform prefix_extractor = options.prefix_extractor;
+        if (prefix_extractor instanceof InternalKeySliceTransform) {
+            prefix_extractor = ((InternalKeySliceTransform) prefix_extractor)
+                    .user_transform();
+        }
+        prefix_extractor_ = bloom_ != null ? prefix_extractor : null;
     }
 
     // Increase reference count.
@@ -152,7 +219,59 @@ public class MemTable {
     // REQUIRES: external synchronization to prevent simultaneous
     // operations on the same MemTable.
     public long ApproximateMemoryUsage() {
-        return approximateMemoryUsage.get();
+        return arena_.memoryUsage() + table_.approximateMemoryUsage()
+                + (bloom_ != null ? bloom_.memoryUsage() : 0);
+    }
+
+    // Slabs of a sixteenth of the write buffer, so that the memtable fills
+    // up in small steps even with a small write_buffer_size.
+    static int ArenaBlockSize(long write_buffer_size) {
+        long size = write_buffer_size / 16;
+        if (size < 4096) {
+            size = 4096;
+        }
+        return (int) Math.min(size, Arena.kDefaultBlockSize);
+    }
+
+    // Whether nothing has been added to the memtable yet
+    public boolean IsEmpty() {
+        return empty_;
+    }
+
+    // Number of the log file that holds this memtable's updates. Set by
+    // DBImpl when the memtable becomes immutable.
+    public long LogNumber() {
+        return log_number_;
+    }
+
+    public void SetLogNumber(long log_number) {
+        log_number_ = log_number;
+    }
+
+    // Largest sequence number of the updates in this memtable. Set by
+    // DBImpl when the memtable becomes immutable.
+    public long LastSequence() {
+        return last_sequence_;
+    }
+
+    public void SetLastSequence(long sequence) {
+        last_sequence_ = sequence;
+    }
+
+    // Bytes of the batches added to this memtable without being written
+    // to the log (WriteOptions.disable_wal). Guarded by the DB mutex.
+    public long UnloggedBytes() {
+        return unlogged_bytes_;
+    }
+
+    public void AddUnloggedBytes(long n) {
+        unlogged_bytes_ += n;
+    }
+
+    // No more entries will be added; called when this memtable becomes
+    // the immutable memtable waiting to be flushed.
+    public void MarkReadOnly() {
+        table_.markReadOnly();
     }
 
     // Return an iterator that yields the contents of the memtable.
@@ -162,7 +281,7 @@ public class MemTable {
     // iterator are internal keys encoded by AppendInternalKey in the
     // db/format.{h,cc} module.
     public Iterator NewIterator() {
-        return new MemTableIterator(table_);
+        return new MemTableIterator(this);
     }
 
     // Add an entry into memtable that maps key to value at the
@@ -170,83 +289,211 @@ public class MemTable {
     // Typically value will be empty if type==kTypeDeletion.
     public void Add(SequenceNumber seq, int /* ValueType */type, Slice key,
                     Slice value) {
+        Add(seq, type, key, value, false);
+    }
+
+    // Same as above. If "concurrent" is true, other threads may be adding
+    // to this memtable at the same time (but only through this method with
+    // concurrent == true).
+    public void Add(SequenceNumber seq, int /* ValueType */type, Slice key,
+                    Slice value, boolean concurrent) {
+        Add(seq, type, key, value, concurrent, null);
+    }
+
+    // Return the insert hint a writer should pass to Add(). Writers that
+    // are serialized share one hint, so a stream of increasing keys keeps
+    // hitting it across batches; a concurrent writer gets its own.
+    public MemTableRep.InsertHint InsertHint(boolean concurrent) {
+        return concurrent ? table_.newInsertHint() : insert_hint_;
+    }
+
+    // Same as above, starting the insert from "hint" if it is non-null.
+    // Returns true iff the hint saved the search for the insert position.
+    public boolean Add(SequenceNumber seq, int /* ValueType */type, Slice key,
+                       Slice value, boolean concurrent,
+                       MemTableRep.InsertHint hint) {
         // Format of an entry is concatenation of:
         // key_size : varint32 of internal_key.size()
         // key bytes : char[internal_key.size()]
         // value_size : varint32 of value.size()
         // value bytes : char[value.size()]
+        empty_ = false;
         int key_size = key.size();
         int val_size = value.size();
         int internal_key_size = key_size + 8;
         int encoded_len = coding.varintLength(internal_key_size)
                 + internal_key_size + coding.varintLength(val_size) + val_size;
-        byte[] buf = new byte[0];
-        // char* buf = arena_.Allocate(encoded_len);
-        buf = util.addN(coding.encodeVarint32(internal_key_size), key.data(),
-                util.toBytes((long) (seq.value << 8) | type),
-                coding.encodeVarint32(val_size), value.data());
-        // assert((p + val_size) - buf == encoded_len);
-        assert (buf.length == encoded_len);
-        table_.insert(new Slice(buf));
-        // update the size of memtable
-        approximateMemoryUsage.addAndGet(buf.length);
+        long buf = concurrent ? arena_.allocateConcurrently(encoded_len)
+                : arena_.allocate(encoded_len);
+        long p = arena_.putVarint32(buf, internal_key_size);
+        arena_.put(p, key.getBuffer(), key.getOffset(), key_size);
+        p += key_size;
+        arena_.putLong(p, (seq.value << 8) | type);
+        p += 8;
+        p = arena_.putVarint32(p, val_size);
+        arena_.put(p, value.getBuffer(), value.getOffset(), val_size);
+        assert ((p + val_size) - buf == encoded_len);
+        if (bloom_ != null) {
+            bloom_.add(key);
+            if (prefix_extractor_ != null && prefix_extractor_.inDomain(key)) {
+                bloom_.add(prefix_extractor_.transform(key));
+            }
+        }
+        if (hint != null) {
+            return table_.insertWithHint(buf, hint, concurrent);
+        }
+        if (concurrent) {
+            table_.insertConcurrently(buf);
+        } else {
+            table_.insert(buf);
+        }
+        return false;
     }
 
     // If memtable contains a value for key, store it in *value and return true.
     // If memtable contains a deletion for key, store a notFound() error
     // in *status and return true.
     // Else, return false.
-    public Slice Get(LookupKey key, Slice value, Status s) {
-        Slice getValue;
-        Slice memkey = key.memtable_key(); // whole slice data
-        SkipListIterator<Slice, KeyComparator> iter = new SkipListIterator<Slice, KeyComparator>(
-                table_);
-        iter.seek(memkey);
-        if (iter.valid()) {
-            // entry format is:
-            // klength varint32
-            // userkey char[klength]
-            // tag uint64
-            // vlength varint32
-            // value char[vlength]
-            // Check that it belongs to same user key. We do not check the
-            // sequence number since the seek() call above should have skipped
-            // all entries with overly large sequence numbers.
-            Slice entry = iter.key();
-            ByteCollection entry_ = new ByteCollection(entry.data(), 0);
-            int key_length = coding.getVarint32(entry_); // get the key length
-            if (comparator_.comparator.user_comparator().compare(
-                    new Slice(entry_.bytes, entry_.curr_pos, key_length - 8),
-                    key.user_key()) == 0) {
-                // Correct user key
-                entry_.curr_pos += (key_length - 8); // to the begin of the tag
-                long tag = util.toLong(entry_.bytes, entry_.curr_pos);
-
-                switch ((int) (tag & 0xff)) {
-                    case ValueType.kTypeValue: {
-                        entry_.curr_pos += 8;
-                        Slice v = coding.getLengthPrefixedSlice(entry_);
-                        getValue = new Slice(v.data()); // deep copy
-                        // wlu, 2012-7-7
-                        value.setData_(getValue.data());
-                        return getValue;
+    //
+    // Merge operands met on the way are added to "merge". When the value
+    // or deletion under them is found here, they are applied and the result
+    // is returned as the value (or null, with the error in *status, if they
+    // cannot be); else they are left in "merge" for the lookup to carry on
+    // with in older memtables and tables.
+    public Slice Get(LookupKey key, Slice value, Status s, MergeContext merge) {
+        if (bloom_ != null && !bloom_.mayContain(key.user_key())) {
+            // No version of this key was ever added here
+            return null;
+        }
+        MemTableRep.RepIterator iter = table_.newLookupIterator(key
+                .user_key());
+        // entry format is:
+        // klength varint32
+        // userkey char[klength]
+        // tag uint64
+        // vlength varint32
+        // value char[vlength]
+        // Check that it belongs to same user key. We do not check the
+        // sequence number since the seek() call above should have skipped
+        // all entries with overly large sequence numbers.
+        for (iter.seek(probe(key.internal_key())); iter.valid(); iter.next()) {
+            long entry = iter.key();
+            int key_length = arena_.getVarint32(entry); // get the key length
+            long key_ptr = entry + coding.varintLength(key_length);
+            if (comparator_.compareUserKey(key_ptr, key_length - 8,
+                    key.user_key()) != 0) {
+                break;
+            }
+            // Correct user key
+            long tag = arena_.getLong(key_ptr + key_length - 8);
+
+            switch ((int) (tag & 0xff)) {
+                case ValueType.kTypeValue: {
+                    Slice getValue = new Slice(valueAt(entry).data()); // deep copy
+                    if (!merge.empty()) {
+                        getValue = merge.merge(getValue, s);
+                        if (getValue == null) {
+                            return null;
+                        }
                     }
-                    case ValueType.kTypeDeletion:
-                        // has been deleted
-                        return null;
+                    // wlu, 2012-7-7
+                    value.setData_(getValue.data());
+                    return getValue;
                 }
+                case ValueType.kTypeDeletion:
+                    // has been deleted
+                    if (!merge.empty()) {
+                        Slice merged = merge.merge(null, s);
+                        if (merged != null) {
+                            value.setData_(merged.data());
+                        }
+                        return merged;
+                    }
+                    if (s != null) {
+                        s.Status_(Status.notFound(new Slice(
+                                "deleted in memtable"), null));
+                    }
+                    return null;
+                case ValueType.kTypeMerge:
+                    merge.add(new Slice(valueAt(entry).data()));
+                    break;
             }
         }
         return null;
     }
 
-    // SkipList<const char*, KeyComparator> Table;
+    // Return the sequence number of the newest entry for "user_key", or -1
+    // if there is none.
+    public long GetLatestSequence(Slice user_key) {
+        if (bloom_ != null && !bloom_.mayContain(user_key)) {
+            return -1;
+        }
+        LookupKey key = new LookupKey(user_key,
+                SequenceNumber.MaxSequenceNumber);
+        MemTableRep.RepIterator iter = table_.newLookupIterator(user_key);
+        iter.seek(probe(key.internal_key()));
+        if (!iter.valid()) {
+            return -1;
+        }
+        long entry = iter.key();
+        int key_length = arena_.getVarint32(entry);
+        long key_ptr = entry + coding.varintLength(key_length);
+        if (comparator_.compareUserKey(key_ptr, key_length - 8,
+                user_key) != 0) {
+            return -1;
+        }
+        return arena_.getLong(key_ptr + key_length - 8) >>> 8;
+    }
+
+    // Whether the memtable may have keys that options.prefix_extractor maps
+    // to "prefix". Always true without a bloom filter or a prefix extractor.
+    public boolean PrefixMayMatch(Slice prefix) {
+        return prefix_extractor_ == null || bloom_.mayContain(prefix);
+    }
+
+    // Internal key of the entry stored at arena address "entry"
+    Slice internalKeyAt(long entry) {
+        int key_length = arena_.getVarint32(entry);
+        return arena_.slice(entry + coding.varintLength(key_length),
+                key_length);
+    }
+
+    // Value of the entry stored at arena address "entry"
+    Slice valueAt(long entry) {
+        int key_length = arena_.getVarint32(entry);
+        long p = entry + coding.varintLength(key_length) + key_length;
+        int val_length = arena_.getVarint32(p);
+        return arena_.slice(p + coding.varintLength(val_length), val_length);
+    }
+
+    // Search target for an internal key that is not stored in the arena
+    SkipList.Probe probe(final Slice internal_key) {
+        return new SkipList.Probe() {
+            @Override
+            public int compareTo(long entry) {
+                return comparator_.compare(entry, internal_key);
+            }
+        };
+    }
 
     KeyComparator comparator_;
     int refs_;
-    // Arena arena_;
-    private final SkipList<Slice, KeyComparator> table_;
-    private final AtomicLong approximateMemoryUsage = new AtomicLong(0);
+    long log_number_;
+    long last_sequence_;
+    long unlogged_bytes_;
+    boolean empty_ = true;
+    // Shared by the serialized writers, see InsertHint()
+    MemTableRep.InsertHint insert_hint_;
+    final Arena arena_;
+    final MemTableRep table_;
+
+    // Bloom filter over the user keys added so far, or null if
+    // options.memtable_bloom_size_ratio is 0
+    static final int kBloomProbes = 6;
+    final DynamicBloom bloom_;
+    // Prefixes of the keys added go to bloom_ too; null without bloom_ or
+    // options.prefix_extractor
+    final SliceTransform prefix_extractor_;
 
     // No copying allowed
 }
@@ -0,0 +1,98 @@
+package com.leveldb.common.db;
+
+import com.leveldb.common.Slice;
+import com.leveldb.common._LongComparable;
+
+/**
+ * The in-memory index of a MemTable. Entries are the arena addresses of
+ * encoded memtable records (see MemTable), ordered by EntryComparator.
+ * <p/>
+ * Implementations must allow readers to run concurrently with a single
+ * writer, and with concurrent writers when insertConcurrently() is used.
+ *
+ * @see MemTableRepFactory
+ */
+public abstract class MemTableRep {
+
+    // Orders entries by the internal keys stored at their addresses.
+    public static abstract class EntryComparator extends _LongComparable {
+        // The user key part of the entry stored at "entry".
+        public abstract Slice userKey(long entry);
+    }
+
+    // Iterates entries in comparator order. Not thread-safe.
+    public static abstract class RepIterator {
+        // Returns true iff the iterator is positioned at a valid entry.
+        public abstract boolean valid();
+
+        // Returns the entry at the current position.
+        // REQUIRES: valid()
+        public abstract long key();
+
+        // REQUIRES: valid()
+        public abstract void next();
+
+        // REQUIRES: valid()
+        public abstract void prev();
+
+        // Advance to the first entry that does not sort before target
+        public abstract void seek(SkipList.Probe target);
+
+        public abstract void seekToFirst();
+
+        public abstract void seekToLast();
+    }
+
+    // Per-writer state remembering where the writer's last insert went, so
+    // that an insert right after it can skip the search. Opaque to callers.
+    public interface InsertHint {
+    }
+
+    // Insert an entry. REQUIRES: nothing that compares equal to entry is
+    // currently in the rep, and no other thread is inserting.
+    public abstract void insert(long entry);
+
+    // Same as insert(), but other threads may call this at the same time.
+    public abstract void insertConcurrently(long entry);
+
+    // Return a new hint for insertWithHint(), or null if the rep does not
+    // use hints.
+    public InsertHint newInsertHint() {
+        return null;
+    }
+
+    // Same as insert(), or insertConcurrently() if "concurrent", using and
+    // updating "hint", which came from newInsertHint() and is only used by
+    // one thread at a time. Returns true iff the hint saved the search.
+    public boolean insertWithHint(long entry, InsertHint hint,
+                                  boolean concurrent) {
+        if (concurrent) {
+            insertConcurrently(entry);
+        } else {
+            insert(entry);
+        }
+        return false;
+    }
+
+    // Called once no more entries will be inserted, e.g. when the memtable
+    // is turned into the immutable memtable awaiting flush.
+    public void markReadOnly() {
+    }
+
+    // Return an iterator over all entries.
+    public abstract RepIterator newIterator();
+
+    // Return an iterator that is only guaranteed to see the entries whose
+    // user key equals "user_key". Used for point lookups; representations
+    // that partition entries by key may return something much cheaper than
+    // newIterator().
+    public RepIterator newLookupIterator(Slice user_key) {
+        return newIterator();
+    }
+
+    // Extra memory used by the rep itself, on top of the arena holding the
+    // entries.
+    public long approximateMemoryUsage() {
+        return 0;
+    }
+}
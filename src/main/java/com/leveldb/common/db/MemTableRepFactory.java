@@ -0,0 +1,100 @@
+package com.leveldb.common.db;
+
+import com.leveldb.common.SliceTransform;
+
+/**
+ * Creates the MemTableRep of each new memtable. Set one in
+ * Options.memtable_factory to choose how memtables index their entries.
+ */
+public abstract class MemTableRepFactory {
+
+    public abstract MemTableRep createMemTableRep(
+            MemTableRep.EntryComparator cmp);
+
+    // The name of the representation, for the info log.
+    public abstract String name();
+
+    // Whether the reps support insertConcurrently() without serializing
+    // the writers.
+    public boolean isInsertConcurrentlySupported() {
+        return false;
+    }
+
+    // A single skiplist over all entries. O(log n) inserts and lookups and
+    // ordered iteration at no extra cost. This is the default.
+    public static MemTableRepFactory newSkipListRepFactory() {
+        return newSkipListRepFactory(false);
+    }
+
+    // Same as above. With back_links, every node also links to its
+    // predecessor, so reverse iteration costs O(1) per step instead of a
+    // fresh O(log n) search, for one more pointer per entry.
+    public static MemTableRepFactory newSkipListRepFactory(
+            final boolean back_links) {
+        return new MemTableRepFactory() {
+            @Override
+            public MemTableRep createMemTableRep(MemTableRep.EntryComparator cmp) {
+                return new SkipListRep(cmp, back_links);
+            }
+
+            @Override
+            public String name() {
+                return back_links ? "SkipListRepFactory(back_links)"
+                        : "SkipListRepFactory";
+            }
+
+            @Override
+            public boolean isInsertConcurrentlySupported() {
+                return true;
+            }
+        };
+    }
+
+    // Entries are hashed by prefix_extractor(user key) into bucket_count
+    // buckets, each a small skiplist. Point lookups only search one bucket,
+    // but a full ordered scan (iterators, flush) has to merge all buckets,
+    // which costs O(log buckets) per entry.
+    public static MemTableRepFactory newHashSkipListRepFactory(
+            final SliceTransform prefix_extractor, final int bucket_count) {
+        assert (bucket_count > 0);
+        return new MemTableRepFactory() {
+            @Override
+            public MemTableRep createMemTableRep(MemTableRep.EntryComparator cmp) {
+                return new HashSkipListRep(cmp, prefix_extractor, bucket_count);
+            }
+
+            @Override
+            public String name() {
+                return "HashSkipListRepFactory";
+            }
+
+            @Override
+            public boolean isInsertConcurrentlySupported() {
+                return true;
+            }
+        };
+    }
+
+    public static MemTableRepFactory newHashSkipListRepFactory(
+            SliceTransform prefix_extractor) {
+        return newHashSkipListRepFactory(prefix_extractor, 1 << 16);
+    }
+
+    // Entries are appended to an unsorted vector that is sorted once the
+    // memtable becomes read-only. Inserts are O(1); reads of the mutable
+    // memtable have to sort a copy and are expensive, so this is meant for
+    // write-only workloads such as bulk loads.
+    public static MemTableRepFactory newVectorRepFactory() {
+        return new MemTableRepFactory() {
+            @Override
+            public MemTableRep createMemTableRep(MemTableRep.EntryComparator cmp) {
+                return new VectorRep(cmp);
+            }
+
+            @Override
+            public String name() {
+                return "VectorRepFactory";
+            }
+        };
+    }
+}
@@ -0,0 +1,57 @@
+package com.leveldb.common.db;
+
+import com.leveldb.common.MergeOperator;
+import com.leveldb.common.Slice;
+import com.leveldb.common.Status;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// The merge operands a point lookup has met so far for its key, newest
+// first, while it goes down the memtables and levels looking for the value
+// they apply to.
+public class MergeContext {
+    private final MergeOperator merge_operator_;
+    private final Slice user_key_;
+    private final List<Slice> operands_ = new ArrayList<Slice>();
+
+    public MergeContext(MergeOperator merge_operator, Slice user_key) {
+        merge_operator_ = merge_operator;
+        user_key_ = user_key;
+    }
+
+    // Add an operand older than those added so far. "operand" must stay
+    // unchanged, so pass a copy of data that may be reused.
+    public void add(Slice operand) {
+        operands_.add(operand);
+    }
+
+    // Add the operands of "older", which are all older than those added so
+    // far
+    public void addAll(MergeContext older) {
+        operands_.addAll(older.operands_);
+    }
+
+    public boolean empty() {
+        return operands_.isEmpty();
+    }
+
+    // Apply the operands to "base", the value under them, null if there is
+    // none. Returns the result, or null after storing an error in s.
+    public Slice merge(Slice base, Status s) {
+        if (merge_operator_ == null) {
+            s.Status_(Status.notSupported(new Slice(
+                    "merge operand without Options.merge_operator"), null));
+            return null;
+        }
+        List<Slice> operands = new ArrayList<Slice>(operands_);
+        Collections.reverse(operands);
+        Slice result = merge_operator_.fullMerge(user_key_, base, operands);
+        if (result == null) {
+            s.Status_(Status.corruption(new Slice("merge failed for key "),
+                    user_key_));
+        }
+        return result;
+    }
+}
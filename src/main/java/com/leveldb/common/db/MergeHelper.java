@@ -0,0 +1,121 @@
+package com.leveldb.common.db;
+
+import com.leveldb.common.Comparator;
+import com.leveldb.common.Iterator;
+import com.leveldb.common.MergeOperator;
+import com.leveldb.common.Slice;
+import com.leveldb.util.SequenceNumber;
+import com.leveldb.util.ValueType;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Combines, in a compaction, the merge operands of a user key that no
+// snapshot needs apart with the older entries of the key.
+//
+// When the value the operands apply to is known (a value or a deletion
+// was found under them, or there is nothing for the key in deeper levels)
+// they become a single value. Otherwise adjacent operands are combined
+// with MergeOperator.partialMerge() where possible, and the rest is kept
+// as is.
+class MergeHelper {
+    private final Comparator user_comparator_;
+    private final MergeOperator merge_operator_;
+
+    // What the compaction outputs instead of the consumed entries: internal
+    // keys and values, in order
+    final List<Slice> keys = new ArrayList<Slice>();
+    final List<Slice> values = new ArrayList<Slice>();
+
+    MergeHelper(Comparator user_comparator, MergeOperator merge_operator) {
+        user_comparator_ = user_comparator;
+        merge_operator_ = merge_operator;
+    }
+
+    // "iter" is at a merge operand with key "ikey", with a sequence number
+    // no older snapshot sees apart from the entries under it. Consume it
+    // and the older entries of its user key, up to and including the first
+    // value or deletion, and leave "iter" after them. "at_bottom" is true
+    // if deeper levels have no entries for the key.
+    void mergeUntil(Iterator iter, ParsedInternalKey ikey, boolean at_bottom) {
+        keys.clear();
+        values.clear();
+        Slice user_key = new Slice(ikey.user_key.data());
+        SequenceNumber sequence = ikey.sequence;
+
+        // The entries consumed, newest first, and the value under the
+        // operands if any
+        List<Slice> raw_keys = new ArrayList<Slice>();
+        List<Slice> operands = new ArrayList<Slice>();
+        boolean found_base = false;
+        Slice base = null;
+        for (; iter.valid(); iter.next()) {
+            ParsedInternalKey k = InternalKey.ParseInternalKey_(iter.key());
+            if (k == null
+                    || user_comparator_.compare(k.user_key, user_key) != 0) {
+                break;
+            }
+            raw_keys.add(new Slice(iter.key().data()));
+            if (k.type.value == ValueType.kTypeMerge) {
+                operands.add(new Slice(iter.value().data()));
+                continue;
+            }
+            found_base = true;
+            if (k.type.value == ValueType.kTypeValue) {
+                base = new Slice(iter.value().data());
+            }
+            iter.next();
+            break;
+        }
+
+        if (merge_operator_ != null && (found_base || at_bottom)) {
+            List<Slice> oldest_first = new ArrayList<Slice>();
+            for (int i = operands.size() - 1; i >= 0; i--) {
+                oldest_first.add(operands.get(i));
+            }
+            Slice result = merge_operator_.fullMerge(user_key, base,
+                    oldest_first);
+            if (result != null) {
+                keys.add(new InternalKey(user_key, sequence,
+                        ValueType.TypeValue).Encode());
+                values.add(result);
+                return;
+            }
+        } else if (merge_operator_ != null) {
+            // Combine operands from the oldest one, each result taking the
+            // sequence number of the newest operand in it
+            List<Slice> merged = new ArrayList<Slice>();
+            List<Slice> merged_keys = new ArrayList<Slice>();
+            int i = operands.size() - 1;
+            Slice acc = operands.get(i);
+            Slice acc_key = raw_keys.get(i);
+            for (i--; i >= 0; i--) {
+                Slice r = merge_operator_.partialMerge(user_key, acc,
+                        operands.get(i));
+                if (r == null) {
+                    merged.add(acc);
+                    merged_keys.add(acc_key);
+                    acc = operands.get(i);
+                } else {
+                    acc = r;
+                }
+                acc_key = raw_keys.get(i);
+            }
+            merged.add(acc);
+            merged_keys.add(acc_key);
+            for (i = merged.size() - 1; i >= 0; i--) {
+                keys.add(merged_keys.get(i));
+                values.add(merged.get(i));
+            }
+            return;
+        }
+
+        // No operator, or it failed: keep the entries as they are, for the
+        // reads to report
+        keys.addAll(raw_keys);
+        values.addAll(operands);
+        if (found_base) {
+            values.add(base != null ? base : new Slice());
+        }
+    }
+}
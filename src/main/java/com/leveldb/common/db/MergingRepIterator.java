@@ -0,0 +1,178 @@
+package com.leveldb.common.db;
+
+/**
+ * RepIterator that merges the RepIterators of several sorted runs, e.g.
+ * the buckets of a HashSkipListRep, without copying their entries. The
+ * children are kept in a binary heap on their current entries: a min-heap
+ * while moving forward, a max-heap while moving backward, so a step costs
+ * O(log children).
+ * <p/>
+ * No entry may be in more than one child.
+ */
+class MergingRepIterator extends MemTableRep.RepIterator {
+    private final MemTableRep.EntryComparator cmp_;
+    private final MemTableRep.RepIterator[] children_;
+
+    // Indexes into children_ of the valid children, heap_[0] being the
+    // current one
+    private final int[] heap_;
+    private int heap_size_;
+    private boolean forward_;
+
+    MergingRepIterator(MemTableRep.EntryComparator cmp,
+                       MemTableRep.RepIterator[] children) {
+        cmp_ = cmp;
+        children_ = children;
+        heap_ = new int[children.length];
+        heap_size_ = 0; // not valid
+        forward_ = true;
+    }
+
+    @Override
+    public boolean valid() {
+        return heap_size_ > 0;
+    }
+
+    @Override
+    public long key() {
+        assert (valid());
+        return children_[heap_[0]].key();
+    }
+
+    @Override
+    public void next() {
+        assert (valid());
+        if (!forward_) {
+            // Every other child is at an entry before key(): move them to
+            // the first entry after it. Only the current child holds key().
+            SkipList.Probe target = probe(key());
+            int current = heap_[0];
+            for (int i = 0; i < children_.length; i++) {
+                if (i != current) {
+                    children_[i].seek(target);
+                }
+            }
+            children_[current].next();
+            forward_ = true;
+            buildHeap();
+            return;
+        }
+        MemTableRep.RepIterator top = children_[heap_[0]];
+        top.next();
+        if (!top.valid()) {
+            heap_[0] = heap_[--heap_size_];
+        }
+        siftDown(0);
+    }
+
+    @Override
+    public void prev() {
+        assert (valid());
+        if (forward_) {
+            // Every other child is at an entry after key(), or done: move
+            // them to the last entry before it
+            SkipList.Probe target = probe(key());
+            int current = heap_[0];
+            for (int i = 0; i < children_.length; i++) {
+                if (i == current) {
+                    continue;
+                }
+                MemTableRep.RepIterator child = children_[i];
+                child.seek(target);
+                if (child.valid()) {
+                    child.prev();
+                } else {
+                    child.seekToLast();
+                }
+            }
+            children_[current].prev();
+            forward_ = false;
+            buildHeap();
+            return;
+        }
+        MemTableRep.RepIterator top = children_[heap_[0]];
+        top.prev();
+        if (!top.valid()) {
+            heap_[0] = heap_[--heap_size_];
+        }
+        siftDown(0);
+    }
+
+    @Override
+    public void seek(SkipList.Probe target) {
+        for (MemTableRep.RepIterator child : children_) {
+            child.seek(target);
+        }
+        forward_ = true;
+        buildHeap();
+    }
+
+    @Override
+    public void seekToFirst() {
+        for (MemTableRep.RepIterator child : children_) {
+            child.seekToFirst();
+        }
+        forward_ = true;
+        buildHeap();
+    }
+
+    @Override
+    public void seekToLast() {
+        for (MemTableRep.RepIterator child : children_) {
+            child.seekToLast();
+        }
+        forward_ = false;
+        buildHeap();
+    }
+
+    // Target that sorts exactly at "entry"
+    private SkipList.Probe probe(final long entry) {
+        return new SkipList.Probe() {
+            @Override
+            public int compareTo(long key) {
+                return cmp_.compare(key, entry);
+            }
+        };
+    }
+
+    private void buildHeap() {
+        heap_size_ = 0;
+        for (int i = 0; i < children_.length; i++) {
+            if (children_[i].valid()) {
+                heap_[heap_size_++] = i;
+            }
+        }
+        for (int i = heap_size_ / 2 - 1; i >= 0; i--) {
+            siftDown(i);
+        }
+    }
+
+    // Whether the child at heap position a goes before the one at b in the
+    // current direction
+    private boolean before(int a, int b) {
+        int r = cmp_.compare(children_[heap_[a]].key(),
+                children_[heap_[b]].key());
+        return forward_ ? r < 0 : r > 0;
+    }
+
+    private void siftDown(int i) {
+        while (true) {
+            int first = i;
+            int left = 2 * i + 1;
+            int right = left + 1;
+            if (left < heap_size_ && before(left, first)) {
+                first = left;
+            }
+            if (right < heap_size_ && before(right, first)) {
+                first = right;
+            }
+            if (first == i) {
+                return;
+            }
+            int t = heap_[i];
+            heap_[i] = heap_[first];
+            heap_[first] = t;
+            i = first;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.leveldb.common.db;
+
+import com.leveldb.common.Iterator;
+import com.leveldb.common.Slice;
+import com.leveldb.common.SliceTransform;
+import com.leveldb.common.Status;
+
+// The iterator of DB.newIterator() in prefix-seek mode (see
+// ReadOptions.prefix): only the keys of "iter" that prefix_extractor maps
+// to "prefix" show, the iterator is invalid past them.
+class PrefixIterator extends Iterator {
+    private final Iterator iter_;
+    private final SliceTransform prefix_extractor_;
+    private final Slice prefix_;
+
+    PrefixIterator(Iterator iter, SliceTransform prefix_extractor, Slice prefix) {
+        iter_ = iter;
+        prefix_extractor_ = prefix_extractor;
+        prefix_ = new Slice(prefix.data());
+    }
+
+    @Override
+    public boolean valid() {
+        return iter_.valid() && InPrefix(iter_.key());
+    }
+
+    @Override
+    public void seekToFirst() {
+        iter_.seek(prefix_);
+    }
+
+    @Override
+    public void seekToLast() {
+        // No key bounds the prefix from above for every comparator: walk to
+        // the last key that has it
+        iter_.seek(prefix_);
+        if (!valid()) {
+            return;
+        }
+        Slice last = new Slice(iter_.key().data());
+        for (iter_.next(); valid(); iter_.next()) {
+            last = new Slice(iter_.key().data());
+        }
+        iter_.seek(last);
+    }
+
+    @Override
+    public void seek(Slice target) {
+        iter_.seek(target);
+    }
+
+    @Override
+    public void next() {
+        assert (valid());
+        iter_.next();
+    }
+
+    @Override
+    public void prev() {
+        assert (valid());
+        iter_.prev();
+    }
+
+    @Override
+    public Slice key() {
+        assert (valid());
+        return iter_.key();
+    }
+
+    @Override
+    public Slice value() {
+        assert (valid());
+        return iter_.value();
+    }
+
+    @Override
+    public Status status() {
+        return iter_.status();
+    }
+
+    private boolean InPrefix(Slice key) {
+        return prefix_extractor_.inDomain(key)
+                && prefix_extractor_.transform(key).compareTo(prefix_) == 0;
+    }
+}
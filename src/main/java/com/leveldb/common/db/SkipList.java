@@ -1,79 +1,94 @@
 package com.leveldb.common.db;
 
-import com.leveldb.common.AtomicPointer;
 import com.leveldb.common._Comparable;
+import com.leveldb.common._LongComparable;
 
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// A node holds its links itself, next(0) .. next(height - 1) followed by the
+// level-0 back link in lists that have them, and its key as a plain long:
+// one node costs the node and its link array, nothing else.
+@SuppressWarnings("serial")
+class Node extends AtomicReferenceArray<Node> {
+    Node(long k, int iMaxHeight) {
+        this(k, iMaxHeight, false);
+    }
 
-class Node<Key> {
-    @SuppressWarnings("unchecked")
-    Node(Key k, int iMaxHeight) {
+    Node(long k, int iMaxHeight, boolean back_link) {
+        super(back_link ? iMaxHeight + 1 : iMaxHeight);
         key = k;
-        next_ = new AtomicPointer[iMaxHeight];
-        for (int i = 0; i < iMaxHeight; i++) {
-            next_[i] = new AtomicPointer<Node<Key>>(null);
-        }
     }
 
-    Key key;
+    final long key;
 
     // Accessors/mutators for links. Wrapped in methods so we can
     // add the appropriate barriers as necessary.
-    Node<Key> next(int n) {
+    Node next(int n) {
         assert (n >= 0);
         // Use an 'acquire load' so that we observe a fully initialized
         // version of the returned Node.
-        return next_[n].acquireLoad();
+        return get(n);
     }
 
-    void setNext(int n, Node<Key> x) {
+    void setNext(int n, Node x) {
         assert (n >= 0);
         // Use a 'release store' so that anybody who reads through this
         // pointer observes a fully initialized version of the inserted
         // node.
-        next_[n].releaseStore(x);
+        set(n, x);
+    }
+
+    // Install x as the level-n successor iff the current one is still
+    // "expected". Used by concurrent inserts.
+    boolean casNext(int n, Node expected, Node x) {
+        assert (n >= 0);
+        return compareAndSet(n, expected, x);
     }
 
     // No-barrier variants that can be safely used in a few locations.
-    Node<Key> noBarrierNext(int n) {
+    Node noBarrierNext(int n) {
         assert (n >= 0);
-        return next_[n].noBarrierLoad();
+        return get(n);
     }
 
-    void noBarrierSetNext(int n, Node<Key> x) {
+    void noBarrierSetNext(int n, Node x) {
         assert (n >= 0);
-        next_[n].noBarrierStore(x);
+        lazySet(n, x);
     }
 
-    public String toString() {
-        String s = "[" + key.toString() + "]";
-        int idx = 0;
-        for (AtomicPointer<Node<Key>> n : next_) {
-            if (n.acquireLoad() != null) {
-                s += (idx + ": " + n.acquireLoad().toString());
-            }
-            idx += 1;
-        }
-        return s;
+    // Level-0 back link, only present in lists built with back links.
+    // Always points at a node that is already linked into the list. For
+    // head_ it points at the last node (null while the list is empty).
+    Node prev() {
+        return get(length() - 1);
     }
 
-    // Array of length equal to the node height. next_[0] is lowest level
-    // link.
-    AtomicPointer<Node<Key>> next_[];
+    void noBarrierSetPrev(Node x) {
+        lazySet(length() - 1, x);
+    }
+
+    boolean casPrev(Node expected, Node x) {
+        return compareAndSet(length() - 1, expected, x);
+    }
+
+    public String toString() {
+        return "[" + key + "]";
+    }
 
 }
 
 /**
  * donot need to extend Common.Iterator
  *
- * @param <Key>
- * @param <Comparator>
  * @author wlu
  */
-class SkipListIterator<Key, Comparator extends _Comparable<Key>> {
+class SkipListIterator {
     // Initialize an iterator over the specified list.
     // The returned iterator is not valid.
-    public SkipListIterator(SkipList<Key, Comparator> list) {
+    public SkipListIterator(SkipList list) {
         list_ = list;
         node_ = null;
     }
@@ -85,12 +100,8 @@ class SkipListIterator<Key, Comparator extends _Comparable<Key>> {
 
     // Returns the key at the current position.
     // REQUIRES: valid()
-    Key key() {
+    long key() {
         assert (valid());
-        if (node_ == null) {
-            @SuppressWarnings("unused")
-            int d = 0;
-        }
         return node_.key;
     }
 
@@ -104,20 +115,29 @@ class SkipListIterator<Key, Comparator extends _Comparable<Key>> {
     // Advances to the previous position.
     // REQUIRES: valid()
     void prev() {
-        // Instead of using explicit "prev" links, we just search for the
-        // last node that falls before key.
         assert (valid());
-        node_ = list_.findLessThan(node_.key);
+        if (list_.back_links_) {
+            node_ = node_.prev();
+        } else {
+            // Without explicit "prev" links, we just search for the
+            // last node that falls before key.
+            node_ = list_.findLessThan(node_.key);
+        }
         if (node_ == list_.head_) {
             node_ = null;
         }
     }
 
     // Advance to the first entry with a key >= target
-    void seek(Key target) {
+    void seek(long target) {
         node_ = list_.findGreaterOrEqual(target, null);
     }
 
+    // Advance to the first entry that does not sort before the probe
+    void seek(SkipList.Probe target) {
+        node_ = list_.findGreaterOrEqual(target);
+    }
+
     // Position at the first entry in list.
     // Final state of iterator is valid() iff list is not empty.
     void seekToFirst() {
@@ -127,42 +147,46 @@ class SkipListIterator<Key, Comparator extends _Comparable<Key>> {
     // Position at the last entry in list.
     // Final state of iterator is valid() iff list is not empty.
     void seekToLast() {
-        node_ = list_.findLast();
+        node_ = list_.back_links_ ? list_.head_.prev() : list_.findLast();
         if (node_ == list_.head_) {
             node_ = null;
         }
     }
 
-    SkipList<Key, Comparator> list_;
-    Node<Key> node_;
+    SkipList list_;
+    Node node_;
     // Intentionally copyable
 }
 
-public class SkipList<Key, Comparator extends _Comparable<Key>> {
+public class SkipList {
 
     // parameters
-    private final int kMaxHeight = 12;
+    private static final int kMaxHeight = 12;
 
     // Immutable after construction
     // Arena* const arena_; // Arena used for allocations of nodes
 
-    Node<Key> head_;
+    Node head_;
 
-    // Modified only by insert(). Read racily by readers, but stale
-    // values are ok.
-    AtomicPointer<Integer> max_height_; // Height of the entire list
+    // Modified only by insert()/insertConcurrently(). Read racily by
+    // readers, but stale values are ok.
+    AtomicInteger max_height_; // Height of the entire list
 
-    Comparator compare_;
+    _LongComparable compare_;
+
+    // Whether nodes carry a level-0 back link, which makes prev() and
+    // seekToLast() O(1) at the cost of one more pointer per node.
+    final boolean back_links_;
 
     private int getMaxHeight() {
-        return (max_height_.noBarrierLoad());
+        return max_height_.get();
     }
 
-    public Node<Key> findLast() {
-        Node<Key> x = head_;
+    public Node findLast() {
+        Node x = head_;
         int level = getMaxHeight() - 1;
         while (true) {
-            Node<Key> next = x.next(level);
+            Node next = x.next(level);
             if (next == null) {
                 if (level == 0) {
                     return x;
@@ -176,17 +200,31 @@ public class SkipList<Key, Comparator extends _Comparable<Key>> {
         }
     }
 
-    // Read/written only by insert().
+    // Read/written only by insert()/insertConcurrently(). java.util.Random
+    // is itself thread-safe.
     Random rnd_;
 
+    // Approximate bytes of all nodes, head included. May be shared by
+    // several lists; a LongAdder keeps concurrent inserts from contending
+    // on it.
+    private final LongAdder memory_usage_;
+
     /* construction */
-    public SkipList(Comparator icomparator) {
+    public SkipList(_LongComparable icomparator) {
+        this(icomparator, false);
+    }
+
+    public SkipList(_LongComparable icomparator, boolean back_links) {
+        this(icomparator, back_links, new LongAdder());
+    }
+
+    public SkipList(_LongComparable icomparator, boolean back_links,
+                    LongAdder memory_usage) {
         compare_ = icomparator;
-        head_ = new Node<Key>(null /* any key will do */, kMaxHeight); // TODO
-        // need
-        // more
-        // consideration
-        max_height_ = new AtomicPointer<Integer>(1);
+        back_links_ = back_links;
+        memory_usage_ = memory_usage;
+        head_ = newNode(0 /* any key will do */, kMaxHeight);
+        max_height_ = new AtomicInteger(1);
         rnd_ = new Random();
         for (int i = 0; i < kMaxHeight; i++) {
             head_.setNext(i, null);
@@ -194,12 +232,12 @@ public class SkipList<Key, Comparator extends _Comparable<Key>> {
     }
 
     // find the node that is less than key
-    public Node<Key> findLessThan(Key key) {
-        Node<Key> x = head_;
+    public Node findLessThan(long key) {
+        Node x = head_;
         int level = getMaxHeight() - 1;
         while (true) {
             assert (x == head_ || compare_.compare(x.key, key) < 0);
-            Node<Key> next = x.next(level);
+            Node next = x.next(level);
             if (next == null || compare_.compare(next.key, key) >= 0) {
                 if (level == 0) {
                     return x;
@@ -214,17 +252,14 @@ public class SkipList<Key, Comparator extends _Comparable<Key>> {
     }
 
     /* insert a key into the list */
-    public void insert(Key key) {
-        List<Node<Key>> prev = new ArrayList<Node<Key>>(kMaxHeight);
-        for (int i = 0; i < kMaxHeight; i++) {
-            prev.add(new Node<Key>(null, kMaxHeight));
-        }
-        Node<Key> x = findGreaterOrEqual(key, prev);
+    public void insert(long key) {
+        Node[] prev = new Node[kMaxHeight];
+        Node x = findGreaterOrEqual(key, prev);
         assert (x == null || compare_.compare(key, x.key) != 0);
         int height = randomHeight();
         if (height > getMaxHeight()) {
             for (int i = getMaxHeight(); i < height; i++) {
-                prev.set(i, head_);
+                prev[i] = head_;
             }
             // It is ok to mutate max_height_ without any synchronization
             // with concurrent readers. A concurrent reader that observes
@@ -233,22 +268,235 @@ public class SkipList<Key, Comparator extends _Comparable<Key>> {
             // the loop below. In the former case the reader will
             // immediately drop to the next level since NULL sorts after all
             // keys. In the latter case the reader will use the new node.
-            max_height_.noBarrierStore(height);
+            max_height_.set(height);
         }
 
-        x = new Node<Key>(key, height);
+        x = newNode(key, height);
+        if (back_links_) {
+            x.noBarrierSetPrev(prev[0]);
+        }
         for (int i = 0; i < height; i++) {
             // noBarrierSetNext() suffices since we will add a barrier when
             // we publish a pointer to "x" in prev[i].
-            x.noBarrierSetNext(i, prev.get(i).noBarrierNext(i));
-            prev.get(i).setNext(i, x);
+            x.noBarrierSetNext(i, prev[i].noBarrierNext(i));
+            prev[i].setNext(i, x);
+        }
+        if (back_links_) {
+            linkBackward(x);
+        }
+
+    }
+
+    /*
+     * insert a key into the list while other threads may be inserting too.
+     * Must not be mixed with concurrent calls to insert(); readers are fine.
+     *
+     * The node is linked in bottom-up, one compare-and-swap per level. A
+     * failed CAS means another writer linked a node next to ours at that
+     * level, so the splice is recomputed starting from the old predecessor,
+     * which still sorts before key.
+     */
+    public void insertConcurrently(long key) {
+        int height = randomHeight();
+
+        // Raise max_height_ if needed. Losing the race to a taller node is
+        // fine, any value >= height will do.
+        int max_height;
+        while (true) {
+            int cur = max_height_.get();
+            max_height = cur;
+            if (height <= max_height) {
+                break;
+            }
+            if (max_height_.compareAndSet(cur, height)) {
+                max_height = height;
+                break;
+            }
+        }
+
+        Node[] prev = new Node[height];
+        Node[] next = new Node[height];
+        Node x = head_;
+        for (int level = max_height - 1; level >= 0; level--) {
+            x = findSpliceForLevel(key, x, level, prev, next);
+        }
+
+        Node n = newNode(key, height);
+        for (int i = 0; i < height; i++) {
+            while (true) {
+                // Not yet reachable at this level, so no barrier needed
+                n.noBarrierSetNext(i, next[i]);
+                if (i == 0 && back_links_) {
+                    n.noBarrierSetPrev(prev[0]);
+                }
+                if (prev[i].casNext(i, next[i], n)) {
+                    break;
+                }
+                findSpliceForLevel(key, prev[i], i, prev, next);
+            }
+        }
+        if (back_links_) {
+            linkBackward(n);
+        }
+    }
+
+    /**
+     * Remembers where a writer's last insert went: the nodes around it on
+     * every level. A writer that inserts keys in increasing order can then
+     * splice each new node in right after the previous one without
+     * searching from head_.
+     */
+    public static class Splice {
+        // Height of the list when prev/next were computed; 0 if never used
+        int height_;
+        Node[] prev_;
+        Node[] next_;
+
+        public Splice() {
+            height_ = 0;
+            prev_ = new Node[kMaxHeight];
+            next_ = new Node[kMaxHeight];
+        }
+    }
+
+    /*
+     * Same as insert(), or insertConcurrently() if "concurrent", starting
+     * from "splice", which is left positioned right after key. Returns true
+     * if the splice still fitted key, i.e. no search was needed.
+     *
+     * The splice fits if key sorts between prev_[0] and next_[0] and every
+     * prev_[i] still links straight to next_[i]: the prev_ nodes never sort
+     * after prev_[0] and the next_ nodes never sort before next_[0], so the
+     * key then belongs between them on every level. Other writers may link
+     * nodes in after the check; the CAS in the concurrent case catches that.
+     */
+    public boolean insertWithHint(long key, Splice splice,
+                                  boolean concurrent) {
+        int height = randomHeight();
+        int max_height;
+        while (true) {
+            int cur = max_height_.get();
+            max_height = cur;
+            if (height <= max_height) {
+                break;
+            }
+            if (!concurrent) {
+                // See insert() for why no synchronization is needed
+                max_height_.set(height);
+                max_height = height;
+                break;
+            }
+            if (max_height_.compareAndSet(cur, height)) {
+                max_height = height;
+                break;
+            }
+        }
+
+        Node[] prev = splice.prev_;
+        Node[] next = splice.next_;
+        boolean hit = spliceFits(key, splice, max_height);
+        if (!hit) {
+            Node x = head_;
+            for (int level = max_height - 1; level >= 0; level--) {
+                x = findSpliceForLevel(key, x, level, prev, next);
+            }
+            splice.height_ = max_height;
+        }
+        assert (next[0] == null || compare_.compare(key, next[0].key) != 0);
+
+        Node n = newNode(key, height);
+        for (int i = 0; i < height; i++) {
+            while (true) {
+                n.noBarrierSetNext(i, next[i]);
+                if (i == 0 && back_links_) {
+                    n.noBarrierSetPrev(prev[0]);
+                }
+                if (!concurrent) {
+                    prev[i].setNext(i, n);
+                    break;
+                }
+                if (prev[i].casNext(i, next[i], n)) {
+                    break;
+                }
+                findSpliceForLevel(key, prev[i], i, prev, next);
+            }
+        }
+        if (back_links_) {
+            linkBackward(n);
+        }
+
+        // The next larger key goes right after n
+        for (int i = 0; i < height; i++) {
+            prev[i] = n;
+        }
+        return hit;
+    }
+
+    private boolean spliceFits(long key, Splice splice, int max_height) {
+        if (splice.height_ < max_height) {
+            return false;
+        }
+        Node p = splice.prev_[0];
+        if (p != head_ && compare_.compare(p.key, key) >= 0) {
+            return false;
+        }
+        if (keyIsAfterNode(key, splice.next_[0])) {
+            return false;
+        }
+        for (int i = 0; i < max_height; i++) {
+            if (splice.prev_[i].next(i) != splice.next_[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+     * Point the back link of x's successor (or head_'s, which tracks the
+     * last node, if x is last) at x. x must already be linked at level 0
+     * with its own back link set, so readers never reach an unlinked node.
+     *
+     * A back link only ever moves forward to a closer predecessor: if it
+     * already points at a node after x, a writer that inserted between x
+     * and its successor got there first and there is nothing to do.
+     * Concurrent writers therefore converge on the true predecessor.
+     */
+    private void linkBackward(Node x) {
+        while (true) {
+            Node next = x.next(0);
+            Node target = (next != null) ? next : head_;
+            Node p = target.prev();
+            if (p != null && p != head_ && compare_.compare(p.key, x.key) >= 0) {
+                return;
+            }
+            if (target.casPrev(p, x)) {
+                return;
+            }
         }
+    }
 
+    // Starting at "before" (which sorts before key), find the nodes between
+    // which key belongs on "level". Stores them into prev/next when level
+    // is below their length and returns the predecessor.
+    private Node findSpliceForLevel(long key, Node before,
+                                         int level, Node[] prev, Node[] next) {
+        Node x = before;
+        while (true) {
+            Node n = x.next(level);
+            if (!keyIsAfterNode(key, n)) {
+                if (level < prev.length) {
+                    prev[level] = x;
+                    next[level] = n;
+                }
+                return x;
+            }
+            x = n;
+        }
     }
 
     // whether key is contained in the list
-    public boolean contains(Key key) {
-        Node<Key> x = findGreaterOrEqual(key, null);
+    public boolean contains(long key) {
+        Node x = findGreaterOrEqual(key, null);
         if (x != null && compare_.compare(key, x.key) == 0) {
             return true;
         } else {
@@ -257,6 +505,24 @@ public class SkipList<Key, Comparator extends _Comparable<Key>> {
     }
 
     // randomly generate height for a node
+    // Approximate size of a node with "links" link slots: the node object
+    // (header, link array reference and key) plus its link array (header
+    // and one reference per slot).
+    static long nodeSize(int links) {
+        return 32 + 16 + 8L * links;
+    }
+
+    private Node newNode(long key, int height) {
+        memory_usage_.add(nodeSize(back_links_ ? height + 1 : height));
+        return new Node(key, height, back_links_);
+    }
+
+    // Bytes taken by the nodes of this list, or of all lists sharing its
+    // counter.
+    public long approximateMemoryUsage() {
+        return memory_usage_.sum();
+    }
+
     private int randomHeight() {
         // increase length by i with probability (0.25)^(i-1) * (0.75)
         int kBranching = 4;
@@ -271,21 +537,50 @@ public class SkipList<Key, Comparator extends _Comparable<Key>> {
     }
 
     // find and return the node whose key is >= input key;
-    // set prev[0] to be the node right before the returned one (
-    // to be as the node's previous). it is interesting to find the
-    // return statement is ...
-    public Node<Key> findGreaterOrEqual(Key key, List<Node<Key>> prev) {
-        Node<Key> x = head_;
+    // if prev is non-null, fill prev[level] with the last node before key
+    // on every level below the current max height, which is where
+    // insert() links the new node in.
+    public Node findGreaterOrEqual(long key, Node[] prev) {
+        Node x = head_;
         int level = getMaxHeight() - 1;
         while (true) {
-            Node<Key> next = x.next(level);
+            Node next = x.next(level);
             if (keyIsAfterNode(key, next)) {
                 // Keep searching in this list
                 x = next;
+            } else {
+                if (prev != null)
+                    prev[level] = x;
+                if (level == 0) {
+                    return next;
+                } else {
+                    // Switch to next list
+                    level--;
+                }
+            }
+        }
+    }
+
+    /**
+     * A search target that is not itself a list key, e.g. a lookup key that
+     * lives outside the memtable arena while the list holds arena addresses.
+     */
+    public interface Probe {
+        // < 0 iff "key" sorts before the target, 0 iff equal, > 0 otherwise
+        int compareTo(long key);
+    }
+
+    // same as findGreaterOrEqual(key, null), for a target given as a Probe
+    public Node findGreaterOrEqual(Probe target) {
+        Node x = head_;
+        int level = getMaxHeight() - 1;
+        while (true) {
+            Node next = x.next(level);
+            if (next != null && target.compareTo(next.key) < 0) {
+                // Keep searching in this list
+                x = next;
             } else {
                 if (level == 0) {
-                    if (prev != null)
-                        prev.set(level, x);
                     return next;
                 } else {
                     // Switch to next list
@@ -295,21 +590,21 @@ public class SkipList<Key, Comparator extends _Comparable<Key>> {
         }
     }
 
-    private boolean keyIsAfterNode(Key key, Node<Key> n) {
+    private boolean keyIsAfterNode(long key, Node n) {
         // NULL n is considered infinite
         return (n != null) && compare_.compare(n.key, key) < 0;
     }
 
-    boolean Equal(Key a, Key b) {
+    boolean Equal(long a, long b) {
         return compare_.compare(a, b) == 0;
     }
 
     // /////////////////////////////////////////////////////////
     // / test cases
-    static class TestComparator extends _Comparable<Integer> {
+    static class TestComparator extends _LongComparable {
 
         @Override
-        public int compare(Integer a, Integer b) {
+        public int compare(long a, long b) {
             if (a < b) {
                 return -1;
             } else if (a > b) {
@@ -337,7 +632,7 @@ public class SkipList<Key, Comparator extends _Comparable<Key>> {
             }
         }
 
-        void ASSERT_EQ(int a, int b) {
+        void ASSERT_EQ(long a, long b) {
             if (a != b) {
                 System.out.println(a == b);
             }
@@ -345,11 +640,11 @@ public class SkipList<Key, Comparator extends _Comparable<Key>> {
 
         void Empty() {
             TestComparator cmp = new TestComparator();
-            SkipList<Integer, TestComparator> list = new SkipList<Integer, TestComparator>(
+            SkipList list = new SkipList(
                     cmp);
             ASSERT_TRUE(!list.contains(10));
 
-            SkipListIterator<Integer, TestComparator> iter = new SkipListIterator<Integer, TestComparator>(
+            SkipListIterator iter = new SkipListIterator(
                     list);
             ASSERT_TRUE(!iter.valid());
             iter.seekToFirst();
@@ -382,7 +677,7 @@ public class SkipList<Key, Comparator extends _Comparable<Key>> {
             SortedSet<Integer> keys = new TreeSet<Integer>();
             SortedSet<re_integer> keys_reverse = new TreeSet<re_integer>();
             TestComparator cmp = new TestComparator();
-            SkipList<Integer, TestComparator> list = new SkipList<Integer, SkipList.TestComparator>(
+            SkipList list = new SkipList(
                     cmp);
             for (int i = 0; i < N; i++) {
                 int key = rnd.nextInt() % R;
@@ -403,7 +698,7 @@ public class SkipList<Key, Comparator extends _Comparable<Key>> {
 
             // Simple iterator tests
             {
-                SkipListIterator<Integer, TestComparator> iter = new SkipListIterator<Integer, SkipList.TestComparator>(
+                SkipListIterator iter = new SkipListIterator(
                         list);
                 ASSERT_TRUE(!iter.valid());
 
@@ -423,7 +718,7 @@ public class SkipList<Key, Comparator extends _Comparable<Key>> {
 
             // Forward iteration test
             for (int i = 0; i < R; i++) {
-                SkipListIterator<Integer, TestComparator> iter = new SkipListIterator<Integer, SkipList.TestComparator>(
+                SkipListIterator iter = new SkipListIterator(
                         list);
                 iter.seek(i);
 
@@ -445,7 +740,7 @@ public class SkipList<Key, Comparator extends _Comparable<Key>> {
 
             // Backward iteration test
             {
-                SkipListIterator<Integer, TestComparator> iter = new SkipListIterator<Integer, SkipList.TestComparator>(
+                SkipListIterator iter = new SkipListIterator(
                         list);
                 iter.seekToLast();
 
@@ -462,11 +757,165 @@ public class SkipList<Key, Comparator extends _Comparable<Key>> {
         }
 
 
+        // Several threads insert disjoint keys through insertConcurrently();
+        // afterwards the list must hold all of them, in order.
+        void concurrentInsert() throws InterruptedException {
+            final int kThreads = 8;
+            final int N = 20000;
+            TestComparator cmp = new TestComparator();
+            final SkipList list = new SkipList(
+                    cmp);
+            Thread[] threads = new Thread[kThreads];
+            for (int t = 0; t < kThreads; t++) {
+                final int id = t;
+                threads[t] = new Thread() {
+                    public void run() {
+                        for (int i = 0; i < N; i++) {
+                            list.insertConcurrently(i * kThreads + id);
+                        }
+                    }
+                };
+                threads[t].start();
+            }
+            for (int t = 0; t < kThreads; t++) {
+                threads[t].join();
+            }
+
+            SkipListIterator iter = new SkipListIterator(
+                    list);
+            int expected = 0;
+            for (iter.seekToFirst(); iter.valid(); iter.next()) {
+                ASSERT_EQ(expected, iter.key());
+                expected++;
+            }
+            ASSERT_EQ(kThreads * N, expected);
+            for (int i = 0; i < kThreads * N; i += 97) {
+                ASSERT_TRUE(list.contains(i));
+            }
+        }
+
+        // Reverse iteration through back links must visit exactly the
+        // forward order reversed, for both insert paths.
+        void backLinks() throws InterruptedException {
+            final int N = 5000;
+            Random rnd = new Random();
+            TestComparator cmp = new TestComparator();
+            SkipList list = new SkipList(
+                    cmp, true);
+            SortedSet<Integer> keys = new TreeSet<Integer>();
+            for (int i = 0; i < N; i++) {
+                int key = rnd.nextInt(N * 10);
+                if (keys.add(key)) {
+                    list.insert(key);
+                }
+            }
+            checkBackward(list, new ArrayList<Integer>(keys));
+
+            final SkipList clist = new SkipList(
+                    cmp, true);
+            final int kThreads = 4;
+            Thread[] threads = new Thread[kThreads];
+            for (int t = 0; t < kThreads; t++) {
+                final int id = t;
+                threads[t] = new Thread() {
+                    public void run() {
+                        for (int i = 0; i < N; i++) {
+                            clist.insertConcurrently(i * kThreads + id);
+                        }
+                    }
+                };
+                threads[t].start();
+            }
+            for (int t = 0; t < kThreads; t++) {
+                threads[t].join();
+            }
+            List<Integer> all = new ArrayList<Integer>();
+            for (int i = 0; i < N * kThreads; i++) {
+                all.add(i);
+            }
+            checkBackward(clist, all);
+        }
+
+        void insertWithHint() throws InterruptedException {
+            final int N = 5000;
+            TestComparator cmp = new TestComparator();
+            // Increasing keys: every insert but the first fits the splice
+            SkipList list = new SkipList(
+                    cmp, true);
+            SkipList.Splice splice = new SkipList.Splice();
+            int hits = 0;
+            for (int i = 0; i < N; i++) {
+                if (list.insertWithHint(i, splice, false)) {
+                    hits++;
+                }
+            }
+            ASSERT_TRUE(hits > N - 20); // misses only when the list grows taller
+            List<Integer> all = new ArrayList<Integer>();
+            for (int i = 0; i < N; i++) {
+                all.add(i);
+            }
+            checkBackward(list, all);
+
+            // Random keys still land in the right place
+            Random rnd = new Random();
+            list = new SkipList(cmp, true);
+            splice = new SkipList.Splice();
+            SortedSet<Integer> keys = new TreeSet<Integer>();
+            for (int i = 0; i < N; i++) {
+                int key = rnd.nextInt(N * 10);
+                if (keys.add(key)) {
+                    list.insertWithHint(key, splice, false);
+                }
+            }
+            checkBackward(list, new ArrayList<Integer>(keys));
+
+            // Concurrent writers, each appending its own increasing run
+            final SkipList clist = new SkipList(
+                    cmp, true);
+            final int kThreads = 4;
+            Thread[] threads = new Thread[kThreads];
+            for (int t = 0; t < kThreads; t++) {
+                final int id = t;
+                threads[t] = new Thread() {
+                    public void run() {
+                        SkipList.Splice s = new SkipList.Splice();
+                        for (int i = 0; i < N; i++) {
+                            clist.insertWithHint(i * kThreads + id, s, true);
+                        }
+                    }
+                };
+                threads[t].start();
+            }
+            for (int t = 0; t < kThreads; t++) {
+                threads[t].join();
+            }
+            all.clear();
+            for (int i = 0; i < N * kThreads; i++) {
+                all.add(i);
+            }
+            checkBackward(clist, all);
+        }
+
+        private void checkBackward(SkipList list,
+                                   List<Integer> sorted) {
+            SkipListIterator iter = new SkipListIterator(
+                    list);
+            iter.seekToLast();
+            for (int i = sorted.size() - 1; i >= 0; i--) {
+                ASSERT_TRUE(iter.valid());
+                ASSERT_EQ(sorted.get(i), iter.key());
+                iter.prev();
+            }
+            ASSERT_TRUE(!iter.valid());
+        }
     }
 
-    public static void main(String args[]) {
+    public static void main(String args[]) throws InterruptedException {
         SkiplistTest slt = new SkiplistTest();
         // slt.Empty();
         slt.insertAndLookup();
+        slt.concurrentInsert();
+        slt.backLinks();
+        slt.insertWithHint();
     }
 }
\ No newline at end of file
@@ -0,0 +1,90 @@
+package com.leveldb.common.db;
+
+/**
+ * MemTableRep backed by a single SkipList. The default representation.
+ */
+class SkipListRep extends MemTableRep {
+    private final SkipList list_;
+
+    SkipListRep(EntryComparator cmp, boolean back_links) {
+        list_ = new SkipList(cmp, back_links);
+    }
+
+    @Override
+    public void insert(long entry) {
+        list_.insert(entry);
+    }
+
+    @Override
+    public void insertConcurrently(long entry) {
+        list_.insertConcurrently(entry);
+    }
+
+    static class Hint implements InsertHint {
+        final SkipList.Splice splice_ = new SkipList.Splice();
+    }
+
+    @Override
+    public InsertHint newInsertHint() {
+        return new Hint();
+    }
+
+    @Override
+    public boolean insertWithHint(long entry, InsertHint hint,
+                                  boolean concurrent) {
+        return list_.insertWithHint(entry, ((Hint) hint).splice_, concurrent);
+    }
+
+    @Override
+    public RepIterator newIterator() {
+        return new Iter(list_);
+    }
+
+    @Override
+    public long approximateMemoryUsage() {
+        return list_.approximateMemoryUsage();
+    }
+
+    static class Iter extends RepIterator {
+        private final SkipListIterator iter_;
+
+        Iter(SkipList list) {
+            iter_ = new SkipListIterator(list);
+        }
+
+        @Override
+        public boolean valid() {
+            return iter_.valid();
+        }
+
+        @Override
+        public long key() {
+            return iter_.key();
+        }
+
+        @Override
+        public void next() {
+            iter_.next();
+        }
+
+        @Override
+        public void prev() {
+            iter_.prev();
+        }
+
+        @Override
+        public void seek(SkipList.Probe target) {
+            iter_.seek(target);
+        }
+
+        @Override
+        public void seekToFirst() {
+            iter_.seekToFirst();
+        }
+
+        @Override
+        public void seekToLast() {
+            iter_.seekToLast();
+        }
+    }
+}
@@ -3,7 +3,7 @@ package com.leveldb.common.db;
 import com.leveldb.common.AtomicPointer;
 import com.leveldb.common.Env;
 import com.leveldb.common.Function;
-import com.leveldb.common._Comparable;
+import com.leveldb.common._LongComparable;
 import com.leveldb.util.JenkinsHash;
 import com.leveldb.util.util;
 
@@ -112,10 +112,10 @@ public class SkipListTestMore {
     // Current state of the test
     State current_ = new State();
 
-    static class TestComparator extends _Comparable<Long> {
+    static class TestComparator extends _LongComparable {
 
         @Override
-        public int compare(Long a, Long b) {
+        public int compare(long a, long b) {
             if (a < b) {
                 return -1;
             } else if (a > b) {
@@ -128,10 +128,10 @@ public class SkipListTestMore {
 
     // SkipList is not protected by mu_. We just use a single writer
     // thread to modify it.
-    SkipList<Long, TestComparator> list_;
+    SkipList list_;
 
     public SkipListTestMore() {
-        list_ = new SkipList<Long, TestComparator>(new TestComparator());
+        list_ = new SkipList(new TestComparator());
     }
 
     // REQUIRES: External synchronization
@@ -165,7 +165,7 @@ public class SkipListTestMore {
         // start with gen = 0; later added by 1
         long pos = RandomTarget(rnd);
         // System.out.println(pos);
-        SkipListIterator<Long, TestComparator> iter = new SkipListIterator<Long, SkipListTestMore.TestComparator>(
+        SkipListIterator iter = new SkipListIterator(
                 list_);
         iter.seek(pos);
         while (true) {
@@ -0,0 +1,69 @@
+package com.leveldb.common.db;
+
+/**
+ * RepIterator over a sorted array of entries, shared by the
+ * representations that produce a sorted snapshot for scans.
+ */
+class SortedEntriesIterator extends MemTableRep.RepIterator {
+    private final long[] entries_;
+    private final int n_;
+    private int pos_;
+
+    // entries[0, n) must be sorted
+    SortedEntriesIterator(long[] entries, int n) {
+        entries_ = entries;
+        n_ = n;
+        pos_ = n; // not valid
+    }
+
+    @Override
+    public boolean valid() {
+        return pos_ >= 0 && pos_ < n_;
+    }
+
+    @Override
+    public long key() {
+        assert (valid());
+        return entries_[pos_];
+    }
+
+    @Override
+    public void next() {
+        assert (valid());
+        pos_++;
+    }
+
+    @Override
+    public void prev() {
+        assert (valid());
+        if (--pos_ < 0) {
+            pos_ = n_;
+        }
+    }
+
+    @Override
+    public void seek(SkipList.Probe target) {
+        // binary search for the first entry that does not sort before target
+        int left = 0;
+        int right = n_;
+        while (left < right) {
+            int mid = (left + right) >>> 1;
+            if (target.compareTo(entries_[mid]) < 0) {
+                left = mid + 1;
+            } else {
+                right = mid;
+            }
+        }
+        pos_ = left;
+    }
+
+    @Override
+    public void seekToFirst() {
+        pos_ = 0;
+    }
+
+    @Override
+    public void seekToLast() {
+        pos_ = n_ > 0 ? n_ - 1 : n_;
+    }
+}
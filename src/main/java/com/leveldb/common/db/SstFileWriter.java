@@ -0,0 +1,119 @@
+package com.leveldb.common.db;
+
+import com.leveldb.common.Comparator;
+import com.leveldb.common.Slice;
+import com.leveldb.common.Status;
+import com.leveldb.common.comparator.InternalKeyComparator;
+import com.leveldb.common.file._WritableFile;
+import com.leveldb.common.options.Options;
+import com.leveldb.common.table.TableBuilder;
+import com.leveldb.util.SequenceNumber;
+import com.leveldb.util.ValueType;
+
+// Writes a table file outside of any DB, to be added to one later by
+// DB.ingestExternalFile().
+//
+// Keys must be added in strictly increasing order of options.comparator,
+// which must be the comparator of the DB the file goes to. The entries are
+// stored with sequence number 0; the DB gives them a sequence number of
+// its own when the file is ingested.
+//
+// An SstFileWriter is not safe for concurrent use by several threads.
+public class SstFileWriter {
+    private final Options options_;
+    private final Comparator user_comparator_;
+    private String file_path_;
+    private _WritableFile file_;
+    private TableBuilder builder_;
+    private Slice last_key_;
+    private long file_size_;
+
+    public SstFileWriter(Options options) {
+        options_ = new Options();
+        options_.Options_(options);
+        user_comparator_ = options.comparator;
+        options_.comparator = new InternalKeyComparator(options.comparator);
+        if (options.filter_policy != null) {
+            options_.filter_policy = new InternalFilterPolicy(
+                    options.filter_policy);
+        }
+    }
+
+    // Start writing the file "file_path", replacing it if it exists
+    public Status open(String file_path) {
+        if (builder_ != null) {
+            return Status.invalidArgument(new Slice(
+                    "file already opened: "), new Slice(file_path_));
+        }
+        file_path_ = file_path;
+        file_ = options_.env.newWritableFile(file_path);
+        if (file_ == null) {
+            return Status.ioerror(new Slice(file_path), new Slice(
+                    "cannot be created"));
+        }
+        builder_ = new TableBuilder(options_, file_);
+        last_key_ = null;
+        file_size_ = 0;
+        return Status.OK();
+    }
+
+    // Add "key" with "value"
+    public Status put(Slice key, Slice value) {
+        return add(key, value, ValueType.TypeValue);
+    }
+
+    // Add a deletion of "key": the file hides its older values once it is
+    // ingested
+    public Status delete(Slice key) {
+        return add(key, new Slice(), ValueType.TypeDeletion);
+    }
+
+    // Finish the file and close it. Fails, removing the file, if nothing
+    // was added to it: an empty file cannot be ingested.
+    public Status finish() {
+        if (builder_ == null) {
+            return Status.invalidArgument(new Slice("no file opened"), null);
+        }
+        Status s;
+        if (builder_.NumEntries() == 0) {
+            builder_.Abandon();
+            s = Status.invalidArgument(new Slice("no entries in "),
+                    new Slice(file_path_));
+        } else {
+            s = builder_.Finish();
+            file_size_ = builder_.FileSize();
+            if (s.ok()) {
+                s = file_.Sync();
+            }
+        }
+        Status close = file_.Close();
+        if (s.ok()) {
+            s = close;
+        }
+        if (!s.ok()) {
+            options_.env.deleteFile(file_path_);
+        }
+        builder_ = null;
+        file_ = null;
+        return s;
+    }
+
+    // Size of the file so far, or of the finished file
+    public long fileSize() {
+        return builder_ != null ? builder_.FileSize() : file_size_;
+    }
+
+    private Status add(Slice key, Slice value, ValueType type) {
+        if (builder_ == null) {
+            return Status.invalidArgument(new Slice("no file opened"), null);
+        }
+        if (last_key_ != null && user_comparator_.compare(key, last_key_) <= 0) {
+            return Status.invalidArgument(new Slice(
+                    "keys must be added in strictly increasing order"), null);
+        }
+        last_key_ = new Slice(key.data());
+        builder_.Add(new InternalKey(key, new SequenceNumber(0), type).Encode(),
+                value);
+        return builder_.status();
+    }
+}
@@ -5,10 +5,13 @@ import com.leveldb.common.file._RandomAccessFile;
 import com.leveldb.common.file.FileName;
 import com.leveldb.common.options.Options;
 import com.leveldb.common.options.ReadOptions;
+import com.leveldb.util.SequenceNumber;
 import com.leveldb.util.util;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import java.util.concurrent.ConcurrentHashMap;
+
 /**
  * 2012-4-9
  *
@@ -58,6 +61,109 @@ public class TableCache {
 
     }
 
+    // The entries of an ingested table, seen with the global sequence number
+    // of the file instead of the one stored with them (0)
+    static class GlobalSequenceIterator extends Iterator {
+        private final Iterator iter_;
+        private final Comparator comparator_;
+        private final SequenceNumber sequence_;
+
+        GlobalSequenceIterator(Iterator iter, Comparator comparator,
+                               long sequence) {
+            iter_ = iter;
+            comparator_ = comparator;
+            sequence_ = new SequenceNumber(sequence);
+        }
+
+        @Override
+        public boolean valid() {
+            return iter_.valid();
+        }
+
+        @Override
+        public void seekToFirst() {
+            iter_.seekToFirst();
+        }
+
+        @Override
+        public void seekToLast() {
+            iter_.seekToLast();
+        }
+
+        @Override
+        public void seek(Slice target) {
+            // A user key appears once in the table, where the target may
+            // sort after it once it has its real sequence number
+            iter_.seek(target);
+            if (iter_.valid() && comparator_.compare(key(), target) < 0) {
+                iter_.next();
+            }
+        }
+
+        @Override
+        public void next() {
+            iter_.next();
+        }
+
+        @Override
+        public void prev() {
+            iter_.prev();
+        }
+
+        @Override
+        public Slice key() {
+            ParsedInternalKey ikey = InternalKey.ParseInternalKey_(iter_.key());
+            if (ikey == null) {
+                return iter_.key();
+            }
+            ikey.sequence = sequence_;
+            return new Slice(InternalKey.AppendInternalKey(null, ikey));
+        }
+
+        @Override
+        public Slice value() {
+            return iter_.value();
+        }
+
+        @Override
+        public Status status() {
+            return iter_.status();
+        }
+    }
+
+    // The entries of an ingested table handed over by Table.InternalGet(),
+    // with the global sequence number of the file, like
+    // GlobalSequenceIterator shows them
+    static class GlobalSequenceHandler implements Table.ResultHandler {
+        private final Table.ResultHandler handler_;
+        private final Comparator comparator_;
+        private final Slice target_;
+        private final SequenceNumber sequence_;
+
+        GlobalSequenceHandler(Table.ResultHandler handler,
+                              Comparator comparator, Slice target, long sequence) {
+            handler_ = handler;
+            comparator_ = comparator;
+            target_ = target;
+            sequence_ = new SequenceNumber(sequence);
+        }
+
+        @Override
+        public boolean handleResult(Slice key, Slice value) {
+            ParsedInternalKey ikey = InternalKey.ParseInternalKey_(key);
+            if (ikey == null) {
+                return handler_.handleResult(key, value);
+            }
+            ikey.sequence = sequence_;
+            Slice global_key = new Slice(InternalKey.AppendInternalKey(null, ikey));
+            if (comparator_.compare(global_key, target_) < 0) {
+                // Too recent for the lookup
+                return true;
+            }
+            return handler_.handleResult(global_key, value);
+        }
+    }
+
     TableCache(String dbname, Options options, int entries) {
         env_ = options.env;
         dbname_ = dbname;
@@ -90,6 +196,75 @@ public class TableCache {
             tableptr[0] = null;
         }
 
+        Cache.Handle handle = FindTable(file_number, file_size);
+        if (handle == null) {
+            return Iterator.newErrorIterator(null);
+        }
+
+        Table table = ((TableAndFile) (cache_.value(handle))).table;
+        Iterator result = table.NewIterator(options);
+        Long sequence = global_seqnos_.get(file_number);
+        if (sequence != null) {
+            result = new GlobalSequenceIterator(result, options_.comparator,
+                    sequence);
+        }
+
+        Function UnrefEntry = new UnrefEntryCacheAndHandle(cache_, handle);
+        result.registerCleanup(UnrefEntry, cache_, handle);
+        if (tableptr != null) {
+            tableptr[0] = table;
+        }
+
+        return result;
+    }
+
+    // Hand the entries of the specified file from the first one at or past
+    // the internal key "ikey" over to "handler", until it asks to stop (see
+    // Table.InternalGet())
+    public Status Get(ReadOptions options, long file_number, long file_size,
+                      Slice ikey, Table.ResultHandler handler) {
+        Cache.Handle handle = FindTable(file_number, file_size);
+        if (handle == null) {
+            return Status.ioerror(new Slice(FileName.tableFileName(dbname_,
+                    file_number)), new Slice("cannot be opened"));
+        }
+        Table table = ((TableAndFile) (cache_.value(handle))).table;
+        Long sequence = global_seqnos_.get(file_number);
+        if (sequence != null) {
+            handler = new GlobalSequenceHandler(handler, options_.comparator,
+                    ikey, sequence);
+        }
+        return table.InternalGet(options, ikey, handler);
+    }
+
+    // Whether the specified file may have an entry for the internal key
+    // "ikey", as far as the filter of its table tells (see
+    // Table.KeyMayMatch()). True if the file cannot be opened, so that the
+    // lookup gets to report the error.
+    public boolean KeyMayMatch(long file_number, long file_size, Slice ikey) {
+        Cache.Handle handle = FindTable(file_number, file_size);
+        if (handle == null) {
+            return true;
+        }
+        return ((TableAndFile) (cache_.value(handle))).table.KeyMayMatch(ikey);
+    }
+
+    // Whether the specified file may have keys with the prefix "prefix", as
+    // far as the prefix filter of its table tells (see
+    // Table.PrefixMayMatch()). True if the file cannot be opened.
+    public boolean PrefixMayMatch(long file_number, long file_size,
+                                  Slice prefix) {
+        Cache.Handle handle = FindTable(file_number, file_size);
+        if (handle == null) {
+            return true;
+        }
+        return ((TableAndFile) (cache_.value(handle))).table
+                .PrefixMayMatch(prefix);
+    }
+
+    // The cache entry of the table of the specified file number, opening it
+    // if it is not cached yet. Null if it cannot be opened.
+    private Cache.Handle FindTable(long file_number, long file_size) {
         byte[] buf = util.toBytes(file_number);
         Slice key = new Slice(buf);
         Cache.Handle handle = cache_.lookup(key);
@@ -107,7 +282,7 @@ public class TableCache {
                 // We do not cache error results so that if the error is
                 // transient,
                 // or somebody repairs the file, we recover automatically.
-                return Iterator.newErrorIterator(null);
+                return null;
             }
 
             TableAndFile tf = new TableAndFile();
@@ -116,27 +291,27 @@ public class TableCache {
             Function DeleteEntry = new DeleteTableAndFile(tf);
             handle = cache_.insert(key, tf, 1, DeleteEntry);
         }
-
-        Table table = ((TableAndFile) (cache_.value(handle))).table;
-        Iterator result = table.NewIterator(options);
-
-        Function UnrefEntry = new UnrefEntryCacheAndHandle(cache_, handle);
-        result.registerCleanup(UnrefEntry, cache_, handle);
-        if (tableptr != null) {
-            tableptr[0] = table;
-        }
-
-        return result;
+        return handle;
     }
 
     // Evict any entry for the specified file number
     void Evict(long file_number) {
         byte[] buf = util.toBytes(file_number);
         cache_.erase(new Slice(buf));
+        global_seqnos_.remove(file_number);
+    }
+
+    // Make the iterators of the specified file number report "sequence" as
+    // the sequence number of all its entries (see
+    // FileMetaData.global_seqno)
+    public void SetGlobalSequence(long file_number, long sequence) {
+        global_seqnos_.put(file_number, sequence);
     }
 
     Env env_;
     String dbname_;
     Options options_;
     Cache cache_;
+    // Global sequence numbers of the ingested files, by file number
+    ConcurrentHashMap<Long, Long> global_seqnos_ = new ConcurrentHashMap<Long, Long>();
 }
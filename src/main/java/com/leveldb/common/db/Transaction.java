@@ -0,0 +1,216 @@
+package com.leveldb.common.db;
+
+import com.leveldb.common.Comparator;
+import com.leveldb.common.Slice;
+import com.leveldb.common.Status;
+import com.leveldb.common.WriteBatch;
+import com.leveldb.common.options.ReadOptions;
+import com.leveldb.common.options.WriteOptions;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+// An optimistic transaction, from DB.beginTransaction(): updates collected
+// in a WriteBatch and applied atomically by commit(), but only if none of
+// the keys the transaction read or wrote was changed by someone else
+// since it began.
+//
+// Nothing is locked meanwhile. Reads see the snapshot taken when the
+// transaction began, plus its own updates. commit() checks its keys in
+// the writer queue, right before the batch is written, against the
+// sequence number of that snapshot. Transactions with disjoint keys thus
+// never wait for each other; of two that touch the same key, the one that
+// commits last fails with a busy status (Status.isBusy()), and can be
+// retried from the start.
+//
+// A Transaction is not safe for concurrent use by several threads.
+public class Transaction {
+    // The updates of the transaction to one key, for its own reads
+    private static class PendingWrite {
+        // Whether the key was put or deleted, base then being the value
+        // put or null
+        boolean has_base;
+        Slice base;
+        // Merge operands added afterwards, oldest first
+        List<Slice> operands = new ArrayList<Slice>();
+    }
+
+    private final DBImpl db_;
+    private final WriteOptions write_options_;
+    private SnapshotImpl snapshot_; // null once committed or rolled back
+    private final WriteBatch batch_;
+    // Keys read or written, checked for conflicts by commit()
+    private final TreeSet<Slice> tracked_;
+    private final TreeMap<Slice, PendingWrite> writes_;
+
+    Transaction(DBImpl db, WriteOptions write_options, SnapshotImpl snapshot) {
+        db_ = db;
+        write_options_ = write_options;
+        snapshot_ = snapshot;
+        batch_ = new WriteBatch();
+        final Comparator ucmp = db.user_comparator();
+        java.util.Comparator<Slice> cmp = new java.util.Comparator<Slice>() {
+            @Override
+            public int compare(Slice a, Slice b) {
+                return ucmp.compare(a, b);
+            }
+        };
+        tracked_ = new TreeSet<Slice>(cmp);
+        writes_ = new TreeMap<Slice, PendingWrite>(cmp);
+    }
+
+    // Read "key" as DB.get() does, in the snapshot of the transaction and
+    // with its own updates applied. The key then counts as read: the
+    // transaction does not commit if someone else changes it first.
+    // options.snapshot is ignored.
+    public Slice get(ReadOptions options, Slice key, Status s) {
+        if (snapshot_ == null) {
+            s.Status_(finished());
+            return new Slice();
+        }
+        key = new Slice(key.data());
+        tracked_.add(key);
+
+        PendingWrite w = writes_.get(key);
+        Slice base = null;
+        if (w != null && w.has_base) {
+            base = w.base;
+            s.Status_(Status.OK());
+        } else {
+            ReadOptions read_options = new ReadOptions();
+            read_options.verify_checksums = options.verify_checksums;
+            read_options.fill_cache = options.fill_cache;
+            read_options.snapshot = snapshot_;
+            Slice value = db_.get(read_options, key, s);
+            if (s.ok()) {
+                base = value;
+            } else if (!s.isNotFound()) {
+                return value;
+            }
+        }
+
+        if (w != null && !w.operands.isEmpty()) {
+            MergeContext merge = new MergeContext(db_.options_.merge_operator,
+                    key);
+            for (int i = w.operands.size() - 1; i >= 0; i--) {
+                merge.add(w.operands.get(i));
+            }
+            Status ms = new Status();
+            Slice merged = merge.merge(base, ms);
+            s.Status_(ms);
+            return merged != null ? merged : new Slice();
+        }
+        if (base == null) {
+            s.Status_(Status.notFound(new Slice("key not found"), null));
+            return new Slice();
+        }
+        s.Status_(Status.OK());
+        return base;
+    }
+
+    // Set "key" to "value" when the transaction commits
+    public Status put(Slice key, Slice value) {
+        PendingWrite w = track(key);
+        if (w == null) {
+            return finished();
+        }
+        batch_.put(key, value);
+        w.has_base = true;
+        w.base = new Slice(value.data());
+        w.operands.clear();
+        return Status.OK();
+    }
+
+    // Remove "key" when the transaction commits
+    public Status delete(Slice key) {
+        PendingWrite w = track(key);
+        if (w == null) {
+            return finished();
+        }
+        batch_.delete(key);
+        w.has_base = true;
+        w.base = null;
+        w.operands.clear();
+        return Status.OK();
+    }
+
+    // Merge "value" into "key" when the transaction commits (see
+    // DB.merge())
+    public Status merge(Slice key, Slice value) {
+        if (db_.options_.merge_operator == null) {
+            return Status.notSupported(new Slice(
+                    "merge without Options.merge_operator"), null);
+        }
+        PendingWrite w = track(key);
+        if (w == null) {
+            return finished();
+        }
+        batch_.merge(key, value);
+        w.operands.add(new Slice(value.data()));
+        return Status.OK();
+    }
+
+    // Apply the updates of the transaction, unless a key it read or wrote
+    // has been changed since it began: nothing is written then, and the
+    // result is a busy status. Either way the transaction is over.
+    public Status commit() {
+        if (snapshot_ == null) {
+            return finished();
+        }
+        Status s = Status.OK();
+        if (!writes_.isEmpty()) {
+            s = db_.write(write_options_, batch_, this);
+        }
+        release();
+        return s;
+    }
+
+    // Discard the updates of the transaction, which is then over
+    public void rollback() {
+        if (snapshot_ != null) {
+            release();
+        }
+    }
+
+    // The snapshot the transaction reads
+    SnapshotImpl snapshot() {
+        return snapshot_;
+    }
+
+    // The keys read or written
+    Set<Slice> trackedKeys() {
+        return tracked_;
+    }
+
+    // Start tracking the write of "key". Returns null if the transaction
+    // is over.
+    private PendingWrite track(Slice key) {
+        if (snapshot_ == null) {
+            return null;
+        }
+        key = new Slice(key.data());
+        tracked_.add(key);
+        PendingWrite w = writes_.get(key);
+        if (w == null) {
+            w = new PendingWrite();
+            writes_.put(key, w);
+        }
+        return w;
+    }
+
+    private void release() {
+        db_.releaseSnapshot(snapshot_);
+        snapshot_ = null;
+        batch_.clear();
+        writes_.clear();
+        tracked_.clear();
+    }
+
+    private static Status finished() {
+        return Status.invalidArgument(new Slice(
+                "transaction already committed or rolled back"), null);
+    }
+}
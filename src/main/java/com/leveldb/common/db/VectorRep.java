@@ -0,0 +1,277 @@
+package com.leveldb.common.db;
+
+import com.leveldb.common.Slice;
+import com.leveldb.common._LongComparable;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * MemTableRep that appends entries to an unsorted array. The array is
+ * sorted once, when the memtable becomes read-only; iterators over a still
+ * mutable memtable sort a private copy, and point lookups scan it. Used by
+ * bulk-load mode (see DB.setBulkLoadMode).
+ */
+class VectorRep extends MemTableRep {
+    private final EntryComparator cmp_;
+
+    // Guarded by "this"
+    private long[] entries_;
+    private int size_;
+    private boolean immutable_;
+    private boolean sorted_;
+
+    VectorRep(EntryComparator cmp) {
+        cmp_ = cmp;
+        entries_ = new long[1024];
+        size_ = 0;
+        immutable_ = false;
+        sorted_ = false;
+    }
+
+    @Override
+    public synchronized void insert(long entry) {
+        assert (!immutable_);
+        if (size_ == entries_.length) {
+            long[] grown = new long[entries_.length * 2];
+            System.arraycopy(entries_, 0, grown, 0, size_);
+            entries_ = grown;
+        }
+        entries_[size_++] = entry;
+    }
+
+    @Override
+    public void insertConcurrently(long entry) {
+        insert(entry);
+    }
+
+    @Override
+    public synchronized void markReadOnly() {
+        immutable_ = true;
+    }
+
+    @Override
+    public synchronized RepIterator newIterator() {
+        if (immutable_) {
+            if (!sorted_) {
+                // Sort a copy: lookup iterators may still be scanning the
+                // unsorted array
+                long[] sorted = new long[size_];
+                System.arraycopy(entries_, 0, sorted, 0, size_);
+                sort(sorted, size_, cmp_);
+                entries_ = sorted;
+                sorted_ = true;
+            }
+            return new SortedEntriesIterator(entries_, size_);
+        }
+        long[] copy = new long[size_];
+        System.arraycopy(entries_, 0, copy, 0, size_);
+        sort(copy, size_, cmp_);
+        return new SortedEntriesIterator(copy, size_);
+    }
+
+    // Point lookups on a mutable vector only need the few entries of one
+    // user key: scan for them instead of sorting a copy of everything.
+    @Override
+    public synchronized RepIterator newLookupIterator(Slice user_key) {
+        if (immutable_) {
+            return newIterator();
+        }
+        // entries_[0, size_) is never changed, only appended to, or
+        // replaced by a sorted copy
+        return new ScanIterator(entries_, size_, cmp_);
+    }
+
+    // Iterator over unsorted entries that finds each next entry with a
+    // linear scan: O(n) a step, but nothing is copied or allocated.
+    private static class ScanIterator extends RepIterator {
+        private final long[] entries_;
+        private final int n_;
+        private final EntryComparator cmp_;
+        private boolean valid_;
+        private long current_;
+
+        ScanIterator(long[] entries, int n, EntryComparator cmp) {
+            entries_ = entries;
+            n_ = n;
+            cmp_ = cmp;
+            valid_ = false;
+        }
+
+        @Override
+        public boolean valid() {
+            return valid_;
+        }
+
+        @Override
+        public long key() {
+            assert (valid());
+            return current_;
+        }
+
+        @Override
+        public void next() {
+            assert (valid());
+            // Smallest entry after current_
+            long from = current_;
+            valid_ = false;
+            for (int i = 0; i < n_; i++) {
+                long e = entries_[i];
+                if (cmp_.compare(e, from) > 0
+                        && (!valid_ || cmp_.compare(e, current_) < 0)) {
+                    current_ = e;
+                    valid_ = true;
+                }
+            }
+        }
+
+        @Override
+        public void prev() {
+            assert (valid());
+            // Largest entry before current_
+            long from = current_;
+            valid_ = false;
+            for (int i = 0; i < n_; i++) {
+                long e = entries_[i];
+                if (cmp_.compare(e, from) < 0
+                        && (!valid_ || cmp_.compare(e, current_) > 0)) {
+                    current_ = e;
+                    valid_ = true;
+                }
+            }
+        }
+
+        @Override
+        public void seek(SkipList.Probe target) {
+            // Smallest entry that does not sort before target
+            valid_ = false;
+            for (int i = 0; i < n_; i++) {
+                long e = entries_[i];
+                if (target.compareTo(e) >= 0
+                        && (!valid_ || cmp_.compare(e, current_) < 0)) {
+                    current_ = e;
+                    valid_ = true;
+                }
+            }
+        }
+
+        @Override
+        public void seekToFirst() {
+            valid_ = false;
+            for (int i = 0; i < n_; i++) {
+                long e = entries_[i];
+                if (!valid_ || cmp_.compare(e, current_) < 0) {
+                    current_ = e;
+                    valid_ = true;
+                }
+            }
+        }
+
+        @Override
+        public void seekToLast() {
+            valid_ = false;
+            for (int i = 0; i < n_; i++) {
+                long e = entries_[i];
+                if (!valid_ || cmp_.compare(e, current_) > 0) {
+                    current_ = e;
+                    valid_ = true;
+                }
+            }
+        }
+    }
+
+    @Override
+    public synchronized long approximateMemoryUsage() {
+        return entries_.length * 8L;
+    }
+
+    // Runs of at most this many entries are sorted by a single task
+    static final int kParallelSortGrain = 1 << 13;
+
+    private static final ForkJoinPool sort_pool_ = new ForkJoinPool();
+
+    // Sort a[0, n) by cmp. Large arrays (a full write buffer usually is)
+    // are merge sorted in parallel on a fork-join pool.
+    static void sort(long[] a, int n, _LongComparable cmp) {
+        long[] tmp = new long[n];
+        if (n <= kParallelSortGrain) {
+            mergeSort(a, tmp, 0, n, cmp);
+        } else {
+            sort_pool_.invoke(new SortTask(a, tmp, 0, n, cmp));
+        }
+    }
+
+    // Sorts both halves in parallel, then merges them
+    @SuppressWarnings("serial")
+    private static class SortTask extends RecursiveAction {
+        private final long[] a_;
+        private final long[] tmp_;
+        private final int lo_;
+        private final int hi_;
+        private final _LongComparable cmp_;
+
+        SortTask(long[] a, long[] tmp, int lo, int hi, _LongComparable cmp) {
+            a_ = a;
+            tmp_ = tmp;
+            lo_ = lo;
+            hi_ = hi;
+            cmp_ = cmp;
+        }
+
+        @Override
+        protected void compute() {
+            if (hi_ - lo_ <= kParallelSortGrain) {
+                mergeSort(a_, tmp_, lo_, hi_, cmp_);
+                return;
+            }
+            int mid = (lo_ + hi_) >>> 1;
+            invokeAll(new SortTask(a_, tmp_, lo_, mid, cmp_), new SortTask(a_,
+                    tmp_, mid, hi_, cmp_));
+            merge(a_, tmp_, lo_, mid, hi_, cmp_);
+        }
+    }
+
+    // Sort a[lo, hi), using tmp[lo, hi) as scratch space
+    static void mergeSort(long[] a, long[] tmp, int lo, int hi,
+                          _LongComparable cmp) {
+        if (hi - lo <= 16) {
+            insertionSort(a, lo, hi, cmp);
+            return;
+        }
+        int mid = (lo + hi) >>> 1;
+        mergeSort(a, tmp, lo, mid, cmp);
+        mergeSort(a, tmp, mid, hi, cmp);
+        merge(a, tmp, lo, mid, hi, cmp);
+    }
+
+    // Merge the sorted runs a[lo, mid) and a[mid, hi)
+    static void merge(long[] a, long[] tmp, int lo, int mid, int hi,
+                      _LongComparable cmp) {
+        if (cmp.compare(a[mid - 1], a[mid]) <= 0) {
+            return; // already in order, common for sequential loads
+        }
+        System.arraycopy(a, lo, tmp, lo, hi - lo);
+        int i = lo;
+        int j = mid;
+        for (int k = lo; k < hi; k++) {
+            if (i < mid && (j >= hi || cmp.compare(tmp[i], tmp[j]) <= 0)) {
+                a[k] = tmp[i++];
+            } else {
+                a[k] = tmp[j++];
+            }
+        }
+    }
+
+    private static void insertionSort(long[] a, int lo, int hi,
+                                      _LongComparable cmp) {
+        for (int i = lo + 1; i < hi; i++) {
+            long x = a[i];
+            int j = i - 1;
+            while (j >= lo && cmp.compare(a[j], x) > 0) {
+                a[j + 1] = a[j];
+                j--;
+            }
+            a[j + 1] = x;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package com.leveldb.common.db;
+
+import com.leveldb.common.Cache;
+import com.leveldb.common.Slice;
+import com.leveldb.util.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Bounds the memory of the memtables of all the DBs (and their column
+// families) opened with it in Options.write_buffer_manager.
+//
+// Every DB reports the memory of its memtables before each write. Once
+// the total is over the budget, the next write of a DB switches the
+// largest mutable memtable of all to a new one, so that it gets flushed:
+// directly if it is one of the writer's own, else through the writer
+// queue of its DB, from Options.async_executor.
+//
+// If a cache is given, typically the block cache the DBs share, the
+// memory of the memtables is also charged to it with dummy entries, so
+// that memtables and cached blocks together stay within its capacity.
+public class WriteBufferManager {
+    // Granularity of the charges to the cache
+    static final int kCacheChunkSize = 256 << 10;
+
+    // Memory of the memtables of a DB or column family
+    private static class Usage {
+        long total; // mutable and immutable memtables
+        long mutable; // current memtable, 0 if empty
+    }
+
+    private final long buffer_size_;
+    private final Cache cache_;
+    private final long cache_id_;
+    private final Map<DBImpl, Usage> usage_ = new HashMap<DBImpl, Usage>();
+    private long memory_used_;
+    private long mutable_used_;
+    // Keys of the dummy entries charged to cache_
+    private final List<Slice> cache_entries_ = new ArrayList<Slice>();
+
+    // Limit the memtables to "buffer_size" bytes in total
+    public WriteBufferManager(long buffer_size) {
+        this(buffer_size, null);
+    }
+
+    // Same as above, and charge the memory of the memtables to "cache"
+    public WriteBufferManager(long buffer_size, Cache cache) {
+        buffer_size_ = buffer_size;
+        cache_ = cache;
+        cache_id_ = cache != null ? cache.newId() : 0;
+    }
+
+    public long bufferSize() {
+        return buffer_size_;
+    }
+
+    // Memory of the memtables of all the DBs, as last reported
+    public synchronized long memoryUsage() {
+        return memory_used_;
+    }
+
+    // Memory of the current memtables of all the DBs, as last reported
+    public synchronized long mutableMemoryUsage() {
+        return mutable_used_;
+    }
+
+    // Whether a memtable should be flushed to get back within the budget.
+    // Memtables already being flushed count against the budget, but only
+    // while the current ones hold a good share of it: flushing more then
+    // would just make small tables.
+    public synchronized boolean shouldFlush() {
+        return mutable_used_ > buffer_size_ / 8 * 7
+                || (memory_used_ >= buffer_size_
+                && mutable_used_ >= buffer_size_ / 2);
+    }
+
+    // Set the memory of the memtables of "db": "total" in all of them,
+    // "mutable" in the current one
+    synchronized void update(DBImpl db, long total, long mutable) {
+        Usage u = usage_.get(db);
+        if (u == null) {
+            u = new Usage();
+            usage_.put(db, u);
+        }
+        memory_used_ += total - u.total;
+        mutable_used_ += mutable - u.mutable;
+        u.total = total;
+        u.mutable = mutable;
+        chargeCache();
+    }
+
+    // Forget "db", being closed
+    synchronized void remove(DBImpl db) {
+        Usage u = usage_.remove(db);
+        if (u != null) {
+            memory_used_ -= u.total;
+            mutable_used_ -= u.mutable;
+            chargeCache();
+        }
+    }
+
+    // The DB or column family with the largest current memtable, null if
+    // they are all empty
+    synchronized DBImpl largest() {
+        DBImpl largest = null;
+        long size = 0;
+        for (Map.Entry<DBImpl, Usage> e : usage_.entrySet()) {
+            if (e.getValue().mutable > size) {
+                largest = e.getKey();
+                size = e.getValue().mutable;
+            }
+        }
+        return largest;
+    }
+
+    // Make the dummy entries in cache_ add up to memory_used_, rounded up
+    // to a chunk. The cache does not pin them, so those it evicted
+    // meanwhile are charged again.
+    private void chargeCache() {
+        if (cache_ == null) {
+            return;
+        }
+        int chunks = (int) ((memory_used_ + kCacheChunkSize - 1) / kCacheChunkSize);
+        if (chunks == cache_entries_.size()) {
+            return;
+        }
+        while (cache_entries_.size() > chunks) {
+            cache_.erase(cache_entries_.remove(cache_entries_.size() - 1));
+        }
+        for (int i = 0; i < chunks; i++) {
+            if (i == cache_entries_.size()) {
+                cache_entries_.add(new Slice(util.addN(util.toBytes(cache_id_),
+                        util.toBytes(i))));
+            } else if (cache_.lookup(cache_entries_.get(i)) != null) {
+                continue;
+            }
+            cache_.insert(cache_entries_.get(i), null, kCacheChunkSize, null);
+        }
+    }
+}
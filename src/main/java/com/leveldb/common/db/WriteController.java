@@ -0,0 +1,74 @@
+package com.leveldb.common.db;
+
+// Limits the rate at which DBImpl takes in writes while compactions are
+// falling behind, so that writers slow down gradually instead of running
+// at full speed into a stop.
+//
+// The allowed rate falls from the maximum rate towards kMinRateFraction
+// of it as the compaction pressure goes from 0 to 1. Writes are charged
+// after the fact to a token bucket kept as a virtual clock: next_micros_
+// is when the bytes written so far would have been taken in at the
+// allowed rate, and a writer waits until then.
+//
+// Not thread safe; DBImpl only uses it with mutex_ held.
+public class WriteController {
+    // Burst of writes allowed without any delay
+    public static final long kBurstMicros = 1000;
+    // The rate never goes below this fraction of the maximum rate
+    public static final int kMinRateFraction = 16;
+
+    public WriteController(long max_rate) {
+        max_rate_ = Math.max(max_rate, 1);
+        rate_ = 0;
+        next_micros_ = 0;
+    }
+
+    // Set the compaction pressure, from 0 (no debt, no limit) to 1 (about
+    // to stop writes).
+    public void setPressure(double pressure, long now_micros) {
+        if (pressure <= 0) {
+            rate_ = 0;
+            return;
+        }
+        if (rate_ == 0) {
+            // Start with a full burst
+            next_micros_ = now_micros - kBurstMicros;
+        }
+        long min_rate = Math.max(max_rate_ / kMinRateFraction, 1);
+        rate_ = Math.max((long) (max_rate_ * (1 - Math.min(pressure, 1.0))),
+                min_rate);
+    }
+
+    public boolean isDelayed() {
+        return rate_ > 0;
+    }
+
+    // Bytes per second writes are currently allowed at, 0 if unlimited
+    public long rate() {
+        return rate_;
+    }
+
+    // How long the next write has to wait for the ones before it
+    public long delayMicros(long now_micros) {
+        if (rate_ == 0 || next_micros_ <= now_micros) {
+            return 0;
+        }
+        return next_micros_ - now_micros;
+    }
+
+    // Charge bytes written to the bucket
+    public void charge(long bytes, long now_micros) {
+        if (rate_ == 0) {
+            return;
+        }
+        if (next_micros_ < now_micros - kBurstMicros) {
+            // Unused time earns no more than one burst
+            next_micros_ = now_micros - kBurstMicros;
+        }
+        next_micros_ += bytes * 1000000L / rate_;
+    }
+
+    private final long max_rate_;
+    private long rate_;
+    private long next_micros_;
+}
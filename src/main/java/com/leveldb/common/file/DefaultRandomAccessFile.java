@@ -4,7 +4,9 @@ import com.leveldb.common.Slice;
 
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 
 /**
  * a mmf, read all data to buffer
@@ -32,9 +34,16 @@ public class DefaultRandomAccessFile extends _RandomAccessFile {
     public byte[] Read(long offset, int n, Slice result) {
         byte br[] = new byte[n];
         // raf.get(br, (int)offset, n);
+        // Positional reads: the table cache shares one file between the
+        // readers and the compaction thread, so seek() + read() would race.
         try {
-            raf1.seek(offset);
-            raf1.read(br);
+            FileChannel fc = raf1.getChannel();
+            ByteBuffer dst = ByteBuffer.wrap(br);
+            while (dst.hasRemaining()) {
+                if (fc.read(dst, offset + dst.position()) < 0) {
+                    break;
+                }
+            }
         } catch (IOException e) {
             e = new IOException(e.toString() + "\n When seek @ offset: " + offset);
             e.printStackTrace();
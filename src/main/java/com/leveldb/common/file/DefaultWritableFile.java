@@ -5,6 +5,7 @@ import com.leveldb.common.Status;
 
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -21,6 +22,13 @@ public class DefaultWritableFile extends _WritableFile {
     private int block_offset;
 
     RandomAccessFile raf1;
+
+    // Appends are gathered here and written out by Flush(), so that the
+    // many small appends of the log and table writers do not each cost a
+    // write call.
+    private static final int kWritableFileBufferSize = 65536;
+    private final byte[] buf_ = new byte[kWritableFileBufferSize];
+    private int pos_;
     //private FileChannel fc;
     //private MappedByteBuffer raf;
 
@@ -41,6 +49,7 @@ public class DefaultWritableFile extends _WritableFile {
                 int d = 0;
             }
             raf1 = new RandomAccessFile(filename_, "rw");
+            fileChannel = raf1.getChannel();
 
 //			System.err.println("Opened " + filename_);
             //fc = raf1.getChannel();
@@ -61,42 +70,55 @@ public class DefaultWritableFile extends _WritableFile {
 
     @Override
     public Status Append(Slice data) {
-        byte src[] = data.data();
+        // Write from the slice's own buffer rather than a copy of it
+        byte src[] = data.getBuffer();
+        int offset = data.getOffset();
         int size = data.size();
 
-        int R = size;
-        int src_offset = 0;
+        // Fit as much as possible into the buffer
+        int copy = Math.min(size, buf_.length - pos_);
+        System.arraycopy(src, offset, buf_, pos_, copy);
+        pos_ += copy;
+        offset += copy;
+        size -= copy;
+        if (size == 0) {
+            return Status.OK();
+        }
 
-        try {
-//			while (R > 0) {
-//				if (R > map_size_) {
-//					raf.put(src, src_offset, map_size_);
-//					R -= map_size_;
-//					src_offset += map_size_;
-//					file_offset_ += map_size_;
-//					map_size_ = expand(map_size_);
-//					raf = fc.map(MapMode.READ_WRITE, file_offset_, map_size_);
-//				} else {
-//					raf.put(src, src_offset, R);
-//					//raf.compact();
-//					file_offset_ += R; // like size
-//					block_offset = R; // just R
-//					R = 0;
-//				}
-//			}
-
-            raf1.write(src);
+        // Can't fit in buffer, so need to do at least one write
+        Status s = flushBuffer();
+        if (!s.ok()) {
+            return s;
+        }
+
+        // Small writes go to the buffer, large writes are written directly
+        if (size < buf_.length) {
+            System.arraycopy(src, offset, buf_, 0, size);
+            pos_ = size;
+            return Status.OK();
+        }
+        return writeUnbuffered(src, offset, size);
+    }
 
+    private Status flushBuffer() {
+        Status s = writeUnbuffered(buf_, 0, pos_);
+        pos_ = 0;
+        return s;
+    }
+
+    private Status writeUnbuffered(byte[] src, int offset, int size) {
+        try {
+            raf1.write(src, offset, size);
         } catch (IOException e) {
             e.printStackTrace();
-            return Status.ioerror(new Slice(e.getMessage()), null);
+            return Status.ioerror(new Slice(e.toString()), null);
         }
-
         return Status.OK();
     }
 
     @Override
     public Status Close() {
+        Status s = flushBuffer();
         try {
             raf1.close();
 //			System.err.println("Closed " + filename_);
@@ -104,17 +126,48 @@ public class DefaultWritableFile extends _WritableFile {
             e.printStackTrace();
             return Status.ioerror(new Slice(e.toString()), null);
         }
+        return s;
+    }
+
+    // There is no fallocate() in Java: write zeros past the end of the
+    // file, at their positions, without moving the append position. The
+    // blocks are then allocated before the appends reach them.
+    @Override
+    public Status Allocate(long length) {
+        try {
+            long size = fileChannel.size();
+            ByteBuffer zeros = ByteBuffer.allocate(kWritableFileBufferSize);
+            while (size < length) {
+                zeros.clear();
+                zeros.limit((int) Math.min(zeros.capacity(), length - size));
+                size += fileChannel.write(zeros, size);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return Status.ioerror(new Slice(e.toString()), null);
+        }
         return Status.OK();
     }
 
+    // Hand the buffered data to the operating system
     @Override
     public Status Flush() {
-        return Status.OK();
+        return flushBuffer();
     }
 
+    // Make the data durable: flush, then force it to the disk. Only the
+    // file's data (and the size) are forced, like fdatasync().
     @Override
     public Status Sync() {
-        //raf.force();
+        Status s = flushBuffer();
+        if (!s.ok()) {
+            return s;
+        }
+        try {
+            fileChannel.force(false);
+        } catch (IOException e) {
+            return Status.ioerror(new Slice(filename_), new Slice(e.toString()));
+        }
         return Status.OK();
     }
 
@@ -13,4 +13,11 @@ public abstract class _WritableFile {
 
     public abstract Status Sync();
 
+    // Reserve space for the file to grow to "length" bytes, so that
+    // appends up to there need not extend it. Only a hint; the default
+    // does nothing.
+    public Status Allocate(long length) {
+        return Status.OK();
+    }
+
 }
\ No newline at end of file
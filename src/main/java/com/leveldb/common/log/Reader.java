@@ -32,6 +32,17 @@ public class Reader {
     // position >= initial_offset within the file.
     public Reader(_SequentialFile file, Reporter reporter, boolean checksum,
                   long initial_offset) {
+        this(file, reporter, checksum, initial_offset, 0);
+    }
+
+    // Same as above, for the log numbered "log_number". A log written in
+    // the recyclable format ends at the first record of another log
+    // number, or at the first bad record: the rest of the file is left over
+    // from its use as an older log.
+    public Reader(_SequentialFile file, Reporter reporter, boolean checksum,
+                  long initial_offset, long log_number) {
+        log_number_ = (int) log_number;
+        recycled_ = false;
         file_ = file;
         reporter_ = reporter;
         checksum_ = checksum;
@@ -146,6 +157,12 @@ public class Reader {
                     }
                     return false;
 
+                case kOldRecord:
+                    // The end of a log written over a recycled file. A
+                    // fragmented record it cuts short was never completed,
+                    // drop it without complaint.
+                    return false;
+
                 case kBadRecord:
                     if (in_fragmented_record) {
                         ReportCorruption(scratch.length,
@@ -190,6 +207,11 @@ public class Reader {
     // Offset at which to start looking for the first record to return
     long initial_offset_;
 
+    // Low 32 bits of the number of the log being read, and whether it is
+    // in the recyclable format (see logformat.kRecyclableHeaderSize)
+    final int log_number_;
+    boolean recycled_;
+
     // Extend record types with the following special values
     static final int kEof = logformat.kMaxRecordType + 1,
     // Returned whenever we find an invalid physical record.
@@ -197,7 +219,10 @@ public class Reader {
     // * The record has an invalid CRC (ReadPhysicalRecord reports a drop)
     // * The record is a 0-length record (No drop is reported)
     // * The record is below constructor's initial_offset (No drop is reported)
-    kBadRecord = logformat.kMaxRecordType + 2;
+    kBadRecord = logformat.kMaxRecordType + 2,
+    // Returned at a record left over from a previous use of a recycled
+    // log file: the end of this log
+    kOldRecord = logformat.kMaxRecordType + 3;
 
     /**
      * Skips all blocks that are completely before "initial_offset_". Returns
@@ -274,11 +299,25 @@ public class Reader {
             byte[] header = buffer_.data();
             int a = (int) (header[4]) & 0xff;
             int b = (int) (header[5]) & 0xff;
-            int type = header[6];
+            int type = header[6] & 0xff;
             int length = a | (b << 8);
-            if (logformat.kHeaderSize + length > buffer_.size()) {
+            int header_size = logformat.kHeaderSize;
+            boolean recyclable = type >= RecordType.kRecyclableFullType
+                    && type <= RecordType.kRecyclableLastType;
+            if (recyclable) {
+                if (end_of_buffer_offset_ - buffer_.size() == 0) {
+                    // The log starts with a recyclable record
+                    recycled_ = true;
+                }
+                header_size = logformat.kRecyclableHeaderSize;
+            }
+            if (header_size + length > buffer_.size()) {
                 int drop_size = buffer_.size();
                 buffer_.clear();
+                if (recycled_) {
+                    eof_ = true;
+                    return kOldRecord;
+                }
                 ReportCorruption(drop_size, "bad record length");
                 return kBadRecord;
             }
@@ -291,10 +330,11 @@ public class Reader {
                 return kBadRecord;
             }
 
-            // Check crc
+            // Check crc, which covers the type, the log number if any, and
+            // the payload
             if (checksum_) {
                 int expected_crc = crc32java.Unmask(util.toInt(header));
-                int actual_crc = crc.Value(header, 6, 1 + length);
+                int actual_crc = crc.Value(header, 6, header_size - 6 + length);
                 if (actual_crc != expected_crc) {
                     // Drop the rest of the buffer since "length" itself may
                     // have
@@ -303,21 +343,35 @@ public class Reader {
                     // like a valid log record.
                     int drop_size = buffer_.size();
                     buffer_.clear();
+                    if (recycled_) {
+                        eof_ = true;
+                        return kOldRecord;
+                    }
                     ReportCorruption(drop_size, "checksum mismatch");
                     return kBadRecord;
                 }
             }
 
-            buffer_.remove_prefix(logformat.kHeaderSize + length);
+            buffer_.remove_prefix(header_size + length);
+
+            if (recyclable
+                    && util.toInt(header, logformat.kHeaderSize) != log_number_) {
+                buffer_.clear();
+                eof_ = true;
+                return kOldRecord;
+            }
 
             // Skip physical record that started before initial_offset_
-            if (end_of_buffer_offset_ - buffer_.size() - logformat.kHeaderSize
+            if (end_of_buffer_offset_ - buffer_.size() - header_size
                     - length < initial_offset_) {
                 result.clear();
                 return kBadRecord;
             }
 
-            result.setData_(header, logformat.kHeaderSize, length);
+            result.setData_(header, header_size, length);
+            if (recyclable) {
+                type -= RecordType.kRecyclableFullType - RecordType.kFullType;
+            }
             return type;
         }
 
@@ -13,8 +13,20 @@ public class Writer {
     // "*dest" must be initially empty.
     // "*dest" must remain live while this Writer is in use.
     public Writer(_WritableFile dest) {
+        this(dest, 0, false);
+    }
+
+    // Create a writer for log number "log_number". If "recyclable" is
+    // true, records are written in the recyclable format, so that "*dest"
+    // may be a recycled log file that still holds older records past the
+    // end of what is written.
+    public Writer(_WritableFile dest, long log_number, boolean recyclable) {
         dest_ = dest;
         block_offset_ = 0;
+        log_number_ = (int) log_number;
+        recyclable_ = recyclable;
+        header_size_ = recyclable ? logformat.kRecyclableHeaderSize
+                : logformat.kHeaderSize;
         for (int i = 0; i <= logformat.kMaxRecordType; i++) {
             byte[] b = new byte[]{(byte) i};
             type_crc_[i] = crc.Value(b, 1);
@@ -22,8 +34,9 @@ public class Writer {
     }
 
     public Status AddRecord(Slice slice) {
-        byte[] data = slice.data();
-        int ptr = 0;
+        // Fragments are written straight from the slice's buffer
+        byte[] data = slice.getBuffer();
+        int ptr = slice.getOffset();
         int left = slice.size();
 
         // Fragment the record if necessary and emit it. Note that if slice
@@ -34,24 +47,19 @@ public class Writer {
         do {
             int leftover = logformat.kBlockSize - block_offset_;
             assert (leftover >= 0);
-            if (leftover < logformat.kHeaderSize) {
+            if (leftover < header_size_) {
                 // Switch to a new block
                 if (leftover > 0) {
-                    // Fill the trailer with 0s(literal below relies on
-                    // kHeaderSize being 7)
-                    //assert (logformat.kHeaderSize == 7);
-                    dest_.Append(new Slice(new byte[]{0, 0, 0, 0, 0, 0},
-                            leftover));
+                    // Fill the trailer with 0s
+                    dest_.Append(new Slice(new byte[leftover], leftover));
                 }
                 block_offset_ = 0;
             }
 
-            // Invariant: we never leave < kHeaderSize bytes in a block.
-            assert (logformat.kBlockSize - block_offset_
-                    - logformat.kHeaderSize >= 0);
+            // Invariant: we never leave < header_size_ bytes in a block.
+            assert (logformat.kBlockSize - block_offset_ - header_size_ >= 0);
 
-            int avail = logformat.kBlockSize - block_offset_
-                    - logformat.kHeaderSize;
+            int avail = logformat.kBlockSize - block_offset_ - header_size_;
             int fragment_length = (left < avail) ? left : avail;
 
             int type;
@@ -65,10 +73,12 @@ public class Writer {
             } else {
                 type = RecordType.kMiddleType;
             }
+            if (recyclable_) {
+                type += RecordType.kRecyclableFullType - RecordType.kFullType;
+            }
 
-            // TODO: think about it: do not copy the bytes, add offset here
-            byte[] tmp = util.subN(data, ptr, fragment_length);
-            s = EmitPhysicalRecord(new RecordType(type), tmp, fragment_length);
+            s = EmitPhysicalRecord(new RecordType(type), data, ptr,
+                    fragment_length);
 
             ptr += fragment_length;
             left -= fragment_length;
@@ -79,6 +89,9 @@ public class Writer {
 
     private _WritableFile dest_;
     private int block_offset_; // Current offset in block
+    private final int log_number_; // Low 32 bits, for recyclable records
+    private final boolean recyclable_;
+    private final int header_size_;
 
     // crc32c values for all supported record types. These are
     // pre-computed to reduce the overhead of computing the crc of the
@@ -86,39 +99,47 @@ public class Writer {
     int[] type_crc_ = new int[logformat.kMaxRecordType + 1];
 
     /**
-     * header: crc(0..3)|n(4..5)|rectype(6)
+     * header: crc(0..3)|n(4..5)|rectype(6), followed by lognum(7..10)
+     * for the recyclable types
      * <p/>
      * write data to file dest_
      *
      * @param t
      * @param ptr
+     * @param offset where the payload starts in ptr
      * @param n
      * @return
      */
-    Status EmitPhysicalRecord(RecordType t, byte[] ptr, int n) {
+    Status EmitPhysicalRecord(RecordType t, byte[] ptr, int offset, int n) {
         assert (n <= 0x7fff); // Must fit in two bytes
-        assert (block_offset_ + logformat.kHeaderSize + n <= logformat.kBlockSize);
+        assert (block_offset_ + header_size_ + n <= logformat.kBlockSize);
 
         // Format the header
-        byte[] buf = new byte[logformat.kHeaderSize];
+        byte[] buf = new byte[header_size_];
         buf[4] = (byte) (n & 0xff);
         buf[5] = (byte) (n >> 8);
         buf[6] = (byte) (t.val);
 
-        // Compute the crc of the record type and the payload.
-        int crc_ = crc.Extend(type_crc_[t.val], ptr, n);
+        // Compute the crc of the record type, the log number of a
+        // recyclable record, and the payload.
+        int crc_ = type_crc_[t.val];
+        if (recyclable_) {
+            util.putInt(buf, logformat.kHeaderSize, log_number_);
+            crc_ = crc.Extend(crc_, buf, logformat.kHeaderSize, 4);
+        }
+        crc_ = crc.Extend(crc_, ptr, offset, n);
         crc_ = crc32java.Mask(crc_); // Adjust for storage
         util.putInt(buf, 0, crc_);
 
         // write the header and the payload
-        Status s = dest_.Append(new Slice(buf, logformat.kHeaderSize));
+        Status s = dest_.Append(new Slice(buf, header_size_));
         if (s.ok()) {
-            s = dest_.Append(new Slice(ptr, n));
+            s = dest_.Append(new Slice(ptr, offset, n));
             if (s.ok()) {
                 s = dest_.Flush();
             }
         }
-        block_offset_ += logformat.kHeaderSize + n;
+        block_offset_ += header_size_ + n;
         return s;
     }
 
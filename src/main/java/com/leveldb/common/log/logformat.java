@@ -1,10 +1,16 @@
 package com.leveldb.common.log;
 
 public class logformat {
-    public static final int kMaxRecordType = RecordType.kLastType;
+    public static final int kMaxRecordType = RecordType.kRecyclableLastType;
 
     public static final int kBlockSize = 32768;
 
     // Header is checksum (4 bytes), type (1 byte), length (2 bytes).
     public static final int kHeaderSize = 4 + 1 + 2;
+
+    // Recyclable header is checksum (4 bytes), length (2 bytes), type (1
+    // byte), log number (4 bytes). The checksum covers the log number, so
+    // that a record left over from the file's previous use as another log
+    // is told apart from the records of this one.
+    public static final int kRecyclableHeaderSize = 4 + 1 + 2 + 4;
 }
@@ -0,0 +1,15 @@
+package com.leveldb.common.options;
+
+//Options that control DB.ingestExternalFile()
+public class IngestExternalFileOptions {
+    // If true, the files are moved into the DB (renamed) instead of
+    // copied. They must then be on the file system of the DB, and are gone
+    // from their original place once ingested.
+    //
+    // Default: false
+    public boolean move_files;
+
+    public IngestExternalFileOptions() {
+        move_files = false;
+    }
+}
@@ -3,7 +3,14 @@ package com.leveldb.common.options;
 import com.leveldb.common.Cache;
 import com.leveldb.common.Comparator;
 import com.leveldb.common.Env;
+import com.leveldb.common.FilterPolicy;
 import com.leveldb.common.Logger;
+import com.leveldb.common.MergeOperator;
+import com.leveldb.common.SliceTransform;
+import com.leveldb.common.db.MemTableRepFactory;
+import com.leveldb.common.db.WriteBufferManager;
+
+import java.util.concurrent.Executor;
 
 //Options to control the behavior of a database (passed to DB::open)
 public class Options {
@@ -19,6 +26,14 @@ public class Options {
     // comparator provided to previous open calls on the same DB.
     public Comparator comparator;
 
+    // Combines the operands written with DB.merge() for a key into its
+    // value. Required to read keys that have merge operands.
+    //
+    // REQUIRES: the same operator (or a compatible one) must be supplied on
+    // every open of a DB that has merge operands.
+    // Default: null
+    public MergeOperator merge_operator;
+
     // If true, the database will be created if it is missing.
     // Default: false
     public boolean create_if_missing;
@@ -59,6 +74,15 @@ public class Options {
     // Default: 4MB
     public int write_buffer_size;
 
+    // Maximum number of write buffers (memtables) held in memory: the one
+    // being written plus up to max_write_buffer_number - 1 immutable ones
+    // waiting to be flushed. Writers only block on a flush once all of
+    // them are full. Several queued memtables are flushed together into
+    // one level-0 file.
+    //
+    // Default: 2
+    public int max_write_buffer_number;
+
     // Number of open files that can be used by the DB. You may need to
     // increase this if your database has a large working set (budget
     // one open file per 2MB of working set).
@@ -105,36 +129,187 @@ public class Options {
     // efficiently detect that and will switch to uncompressed mode.
     public CompressionType compression;
 
+    // If non-null, use the specified filter policy to reduce disk reads.
+    // Many applications will benefit from passing the result of
+    // FilterPolicy.newBloomFilterPolicy() here: a Get for a key the filter
+    // of a table rules out then reads none of the blocks of that table.
+    //
+    // Default: null
+    public FilterPolicy filter_policy;
+
+    // If non-null, maps user keys to their prefixes. Every table file then
+    // keeps a bloom filter over the prefixes of its keys, and so does the
+    // bloom filter of every memtable (see memtable_bloom_size_ratio), so
+    // that an iterator in prefix-seek mode (ReadOptions.prefix) leaves out
+    // the ones that do not have the prefix. Tables written with an
+    // extractor of another name are read as if they had no prefix filter.
+    //
+    // Default: null
+    public SliceTransform prefix_extractor;
+
+    // If true, memtable entries are packed into direct (off-heap) buffers
+    // instead of heap byte arrays. This keeps large write buffers out of
+    // the garbage collector's way, at the cost of copying keys and values
+    // out of the memtable on every read.
+    //
+    // Default: false
+    public boolean direct_memtable_arena;
+
+    // If true, writers whose batches are committed together as one group
+    // insert their own batch into the memtable in parallel once the group
+    // is in the log, instead of the group leader inserting all of them.
+    // Helps when many threads write concurrently on a machine with many
+    // cores; for a single writer it only adds overhead.
+    //
+    // Default: false
+    public boolean allow_concurrent_memtable_write;
+
+    // If true, a group of writes leaves the write queue as soon as it is in
+    // the log, and is applied to the memtable while the next group is
+    // being logged. Updates still become visible in sequence order. Helps
+    // when many threads issue small writes.
+    //
+    // Default: false
+    public boolean enable_pipelined_write;
+
+    // Creates the index each memtable keeps over its entries. Besides the
+    // default skiplist, MemTableRepFactory offers a hash-bucketed skiplist
+    // for point-lookup heavy workloads and an append-only vector for
+    // write-only loads. newSkipListRepFactory(true) speeds up reverse
+    // iteration over the memtable.
+    //
+    // Default: MemTableRepFactory.newSkipListRepFactory()
+    public MemTableRepFactory memtable_factory;
+
+    // If > 0, every memtable keeps a bloom filter over the user keys added
+    // to it, sized to this fraction of write_buffer_size, and a Get for a
+    // key the filter rules out skips searching that memtable. The filter
+    // counts towards the memtable's memory usage. 0.02 gives roughly 1%
+    // false positives for 100 byte entries.
+    //
+    // Default: 0 (no memtable bloom filter)
+    public double memtable_bloom_size_ratio;
+
+    // Runs the work of DB.writeAsync() and DB.getAsync(): leading a write
+    // group whose first writer is asynchronous, reads, and completing the
+    // returned futures. It is not shut down by the DB.
+    //
+    // If null, the DB creates one with env.newAsyncExecutor() and shuts it
+    // down on close.
+    // Default: null
+    public Executor async_executor;
+
+    // If true, no write goes to the log, as if every write set
+    // WriteOptions.disable_wal. Only for a DB whose contents can be
+    // rebuilt from elsewhere.
+    //
+    // Default: false
+    public boolean disable_wal;
+
+    // The rate, in bytes per second, writes are first slowed down to when
+    // compactions fall behind (too many level-0 files, levels well over
+    // their target size, or immutable memtables piling up). The further
+    // behind, the slower, down to a sixteenth of this rate just before
+    // writes are stopped.
+    //
+    // Default: 16MB/s
+    public long delayed_write_rate;
+
+    // If true, a new log file is preallocated to the size the log is
+    // expected to reach (a little over write_buffer_size), so that its
+    // appends do not have to extend it. There is no fallocate() in Java,
+    // so this writes zeros up front; best used with recycle_log_file_num.
+    //
+    // Default: false
+    public boolean preallocate_log_files;
+
+    // If > 0, up to this many obsolete log files are kept and reused for
+    // new logs instead of being deleted, so that their space is already
+    // allocated. Logs are then written in a format that lets recovery tell
+    // the records of a log from those left over in a recycled file.
+    //
+    // Default: 0
+    public int recycle_log_file_num;
+
+    // Number of threads used to replay the logs when the DB is opened.
+    // They read, checksum and decode log records ahead of the replay and
+    // write out the recovered memtables, while the batches are applied in
+    // sequence order by the thread opening the DB. 1 replays serially.
+    //
+    // Default: 4
+    public int recovery_threads;
+
+    // If non-null, bounds the memory of the memtables of all the DBs
+    // sharing it (see WriteBufferManager): once they hold more than its
+    // budget in total, the largest memtable is flushed, however far below
+    // write_buffer_size it is.
+    //
+    // Default: null (each DB only bounded by write_buffer_size and
+    // max_write_buffer_number)
+    public WriteBufferManager write_buffer_manager;
+
     // Create an Options object with default values for all fields.
     public Options() {
         comparator = (Comparator.bytewiseComparator());
+        merge_operator = null;
         create_if_missing = false;
         error_if_exists = false;
         paranoid_checks = false;
         env = Env.Default();
         info_log = null;
         write_buffer_size = 4 << 20;
+        max_write_buffer_number = 2;
         max_open_files = 1000;
         block_cache = null;
         block_size = 4096;
         block_restart_interval = 16;
         compression = new CompressionType(CompressionType.kNoCompression);// kSnappyCompression);
+        filter_policy = null;
+        prefix_extractor = null;
+        direct_memtable_arena = false;
+        allow_concurrent_memtable_write = false;
+        enable_pipelined_write = false;
+        memtable_factory = MemTableRepFactory.newSkipListRepFactory();
+        memtable_bloom_size_ratio = 0;
+        async_executor = null;
+        disable_wal = false;
+        delayed_write_rate = 16 << 20;
+        preallocate_log_files = false;
+        recycle_log_file_num = 0;
+        recovery_threads = 4;
+        write_buffer_manager = null;
     }
 
     // wlu, 2012-7-7, snapshot
     public void Options_(Options other) {
         this.comparator = other.comparator;
+        this.merge_operator = other.merge_operator;
         this.create_if_missing = other.create_if_missing;
         this.error_if_exists = other.error_if_exists;
         this.paranoid_checks = other.paranoid_checks;
         this.env = other.env;
         this.info_log = other.info_log;
         this.write_buffer_size = other.write_buffer_size;
+        this.max_write_buffer_number = other.max_write_buffer_number;
         this.max_open_files = other.max_open_files;
         this.block_cache = other.block_cache;
         this.block_size = other.block_size;
         this.block_restart_interval = other.block_restart_interval;
         this.compression = other.compression;
+        this.filter_policy = other.filter_policy;
+        this.prefix_extractor = other.prefix_extractor;
+        this.direct_memtable_arena = other.direct_memtable_arena;
+        this.allow_concurrent_memtable_write = other.allow_concurrent_memtable_write;
+        this.enable_pipelined_write = other.enable_pipelined_write;
+        this.memtable_factory = other.memtable_factory;
+        this.memtable_bloom_size_ratio = other.memtable_bloom_size_ratio;
+        this.async_executor = other.async_executor;
+        this.disable_wal = other.disable_wal;
+        this.delayed_write_rate = other.delayed_write_rate;
+        this.preallocate_log_files = other.preallocate_log_files;
+        this.recycle_log_file_num = other.recycle_log_file_num;
+        this.recovery_threads = other.recovery_threads;
+        this.write_buffer_manager = other.write_buffer_manager;
     }
 
 };
@@ -1,5 +1,6 @@
 package com.leveldb.common.options;
 
+import com.leveldb.common.Slice;
 import com.leveldb.common.db.Snapshot;
 
 //Options that control read operations
@@ -21,9 +22,18 @@ public class ReadOptions {
     // Default: NULL
     public Snapshot snapshot;
 
+    // If non-NULL, an iterator is in prefix-seek mode: it only returns
+    // the keys that Options.prefix_extractor maps to "prefix", and its
+    // seeks should target such keys. The memtables and table files whose
+    // prefix bloom filters rule the prefix out are left out of it
+    // altogether. Only for a DB with a prefix_extractor; ignored by gets.
+    // Default: NULL
+    public Slice prefix;
+
     public ReadOptions() {
         verify_checksums = false;
         fill_cache = true;
         snapshot = null;
+        prefix = null;
     }
 }
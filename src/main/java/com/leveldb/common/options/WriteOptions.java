@@ -22,6 +22,15 @@ public class WriteOptions {
     // Default: false
     public boolean sync;
 
+    // If true, the write goes to the memtable only, not to the log. It is
+    // lost if the process crashes before the memtable is flushed: the DB
+    // then comes back at its last flushed state (plus the logged writes).
+    // Meant for data that can be rebuilt from elsewhere. Cannot be
+    // combined with sync.
+    //
+    // Default: false
+    public boolean disable_wal;
+
     // If "post_write_snapshot" is non-NULL, and the write succeeds,
     // *post_write_snapshot will be modified to point to a snapshot of
     // the DB state immediately after this write. The caller must call
@@ -36,6 +45,7 @@ public class WriteOptions {
 
     public WriteOptions() {
         sync = false;
+        disable_wal = false;
         post_write_snapshot = null;
     }
 }
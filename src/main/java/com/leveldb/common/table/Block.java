@@ -8,6 +8,8 @@ import com.leveldb.util.coding;
 import com.leveldb.util.crc32java;
 import com.leveldb.util.util;
 
+import java.util.Arrays;
+
 // 2012-4-5, need to test...
 // 2012-4-10, reviewed
 public class Block {
@@ -364,6 +366,83 @@ public class Block {
         }
     }
 
+    // Results of Seek()
+    public static final int kSeekEnded = 0; // the block ended
+    public static final int kSeekStopped = 1; // the handler asked to stop
+    public static final int kSeekCorrupted = 2; // a bad entry was met
+
+    /**
+     * Hand the entries from the first one at or past "target" on to
+     * "handler", until it asks to stop or the block ends, without building
+     * an iterator: Iter.seek()'s binary search over the restart array, then
+     * a scan that assembles the keys in one reused buffer. The values handed
+     * over point into the block contents.
+     *
+     * @return kSeekStopped, kSeekEnded or kSeekCorrupted
+     */
+    public int Seek(Comparator cmp, Slice target, Table.ResultHandler handler) {
+        if (size_ < 2 * util.SIZEOF_INT) {
+            return kSeekCorrupted;
+        }
+        int num_restarts = NumRestarts();
+        if (num_restarts == 0) {
+            return kSeekEnded;
+        }
+        int restarts = restart_offset_;
+        threeInt entry = new threeInt();
+        ByteCollection p = new ByteCollection(data_, 0);
+
+        // Binary search in restart array to find the last restart point with
+        // a key < target
+        int left = 0;
+        int right = num_restarts - 1;
+        while (left < right) {
+            int mid = (left + right + 1) / 2;
+            int region_offset = util.toInt(data_, restarts + mid
+                    * util.SIZEOF_INT);
+            if (!DecodeEntry(p, region_offset, restarts, entry)
+                    || entry.shared != 0) {
+                return kSeekCorrupted;
+            }
+            Slice mid_key = new Slice(data_, p.curr_pos, entry.non_shared);
+            if (cmp.compare(mid_key, target) < 0) {
+                left = mid;
+            } else {
+                right = mid - 1;
+            }
+        }
+
+        // Linear scan from there, handing over the entries from the first
+        // one >= target
+        byte[] key = new byte[64];
+        int key_size = 0;
+        boolean found = false;
+        int pos = util.toInt(data_, restarts + left * util.SIZEOF_INT);
+        while (pos < restarts) {
+            if (!DecodeEntry(p, pos, restarts, entry)
+                    || key_size < entry.shared) {
+                return kSeekCorrupted;
+            }
+            key_size = entry.shared + entry.non_shared;
+            if (key_size > key.length) {
+                key = Arrays.copyOf(key, Math.max(key_size, 2 * key.length));
+            }
+            System.arraycopy(data_, p.curr_pos, key, entry.shared,
+                    entry.non_shared);
+            int value_offset = p.curr_pos + entry.non_shared;
+            Slice key_slice = new Slice(key, 0, key_size);
+            if (found || cmp.compare(key_slice, target) >= 0) {
+                found = true;
+                if (!handler.handleResult(key_slice, new Slice(data_,
+                        value_offset, entry.value_length))) {
+                    return kSeekStopped;
+                }
+            }
+            pos = value_offset + entry.value_length;
+        }
+        return kSeekEnded;
+    }
+
     /**
      * Helper routine: decode the next block entry starting at "p", storing the
      * number of shared key bytes, non_shared key bytes, and the length of the
@@ -441,7 +520,10 @@ public class Block {
         }
 
         // Check the crc of the type and the block contents
-        byte[] data = iocontents.data(); // Pointer to where Read put the data
+        // Pointer to where Read put the data (Slice.data() would copy it,
+        // and a copy is never cached)
+        byte[] data = iocontents.getOffset() == 0 ? iocontents.getBuffer()
+                : iocontents.data();
         if (options.verify_checksums) {
             // get the value @ ofs n+1
             long crc = crc32java.Unmask(util.toInt(data, n + 1));
@@ -510,4 +592,33 @@ public class Block {
 
         return may_cache;
     }
+
+    // Read the contents of the block at "handle" as they are, for a block
+    // that is not a Block of entries, such as a filter block. Checks the
+    // crc like ReadBlock().
+    public static Slice ReadBlockContents(_RandomAccessFile file,
+                                          ReadOptions options, BlockHandle handle)
+            throws Exception {
+        int n = (int) handle.size();
+        Slice iocontents = new Slice();
+        file.Read(handle.offset(), n + Footer.kBlockTrailerSize, iocontents);
+        if (iocontents.size() != n + Footer.kBlockTrailerSize) {
+            throw new Exception("truncated block read");
+        }
+
+        byte[] data = iocontents.getOffset() == 0 ? iocontents.getBuffer()
+                : iocontents.data();
+        if (options.verify_checksums) {
+            long crc = crc32java.Unmask(util.toInt(data, n + 1));
+            crc32java crc32 = new crc32java();
+            long actual = crc32.Value(data, n + 1);
+            if (actual != crc) {
+                throw new Exception("block checksum mismatch");
+            }
+        }
+        if (data[n] != CompressionType.kNoCompression) {
+            throw new Exception("bad block type");
+        }
+        return new Slice(data, 0, n);
+    }
 }
@@ -0,0 +1,94 @@
+package com.leveldb.common.table;
+
+import com.leveldb.common.ByteVector;
+import com.leveldb.common.FilterPolicy;
+import com.leveldb.common.Slice;
+import com.leveldb.util.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// A filter block is stored near the end of a Table file. It contains
+// filters (e.g., bloom filters) for all data blocks in the table combined
+// into a single filter block.
+//
+// A FilterBlockBuilder is used to construct all of the filters for a
+// particular Table. It generates a single string which is stored as
+// a special block in the Table.
+//
+// The sequence of calls to FilterBlockBuilder must match the regexp:
+// (StartBlock AddKey*)* Finish
+//
+// Format:
+// [filter 0]
+// [filter 1]
+// ...
+// [filter N-1]
+// [offset of filter 0]                  : 4 bytes
+// [offset of filter 1]                  : 4 bytes
+// ...
+// [offset of filter N-1]                : 4 bytes
+// [offset of beginning of offset array] : 4 bytes
+// lg(base)                              : 1 byte
+//
+// Filter i covers the data blocks starting in [i*base, (i+1)*base) of
+// the file.
+public class FilterBlockBuilder {
+    // Generate new filter every 2KB of data
+    static final int kFilterBaseLg = 11;
+    static final int kFilterBase = 1 << kFilterBaseLg;
+
+    private final FilterPolicy policy_;
+    private final List<Slice> keys_; // Keys of the current filter
+    private final ByteVector result_; // Filter data computed so far
+    private final List<Integer> filter_offsets_;
+
+    public FilterBlockBuilder(FilterPolicy policy) {
+        policy_ = policy;
+        keys_ = new ArrayList<Slice>();
+        result_ = new ByteVector();
+        filter_offsets_ = new ArrayList<Integer>();
+    }
+
+    // A data block starts at offset "block_offset" of the file
+    public void StartBlock(long block_offset) {
+        long filter_index = block_offset / kFilterBase;
+        assert (filter_index >= filter_offsets_.size());
+        while (filter_index > filter_offsets_.size()) {
+            GenerateFilter();
+        }
+    }
+
+    public void AddKey(Slice key) {
+        keys_.add(new Slice(key.data()));
+    }
+
+    public Slice Finish() {
+        if (!keys_.isEmpty()) {
+            GenerateFilter();
+        }
+
+        // Append array of per-filter offsets
+        int array_offset = result_.getSize();
+        for (int i = 0; i < filter_offsets_.size(); i++) {
+            result_.append(util.toBytes(filter_offsets_.get(i)));
+        }
+
+        result_.append(util.toBytes(array_offset));
+        // Save encoding parameter in result
+        result_.append(new byte[]{kFilterBaseLg});
+        return new Slice(result_.getData());
+    }
+
+    private void GenerateFilter() {
+        filter_offsets_.add(result_.getSize());
+        if (keys_.isEmpty()) {
+            // Fast path if there are no keys for this filter
+            return;
+        }
+
+        // Generate filter for current set of keys and append to result_.
+        result_.append(policy_.createFilter(keys_));
+        keys_.clear();
+    }
+}
@@ -0,0 +1,54 @@
+package com.leveldb.common.table;
+
+import com.leveldb.common.FilterPolicy;
+import com.leveldb.common.Slice;
+import com.leveldb.util.util;
+
+// Reads a block written by FilterBlockBuilder
+public class FilterBlockReader {
+    private final FilterPolicy policy_;
+    private final byte[] data_; // Contents of the filter block
+    private final int base_; // Offset in data_ of the filter block
+    private int offset_; // Beginning of offset array (relative to base_)
+    private int num_; // Number of entries in offset array
+    private int base_lg_; // Encoding parameter (see kFilterBaseLg)
+
+    // REQUIRES: "contents" and policy must stay live while this is live.
+    public FilterBlockReader(FilterPolicy policy, Slice contents) {
+        policy_ = policy;
+        data_ = contents.getBuffer();
+        base_ = contents.getOffset();
+        offset_ = 0;
+        num_ = 0;
+        base_lg_ = 0;
+        int n = contents.size();
+        if (n < 5) {
+            return; // 1 byte for base_lg_ and 4 for start of offset array
+        }
+        base_lg_ = data_[base_ + n - 1];
+        int last_word = util.toInt(data_, base_ + n - 5);
+        if (last_word < 0 || last_word > n - 5) {
+            return;
+        }
+        offset_ = last_word;
+        num_ = (n - 5 - last_word) / 4;
+    }
+
+    // Whether "key" may be in the data block at "block_offset" of the file
+    public boolean KeyMayMatch(long block_offset, Slice key) {
+        long index = block_offset >> base_lg_;
+        if (index < num_) {
+            int pos = base_ + offset_ + (int) index * 4;
+            int start = util.toInt(data_, pos);
+            int limit = util.toInt(data_, pos + 4);
+            if (start <= limit && limit <= offset_) {
+                Slice filter = new Slice(data_, base_ + start, limit - start);
+                return policy_.keyMayMatch(key, filter);
+            } else if (start == limit) {
+                // Empty filters do not match any keys
+                return false;
+            }
+        }
+        return true; // Errors are treated as potential matches
+    }
+}
@@ -1,6 +1,9 @@
 package com.leveldb.common.table;
 
+import com.leveldb.common.Comparator;
 import com.leveldb.common.Slice;
+import com.leveldb.common.SliceTransform;
+import com.leveldb.common.Table;
 import com.leveldb.common.Status;
 import com.leveldb.common.file._WritableFile;
 import com.leveldb.common.options.CompressionType;
@@ -8,12 +11,18 @@ import com.leveldb.common.options.Options;
 import com.leveldb.util.crc32java;
 import com.leveldb.util.util;
 
+import java.util.ArrayList;
+import java.util.List;
+
 public class TableBuilder {
     // Create a builder that will store the contents of the table it is
     // building in file. Does not close the file. It is up to the
     // caller to close the file after calling Finish().
     public TableBuilder(Options options, _WritableFile file) {
         rep_ = new Rep(options, file);
+        if (rep_.filter_block != null) {
+            rep_.filter_block.StartBlock(0);
+        }
     }
 
     // REQUIRES: Either Finish() or Abandon() has been called.
@@ -64,6 +73,20 @@ public class TableBuilder {
             rep_.pending_index_entry = false;
         }
 
+        if (rep_.filter_block != null) {
+            rep_.filter_block.AddKey(key);
+        }
+        SliceTransform prefix_extractor = rep_.options.prefix_extractor;
+        if (prefix_extractor != null && prefix_extractor.inDomain(key)) {
+            // Keys come in order, so equal prefixes mostly come in a row
+            Slice prefix = prefix_extractor.transform(key);
+            if (rep_.last_prefix == null
+                    || prefix.compareTo(rep_.last_prefix) != 0) {
+                rep_.prefixes.add(prefix);
+                rep_.last_prefix = prefix;
+            }
+        }
+
         // r.last_key.assign(key.data(), key.size());
         rep_.last_key = key.data();
         rep_.num_entries++;
@@ -92,6 +115,9 @@ public class TableBuilder {
             rep_.pending_index_entry = true;
             rep_.status = rep_.file.Flush();
         }
+        if (rep_.filter_block != null) {
+            rep_.filter_block.StartBlock(rep_.offset);
+        }
 
     }
 
@@ -108,11 +134,45 @@ public class TableBuilder {
         Flush();
         assert (!rep_.closed);
         rep_.closed = true;
-        BlockHandle metaindex_block_handle = new BlockHandle(); // dummy
-        // currenly
+        BlockHandle filter_block_handle = new BlockHandle();
+        BlockHandle prefix_filter_handle = new BlockHandle();
+        BlockHandle metaindex_block_handle = new BlockHandle();
         BlockHandle index_block_handle = new BlockHandle(); // TODO
+
+        // Write filter block
+        if (ok() && rep_.filter_block != null) {
+            WriteRawBlock(rep_.filter_block.Finish(), new CompressionType(
+                    CompressionType.kNoCompression), filter_block_handle);
+        }
+
+        // Write prefix filter block
+        if (ok() && rep_.options.prefix_extractor != null) {
+            WriteRawBlock(new Slice(Table.kPrefixFilterPolicy
+                    .createFilter(rep_.prefixes)), new CompressionType(
+                    CompressionType.kNoCompression), prefix_filter_handle);
+        }
+
+        // Write metaindex block
         if (ok()) {
-            BlockBuilder meta_index_block = new BlockBuilder(rep_.options);
+            // The metaindex block is keyed by names, whatever the comparator
+            // of the table
+            Options meta_index_options = new Options();
+            meta_index_options.Options_(rep_.options);
+            meta_index_options.comparator = Comparator.bytewiseComparator();
+            BlockBuilder meta_index_block = new BlockBuilder(meta_index_options);
+            if (rep_.filter_block != null) {
+                // Add mapping from "filter.Name" to location of filter data
+                String key = Table.kFilterBlockPrefix
+                        + rep_.options.filter_policy.name();
+                meta_index_block.Add(new Slice(key), new Slice(
+                        filter_block_handle.EncodeTo()));
+            }
+            if (rep_.options.prefix_extractor != null) {
+                String key = Table.kPrefixFilterBlockPrefix
+                        + rep_.options.prefix_extractor.name();
+                meta_index_block.Add(new Slice(key), new Slice(
+                        prefix_filter_handle.EncodeTo()));
+            }
             // TODO(postrelease): Add stats and other meta blocks
             WriteBlock(meta_index_block, metaindex_block_handle);
         }
@@ -203,6 +263,15 @@ public class TableBuilder {
 			break;
 		}*/
         }
+        WriteRawBlock(block_contents, type, handle);
+        r.compressed_output = null;
+        block.Reset();
+    }
+
+    // Write "block_contents" as they are, followed by the trailer
+    void WriteRawBlock(Slice block_contents, CompressionType type,
+                       BlockHandle handle) {
+        Rep r = rep_;
         handle.set_offset(r.offset);
         handle.set_size(block_contents.size());
         r.status = r.file.Append(block_contents);
@@ -226,9 +295,6 @@ public class TableBuilder {
                 r.offset += block_contents.size() + Footer.kBlockTrailerSize;
             }
         }
-
-        r.compressed_output = null;
-        block.Reset();
     }
 
     class Rep {
@@ -239,6 +305,10 @@ public class TableBuilder {
         Status status;
         BlockBuilder data_block;
         BlockBuilder index_block;
+        FilterBlockBuilder filter_block; // null without a filter policy
+        // Distinct prefixes of the keys, without a prefix extractor empty
+        List<Slice> prefixes = new ArrayList<Slice>();
+        Slice last_prefix;
         byte[] last_key;
         long num_entries;
         boolean closed; // Either Finish() or Abandon() has been called.
@@ -265,6 +335,8 @@ public class TableBuilder {
             offset = 0;
             data_block = new BlockBuilder(options);
             index_block = new BlockBuilder(index_block_options);
+            filter_block = opt.filter_policy == null ? null
+                    : new FilterBlockBuilder(opt.filter_policy);
             num_entries = 0;
             closed = false;
             pending_index_entry = false;
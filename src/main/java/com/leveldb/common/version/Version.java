@@ -12,6 +12,9 @@ import com.leveldb.util.util;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Version {
     // constant values
@@ -156,8 +159,14 @@ public class Version {
                         "FileReader invoked with unexpected value"), null));
             } else {
                 byte number_size[] = file_value.data();
-                return cache.NewIterator(options, util.toLong(number_size, 0),
-                        util.toLong(number_size, 8), null);
+                long number = util.toLong(number_size, 0);
+                long size = util.toLong(number_size, 8);
+                if (options.prefix != null
+                        && !cache.PrefixMayMatch(number, size, options.prefix)) {
+                    // Prefix-seek mode: nothing in this file to visit
+                    return Iterator.newEmptyIterator();
+                }
+                return cache.NewIterator(options, number, size, null);
             }
         }
 
@@ -165,13 +174,20 @@ public class Version {
 
     // Append to iters a sequence of iterators that will
     // yield the contents of this Version when merged together.
+    // In prefix-seek mode (readoption.prefix), the files whose prefix
+    // filter rules out the prefix are left out.
     // REQUIRES: This version has been saved (see VersionSet::saveTo)
     public void AddIterators(ReadOptions readoption, List<Iterator> iters) {
         // Merge all level zero files together since they may overlap
         for (int i = 0; i < files_.get(0).size(); i++) {
-            iters.add(vset_.table_cache_.NewIterator(readoption, files_.get(0)
-                            .get(i).getNumber(), files_.get(0).get(i).getFile_size(),
-                    null));
+            FileMetaData f = files_.get(0).get(i);
+            if (readoption.prefix != null
+                    && !vset_.table_cache_.PrefixMayMatch(f.getNumber(),
+                    f.getFile_size(), readoption.prefix)) {
+                continue;
+            }
+            iters.add(vset_.table_cache_.NewIterator(readoption,
+                    f.getNumber(), f.getFile_size(), null));
         }
 
         // For levels > 0, we can use a concatenating iterator that sequentially
@@ -195,36 +211,101 @@ public class Version {
 
     /*
      * If "iter" points at a value or deletion for user_key, store either the
-     * value, or a notFound error and return true. Else return false.
+     * value, or a notFound error and return true. Else return false. Merge
+     * operands for user_key on the way are added to "merge" and skipped.
      */
     boolean GetValue(Comparator cmp, Iterator iter, Slice user_key,
-                     Slice value, Status[] s) {
-        if (!iter.valid()) {
-            return false; // not stop
-        }
-        ParsedInternalKey parsed_key = InternalKey
-                .ParseInternalKey_(iter.key());
-
-        if (parsed_key == null) {
-            s[0] = Status.corruption(new Slice("corrupted key for "), user_key);
-            return true; // stop with error
-        }
-        if (cmp.compare(parsed_key.user_key, user_key) != 0) {
-            return false; // not stop
-        }
-        switch (parsed_key.type.value) {
-            case ValueType.kTypeDeletion:
-                s[0] = Status.notFound(new Slice(), null);
-                // Use an empty error message for speed
-                break; // stop with error
-            case ValueType.kTypeValue: {
-                Slice v = iter.value();
-                value.setData_(v.data());
-                // value->assign(v.data(), v.size());
-                break; // stop and set the data, but ...
+                     Slice value, Status[] s, MergeContext merge) {
+        for (; iter.valid(); iter.next()) {
+            ParsedInternalKey parsed_key = InternalKey
+                    .ParseInternalKey_(iter.key());
+
+            if (parsed_key == null) {
+                s[0] = Status.corruption(new Slice("corrupted key for "), user_key);
+                return true; // stop with error
+            }
+            if (cmp.compare(parsed_key.user_key, user_key) != 0) {
+                return false; // not stop
+            }
+            switch (parsed_key.type.value) {
+                case ValueType.kTypeDeletion:
+                    s[0] = Status.notFound(new Slice(), null);
+                    // Use an empty error message for speed
+                    return true; // stop with error
+                case ValueType.kTypeValue: {
+                    Slice v = iter.value();
+                    value.setData_(v.data());
+                    // value->assign(v.data(), v.size());
+                    return true; // stop and set the data, but ...
+                }
+                case ValueType.kTypeMerge:
+                    // keep looking for the value under it
+                    merge.add(new Slice(iter.value().data()));
+                    break;
+            }
+        }
+        return false; // not stop
+    }
+
+    // Does what GetValue() does, from the entries Table.InternalGet() hands
+    // over instead of an iterator
+    static class Saver implements Table.ResultHandler {
+        final Comparator ucmp;
+        final Slice user_key;
+        final Status[] s;
+        final MergeContext merge;
+        boolean done = false;
+        Slice value = new Slice(); // points into the block it was found in
+
+        Saver(Comparator ucmp, Slice user_key, Status[] s, MergeContext merge) {
+            this.ucmp = ucmp;
+            this.user_key = user_key;
+            this.s = s;
+            this.merge = merge;
+        }
+
+        @Override
+        public boolean handleResult(Slice key, Slice v) {
+            int n = key.size();
+            byte type = n >= 8 ? key.getBuffer()[key.getOffset() + n - 1] : -1;
+            if (type < 0 || type > ValueType.kTypeMerge) {
+                s[0] = Status.corruption(new Slice("corrupted key for "), user_key);
+                done = true; // stop with error
+                return false;
+            }
+            if (ucmp.compare(new Slice(key.getBuffer(), key.getOffset(), n - 8),
+                    user_key) != 0) {
+                return false; // not stop
+            }
+            switch (type) {
+                case ValueType.kTypeDeletion:
+                    s[0] = Status.notFound(new Slice(), null);
+                    // Use an empty error message for speed
+                    done = true; // stop with error
+                    return false;
+                case ValueType.kTypeValue:
+                    value = v;
+                    done = true; // stop and set the data
+                    return false;
+                default:
+                    // keep looking for the value under it
+                    merge.add(new Slice(v.data()));
+                    return true;
             }
         }
-        return true;
+    }
+
+    // Apply the operands in "merge" to what GetValue() found under them:
+    // the value in "value", or nothing if s[0] is NotFound.
+    static void FinishMerge(MergeContext merge, Slice value, Status[] s) {
+        Status status = new Status();
+        Slice merged = merge.merge(s[0].isNotFound() ? null : value, status);
+        if (merged == null) {
+            s[0] = status;
+        } else {
+            s[0] = Status.OK();
+            value.setData_(merged.data());
+        }
     }
 
     // sort a list of FileMetaData according to number and return
@@ -280,11 +361,14 @@ public class Version {
     /*
      * get the value of a given lookup key from all files on each level return
      * the value as a byte array s must be an array with length 1
+     *
+     * "merge" holds the merge operands for the key found in the memtables.
+     * The ones found in the files are added, and all of them applied to the
+     * value under them.
      */
     public byte[] Get(ReadOptions options, LookupKey k, GetStats stats,
-                      Status[] s) {
+                      Status[] s, MergeContext merge) {
         Slice value = new Slice();
-        byte value_array[] = new byte[0];
         Slice ikey = k.internal_key();
         Slice user_key = k.user_key();
         Comparator ucmp = vset_.icmp_.user_comparator();
@@ -359,32 +443,253 @@ public class Version {
                 last_file_read = f;
                 last_file_read_level = level;
 
-                Iterator iter = vset_.table_cache_.NewIterator(options,
-                        f.getNumber(), f.getFile_size(), null);
-                iter.seek(ikey);
-
-                boolean done = GetValue(ucmp, iter, user_key, value, s);
-                value_array = util.add(value_array, value.data()); // add value
-                // each loop
-                if (!iter.status().ok()) {
-                    s[0] = iter.status();
-                    iter = null;
-                    return value_array;
-                } else {
-                    iter = null;
-                    if (done) { // Here is the normal return. I think only one
-                        // value is found, which is the 1st one
-                        return value_array;
+                Saver saver = new Saver(ucmp, user_key, s, merge);
+                Status status = vset_.table_cache_.Get(options,
+                        f.getNumber(), f.getFile_size(), ikey, saver);
+                if (!status.ok()) {
+                    s[0] = status;
+                    return value.data();
+                }
+                if (saver.done) {
+                    // Here is the normal return: only the 1st value found
+                    // counts
+                    value = saver.value;
+                    if (!merge.empty() && (s[0].ok() || s[0].isNotFound())) {
+                        FinishMerge(merge, value, s);
                     }
+                    return value.data();
                 }
             }
         }
 
         s[0] = Status.notFound(new Slice(), null); // Use an empty error message
         // for speed
+        if (!merge.empty()) {
+            // Operands with no value under them
+            FinishMerge(merge, value, s);
+            return s[0].ok() ? value.data() : null;
+        }
         return null;
     }
 
+    // The keys of a MultiGet() that have to be looked for in one file, and
+    // what was found for them
+    private static class FileLookup {
+        FileMetaData file;
+        List<Integer> keys = new ArrayList<Integer>(); // in key order
+        boolean[] done;
+        Slice[] values;
+        Status[] status;
+        MergeContext[] merges; // operands found in this file
+    }
+
+    /*
+     * Like Get(), for the lookup keys "keys", sorted by user key, and their
+     * merge contexts "merges". For each key i sets s[i] to OK and values[i]
+     * to its value, to NotFound, or to an error.
+     *
+     * The files are searched one level at a time. On each level the keys
+     * left are grouped by the file they may be in, and each file is read by
+     * a single iterator seeking the keys in order, so that no block is read
+     * twice. If "executor" is non-null and a level needs several files,
+     * they are read in parallel.
+     */
+    public void MultiGet(final ReadOptions options, final List<LookupKey> keys,
+                         MergeContext[] merges, Slice[] values, Status[] s,
+                         Executor executor, GetStats stats) {
+        int n = keys.size();
+        Comparator ucmp = vset_.icmp_.user_comparator();
+        boolean[] done = new boolean[n];
+        int remaining = n;
+        // Files read so far for each key, and the first of them
+        int[] files_read = new int[n];
+        FileMetaData[] first_file = new FileMetaData[n];
+        int[] first_file_level = new int[n];
+
+        stats.seek_file = null;
+        stats.seek_file_level = -1;
+
+        for (int level = 0; level < config.kNumLevels && remaining > 0; level++) {
+            List<FileMetaData> files = files_.get(level);
+            if (files.isEmpty())
+                continue;
+
+            // Group the keys left by file, newest file first on level-0
+            List<FileLookup> lookups = new ArrayList<FileLookup>();
+            FileMetaData[] candidates = (level == 0 ? sort(files) : null);
+            for (int i = 0; i < n; i++) {
+                if (done[i])
+                    continue;
+                Slice user_key = keys.get(i).user_key();
+                if (level == 0) {
+                    for (FileMetaData f : candidates) {
+                        if (ucmp.compare(user_key, f.getSmallest().user_key()) >= 0
+                                && ucmp.compare(user_key, f.getLargest().user_key()) <= 0) {
+                            lookupFor(lookups, f).keys.add(i);
+                        }
+                    }
+                } else {
+                    int index = FindFile(vset_.icmp_, files, keys.get(i)
+                            .internal_key());
+                    if (index < files.size()
+                            && ucmp.compare(user_key, files.get(index)
+                            .getSmallest().user_key()) >= 0) {
+                        lookupFor(lookups, files.get(index)).keys.add(i);
+                    }
+                }
+            }
+            if (lookups.isEmpty())
+                continue;
+            if (level == 0) {
+                sortNewestFirst(lookups);
+            }
+
+            runLookups(options, keys, lookups, executor);
+
+            // Take each key's result from the newest file that had it, and
+            // count only the files Get() would have read for it
+            for (FileLookup l : lookups) {
+                for (int j = 0; j < l.keys.size(); j++) {
+                    int i = l.keys.get(j);
+                    if (done[i])
+                        continue;
+                    if (files_read[i]++ == 0) {
+                        first_file[i] = l.file;
+                        first_file_level[i] = level;
+                    } else if (stats.seek_file == null) {
+                        // More than one seek for this key. Charge its 1st
+                        // file.
+                        stats.seek_file = first_file[i];
+                        stats.seek_file_level = first_file_level[i];
+                    }
+                    merges[i].addAll(l.merges[j]);
+                    if (l.done[j]) {
+                        done[i] = true;
+                        remaining--;
+                        Status[] status = new Status[]{l.status[j]};
+                        if (!merges[i].empty()
+                                && (status[0].ok() || status[0].isNotFound())) {
+                            FinishMerge(merges[i], l.values[j], status);
+                        }
+                        s[i] = status[0];
+                        values[i] = l.values[j];
+                    }
+                }
+            }
+        }
+
+        for (int i = 0; i < n; i++) {
+            if (!done[i]) {
+                s[i] = Status.notFound(new Slice(), null);
+                if (!merges[i].empty()) {
+                    // Operands with no value under them
+                    Status[] status = new Status[]{s[i]};
+                    values[i] = new Slice();
+                    FinishMerge(merges[i], values[i], status);
+                    s[i] = status[0];
+                }
+            }
+        }
+    }
+
+    // The keys come in order, so on levels > 0 their file is the last one
+    // added or a new one
+    private static FileLookup lookupFor(List<FileLookup> lookups,
+                                        FileMetaData f) {
+        for (int k = lookups.size() - 1; k >= 0; k--) {
+            if (lookups.get(k).file == f) {
+                return lookups.get(k);
+            }
+        }
+        FileLookup l = new FileLookup();
+        l.file = f;
+        lookups.add(l);
+        return l;
+    }
+
+    private static void sortNewestFirst(List<FileLookup> lookups) {
+        java.util.Collections.sort(lookups, new java.util.Comparator<FileLookup>() {
+            @Override
+            public int compare(FileLookup a, FileLookup b) {
+                return Long.compare(b.file.getNumber(), a.file.getNumber());
+            }
+        });
+    }
+
+    // Run the file lookups, sharing them between this thread and up to
+    // lookups.size() - 1 tasks of "executor". This thread never waits for
+    // a lookup nobody has started, so a busy executor only costs
+    // parallelism.
+    private void runLookups(final ReadOptions options,
+                            final List<LookupKey> keys,
+                            final List<FileLookup> lookups, Executor executor) {
+        final AtomicInteger next = new AtomicInteger(0);
+        final CountDownLatch finished = new CountDownLatch(lookups.size());
+        Runnable worker = new Runnable() {
+            @Override
+            public void run() {
+                int k;
+                while ((k = next.getAndIncrement()) < lookups.size()) {
+                    try {
+                        lookupFile(options, keys, lookups.get(k));
+                    } finally {
+                        finished.countDown();
+                    }
+                }
+            }
+        };
+        if (executor != null) {
+            for (int k = 1; k < lookups.size(); k++) {
+                executor.execute(worker);
+            }
+        }
+        worker.run();
+        boolean interrupted = false;
+        while (true) {
+            try {
+                finished.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Look up the keys of "l" in its file, in order
+    private void lookupFile(ReadOptions options, List<LookupKey> keys,
+                            FileLookup l) {
+        Comparator ucmp = vset_.icmp_.user_comparator();
+        int n = l.keys.size();
+        l.done = new boolean[n];
+        l.values = new Slice[n];
+        l.status = new Status[n];
+        l.merges = new MergeContext[n];
+        Iterator iter = vset_.table_cache_.NewIterator(options,
+                l.file.getNumber(), l.file.getFile_size(), null);
+        for (int j = 0; j < n; j++) {
+            LookupKey k = keys.get(l.keys.get(j));
+            Status[] s = new Status[]{Status.OK()};
+            Slice value = new Slice();
+            l.merges[j] = new MergeContext(null, k.user_key());
+            if (vset_.table_cache_.KeyMayMatch(l.file.getNumber(),
+                    l.file.getFile_size(), k.internal_key())) {
+                iter.seek(k.internal_key());
+                l.done[j] = GetValue(ucmp, iter, k.user_key(), value, s,
+                        l.merges[j]);
+                if (!iter.status().ok()) {
+                    l.done[j] = true;
+                    s[0] = iter.status();
+                }
+            }
+            l.values[j] = value;
+            l.status[j] = s[0];
+        }
+        iter = null;
+    }
+
     // Adds "stats" into the current state. Returns true if a new
     // compaction may need to be triggered, false otherwise.
     // REQUIRES: lock is held
@@ -410,8 +715,12 @@ public class Version {
     public void Unref() {
         --refs_;
         if (refs_ == 0) {
-            // wlu, 2012-7-7
-            vset_.close();
+            // Remove from linked list, so that VersionSet.AddLiveFiles()
+            // no longer keeps this version's files alive
+            prev_.next_ = next_;
+            next_.prev_ = prev_;
+            next_ = this;
+            prev_ = this;
         }
     }
 
@@ -573,6 +882,37 @@ public class Version {
         return level;
     }
 
+    // Return the level at which a memtable flushed in bulk-load mode should
+    // be placed: the bottom-most level if [smallest_user_key,
+    // largest_user_key] overlaps no file at any level (so nothing older
+    // can sit below it), else whatever PickLevelForMemTableOutput() picks.
+    public int PickLevelForBulkLoadOutput(Slice smallest_user_key,
+                                          Slice largest_user_key) {
+        for (int level = 0; level < config.kNumLevels; level++) {
+            if (OverlapInLevel(level, smallest_user_key, largest_user_key)) {
+                return PickLevelForMemTableOutput(smallest_user_key,
+                        largest_user_key);
+            }
+        }
+        return config.kNumLevels - 1;
+    }
+
+    // Return the level at which an ingested file covering [smallest_user_key,
+    // largest_user_key], newer than everything in the DB, should be placed:
+    // the bottom-most level such that no file at that level or above
+    // overlaps it, else level-0.
+    public int PickLevelForIngestedFile(Slice smallest_user_key,
+                                        Slice largest_user_key) {
+        int level = 0;
+        while (level + 1 < config.kNumLevels
+                && !OverlapInLevel(level, smallest_user_key, largest_user_key)
+                && !OverlapInLevel(level + 1, smallest_user_key,
+                largest_user_key)) {
+            level++;
+        }
+        return level;
+    }
+
     public int NumFiles(int level) {
         return files_.get(level).size();
     }
@@ -35,6 +35,10 @@ public class VersionEdit {
         has_prev_log_number_ = false;
         has_next_file_number_ = false;
         has_last_sequence_ = false;
+        max_column_family_ = 0;
+        has_max_column_family_ = false;
+        column_family_adds_ = new ArrayList<Pair<Integer, String>>();
+        column_family_drops_ = new ArrayList<Integer>();
         deleted_files_ = new HashSet<Pair<Integer, Long>>();
         new_files_ = new ArrayList<Pair<Integer, FileMetaData>>();
         compact_pointers_ = new ArrayList<Pair<Integer, InternalKey>>();
@@ -65,6 +69,22 @@ public class VersionEdit {
         last_sequence_ = seq;
     }
 
+    // Record the creation of column family "id" named "name"
+    public void addColumnFamily(int id, String name) {
+        column_family_adds_.add(new Pair<Integer, String>(id, name));
+    }
+
+    // Record the drop of column family "id"
+    public void dropColumnFamily(int id) {
+        column_family_drops_.add(id);
+    }
+
+    // Record the largest column family id ever used, never to be reused
+    public void setMaxColumnFamily(int id) {
+        has_max_column_family_ = true;
+        max_column_family_ = id;
+    }
+
     public void setCompactPointer(int level, InternalKey key) {
         compact_pointers_.add(new Pair<Integer, InternalKey>(level, key));
     }
@@ -73,11 +93,19 @@ public class VersionEdit {
     // REQUIRES: This version has not been saved (see VersionSet::saveTo)
     // REQUIRES: "smallest" and "largest" are smallest and largest keys in file
     public void addFile(int level, long file, long file_size, InternalKey smallest, InternalKey largest) {
+        addFile(level, file, file_size, smallest, largest, 0);
+    }
+
+    // Same as above, for a file whose entries all have sequence number
+    // "global_seqno" (see FileMetaData.global_seqno), 0 for none
+    public void addFile(int level, long file, long file_size, InternalKey smallest, InternalKey largest,
+                        long global_seqno) {
         FileMetaData f = new FileMetaData();
         f.setNumber(file);
         f.setFile_size(file_size);
         f.setSmallest(smallest);
         f.setLargest(largest);
+        f.setGlobal_seqno(global_seqno);
         new_files_.add(new Pair<Integer, FileMetaData>(level, f));
     }
 
@@ -108,6 +136,20 @@ public class VersionEdit {
             ret = util.add(ret, coding.putVarint32(Tag.kLastSequence),
                     coding.putVarint64(last_sequence_.value));
         }
+        if (has_max_column_family_) {
+            ret = util.add(ret, coding.putVarint32(Tag.kMaxColumnFamily),
+                    coding.putVarint32(max_column_family_));
+        }
+        for (int i = 0; i < column_family_adds_.size(); i++) {
+            Pair<Integer, String> p = column_family_adds_.get(i);
+            ret = util.addN(ret, coding.putVarint32(Tag.kColumnFamilyAdd),
+                    coding.putVarint32(p.getFirst().intValue()),
+                    coding.putLengthPrefixedSlice(new Slice(p.getSecond())));
+        }
+        for (int i = 0; i < column_family_drops_.size(); i++) {
+            ret = util.add(ret, coding.putVarint32(Tag.kColumnFamilyDrop),
+                    coding.putVarint32(column_family_drops_.get(i).intValue()));
+        }
 
         for (int i = 0; i < compact_pointers_.size(); i++) {
             ret = util.addN(
@@ -130,12 +172,17 @@ public class VersionEdit {
         while (iter2.hasNext()) {
             Pair<Integer, FileMetaData> p = iter2.next();
             FileMetaData f = p.getSecond();
-            ret = util.addN(ret, coding.putVarint32(Tag.kNewFile),
+            int tag = f.getGlobal_seqno() != 0 ? Tag.kNewIngestedFile
+                    : Tag.kNewFile;
+            ret = util.addN(ret, coding.putVarint32(tag),
                     coding.putVarint32(p.getFirst().intValue()),
                     coding.putVarint64(f.getNumber()),
                     coding.putVarint64(f.getFile_size()),
                     coding.putLengthPrefixedSlice(f.getSmallest().Encode()),
                     coding.putLengthPrefixedSlice(f.getLargest().Encode()));
+            if (f.getGlobal_seqno() != 0) {
+                ret = util.addN(ret, coding.putVarint64(f.getGlobal_seqno()));
+            }
 
         }
 
@@ -211,6 +258,35 @@ public class VersionEdit {
                     }
                     break;
 
+                case Tag.kMaxColumnFamily:
+                    max_column_family_ = coding.getVarint32(input);
+                    if (input.OK()) {
+                        has_max_column_family_ = true;
+                    } else {
+                        msg = "max column family";
+                    }
+                    break;
+
+                case Tag.kColumnFamilyAdd:
+                    number = coding.getVarint32(input);
+                    str = coding.getLengthPrefixedSlice(input);
+                    if (input.OK() && str != null) {
+                        column_family_adds_.add(new Pair<Integer, String>(
+                                (int) number, str.toString()));
+                    } else {
+                        msg = "column family add";
+                    }
+                    break;
+
+                case Tag.kColumnFamilyDrop:
+                    number = coding.getVarint32(input);
+                    if (input.OK()) {
+                        column_family_drops_.add((int) number);
+                    } else {
+                        msg = "column family drop";
+                    }
+                    break;
+
                 case Tag.kCompactPointer:
                     level = getLevel(input);
                     key = getInternalKey(input);
@@ -232,12 +308,16 @@ public class VersionEdit {
                     break;
 
                 case Tag.kNewFile:
+                case Tag.kNewIngestedFile:
                     level = getLevel(input);
                     f = new FileMetaData();
                     f.setNumber(coding.getVarint64(input));
                     f.setFile_size(coding.getVarint64(input));
                     f.setSmallest(getInternalKey(input));
                     f.setLargest(getInternalKey(input));
+                    if (tag == Tag.kNewIngestedFile) {
+                        f.setGlobal_seqno(coding.getVarint64(input));
+                    }
                     if (input.OK()) {
                         new_files_.add(new Pair<Integer, FileMetaData>(level, f));
                     } else {
@@ -286,6 +366,20 @@ public class VersionEdit {
             r.append("\n  LastSeq: ");
             r.append(last_sequence_);
         }
+        if (has_max_column_family_) {
+            r.append("\n  MaxColumnFamily: ");
+            r.append(max_column_family_);
+        }
+        for (int i = 0; i < column_family_adds_.size(); i++) {
+            r.append("\n  ColumnFamilyAdd: ");
+            r.append(column_family_adds_.get(i).getFirst());
+            r.append(" ");
+            r.append(column_family_adds_.get(i).getSecond());
+        }
+        for (int i = 0; i < column_family_drops_.size(); i++) {
+            r.append("\n  ColumnFamilyDrop: ");
+            r.append(column_family_drops_.get(i));
+        }
         for (int i = 0; i < compact_pointers_.size(); i++) {
             r.append("\n  CompactPointer: ");
 
@@ -315,6 +409,10 @@ public class VersionEdit {
             r.append(f.getSmallest().DebugString());
             r.append(" .. ");
             r.append(f.getLargest().DebugString());
+            if (f.getGlobal_seqno() != 0) {
+                r.append(" @");
+                r.append(f.getGlobal_seqno());
+            }
         }
         r.append("\n}\n");
         return r.toString();
@@ -332,6 +430,10 @@ public class VersionEdit {
     public boolean has_prev_log_number_;
     public boolean has_next_file_number_;
     public boolean has_last_sequence_;
+    public int max_column_family_;
+    public boolean has_max_column_family_;
+    List<Pair<Integer, String>> column_family_adds_;
+    List<Integer> column_family_drops_;
 
     List<Pair<Integer, InternalKey>> compact_pointers_;
     Set<Pair<Integer, Long>> deleted_files_;
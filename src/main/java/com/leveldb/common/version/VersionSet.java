@@ -85,6 +85,7 @@ public class VersionSet {
                 smallest = ifmd.smallest; // Smallest internal key served by
                 // table
                 largest = ifmd.largest; // Largest internal key served by table
+                global_seqno = ifmd.global_seqno;
             }
 
             // compare to a FileMetaData, used when merge
@@ -183,6 +184,11 @@ public class VersionSet {
                     f.allowed_seeks = 100;
                 }
 
+                if (f.global_seqno != 0) {
+                    vset_.table_cache_.SetGlobalSequence(f.number,
+                            f.global_seqno);
+                }
+
                 levels_[level].deleted_files.remove(f.number);
                 levels_[level].added_files.add(f);
             }
@@ -382,6 +388,7 @@ public class VersionSet {
             AppendVersion(v);
             log_number_ = edit.log_number_;
             prev_log_number_ = edit.prev_log_number_;
+            applyColumnFamilies(edit);
         } else {
             v = null;
             if (new_manifest_file != "") {
@@ -455,6 +462,7 @@ public class VersionSet {
 
                 if (s.ok()) {
                     builder.apply(edit);
+                    applyColumnFamilies(edit);
                 }
 
                 if (edit.has_log_number_) {
@@ -520,6 +528,33 @@ public class VersionSet {
         return s;
     }
 
+    // Apply the column family changes of "edit" to the registry
+    private void applyColumnFamilies(VersionEdit edit) {
+        for (int i = 0; i < edit.column_family_adds_.size(); i++) {
+            Pair<Integer, String> p = edit.column_family_adds_.get(i);
+            column_families_.put(p.getFirst(), p.getSecond());
+            max_column_family_ = Math.max(max_column_family_, p.getFirst());
+        }
+        for (int i = 0; i < edit.column_family_drops_.size(); i++) {
+            column_families_.remove(edit.column_family_drops_.get(i));
+        }
+        if (edit.has_max_column_family_) {
+            max_column_family_ = Math.max(max_column_family_,
+                    edit.max_column_family_);
+        }
+    }
+
+    // Return the column families other than the default one: id -> name.
+    // Only used in the VersionSet of the default family.
+    public Map<Integer, String> ColumnFamilies() {
+        return column_families_;
+    }
+
+    // Return the largest column family id ever used
+    public int MaxColumnFamily() {
+        return max_column_family_;
+    }
+
     // Return the current version.
     public Version current() {
         return current_;
@@ -1027,6 +1062,14 @@ public class VersionSet {
         VersionEdit edit = new VersionEdit();
         edit.setComparatorName(new Slice(icmp_.user_comparator().name()));
 
+        // Save column families
+        if (max_column_family_ > 0) {
+            edit.setMaxColumnFamily(max_column_family_);
+        }
+        for (Map.Entry<Integer, String> e : column_families_.entrySet()) {
+            edit.addColumnFamily(e.getKey(), e.getValue());
+        }
+
         // Save compaction pointers
         for (int level = 0; level < config.kNumLevels; level++) {
             if (!compact_pointer_[level].isEmpty()) {
@@ -1042,7 +1085,7 @@ public class VersionSet {
             for (int i = 0; i < files.size(); i++) {
                 FileMetaData f = files.get(i);
                 edit.addFile(level, f.number, f.file_size, f.smallest,
-                        f.largest);
+                        f.largest, f.global_seqno);
             }
         }
 
@@ -1077,6 +1120,10 @@ public class VersionSet {
     SequenceNumber last_sequence_;
     long log_number_;
     long prev_log_number_; // 0 or backing store for memtable being compacted
+    // Column families other than the default one, id -> name, and the
+    // largest id ever used
+    Map<Integer, String> column_families_ = new TreeMap<Integer, String>();
+    int max_column_family_;
 
     // Opened lazily
     _WritableFile descriptor_file_;
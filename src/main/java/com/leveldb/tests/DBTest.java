@@ -2,9 +2,12 @@ package com.leveldb.tests;
 
 import com.leveldb.common.*;
 import com.leveldb.common.comparator.BytewiseComparatorImpl;
+import com.leveldb.common.comparator.InternalKeyComparator;
 import com.leveldb.common.db.*;
+import com.leveldb.common.file._RandomAccessFile;
 import com.leveldb.common.file._WritableFile;
 import com.leveldb.common.options.CompressionType;
+import com.leveldb.common.options.IngestExternalFileOptions;
 import com.leveldb.common.options.Options;
 import com.leveldb.common.options.ReadOptions;
 import com.leveldb.common.options.WriteOptions;
@@ -18,7 +21,10 @@ import junit.textui.TestRunner;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class DBTest extends TestCase {
     // Special Env used to delay background operations
@@ -29,12 +35,47 @@ public class DBTest extends TestCase {
         // Simulate no-space errors while this pointer is non-NULL.
         AtomicPointer no_space_ = new AtomicPointer(null);
 
+        // Count the reads of the files opened for random access while true
+        volatile boolean count_random_reads_ = false;
+        AtomicInteger random_read_counter_ = new AtomicInteger();
+
         public SpecialEnv(Env base) {
             super(base);
             delay_sstable_sync_.releaseStore(null);
             no_space_.releaseStore(null);
         }
 
+        public _RandomAccessFile newRandomAccessFile(String f) {
+            class CountingFile extends _RandomAccessFile {
+                _RandomAccessFile target_;
+                AtomicInteger counter_;
+
+                CountingFile(_RandomAccessFile target, AtomicInteger counter) {
+                    target_ = target;
+                    counter_ = counter;
+                }
+
+                public byte[] Read(long offset, int n, Slice result) {
+                    counter_.incrementAndGet();
+                    return target_.Read(offset, n, result);
+                }
+
+                public void Close() {
+                    target_.Close();
+                }
+
+                public String FileName() {
+                    return target_.FileName();
+                }
+            }
+
+            _RandomAccessFile r = target().newRandomAccessFile(f);
+            if (r != null && count_random_reads_) {
+                r = new CountingFile(r, random_read_counter_);
+            }
+            return r;
+        }
+
         public _WritableFile newWritableFile(String f) {
             _WritableFile r;
             class SSTableFile extends _WritableFile {
@@ -274,6 +315,9 @@ public class DBTest extends TestCase {
                         case ValueType.kTypeDeletion:
                             result += "DEL";
                             break;
+                        case ValueType.kTypeMerge:
+                            result += "M:" + iter.value().toString();
+                            break;
                     }
                 }
                 iter.next();
@@ -306,6 +350,33 @@ public class DBTest extends TestCase {
         return result;
     }
 
+    // Value of the DB property "name"
+    String Property(String name) {
+        StringBuffer value = new StringBuffer();
+        assertTrue(db_.getProperty(new Slice(name), value));
+        return value.toString();
+    }
+
+    // Wait until the immutable memtables are flushed
+    void WaitForFlush() {
+        while (!Property("leveldb.num-immutable-mem-table").equals("0")) {
+            env_.sleepForMicroseconds(10000);
+        }
+    }
+
+    // Copy the files of the open DB to the directory "dst", as a crash
+    // would leave them: the logs hold what was written to them so far, and
+    // the rest of their preallocated or recycled contents.
+    // REQUIRES: no background work is under way
+    void CopyDBFiles(String dst) {
+        env_.createDir(dst);
+        for (String f : env_.getChildren(dbname_)) {
+            if (!f.equals("LOCK")) {
+                ASSERT_OK(Env.copyFile(env_, dbname_ + "/" + f, dst + "/" + f));
+            }
+        }
+    }
+
     // Return spread of files per level
     String FilesPerLevel() {
         String result = "";
@@ -413,6 +484,281 @@ public class DBTest extends TestCase {
         assertTrue(Close());
     }
 
+    public void testDirectMemTableArena() {
+        Options options = new Options();
+        options.create_if_missing = true;
+        options.direct_memtable_arena = true;
+        Reopen(options);
+        ASSERT_OK(Put("b", "v1"));
+        ASSERT_OK(Put("a", "v1"));
+        ASSERT_OK(Put("ab", "v1"));
+        Snapshot snapshot = db_.getSnapshot();
+        ASSERT_OK(Put("a", "v2"));
+        ASSERT_OK(Delete("b"));
+        ASSERT_EQ("v2", Get("a"));
+        ASSERT_EQ("v1", Get("ab"));
+        ASSERT_EQ("NOT_FOUND", Get("b"));
+        ASSERT_EQ("NOT_FOUND", Get("aa"));
+        ASSERT_EQ("v1", Get("a", snapshot));
+        ASSERT_EQ("v1", Get("b", snapshot));
+        ASSERT_EQ("(a->v2)(ab->v1)", Contents());
+        db_.releaseSnapshot(snapshot);
+    }
+
+    // Writes, point reads, scans in both directions, recovery and a flush,
+    // all through the memtable representation of "factory"
+    void CheckMemTableRep(MemTableRepFactory factory) {
+        Options options = new Options();
+        options.create_if_missing = true;
+        options.memtable_factory = factory;
+        Reopen(options);
+        Random rnd = new Random(301);
+        TreeMap<String, String> model = new TreeMap<String, String>();
+        for (int i = 0; i < 2000; i++) {
+            String k = Key(rnd.nextInt(300));
+            if (rnd.nextInt(10) == 0) {
+                ASSERT_OK(Delete(k));
+                model.remove(k);
+            } else {
+                ASSERT_OK(Put(k, "v" + i));
+                model.put(k, "v" + i);
+            }
+        }
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < 300; i++) {
+                String v = model.get(Key(i));
+                ASSERT_EQ(v != null ? v : "NOT_FOUND", Get(Key(i)));
+            }
+            String expected = "";
+            for (Map.Entry<String, String> e : model.entrySet()) {
+                expected += "(" + e.getKey() + "->" + e.getValue() + ")";
+            }
+            ASSERT_EQ(expected, Contents());
+
+            // Change direction in the middle
+            Iterator iter = db_.newIterator(new ReadOptions());
+            iter.seek(new Slice(Key(150)));
+            String k = model.ceilingKey(Key(150));
+            ASSERT_EQ(k, IterKey(iter));
+            iter.prev();
+            ASSERT_EQ(model.lowerKey(k), IterKey(iter));
+            iter.next();
+            ASSERT_EQ(k, IterKey(iter));
+            iter.next();
+            ASSERT_EQ(model.higherKey(k), IterKey(iter));
+            iter.prev();
+            iter.prev();
+            ASSERT_EQ(model.lowerKey(k), IterKey(iter));
+
+            if (round == 0) {
+                // Replayed from the log into the same kind of memtable
+                Reopen(options);
+            } else if (round == 1) {
+                dbfull().TEST_CompactMemTable();
+            }
+        }
+    }
+
+    // Key at iter, or "END" if it is not valid
+    String IterKey(Iterator iter) {
+        return iter.valid() ? iter.key().toString() : "END";
+    }
+
+    public void testHashSkipListRep() {
+        CheckMemTableRep(MemTableRepFactory.newHashSkipListRepFactory(
+                SliceTransform.newFixedPrefixTransform(8), 16));
+    }
+
+    public void testVectorRep() {
+        CheckMemTableRep(MemTableRepFactory.newVectorRepFactory());
+    }
+
+    // kThreads threads each write kBatches batches of two keys and their
+    // progress, then every key is read back, before and after a reopen.
+    // Meanwhile a reader checks that writes become visible atomically and in
+    // order: a snapshot that sees batch i of a writer sees all its batches
+    // up to i.
+    void CheckConcurrentWriters(Options options, final int kThreads,
+                                final int kBatches) throws Exception {
+        Reopen(options);
+        final List<Throwable> errors = new ArrayList<Throwable>();
+        final AtomicInteger running = new AtomicInteger(kThreads);
+        Thread reader = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Random rnd = new Random(301);
+                    while (running.get() > 0) {
+                        Snapshot snapshot = db_.getSnapshot();
+                        for (int t = 0; t < kThreads; t++) {
+                            String last = Get(t + ".last", snapshot).toString();
+                            if (last.equals("NOT_FOUND")) {
+                                continue;
+                            }
+                            int i = Integer.parseInt(last);
+                            ASSERT_EQ("b" + i, Get(t + "." + Key(i) + ".b",
+                                    snapshot));
+                            int j = rnd.nextInt(i + 1);
+                            ASSERT_EQ("b" + j, Get(t + "." + Key(j) + ".b",
+                                    snapshot));
+                        }
+                        db_.releaseSnapshot(snapshot);
+                    }
+                } catch (Throwable e) {
+                    synchronized (errors) {
+                        errors.add(e);
+                    }
+                }
+            }
+        };
+        reader.start();
+        Thread[] threads = new Thread[kThreads];
+        for (int t = 0; t < kThreads; t++) {
+            final int id = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < kBatches; i++) {
+                            WriteBatch batch = new WriteBatch();
+                            batch.put(new Slice(id + "." + Key(i) + ".a"),
+                                    new Slice(RandomValue(id, i)));
+                            batch.put(new Slice(id + "." + Key(i) + ".b"),
+                                    new Slice("b" + i));
+                            batch.put(new Slice(id + ".last"),
+                                    new Slice(Integer.toString(i)));
+                            ASSERT_OK(db_.write(new WriteOptions(), batch));
+                        }
+                    } catch (Throwable e) {
+                        synchronized (errors) {
+                            errors.add(e);
+                        }
+                    } finally {
+                        running.decrementAndGet();
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        reader.join();
+        assertTrue(errors.toString(), errors.isEmpty());
+        for (int round = 0; round < 2; round++) {
+            for (int t = 0; t < kThreads; t++) {
+                ASSERT_EQ(Integer.toString(kBatches - 1), Get(t + ".last"));
+                for (int i = 0; i < kBatches; i++) {
+                    ASSERT_EQ(RandomValue(t, i), Get(t + "." + Key(i) + ".a"));
+                    ASSERT_EQ("b" + i, Get(t + "." + Key(i) + ".b"));
+                }
+            }
+            Reopen(options);
+        }
+    }
+
+    // 100 bytes determined by (t, i)
+    String RandomValue(int t, int i) {
+        return RandomString(new Random(t * 100003 + i), 100);
+    }
+
+    public void testConcurrentMemTableWrite() throws Exception {
+        Options options = new Options();
+        options.create_if_missing = true;
+        options.write_buffer_size = 100000; // Several memtable switches
+        options.allow_concurrent_memtable_write = true;
+        CheckConcurrentWriters(options, 8, 500);
+    }
+
+    public void testPipelinedWrite() throws Exception {
+        Options options = new Options();
+        options.create_if_missing = true;
+        options.write_buffer_size = 100000; // Several memtable switches
+        options.enable_pipelined_write = true;
+        CheckConcurrentWriters(options, 8, 500);
+
+        // Together with parallel memtable inserts
+        options.allow_concurrent_memtable_write = true;
+        DestroyAndReopen(options);
+        CheckConcurrentWriters(options, 8, 500);
+    }
+
+    public void testBulkLoadMode() {
+        Options options = new Options();
+        options.create_if_missing = true;
+        options.write_buffer_size = 100000;
+        Reopen(options);
+        int bottom = config.kNumLevels - 1;
+        Random rnd = new Random(301);
+
+        ASSERT_OK(db_.setBulkLoadMode(true));
+        // Point reads of the append-only memtable, with an overwrite
+        ASSERT_OK(Put("a", "v1"));
+        ASSERT_OK(Put("a", "v2"));
+        ASSERT_OK(Put("b", "v3"));
+        ASSERT_EQ("v2", Get("a"));
+        ASSERT_EQ("v3", Get("b"));
+        ASSERT_EQ("NOT_FOUND", Get("a0"));
+
+        // Increasing keys: every flushed table overlaps nothing before it
+        List<String> values = new ArrayList<String>();
+        for (int i = 0; i < 500; i++) {
+            values.add(RandomString(rnd, 1000));
+            ASSERT_OK(Put(Key(i), values.get(i)));
+        }
+        WaitForFlush();
+        int bulk_files = NumTableFilesAtLevel(bottom);
+        assertTrue(bulk_files >= 3);
+        assertEquals(bulk_files, TotalTableFiles());
+
+        // Back to normal: a flush that overlaps nothing goes no deeper than
+        // kMaxMemCompactLevel, and one that overlaps it lands above it
+        ASSERT_OK(db_.setBulkLoadMode(false));
+        WaitForFlush();
+        int before = TotalTableFiles();
+        ASSERT_OK(Put("z1", "v"));
+        dbfull().TEST_CompactMemTable();
+        assertEquals(bulk_files, NumTableFilesAtLevel(bottom));
+        assertEquals(before + 1, TotalTableFiles());
+        int mem_level = NumTableFilesAtLevel(config.kMaxMemCompactLevel);
+        assertTrue(mem_level >= 1);
+        ASSERT_OK(Put("z0", "v"));
+        ASSERT_OK(Put("z2", "v"));
+        dbfull().TEST_CompactMemTable();
+        assertEquals(bulk_files, NumTableFilesAtLevel(bottom));
+        assertEquals(mem_level, NumTableFilesAtLevel(config.kMaxMemCompactLevel));
+        assertEquals(before + 2, TotalTableFiles());
+
+        for (int i = 0; i < 500; i++) {
+            ASSERT_EQ(values.get(i), Get(Key(i)));
+        }
+        ASSERT_EQ("v2", Get("a"));
+        Reopen(options);
+        for (int i = 0; i < 500; i++) {
+            ASSERT_EQ(values.get(i), Get(Key(i)));
+        }
+        ASSERT_EQ("v3", Get("b"));
+    }
+
+    public void testAsyncWriteAndGet() throws Exception {
+        List<java.util.concurrent.CompletableFuture<Status>> writes = new ArrayList<java.util.concurrent.CompletableFuture<Status>>();
+        for (int i = 0; i < 1000; i++) {
+            WriteBatch batch = new WriteBatch();
+            batch.put(new Slice(Key(i)), new Slice("v" + i));
+            writes.add(db_.writeAsync(new WriteOptions(), batch));
+        }
+        ASSERT_OK(db_.put(new WriteOptions(), new Slice("foo"), new Slice("v1")));
+        for (java.util.concurrent.CompletableFuture<Status> f : writes) {
+            ASSERT_OK(f.get());
+        }
+        for (int i = 0; i < 1000; i++) {
+            ASSERT_EQ("v" + i, db_.getAsync(new ReadOptions(), new Slice(Key(i))).get());
+        }
+        ASSERT_EQ("v1", db_.getAsync(new ReadOptions(), new Slice("foo")).get());
+        assertNull(db_.getAsync(new ReadOptions(), new Slice("missing")).get());
+        assertTrue(Close());
+    }
+
     void ASSERT_EQ(String s, Slice sl) {
         assertTrue(s.compareTo(sl.toString()) == 0);
     }
@@ -438,6 +784,207 @@ public class DBTest extends TestCase {
         assertTrue(Close());
     }
 
+    public void testMultipleImmutableMemTables() {
+        Options options = new Options();
+        options.env = env_;
+        options.write_buffer_size = 100000; // Small write buffer
+        options.max_write_buffer_number = 4;
+        Reopen(options);
+
+        // Each big value fills a memtable, so the next write switches
+        env_.delay_sstable_sync_.releaseStore(env_); // Block sync calls
+        ASSERT_OK(Put("foo", "v1"));
+        ASSERT_OK(Put("k1", TableTest.string(100000, 'x')));
+        ASSERT_OK(Put("foo", "v2")); // first memtable starts flushing
+        ASSERT_OK(Put("k2", TableTest.string(100000, 'y')));
+        ASSERT_OK(Put("foo", "v3"));
+        ASSERT_OK(Delete("k2"));
+        ASSERT_OK(Put("k3", TableTest.string(100000, 'z')));
+        ASSERT_OK(Put("bar", "v4"));
+        ASSERT_EQ("3", Property("leveldb.num-immutable-mem-table"));
+
+        // Immutable memtables are read newest first, and a deletion in a
+        // newer one hides the value in an older one
+        for (int i = 0; i < 2; i++) {
+            ASSERT_EQ("v3", Get("foo"));
+            ASSERT_EQ("NOT_FOUND", Get("k2"));
+            ASSERT_EQ(TableTest.string(100000, 'x'), Get("k1"));
+            ASSERT_EQ(TableTest.string(100000, 'z'), Get("k3"));
+            ASSERT_EQ("v4", Get("bar"));
+            if (i == 0) {
+                // The first memtable gets a table of its own; the two
+                // queued behind it are merged into one
+                env_.delay_sstable_sync_.releaseStore(null);
+                WaitForFlush();
+                ASSERT_EQ("0", Property("leveldb.num-immutable-mem-table"));
+                assertEquals(2, TotalTableFiles());
+            }
+        }
+
+        Reopen(options);
+        ASSERT_EQ("v3", Get("foo"));
+        ASSERT_EQ("NOT_FOUND", Get("k2"));
+        ASSERT_EQ("v4", Get("bar"));
+    }
+
+    // Count of writes on the line of leveldb.write-stall-stats for "state"
+    int StallCount(String state) {
+        for (String line : Property("leveldb.write-stall-stats").split("\n")) {
+            if (line.startsWith(state + " ")) {
+                return Integer.parseInt(line.split(" ")[1]);
+            }
+        }
+        fail("no " + state + " line");
+        return -1;
+    }
+
+    public void testWriteStalls() throws Exception {
+        Options options = new Options();
+        options.env = env_;
+        options.write_buffer_size = 100000; // Small write buffer
+        options.max_write_buffer_number = 4;
+        Reopen(options);
+        assertEquals(0.0, dbfull().TEST_CompactionPressure());
+        assertEquals(0, StallCount("delayed"));
+        assertEquals(0, StallCount("stopped"));
+
+        // Immutable memtables piling up behind a blocked flush raise the
+        // pressure, which delays writes
+        env_.delay_sstable_sync_.releaseStore(env_); // Block sync calls
+        ASSERT_OK(Put("k1", TableTest.string(100000, 'x')));
+        ASSERT_OK(Put("foo", "v1")); // one memtable being flushed
+        assertEquals(0.0, dbfull().TEST_CompactionPressure());
+        ASSERT_OK(Put("k2", TableTest.string(100000, 'y')));
+        ASSERT_OK(Put("foo", "v2"));
+        assertEquals(0.5, dbfull().TEST_CompactionPressure());
+        ASSERT_OK(Put("k3", TableTest.string(100000, 'z')));
+        ASSERT_OK(Put("foo", "v3"));
+        assertEquals(1.0, dbfull().TEST_CompactionPressure());
+        assertTrue(StallCount("delayed") > 0);
+        assertEquals(0, StallCount("stopped"));
+
+        // With no room for another memtable, writes stop until the flush
+        // goes on
+        ASSERT_OK(Put("k4", TableTest.string(100000, 'w')));
+        final Status[] result = new Status[1];
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                result[0] = Put("foo", "v4");
+            }
+        };
+        writer.start();
+        env_.sleepForMicroseconds(200000);
+        assertTrue(writer.isAlive());
+        env_.delay_sstable_sync_.releaseStore(null);
+        writer.join();
+        ASSERT_OK(result[0]);
+        assertTrue(StallCount("stopped") > 0);
+
+        WaitForFlush();
+        assertEquals(0.0, dbfull().TEST_CompactionPressure());
+        ASSERT_EQ("v4", Get("foo"));
+    }
+
+    public void testDeletionInMemTableHidesTable() {
+        ASSERT_OK(Put("foo", "v1"));
+        dbfull().TEST_CompactMemTable();
+        ASSERT_OK(Delete("foo"));
+        ASSERT_EQ("NOT_FOUND", Get("foo"));
+        ASSERT_OK(Put("foo", "v2"));
+        ASSERT_EQ("v2", Get("foo"));
+    }
+
+    public void testMemTableBloom() {
+        Options options = new Options();
+        options.create_if_missing = true;
+        options.memtable_bloom_size_ratio = 0.1;
+        Reopen(options);
+
+        // Negative lookups, before and after flushes and a reopen. The
+        // deletion has to get into the bloom too, or the table value would
+        // show through.
+        ASSERT_OK(Put("foo", "v1"));
+        ASSERT_OK(Put("bar", "v2"));
+        dbfull().TEST_CompactMemTable();
+        ASSERT_OK(Delete("bar"));
+        ASSERT_OK(Put("baz", "v3"));
+        for (int round = 0; round < 3; round++) {
+            ASSERT_EQ("v1", Get("foo"));
+            ASSERT_EQ("NOT_FOUND", Get("bar"));
+            ASSERT_EQ("v3", Get("baz"));
+            for (int i = 0; i < 100; i++) {
+                ASSERT_EQ("NOT_FOUND", Get(Key(i)));
+            }
+            if (round == 0) {
+                Reopen(options);
+            } else if (round == 1) {
+                dbfull().TEST_CompactMemTable();
+            }
+        }
+
+        // The bloom is counted in the memtable's memory
+        InternalKeyComparator cmp = new InternalKeyComparator(
+                BytewiseComparatorImpl.getInstance());
+        options.write_buffer_size = 100000;
+        options.memtable_factory = MemTableRepFactory.newVectorRepFactory();
+        MemTable with_bloom = new MemTable(cmp, options);
+        options.memtable_bloom_size_ratio = 0;
+        MemTable without = new MemTable(cmp, options);
+        for (int i = 0; i < 100; i++) {
+            with_bloom.Add(new SequenceNumber(i + 1), ValueType.kTypeValue,
+                    new Slice(Key(i)), new Slice("v"));
+            without.Add(new SequenceNumber(i + 1), ValueType.kTypeValue,
+                    new Slice(Key(i)), new Slice("v"));
+        }
+        // 0.1 of 100000 bytes worth of bits
+        assertEquals(10000, with_bloom.ApproximateMemoryUsage()
+                - without.ApproximateMemoryUsage());
+    }
+
+    public void testConcurrentRandomAccessFileReads() throws Exception {
+        // Readers share one file, as they do through the table cache
+        final int kSize = 1 << 20;
+        final byte[] data = new byte[kSize];
+        new Random(301).nextBytes(data);
+        String fname = dbname_ + "/random_access";
+        _WritableFile w = env_.newWritableFile(fname);
+        ASSERT_OK(w.Append(new Slice(data)));
+        ASSERT_OK(w.Close());
+        final _RandomAccessFile file = env_.newRandomAccessFile(fname);
+
+        final List<Throwable> errors = new ArrayList<Throwable>();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int seed = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        Random rnd = new Random(seed);
+                        for (int i = 0; i < 2000; i++) {
+                            int n = 1 + rnd.nextInt(4096);
+                            int offset = rnd.nextInt(kSize - n);
+                            byte[] got = file.Read(offset, n, new Slice());
+                            assertEquals(0, util.compareTo(data, offset, n,
+                                    got, 0, n));
+                        }
+                    } catch (Throwable e) {
+                        synchronized (errors) {
+                            errors.add(e);
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        file.Close();
+        assertTrue(errors.toString(), errors.isEmpty());
+    }
+
     public void testGetFromVersions() {
         ASSERT_OK(Put("foo", "v1"));
         dbfull().TEST_CompactMemTable();
@@ -498,6 +1045,615 @@ public class DBTest extends TestCase {
         ASSERT_EQ("vx", Get("x"));
     }
 
+    public void testMultiGet() {
+        // Spread the keys over the memtable, level-0 and deeper levels
+        ASSERT_OK(Put("a", "va"));
+        ASSERT_OK(Put("f", "vf"));
+        Compact("a", "f");
+        ASSERT_OK(Put("x", "vx"));
+        Compact("x", "y");
+        ASSERT_OK(Put("bar", "b"));
+        ASSERT_OK(Put("foo", "v1"));
+        dbfull().TEST_CompactMemTable();
+        ASSERT_OK(Put("foo", "v2"));
+        ASSERT_OK(Put("empty", ""));
+        ASSERT_OK(Delete("f"));
+        dbfull().TEST_CompactMemTable();
+        Snapshot snapshot = db_.getSnapshot();
+        ASSERT_OK(Put("x", "vx2"));
+        ASSERT_OK(Put("mem", "vm"));
+
+        List<Slice> keys = new ArrayList<Slice>();
+        for (String k : new String[]{"x", "foo", "missing", "a", "f", "mem",
+                "empty", "bar", "a"}) {
+            keys.add(new Slice(k));
+        }
+        String[] expected = {"vx2", "v2", null, "va", null, "vm", "", "b", "va"};
+        List<Status> statuses = new ArrayList<Status>();
+        List<Slice> values = db_.multiGet(new ReadOptions(), keys, statuses);
+        assertEquals(keys.size(), values.size());
+        assertEquals(keys.size(), statuses.size());
+        for (int i = 0; i < expected.length; i++) {
+            if (expected[i] == null) {
+                assertTrue(statuses.get(i).isNotFound());
+            } else {
+                ASSERT_OK(statuses.get(i));
+                ASSERT_EQ(expected[i], values.get(i).toString());
+            }
+        }
+
+        ReadOptions options = new ReadOptions();
+        options.snapshot = snapshot;
+        values = db_.multiGet(options, keys, statuses);
+        ASSERT_EQ("vx", values.get(0).toString());
+        assertTrue(statuses.get(5).isNotFound());
+        db_.releaseSnapshot(snapshot);
+    }
+
+    Status Merge(String k, String v) {
+        return db_.merge(new WriteOptions(), new Slice(k), new Slice(v));
+    }
+
+    public void testMerge() {
+        assertTrue(Merge("a", "1").toString().startsWith("Not implemented"));
+
+        Options options = new Options();
+        options.create_if_missing = true;
+        options.merge_operator = MergeOperator.stringAppendOperator((byte) ',');
+        Reopen(options);
+
+        ASSERT_OK(Merge("a", "1"));
+        ASSERT_EQ("1", Get("a").toString());
+        ASSERT_OK(Put("b", "x"));
+        ASSERT_OK(Merge("b", "y"));
+        ASSERT_EQ("x,y", Get("b").toString());
+
+        Snapshot snapshot = db_.getSnapshot();
+        ASSERT_OK(Merge("a", "2"));
+        ASSERT_EQ("1,2", Get("a").toString());
+        ASSERT_EQ("1", Get("a", snapshot).toString());
+
+        // Operands spread over the memtable and tables
+        dbfull().TEST_CompactMemTable();
+        ASSERT_OK(Merge("a", "3"));
+        ASSERT_OK(Delete("b"));
+        ASSERT_OK(Merge("b", "z"));
+        ASSERT_EQ("1,2,3", Get("a").toString());
+        ASSERT_EQ("z", Get("b").toString());
+        ASSERT_EQ("1", Get("a", snapshot).toString());
+        ASSERT_EQ("x,y", Get("b", snapshot).toString());
+        ASSERT_EQ("(a->1,2,3)(b->z)", Contents());
+
+        List<Slice> keys = new ArrayList<Slice>();
+        keys.add(new Slice("b"));
+        keys.add(new Slice("a"));
+        List<Status> statuses = new ArrayList<Status>();
+        List<Slice> values = db_.multiGet(new ReadOptions(), keys, statuses);
+        ASSERT_EQ("z", values.get(0).toString());
+        ASSERT_EQ("1,2,3", values.get(1).toString());
+
+        // The snapshot keeps the operands apart in compactions
+        dbfull().TEST_CompactMemTable();
+        Compact("a", "z");
+        ASSERT_EQ("[ M:3, M:2, 1 ]", AllEntriesFor("a"));
+        ASSERT_EQ("1", Get("a", snapshot).toString());
+        db_.releaseSnapshot(snapshot);
+
+        // A compaction without snapshots leaves a single value
+        assertEquals(1, NumTableFilesAtLevel(2));
+        dbfull().TEST_CompactRange(2, null, null);
+        ASSERT_EQ("[ 1,2,3 ]", AllEntriesFor("a"));
+        ASSERT_EQ("[ z ]", AllEntriesFor("b"));
+        ASSERT_EQ("(a->1,2,3)(b->z)", Contents());
+
+        // Operands above a value in a deeper level are only combined
+        ASSERT_OK(Merge("b", "p"));
+        dbfull().TEST_CompactMemTable();
+        ASSERT_OK(Merge("b", "q"));
+        dbfull().TEST_CompactMemTable();
+        ASSERT_EQ("0,1,1,1,0,0,0", FilesPerLevel());
+        dbfull().TEST_CompactRange(1, null, null);
+        ASSERT_EQ("[ M:p,q, z ]", AllEntriesFor("b"));
+        ASSERT_EQ("z,p,q", Get("b").toString());
+
+        // Operands the operator cannot apply fail the read
+        options.merge_operator = MergeOperator.uint64AddOperator();
+        Reopen(options);
+        assertTrue(Get("b").toString().startsWith("corruption"));
+        ASSERT_EQ("[ M:p,q, z ]", AllEntriesFor("b"));
+
+        byte[] five = new byte[8];
+        util.putLong(five, 0, 5);
+        for (int i = 0; i < 3; i++) {
+            ASSERT_OK(db_.merge(new WriteOptions(), new Slice("n"),
+                    new Slice(five)));
+        }
+        assertEquals(15, util.toLong(Get("n").data()));
+    }
+
+    String TxnGet(Transaction txn, String k) {
+        Status s = new Status();
+        Slice result = txn.get(new ReadOptions(), new Slice(k), s);
+        if (s.isNotFound()) {
+            return "NOT_FOUND";
+        } else if (!s.ok()) {
+            return s.toString();
+        }
+        return result.toString();
+    }
+
+    public void testTransaction() {
+        Transaction txn = db_.beginTransaction(new WriteOptions());
+        ASSERT_EQ("NOT_FOUND", TxnGet(txn, "a"));
+        ASSERT_OK(txn.put(new Slice("a"), new Slice("1")));
+        ASSERT_OK(txn.put(new Slice("b"), new Slice("1")));
+        ASSERT_OK(txn.delete(new Slice("b")));
+        ASSERT_EQ("1", TxnGet(txn, "a"));
+        ASSERT_EQ("NOT_FOUND", TxnGet(txn, "b"));
+        ASSERT_EQ("NOT_FOUND", Get("a").toString());
+        ASSERT_OK(txn.commit());
+        ASSERT_EQ("1", Get("a").toString());
+        ASSERT_EQ("NOT_FOUND", Get("b").toString());
+        assertFalse(txn.commit().ok());
+
+        // Reads see the snapshot of the transaction, and a key read has to
+        // be unchanged for it to commit
+        Transaction t1 = db_.beginTransaction(new WriteOptions());
+        Transaction t2 = db_.beginTransaction(new WriteOptions());
+        ASSERT_EQ("1", TxnGet(t1, "a"));
+        ASSERT_OK(t2.put(new Slice("a"), new Slice("2")));
+        ASSERT_OK(t2.commit());
+        ASSERT_EQ("1", TxnGet(t1, "a"));
+        ASSERT_OK(t1.put(new Slice("c"), new Slice("1")));
+        assertTrue(t1.commit().isBusy());
+        ASSERT_EQ("NOT_FOUND", Get("c").toString());
+
+        // So does a key written, also by plain writes
+        t1 = db_.beginTransaction(new WriteOptions());
+        ASSERT_OK(t1.put(new Slice("a"), new Slice("3")));
+        ASSERT_OK(Put("a", "4"));
+        assertTrue(t1.commit().isBusy());
+        ASSERT_EQ("4", Get("a").toString());
+
+        // Disjoint transactions both commit
+        t1 = db_.beginTransaction(new WriteOptions());
+        t2 = db_.beginTransaction(new WriteOptions());
+        ASSERT_EQ("4", TxnGet(t1, "a"));
+        ASSERT_OK(t1.put(new Slice("x"), new Slice("1")));
+        ASSERT_EQ("NOT_FOUND", TxnGet(t2, "b"));
+        ASSERT_OK(t2.put(new Slice("y"), new Slice("1")));
+        ASSERT_OK(t2.commit());
+        ASSERT_OK(t1.commit());
+        ASSERT_EQ("1", Get("x").toString());
+        ASSERT_EQ("1", Get("y").toString());
+
+        // Changes flushed to a table since the transaction began
+        t1 = db_.beginTransaction(new WriteOptions());
+        t2 = db_.beginTransaction(new WriteOptions());
+        ASSERT_EQ("1", TxnGet(t1, "x"));
+        ASSERT_EQ("1", TxnGet(t2, "y"));
+        ASSERT_OK(Put("x", "2"));
+        dbfull().TEST_CompactMemTable();
+        ASSERT_OK(t1.put(new Slice("z"), new Slice("1")));
+        ASSERT_OK(t2.put(new Slice("z"), new Slice("2")));
+        assertTrue(t1.commit().isBusy());
+        ASSERT_OK(t2.commit());
+        ASSERT_EQ("2", Get("z").toString());
+
+        // Rolled back
+        t1 = db_.beginTransaction(new WriteOptions());
+        ASSERT_OK(t1.put(new Slice("z"), new Slice("3")));
+        t1.rollback();
+        ASSERT_EQ("2", Get("z").toString());
+        assertTrue(t1.merge(new Slice("z"), new Slice("3")).toString()
+                .startsWith("Not implemented"));
+    }
+
+    public void testTransactionCounter() throws Exception {
+        // Concurrent increments, retried on conflicts, lose no update
+        final int kThreads = 4;
+        final int kIncrements = 50;
+        ASSERT_OK(Put("counter", "0"));
+        final List<Throwable> errors = new ArrayList<Throwable>();
+        Thread[] threads = new Thread[kThreads];
+        for (int t = 0; t < kThreads; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < kIncrements; i++) {
+                            while (true) {
+                                Transaction txn = db_
+                                        .beginTransaction(new WriteOptions());
+                                int n = Integer.parseInt(TxnGet(txn, "counter"));
+                                ASSERT_OK(txn.put(new Slice("counter"),
+                                        new Slice(Integer.toString(n + 1))));
+                                Status s = txn.commit();
+                                if (!s.isBusy()) {
+                                    ASSERT_OK(s);
+                                    break;
+                                }
+                            }
+                        }
+                    } catch (Throwable e) {
+                        synchronized (errors) {
+                            errors.add(e);
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(errors.toString(), errors.isEmpty());
+        ASSERT_EQ(Integer.toString(kThreads * kIncrements), Get("counter")
+                .toString());
+    }
+
+    String CFGet(ColumnFamilyHandle column_family, String k) {
+        Status s = new Status();
+        Slice result = db_.get(new ReadOptions(), column_family, new Slice(k),
+                s);
+        if (s.isNotFound()) {
+            return "NOT_FOUND";
+        } else if (!s.ok()) {
+            return s.toString();
+        }
+        return result.toString();
+    }
+
+    int CFTableFiles(ColumnFamilyHandle column_family) {
+        int result = 0;
+        for (int level = 0; level < config.kNumLevels; level++) {
+            StringBuffer property = new StringBuffer();
+            assertTrue(db_.getProperty(column_family, new Slice(
+                    "leveldb.num-files-at-level" + level), property));
+            result += Integer.parseInt(property.toString());
+        }
+        return result;
+    }
+
+    // Reopen the DB with column family "name" and return its handle
+    ColumnFamilyHandle ReopenWithColumnFamily(String name) {
+        if (db_ != null) {
+            db_.close();
+        }
+        db_ = null;
+        List<ColumnFamilyDescriptor> families = new ArrayList<ColumnFamilyDescriptor>();
+        families.add(new ColumnFamilyDescriptor(name, new Options()));
+        List<ColumnFamilyHandle> handles = new ArrayList<ColumnFamilyHandle>();
+        Options options = new Options();
+        options.create_if_missing = true;
+        Status s = new Status();
+        db_ = DB.open(options, dbname_, families, handles, s);
+        ASSERT_OK(s);
+        assertEquals(1, handles.size());
+        return handles.get(0);
+    }
+
+    public void testColumnFamilies() {
+        Status s = new Status();
+        ColumnFamilyHandle cf = db_.createColumnFamily(new Options(), "one", s);
+        ASSERT_OK(s);
+        assertNull(db_.createColumnFamily(new Options(), "one", s));
+        assertFalse(s.ok());
+
+        // One batch updates both families, each key in its own family
+        WriteBatch batch = new WriteBatch();
+        batch.put(new Slice("a"), new Slice("v1"));
+        batch.put(cf, new Slice("a"), new Slice("w1"));
+        batch.put(cf, new Slice("b"), new Slice("w2"));
+        batch.delete(cf, new Slice("b"));
+        batch.put(cf, new Slice("c"), new Slice("w3"));
+        ASSERT_OK(db_.write(new WriteOptions(), batch));
+        ASSERT_EQ("v1", Get("a"));
+        ASSERT_EQ("NOT_FOUND", Get("c"));
+        ASSERT_EQ("w1", CFGet(cf, "a"));
+        ASSERT_EQ("NOT_FOUND", CFGet(cf, "b"));
+        ASSERT_EQ("(a->v1)", Contents());
+        ASSERT_OK(db_.put(new WriteOptions(), cf, new Slice("d"), new Slice(
+                "w4")));
+        assertTrue(db_.merge(new WriteOptions(), cf, new Slice("d"),
+                new Slice("x")).toString().startsWith("Not implemented"));
+
+        // Recovered from the log they share
+        cf = ReopenWithColumnFamily("one");
+        ASSERT_EQ("v1", Get("a"));
+        ASSERT_EQ("w1", CFGet(cf, "a"));
+        ASSERT_EQ("w3", CFGet(cf, "c"));
+        ASSERT_EQ("w4", CFGet(cf, "d"));
+
+        // Each family flushes on its own; the logs the other one still
+        // needs are kept
+        ASSERT_OK(Put("e", "v2"));
+        db_.compactRange(cf, null, null);
+        assertTrue(CFTableFiles(cf) > 0);
+        ASSERT_OK(db_.put(new WriteOptions(), cf, new Slice("f"), new Slice(
+                "w5")));
+        dbfull().TEST_CompactMemTable();
+        cf = ReopenWithColumnFamily("one");
+        ASSERT_EQ("v2", Get("e"));
+        ASSERT_EQ("w1", CFGet(cf, "a"));
+        ASSERT_EQ("w5", CFGet(cf, "f"));
+        String result = "";
+        Iterator iter = db_.newIterator(new ReadOptions(), cf);
+        for (iter.seekToFirst(); iter.valid(); iter.next()) {
+            result += "(" + IterStatus(iter) + ")";
+        }
+        ASSERT_EQ("(a->w1)(c->w3)(d->w4)(f->w5)", result);
+
+        // Every family has to be opened
+        db_.close();
+        db_ = null;
+        assertNull(DB.open(new Options(), dbname_, s));
+        assertFalse(s.ok());
+        cf = ReopenWithColumnFamily("one");
+
+        // Dropped: its updates are ignored, also when recovering
+        ASSERT_OK(db_.put(new WriteOptions(), cf, new Slice("g"), new Slice(
+                "w6")));
+        ASSERT_OK(db_.dropColumnFamily(cf));
+        assertFalse(db_.dropColumnFamily(cf).ok());
+        assertTrue(CFGet(cf, "a").startsWith("Invalid argument"));
+        batch = new WriteBatch();
+        batch.put(cf, new Slice("h"), new Slice("w7"));
+        batch.put(new Slice("h"), new Slice("v3"));
+        ASSERT_OK(db_.write(new WriteOptions(), batch));
+        Reopen();
+        ASSERT_EQ("v1", Get("a"));
+        ASSERT_EQ("v3", Get("h"));
+        ColumnFamilyHandle two = db_.createColumnFamily(new Options(), "two",
+                s);
+        ASSERT_OK(s);
+        assertTrue(two.getID() > cf.getID());
+        ASSERT_EQ("NOT_FOUND", CFGet(two, "a"));
+    }
+
+    // Write an external file "name" with SstFileWriter: keys and values in
+    // turn, a null value for a deletion
+    String WriteExternalFile(String name, String... kvs) {
+        String path = TableTest.TmpDir() + "/" + name;
+        SstFileWriter writer = new SstFileWriter(new Options());
+        ASSERT_OK(writer.open(path));
+        for (int i = 0; i < kvs.length; i += 2) {
+            if (kvs[i + 1] == null) {
+                ASSERT_OK(writer.delete(new Slice(kvs[i])));
+            } else {
+                ASSERT_OK(writer.put(new Slice(kvs[i]), new Slice(kvs[i + 1])));
+            }
+        }
+        ASSERT_OK(writer.finish());
+        return path;
+    }
+
+    public void testIngestExternalFile() {
+        ASSERT_OK(Put("a", "v1"));
+        ASSERT_OK(Put("c", "v1"));
+        dbfull().TEST_CompactMemTable();
+        ASSERT_OK(Put("d", "v1"));
+        Snapshot snapshot = db_.getSnapshot();
+
+        // Newer than everything in the DB, memtable included
+        List<String> files = new ArrayList<String>();
+        files.add(WriteExternalFile("ext1.sst", "a", "v2", "b", "v2", "c",
+                null, "d", "v2"));
+        ASSERT_OK(db_.ingestExternalFile(files,
+                new IngestExternalFileOptions()));
+        ASSERT_EQ("v2", Get("a"));
+        ASSERT_EQ("v2", Get("b"));
+        ASSERT_EQ("NOT_FOUND", Get("c"));
+        ASSERT_EQ("v2", Get("d"));
+        ASSERT_EQ("v1", Get("a", snapshot));
+        ASSERT_EQ("NOT_FOUND", Get("b", snapshot));
+        ASSERT_EQ("v1", Get("c", snapshot));
+        ASSERT_EQ("(a->v2)(b->v2)(d->v2)", Contents());
+        db_.releaseSnapshot(snapshot);
+
+        // Overlapping nothing, moved to the bottom level
+        files.clear();
+        files.add(WriteExternalFile("ext2.sst", "x", "v3", "y", "v3"));
+        IngestExternalFileOptions options = new IngestExternalFileOptions();
+        options.move_files = true;
+        ASSERT_OK(db_.ingestExternalFile(files, options));
+        assertEquals(1, NumTableFilesAtLevel(config.kNumLevels - 1));
+        assertFalse(env_.fileExists(files.get(0)));
+
+        // The sequence numbers survive reopening, and later writes win
+        Reopen();
+        ASSERT_EQ("v2", Get("a"));
+        ASSERT_EQ("v3", Get("y"));
+        ASSERT_OK(Put("a", "v4"));
+        ASSERT_EQ("v4", Get("a"));
+        db_.compactRange(null, null);
+        ASSERT_EQ("(a->v4)(b->v2)(d->v2)(x->v3)(y->v3)", Contents());
+
+        // Overlapping files, or files not from SstFileWriter, are refused
+        files.clear();
+        files.add(WriteExternalFile("ext3.sst", "a", "v5", "c", "v5"));
+        files.add(WriteExternalFile("ext4.sst", "b", "v5"));
+        assertTrue(db_.ingestExternalFile(files,
+                new IngestExternalFileOptions()).toString().startsWith(
+                "Invalid argument"));
+        files.clear();
+        files.add(dbname_ + "/CURRENT");
+        assertFalse(db_.ingestExternalFile(files,
+                new IngestExternalFileOptions()).ok());
+        ASSERT_EQ("v4", Get("a"));
+
+        // A key ingested since a transaction began conflicts with it
+        Transaction txn = db_.beginTransaction(new WriteOptions());
+        ASSERT_OK(txn.put(new Slice("e"), new Slice("v7")));
+        files.clear();
+        files.add(WriteExternalFile("ext6.sst", "e", "v6"));
+        ASSERT_OK(db_.ingestExternalFile(files,
+                new IngestExternalFileOptions()));
+        assertTrue(txn.commit().isBusy());
+        ASSERT_EQ("v6", Get("e"));
+
+        SstFileWriter writer = new SstFileWriter(new Options());
+        ASSERT_OK(writer.open(TableTest.TmpDir() + "/ext5.sst"));
+        ASSERT_OK(writer.put(new Slice("b"), new Slice("v6")));
+        assertFalse(writer.put(new Slice("a"), new Slice("v6")).ok());
+        ASSERT_OK(writer.finish());
+    }
+
+    public void testWriteBufferManager() {
+        WriteBufferManager manager = new WriteBufferManager(1 << 20,
+                Cache.newLRUCache(8 << 20));
+        Options options = new Options();
+        options.create_if_missing = true;
+        options.write_buffer_manager = manager;
+        Reopen(options);
+        String dbname2 = dbname_ + "_2";
+        DB.destroyDB(dbname2, new Options());
+        DB db2 = DB.open(options, dbname2);
+        assertNotNull(db2);
+        try {
+            // Far below write_buffer_size, and within the budget
+            Random rnd = new Random(301);
+            String value = RandomString(rnd, 1000);
+            ASSERT_OK(Put(Key(0), value));
+            for (int i = 1; i < 500; i++) {
+                ASSERT_OK(Put(Key(i), RandomString(rnd, 1000)));
+            }
+            assertEquals(0, TotalTableFiles());
+
+            // The writes of the other DB take the total over the budget:
+            // the largest memtable, that of db_, gets flushed
+            for (int i = 0; i < 500 && TotalTableFiles() == 0; i++) {
+                ASSERT_OK(db2.put(new WriteOptions(), new Slice(Key(i)),
+                        new Slice(RandomString(rnd, 1000))));
+                env_.sleepForMicroseconds(1000);
+            }
+            assertTrue(TotalTableFiles() > 0);
+            ASSERT_EQ(value, Get(Key(0)));
+            ASSERT_OK(db2.put(new WriteOptions(), new Slice("x"), new Slice(
+                    "y")));
+            assertTrue(manager.memoryUsage() < manager.bufferSize());
+        } finally {
+            db2.close();
+            DB.destroyDB(dbname2, new Options());
+        }
+    }
+
+    public void testBloomFilter() {
+        env_.count_random_reads_ = true;
+        Options options = new Options();
+        options.create_if_missing = true;
+        options.env = env_;
+        options.block_cache = Cache.newLRUCache(0); // Prevent cache hits
+        options.filter_policy = FilterPolicy.newBloomFilterPolicy(10);
+        Reopen(options);
+
+        final int N = 2000;
+        for (int i = 0; i < N; i++) {
+            ASSERT_OK(Put(Key(i), Key(i)));
+        }
+        Compact("a", "z");
+        assertEquals(1, TotalTableFiles());
+
+        // Lookup present keys: one data block read each
+        env_.random_read_counter_.set(0);
+        for (int i = 0; i < N; i++) {
+            ASSERT_EQ(Key(i), Get(Key(i)));
+        }
+        int reads = env_.random_read_counter_.get();
+        assertTrue("present reads " + reads, reads >= N);
+        assertTrue("present reads " + reads, reads <= N + 2 * N / 100);
+
+        // Lookup missing keys: the filter keeps nearly all of them off the
+        // disk
+        env_.random_read_counter_.set(0);
+        for (int i = 0; i < N; i++) {
+            ASSERT_EQ("NOT_FOUND", Get(Key(i) + ".missing"));
+        }
+        reads = env_.random_read_counter_.get();
+        assertTrue("missing reads " + reads, reads <= 3 * N / 100);
+
+        // Without a filter every one of them reads a data block
+        options.filter_policy = null;
+        Reopen(options);
+        env_.random_read_counter_.set(0);
+        for (int i = 0; i < N; i++) {
+            ASSERT_EQ("NOT_FOUND", Get(Key(i) + ".missing"));
+        }
+        reads = env_.random_read_counter_.get();
+        assertTrue("missing reads " + reads, reads >= N);
+        env_.count_random_reads_ = false;
+    }
+
+    // The keys of the iterator in prefix-seek mode for "prefix", from a
+    // seek to "target", formatted like Contents()
+    String PrefixContents(String prefix, String target) {
+        ReadOptions options = new ReadOptions();
+        options.prefix = new Slice(prefix);
+        Iterator iter = db_.newIterator(options);
+        String result = "";
+        for (iter.seek(new Slice(target)); iter.valid(); iter.next()) {
+            result += "(" + IterStatus(iter) + ")";
+        }
+        return result;
+    }
+
+    public void testPrefixSeek() {
+        env_.count_random_reads_ = true;
+        Options options = new Options();
+        options.create_if_missing = true;
+        options.env = env_;
+        options.block_cache = Cache.newLRUCache(0); // Prevent cache hits
+        options.prefix_extractor = SliceTransform.newFixedPrefixTransform(3);
+        options.memtable_bloom_size_ratio = 0.02;
+        Reopen(options);
+
+        // One prefix in a compacted file, one in a level-0 file, one in the
+        // memtable
+        ASSERT_OK(Put("aaa1", "v1"));
+        ASSERT_OK(Put("aaa2", "v2"));
+        Compact("a", "z");
+        ASSERT_OK(Put("bbb1", "v3"));
+        ASSERT_OK(Put("bbb2", "v4"));
+        dbfull().TEST_CompactMemTable();
+        ASSERT_OK(Put("ccc1", "v5"));
+        assertEquals(2, TotalTableFiles());
+
+        ASSERT_EQ("(aaa1->v1)(aaa2->v2)", PrefixContents("aaa", "aaa"));
+        ASSERT_EQ("(aaa2->v2)", PrefixContents("aaa", "aaa2"));
+        ASSERT_EQ("(bbb1->v3)(bbb2->v4)", PrefixContents("bbb", "bbb"));
+        ASSERT_EQ("(ccc1->v5)", PrefixContents("ccc", "ccc"));
+        ASSERT_EQ("", PrefixContents("abc", "abc"));
+
+        ReadOptions ropts = new ReadOptions();
+        ropts.prefix = new Slice("bbb");
+        Iterator iter = db_.newIterator(ropts);
+        iter.seekToLast();
+        ASSERT_EQ("bbb2->v4", IterStatus(iter));
+        iter.prev();
+        ASSERT_EQ("bbb1->v3", IterStatus(iter));
+        iter.prev();
+        ASSERT_EQ("(invalid)", IterStatus(iter));
+        iter.seekToFirst();
+        ASSERT_EQ("bbb1->v3", IterStatus(iter));
+
+        // A prefix no filter lets through reads no data block
+        env_.random_read_counter_.set(0);
+        for (int i = 0; i < 100; i++) {
+            String prefix = "x" + (10 + i);
+            ASSERT_EQ("", PrefixContents(prefix, prefix));
+        }
+        int reads = env_.random_read_counter_.get();
+        assertTrue("reads " + reads, reads <= 10);
+        env_.count_random_reads_ = false;
+
+        // Without a prefix extractor there is no prefix-seek mode
+        options.prefix_extractor = null;
+        Reopen(options);
+        iter = db_.newIterator(ropts);
+        assertFalse(iter.valid());
+        assertFalse(iter.status().ok());
+    }
+
     public void testGetEncountersEmptyLevel() {
         // Arrange for the following to happen:
         // * sstable A in level 0
@@ -746,6 +1902,25 @@ public class DBTest extends TestCase {
         ASSERT_EQ("v5", Get("baz"));
     }
 
+    public void testRecoverUnloggedWritesAfterClose() {
+        WriteOptions no_wal = new WriteOptions();
+        no_wal.disable_wal = true;
+        ASSERT_OK(db_.put(no_wal, new Slice("foo"), new Slice("v1")));
+        ASSERT_OK(Put("bar", "v2"));
+        StringBuffer at_risk = new StringBuffer();
+        assertTrue(db_.getProperty(new Slice("leveldb.unlogged-bytes"), at_risk));
+        assertTrue(Long.parseLong(at_risk.toString()) > 0);
+
+        no_wal.sync = true;
+        assertFalse(db_.put(no_wal, new Slice("baz"), new Slice("v3")).ok());
+
+        // close() flushes what is not in the log
+        Reopen();
+        ASSERT_EQ("v1", Get("foo"));
+        ASSERT_EQ("v2", Get("bar"));
+        ASSERT_EQ("NOT_FOUND", Get("baz"));
+    }
+
     public void testRecoveryWithEmptyLog() {
         ASSERT_OK(Put("foo", "v1"));
         ASSERT_OK(Put("foo", "v2"));
@@ -838,6 +2013,140 @@ public class DBTest extends TestCase {
         assertTrue(NumTableFilesAtLevel(0) > 1);
     }
 
+    public void testRecoverLogInParallel() {
+        {
+            Options options = new Options();
+            Reopen(options);
+            for (int i = 0; i < 200; i++) {
+                ASSERT_OK(Put("foo", TableTest.string(10000, (char) ('a' + i % 26))));
+                ASSERT_OK(Put(Key(i), "v" + i));
+            }
+            assertTrue(NumTableFilesAtLevel(0) == 0);
+        }
+
+        // Replay the log into many memtables, written out by several threads
+        // at once: reads must still see the newest value of "foo".
+        Options options = new Options();
+        options.write_buffer_size = 100000;
+        options.recovery_threads = 4;
+        Reopen(options);
+        assertTrue(NumTableFilesAtLevel(0) > 4);
+        ASSERT_EQ(TableTest.string(10000, (char) ('a' + 199 % 26)), Get("foo"));
+        for (int i = 0; i < 200; i++) {
+            ASSERT_EQ("v" + i, Get(Key(i)));
+        }
+
+        options.recovery_threads = 1;
+        ASSERT_OK(Put("foo", "v2"));
+        Reopen(options);
+        ASSERT_EQ("v2", Get("foo"));
+    }
+
+    public void testRecoverPreallocatedAndRecycledLogs() {
+        Options options = new Options();
+        options.create_if_missing = true;
+        options.write_buffer_size = 100000;
+        options.preallocate_log_files = true;
+        options.recycle_log_file_num = 2;
+        Reopen(options);
+        String crash = dbname_ + "_crash";
+        DB.destroyDB(crash, new Options());
+
+        // Switch memtables a few times: the logs of flushed memtables are
+        // recycled, fresh ones are preallocated
+        for (int i = 0; i < 200; i++) {
+            ASSERT_OK(Put(Key(i), TableTest.string(1000, (char) ('a' + i % 26))));
+        }
+        WaitForFlush();
+        for (int i = 200; i < 300; i++) {
+            ASSERT_OK(Put(Key(i), TableTest.string(1000, (char) ('a' + i % 26))));
+        }
+        WaitForFlush();
+        assertTrue(TotalTableFiles() >= 2);
+
+        // Recover from the files as they are, without closing the DB: the
+        // current log ends in zeros or in records of its former use
+        CopyDBFiles(crash);
+        DB db2 = DB.open(options, crash);
+        assertNotNull(db2);
+        for (int i = 0; i < 300; i++) {
+            Status s = new Status();
+            Slice v = db2.get(new ReadOptions(), new Slice(Key(i)), s);
+            ASSERT_OK(s);
+            ASSERT_EQ(TableTest.string(1000, (char) ('a' + i % 26)), v);
+        }
+        ASSERT_OK(db2.put(new WriteOptions(), new Slice("foo"), new Slice("v1")));
+        db2.close();
+        DB.destroyDB(crash, new Options());
+    }
+
+    public void testSyncWritesFromManyThreads() throws Exception {
+        Options options = new Options();
+        options.create_if_missing = true;
+        Reopen(options);
+        String crash = dbname_ + "_crash";
+        DB.destroyDB(crash, new Options());
+        ASSERT_EQ("0", Property("leveldb.log-syncs"));
+
+        final WriteOptions sync = new WriteOptions();
+        sync.sync = true;
+        for (int i = 0; i < 10; i++) {
+            ASSERT_OK(db_.put(sync, new Slice("s" + i), new Slice("v" + i)));
+        }
+        ASSERT_OK(Put("unsynced", "v"));
+        ASSERT_EQ("10", Property("leveldb.log-syncs"));
+        ASSERT_EQ("1.0", Property("leveldb.writes-per-sync"));
+
+        // Concurrent sync writers share syncs, every write is counted once
+        final int kThreads = 8;
+        final int kWrites = 50;
+        final List<Throwable> errors = new ArrayList<Throwable>();
+        Thread[] threads = new Thread[kThreads];
+        for (int t = 0; t < kThreads; t++) {
+            final int id = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < kWrites; i++) {
+                            ASSERT_OK(db_.put(sync, new Slice(id + "." + i),
+                                    new Slice("v" + i)));
+                        }
+                    } catch (Throwable e) {
+                        synchronized (errors) {
+                            errors.add(e);
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(errors.toString(), errors.isEmpty());
+        long syncs = Long.parseLong(Property("leveldb.log-syncs"));
+        long writes = 10 + kThreads * kWrites;
+        assertTrue(syncs > 10 && syncs <= writes);
+        assertEquals((double) writes / syncs,
+                Double.parseDouble(Property("leveldb.writes-per-sync")), 1e-9);
+
+        // Synced writes are in the log file, not just in its write buffer
+        CopyDBFiles(crash);
+        DB db2 = DB.open(options, crash);
+        assertNotNull(db2);
+        for (int t = 0; t < kThreads; t++) {
+            for (int i = 0; i < kWrites; i++) {
+                Status s = new Status();
+                Slice v = db2.get(new ReadOptions(), new Slice(t + "." + i), s);
+                ASSERT_OK(s);
+                ASSERT_EQ("v" + i, v);
+            }
+        }
+        db2.close();
+        DB.destroyDB(crash, new Options());
+    }
+
     static String RandomString(Random rnd, int len) {
         return util.RandomString(rnd, len);
     }
@@ -1225,7 +2534,7 @@ public class DBTest extends TestCase {
         Reopen();
         Reopen();
         ASSERT_EQ("(a->v)", Contents());
-        env_.sleepForMicroseconds(10); // Wait for compaction to finish
+        env_.sleepForMicroseconds(10000); // Wait for compaction to finish
         ASSERT_EQ("(a->v)", Contents());
     }
 
@@ -1244,7 +2553,7 @@ public class DBTest extends TestCase {
         Put("", "");
         Reopen();
         Put("", "");
-        env_.sleepForMicroseconds(10); // Wait for compaction to finish
+        env_.sleepForMicroseconds(10000); // Wait for compaction to finish
         Reopen();
         Put("d", "dv");
         Reopen();
@@ -1254,7 +2563,7 @@ public class DBTest extends TestCase {
         Delete("b");
         Reopen();
         ASSERT_EQ("(->)(c->cv)", Contents());
-        env_.sleepForMicroseconds(10); // Wait for compaction to finish
+        env_.sleepForMicroseconds(10000); // Wait for compaction to finish
         ASSERT_EQ("(->)(c->cv)", Contents());
     }
 
@@ -157,6 +157,13 @@ public class LogTest {
         reader_ = new Reader(source_, report_, true/* checksum */, 0/* initial_offset */);
     }
 
+    // Switch to the recyclable record format, for log file "log_number"
+    void SetRecyclable(long log_number) {
+        writer_ = new Writer(dest_, log_number, true);
+        reader_ = new Reader(source_, report_, true/* checksum */,
+                0/* initial_offset */, log_number);
+    }
+
     void Write(String msg) {
         ASSERT_TRUE(!reading_, "write() after starting to read");
         writer_.AddRecord(new Slice(msg));
@@ -542,6 +549,44 @@ public class LogTest {
                         * logformat.kHeaderSize, 3);
     }
 
+    void RecyclableReadWrite() {
+        SetRecyclable(123);
+        Write("foo");
+        Write(BigString("medium", 50000));
+        Write("");
+        ASSERT_EQ("foo", Read());
+        ASSERT_EQ(BigString("medium", 50000), Read());
+        ASSERT_EQ("", Read());
+        ASSERT_EQ("EOF", Read());
+        ASSERT_EQ(0, DroppedBytes());
+    }
+
+    void RecycledLogTail() {
+        // Fill the file as log 6
+        SetRecyclable(6);
+        for (int i = 0; i < 1000; i++) {
+            Write(NumberString(i));
+        }
+        byte[] old_log = dest_.contents_.getData();
+
+        // Then reuse it for log 7, which is shorter
+        dest_ = new StringDest();
+        SetRecyclable(7);
+        Write("foo");
+        Write(BigString("bar", 10000));
+        byte[] new_log = dest_.contents_.getData();
+        ASSERT_TRUE(new_log.length < old_log.length, "log 7 too long");
+        System.arraycopy(new_log, 0, old_log, 0, new_log.length);
+        dest_.contents_ = new ByteVector();
+        dest_.contents_.append(old_log);
+
+        // The records left of log 6 end log 7 without being reported
+        ASSERT_EQ("foo", Read());
+        ASSERT_EQ(BigString("bar", 10000), Read());
+        ASSERT_EQ("EOF", Read());
+        ASSERT_EQ(0, DroppedBytes());
+    }
+
     void ReadEnd() {
         CheckOffsetPastEndReturnsNoRecords(0);
     }
@@ -613,5 +658,9 @@ public class LogTest {
         lt.ReadEnd();
         lt = new LogTest();
         lt.ReadPastEnd();
+        lt = new LogTest();
+        lt.RecyclableReadWrite();
+        lt = new LogTest();
+        lt.RecycledLogTail();
     }
 }
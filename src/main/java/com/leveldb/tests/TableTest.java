@@ -14,6 +14,8 @@ import com.leveldb.common.options.ReadOptions;
 import com.leveldb.common.options.WriteOptions;
 import com.leveldb.common.table.Block;
 import com.leveldb.common.table.BlockBuilder;
+import com.leveldb.common.table.FilterBlockBuilder;
+import com.leveldb.common.table.FilterBlockReader;
 import com.leveldb.common.table.TableBuilder;
 import com.leveldb.util.SequenceNumber;
 import com.leveldb.util.ValueType;
@@ -339,6 +341,8 @@ public class TableTest extends TestCase {
             source_ = new StringSource(new Slice(sink.contents()));
             Options table_options = new Options();
             table_options.comparator = options.comparator;
+            table_options.filter_policy = options.filter_policy;
+            table_options.prefix_extractor = options.prefix_extractor;
             table_ = Table.Open(table_options, source_, sink.contents().length);
 
             return Status.OK();
@@ -1152,6 +1156,206 @@ public class TableTest extends TestCase {
 
     }
 
+    // "i" as a little-endian fixed32, as the keys of the leveldb bloom test
+    static Slice BloomKey(int i) {
+        return new Slice(new byte[]{(byte) i, (byte) (i >>> 8),
+                (byte) (i >>> 16), (byte) (i >>> 24)});
+    }
+
+    public void testBloomFilterPolicy() {
+        FilterPolicy policy = FilterPolicy.newBloomFilterPolicy(10);
+        List<Slice> keys = new ArrayList<Slice>();
+        Slice empty = new Slice(policy.createFilter(keys));
+        ASSERT_TRUE(!policy.keyMayMatch(new Slice("hello"), empty), "hello");
+        ASSERT_TRUE(!policy.keyMayMatch(new Slice("world"), empty), "world");
+
+        // Count number of filters that significantly exceed the false
+        // positive rate
+        int mediocre_filters = 0;
+        int good_filters = 0;
+        for (int length = 1; length <= 10000; length = NextLength(length)) {
+            keys.clear();
+            for (int i = 0; i < length; i++) {
+                keys.add(BloomKey(i));
+            }
+            Slice filter = new Slice(policy.createFilter(keys));
+            ASSERT_TRUE(filter.size() <= (length * 10 / 8) + 40, "size "
+                    + length);
+
+            // All added keys must match
+            for (int i = 0; i < length; i++) {
+                ASSERT_TRUE(policy.keyMayMatch(BloomKey(i), filter), "length "
+                        + length + "; key " + i);
+            }
+
+            // Check false positive rate
+            int result = 0;
+            for (int i = 0; i < 10000; i++) {
+                if (policy.keyMayMatch(BloomKey(i + 1000000000), filter)) {
+                    result++;
+                }
+            }
+            double rate = result / 10000.0;
+            ASSERT_TRUE(rate <= 0.02, "rate " + rate); // Must not be over 2%
+            if (rate > 0.0125) {
+                mediocre_filters++; // Allowed, but not too often
+            } else {
+                good_filters++;
+            }
+        }
+        ASSERT_TRUE(mediocre_filters <= good_filters / 5, "mediocre "
+                + mediocre_filters);
+    }
+
+    static int NextLength(int length) {
+        if (length < 10) {
+            length += 1;
+        } else if (length < 100) {
+            length += 10;
+        } else if (length < 1000) {
+            length += 100;
+        } else {
+            length += 1000;
+        }
+        return length;
+    }
+
+    public void testFilterBlock() {
+        FilterPolicy policy = FilterPolicy.newBloomFilterPolicy(10);
+        FilterBlockBuilder builder = new FilterBlockBuilder(policy);
+        builder.StartBlock(100);
+        builder.AddKey(new Slice("foo"));
+        builder.AddKey(new Slice("bar"));
+        builder.StartBlock(200);
+        builder.AddKey(new Slice("box"));
+        builder.StartBlock(300);
+        builder.AddKey(new Slice("hello"));
+        // A second filter, for the blocks from offset 3100 on
+        builder.StartBlock(3100);
+        builder.AddKey(new Slice("other"));
+        Slice block = builder.Finish();
+
+        FilterBlockReader reader = new FilterBlockReader(policy, block);
+        ASSERT_TRUE(reader.KeyMayMatch(100, new Slice("foo")), "foo");
+        ASSERT_TRUE(reader.KeyMayMatch(200, new Slice("bar")), "bar");
+        ASSERT_TRUE(reader.KeyMayMatch(300, new Slice("hello")), "hello");
+        ASSERT_TRUE(!reader.KeyMayMatch(100, new Slice("missing")), "missing");
+        ASSERT_TRUE(!reader.KeyMayMatch(100, new Slice("other")), "other");
+        ASSERT_TRUE(reader.KeyMayMatch(3100, new Slice("other")), "other");
+        ASSERT_TRUE(!reader.KeyMayMatch(3100, new Slice("foo")), "foo");
+
+        // A block without any filter cannot rule anything out
+        FilterBlockReader empty = new FilterBlockReader(policy,
+                new FilterBlockBuilder(policy).Finish());
+        ASSERT_TRUE(empty.KeyMayMatch(0, new Slice("foo")), "foo");
+        ASSERT_TRUE(empty.KeyMayMatch(100000, new Slice("foo")), "foo");
+    }
+
+    public void testTableFilter() {
+        TableConstructor c = new TableConstructor(
+                BytewiseComparatorImpl.getInstance());
+        for (int i = 0; i < 1000; i++) {
+            c.Add("k" + (10000 + i), string(100, 'v'));
+        }
+        List<byte[]> keys = new ArrayList<byte[]>();
+        TreeMap<byte[], byte[]> kvmap = new TreeMap<byte[], byte[]>(
+                new STLLessThan());
+        Options options = new Options();
+        options.block_size = 1024;
+        options.filter_policy = FilterPolicy.newBloomFilterPolicy(10);
+        c.Finish(options, keys, kvmap);
+
+        for (int i = 0; i < 1000; i++) {
+            ASSERT_TRUE(c.table_.KeyMayMatch(new Slice("k" + (10000 + i))),
+                    "k" + (10000 + i));
+        }
+        int matches = 0;
+        for (int i = 0; i < 1000; i++) {
+            if (c.table_.KeyMayMatch(new Slice("k" + (10000 + i) + "x"))) {
+                matches++;
+            }
+        }
+        ASSERT_TRUE(matches <= 30, "matches " + matches);
+        // Past the last key
+        ASSERT_TRUE(!c.table_.KeyMayMatch(new Slice("z")), "z");
+    }
+
+    public void testTablePrefixFilter() {
+        TableConstructor c = new TableConstructor(
+                BytewiseComparatorImpl.getInstance());
+        for (int i = 0; i < 1000; i++) {
+            c.Add("p" + (100 + i / 10) + "k" + i, "v");
+        }
+        List<byte[]> keys = new ArrayList<byte[]>();
+        TreeMap<byte[], byte[]> kvmap = new TreeMap<byte[], byte[]>(
+                new STLLessThan());
+        Options options = new Options();
+        options.prefix_extractor = SliceTransform.newFixedPrefixTransform(4);
+        c.Finish(options, keys, kvmap);
+
+        for (int i = 0; i < 100; i++) {
+            ASSERT_TRUE(c.table_.PrefixMayMatch(new Slice("p" + (100 + i))),
+                    "p" + (100 + i));
+        }
+        int matches = 0;
+        for (int i = 0; i < 1000; i++) {
+            if (c.table_.PrefixMayMatch(new Slice("q" + (100 + i)))) {
+                matches++;
+            }
+        }
+        ASSERT_TRUE(matches <= 30, "matches " + matches);
+    }
+
+    // Collects what Table.InternalGet() hands over, up to "limit" entries
+    static class CollectingHandler implements Table.ResultHandler {
+        final int limit;
+        List<String> entries = new ArrayList<String>();
+
+        CollectingHandler(int limit) {
+            this.limit = limit;
+        }
+
+        public boolean handleResult(Slice key, Slice value) {
+            entries.add(key.toString() + "->" + value.toString());
+            return entries.size() < limit;
+        }
+    }
+
+    public void testInternalGet() {
+        TableConstructor c = new TableConstructor(
+                BytewiseComparatorImpl.getInstance());
+        Random rnd = new Random(301);
+        for (int i = 0; i < 500; i++) {
+            c.Add("k" + (10000 + 2 * i), util.RandomString(rnd, rnd.nextInt(200)));
+        }
+        List<byte[]> keys = new ArrayList<byte[]>();
+        TreeMap<byte[], byte[]> kvmap = new TreeMap<byte[], byte[]>(
+                new STLLessThan());
+        Options options = new Options();
+        options.block_size = 256;
+        options.block_restart_interval = 4;
+        c.Finish(options, keys, kvmap);
+
+        // Present and missing keys, and keys before and after all of them:
+        // the entries handed over are those an iterator steps through
+        for (int i = 9990; i < 11010; i++) {
+            Slice target = new Slice("k" + i);
+            int limit = 1 + i % 5;
+            CollectingHandler handler = new CollectingHandler(limit);
+            Status s = c.table_.InternalGet(new ReadOptions(), target, handler);
+            ASSERT_TRUE(s.ok(), s.toString());
+
+            List<String> expected = new ArrayList<String>();
+            Iterator iter = c.NewIterator();
+            for (iter.seek(target); iter.valid() && expected.size() < limit; iter
+                    .next()) {
+                expected.add(iter.key().toString() + "->"
+                        + iter.value().toString());
+            }
+            ASSERT_TRUE(expected.equals(handler.entries), "k" + i);
+        }
+    }
+
     public static Test suite() {
         TestSuite suite = new TestSuite("TestSuite Test");
         // suite.addTestSuite(TableTest.class);
@@ -47,6 +47,14 @@ public class VersionEditTest extends TestCase {
         edit.setLogNumber(kBig + 100);
         edit.setNextFile(kBig + 200);
         edit.setLastSequence(new SequenceNumber(kBig + 1000));
+        edit.setMaxColumnFamily(3);
+        edit.addColumnFamily(3, "cf");
+        edit.dropColumnFamily(2);
+        edit.addFile(5, kBig + 800, kBig + 801, new InternalKey(new Slice(
+                "bar"), new SequenceNumber(kBig + 802), new ValueType(
+                ValueType.kTypeValue)), new InternalKey(new Slice("baz"),
+                new SequenceNumber(kBig + 802), new ValueType(
+                ValueType.kTypeValue)), kBig + 802);
         TestEncodeDecode(edit);
     }
 
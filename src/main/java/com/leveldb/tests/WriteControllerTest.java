@@ -0,0 +1,106 @@
+package com.leveldb.tests;
+
+import com.leveldb.common.db.WriteController;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import junit.textui.TestRunner;
+
+public class WriteControllerTest extends TestCase {
+    // bytes/sec: 16 bytes a micro, down to 1 at the lowest rate
+    static final long kRate = 16000000;
+
+    public void testNoPressure() {
+        WriteController c = new WriteController(kRate);
+        assertFalse(c.isDelayed());
+        assertEquals(0, c.rate());
+        c.charge(100 * kRate, 0);
+        assertEquals(0, c.delayMicros(0));
+
+        c.setPressure(0, 0);
+        assertFalse(c.isDelayed());
+        c.charge(100 * kRate, 0);
+        assertEquals(0, c.delayMicros(0));
+    }
+
+    public void testRateFallsWithPressure() {
+        WriteController c = new WriteController(kRate);
+        c.setPressure(0.25, 0);
+        assertTrue(c.isDelayed());
+        assertEquals(kRate * 3 / 4, c.rate());
+        c.setPressure(0.5, 0);
+        assertEquals(kRate / 2, c.rate());
+        c.setPressure(1, 0);
+        assertEquals(kRate / WriteController.kMinRateFraction, c.rate());
+        c.setPressure(5, 0);
+        assertEquals(kRate / WriteController.kMinRateFraction, c.rate());
+        c.setPressure(0, 0);
+        assertFalse(c.isDelayed());
+        assertEquals(0, c.rate());
+    }
+
+    public void testBurst() {
+        WriteController c = new WriteController(kRate);
+        long now = 1000000;
+        c.setPressure(0.5, now); // 8 bytes a micro
+
+        // A full burst goes through without delay...
+        c.charge(WriteController.kBurstMicros * 8, now);
+        assertEquals(0, c.delayMicros(now));
+        // ...and what comes after it waits for its share of the rate
+        c.charge(800, now);
+        assertEquals(100, c.delayMicros(now));
+        assertEquals(50, c.delayMicros(now + 50));
+        assertEquals(0, c.delayMicros(now + 100));
+    }
+
+    public void testDelayMicros() {
+        WriteController c = new WriteController(kRate);
+        long now = 1000000;
+        c.setPressure(1, now); // 1 byte a micro
+        c.charge(WriteController.kBurstMicros, now);
+        c.charge(1000000, now);
+        assertEquals(1000000, c.delayMicros(now));
+
+        // A lower pressure applies to the bytes charged from then on
+        now += 1000000;
+        c.setPressure(0.5, now);
+        assertEquals(0, c.delayMicros(now));
+        c.charge(4000000, now);
+        assertEquals(500000, c.delayMicros(now));
+    }
+
+    public void testIdleTimeEarnsOneBurst() {
+        WriteController c = new WriteController(kRate);
+        long now = 1000000;
+        c.setPressure(0.5, now);
+        c.charge(16000, now);
+        assertEquals(2000 - WriteController.kBurstMicros, c.delayMicros(now));
+
+        // Idle for far longer than a burst: still only one burst is free
+        now += 10000000;
+        assertEquals(0, c.delayMicros(now));
+        c.charge(16000, now);
+        assertEquals(2000 - WriteController.kBurstMicros, c.delayMicros(now));
+    }
+
+    public void testPressureReleasedAndBack() {
+        WriteController c = new WriteController(kRate);
+        long now = 1000000;
+        c.setPressure(0.5, now);
+        c.charge(80000, now);
+        assertTrue(c.delayMicros(now) > 0);
+        c.setPressure(0, now);
+        assertEquals(0, c.delayMicros(now));
+        // The debt from before is forgotten, and a new burst allowed
+        c.setPressure(0.5, now);
+        c.charge(WriteController.kBurstMicros * 8, now);
+        assertEquals(0, c.delayMicros(now));
+    }
+
+    public static void main(String args[]) {
+        TestSuite t = new TestSuite("Write Controller Test");
+        t.addTestSuite(WriteControllerTest.class);
+        TestRunner.run(t);
+    }
+
+}
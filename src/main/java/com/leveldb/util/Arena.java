@@ -0,0 +1,285 @@
+package com.leveldb.util;
+
+import com.leveldb.common.Slice;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bump allocator that packs many small records into a few large slabs, so a
+ * memtable holds a handful of big buffers instead of one byte[] per entry.
+ * <p/>
+ * Slabs are either heap ByteBuffers (backed by a byte[] that can be handed
+ * out as a zero-copy Slice) or direct ByteBuffers that live outside the Java
+ * heap and are never traced by the GC.
+ * <p/>
+ * An allocation is addressed by a long: slab index in the high 32 bits,
+ * offset inside the slab in the low 32 bits. Addresses stay valid for the
+ * lifetime of the arena.
+ * <p/>
+ * allocate() needs external synchronization (one writer at a time); writers
+ * that run in parallel use allocateConcurrently() instead, which carves from
+ * a slab of its own by bumping its pointer with a CAS. put() only touches
+ * the given region, so writers may fill disjoint allocations in parallel.
+ * Readers may call the read methods concurrently with the writer, as long as
+ * the address they read was published after it was written (e.g. through a
+ * release-store in the skiplist).
+ */
+public class Arena {
+    public static final int kDefaultBlockSize = 64 << 10;
+
+    private final int block_size_;
+    private final boolean direct_;
+
+    // Slabs allocated so far. The array is replaced (never mutated in place
+    // beyond num_blocks_) when it grows, so racing readers always see a
+    // consistent prefix.
+    private volatile ByteBuffer[] blocks_;
+    private int num_blocks_;
+
+    // Current slab that small allocations are carved from
+    private int alloc_block_;
+    private int alloc_ptr_;
+    private int alloc_bytes_remaining_;
+
+    // Address of the next free byte in the slab that allocateConcurrently()
+    // carves from. Starts out at the end of a (nonexistent) slab, so the
+    // first allocation opens one.
+    private final AtomicLong concurrent_alloc_;
+
+    // Total bytes of slab memory plus bookkeeping
+    private volatile long memory_usage_;
+
+    public Arena() {
+        this(kDefaultBlockSize, false);
+    }
+
+    public Arena(int block_size, boolean direct) {
+        assert (block_size > 0);
+        block_size_ = block_size;
+        direct_ = direct;
+        blocks_ = new ByteBuffer[16];
+        num_blocks_ = 0;
+        alloc_block_ = -1;
+        alloc_ptr_ = 0;
+        alloc_bytes_remaining_ = 0;
+        concurrent_alloc_ = new AtomicLong(address(0, block_size));
+        memory_usage_ = 0;
+    }
+
+    public boolean isDirect() {
+        return direct_;
+    }
+
+    // Return the address of a newly allocated region of "bytes" bytes.
+    public long allocate(int bytes) {
+        // The semantics of what to return are a bit messy if we allow
+        // 0-byte allocations, so we disallow them here (we don't need
+        // them for our internal use).
+        assert (bytes > 0);
+        if (bytes <= alloc_bytes_remaining_) {
+            long result = address(alloc_block_, alloc_ptr_);
+            alloc_ptr_ += bytes;
+            alloc_bytes_remaining_ -= bytes;
+            return result;
+        }
+        return allocateFallback(bytes);
+    }
+
+    // Same as allocate(), for writers that fill the arena from several
+    // threads at once. Writers only take the lock when the slab runs out.
+    public long allocateConcurrently(int bytes) {
+        assert (bytes > 0);
+        if (bytes > block_size_ / 4) {
+            return address(newBlock(bytes), 0);
+        }
+        while (true) {
+            long cur = concurrent_alloc_.get();
+            if (offset(cur) + bytes <= block_size_) {
+                if (concurrent_alloc_.compareAndSet(cur, cur + bytes)) {
+                    return cur;
+                }
+                continue;
+            }
+            synchronized (this) {
+                // Only the first writer that found the slab full opens a new
+                // one; the others retry on it.
+                if (concurrent_alloc_.get() == cur) {
+                    int idx = newBlock(block_size_);
+                    concurrent_alloc_.set(address(idx, bytes));
+                    return address(idx, 0);
+                }
+            }
+        }
+    }
+
+    private long allocateFallback(int bytes) {
+        if (bytes > block_size_ / 4) {
+            // Object is more than a quarter of our block size. Allocate it
+            // separately to avoid wasting too much space in leftover bytes.
+            int idx = newBlock(bytes);
+            return address(idx, 0);
+        }
+
+        // We waste the remaining space in the current block.
+        alloc_block_ = newBlock(block_size_);
+        alloc_ptr_ = bytes;
+        alloc_bytes_remaining_ = block_size_ - bytes;
+        return address(alloc_block_, 0);
+    }
+
+    private synchronized int newBlock(int block_bytes) {
+        ByteBuffer block = direct_ ? ByteBuffer.allocateDirect(block_bytes)
+                : ByteBuffer.allocate(block_bytes);
+        ByteBuffer[] blocks = blocks_;
+        if (num_blocks_ == blocks.length) {
+            ByteBuffer[] grown = new ByteBuffer[blocks.length * 2];
+            System.arraycopy(blocks, 0, grown, 0, num_blocks_);
+            blocks = grown;
+        }
+        blocks[num_blocks_] = block;
+        blocks_ = blocks; // publish
+        memory_usage_ += block_bytes + 8;
+        return num_blocks_++;
+    }
+
+    // Returns an estimate of the total memory usage of data allocated
+    // by the arena (including space allocated but not yet used for user
+    // allocations).
+    public long memoryUsage() {
+        return memory_usage_ + blocks_.length * 8;
+    }
+
+    public static long address(int block, int offset) {
+        return ((long) block << 32) | (offset & 0xffffffffL);
+    }
+
+    private ByteBuffer block(long addr) {
+        return blocks_[(int) (addr >>> 32)];
+    }
+
+    private static int offset(long addr) {
+        return (int) addr;
+    }
+
+    // Copy src[off, off+len) to the region starting at addr.
+    public void put(long addr, byte[] src, int off, int len) {
+        ByteBuffer b = block(addr);
+        if (b.hasArray()) {
+            System.arraycopy(src, off, b.array(), b.arrayOffset()
+                    + offset(addr), len);
+            return;
+        }
+        b = b.duplicate();
+        b.position(offset(addr));
+        b.put(src, off, len);
+    }
+
+    public void put(long addr, byte[] src) {
+        put(addr, src, 0, src.length);
+    }
+
+    // big-endian, same as util.putLong()
+    public void putLong(long addr, long v) {
+        block(addr).putLong(offset(addr), v);
+    }
+
+    // Copy "len" bytes starting at addr into dst[off, off+len).
+    public void read(long addr, byte[] dst, int off, int len) {
+        ByteBuffer b = block(addr).duplicate();
+        b.position(offset(addr));
+        b.get(dst, off, len);
+    }
+
+    public byte get(long addr) {
+        return block(addr).get(offset(addr));
+    }
+
+    public long getLong(long addr) {
+        // big-endian, same as util.toLong()
+        return block(addr).getLong(offset(addr));
+    }
+
+    // Encode v as a varint32 at addr, and return the address just past it.
+    public long putVarint32(long addr, int v) {
+        ByteBuffer b = block(addr);
+        int p = offset(addr);
+        while ((v & ~0x7f) != 0) {
+            b.put(p++, (byte) (v | 0x80));
+            v >>>= 7;
+        }
+        b.put(p++, (byte) v);
+        return address((int) (addr >>> 32), p);
+    }
+
+    // Decode a varint32 stored at addr. The encoded length is
+    // coding.varintLength(result).
+    public int getVarint32(long addr) {
+        ByteBuffer b = block(addr);
+        int p = offset(addr);
+        int result = 0;
+        for (int shift = 0; shift <= 28; shift += 7) {
+            int x = b.get(p++) & 0xff;
+            result |= (x & 0x7f) << shift;
+            if ((x & 0x80) == 0) {
+                return result;
+            }
+        }
+        return result;
+    }
+
+    // Compare the "len" bytes at addr with b[off, off+blen) as unsigned
+    // bytes, like the bytewise comparator, without copying either side.
+    public int compare(long addr, int len, byte[] b, int off, int blen) {
+        ByteBuffer buf = block(addr);
+        int p = offset(addr);
+        if (buf.hasArray()) {
+            return util.compareTo(buf.array(), buf.arrayOffset() + p, len, b,
+                    off, blen);
+        }
+        int n = Math.min(len, blen);
+        for (int i = 0; i < n; i++) {
+            int x = buf.get(p + i) & 0xff;
+            int y = b[off + i] & 0xff;
+            if (x != y) {
+                return x - y;
+            }
+        }
+        return len - blen;
+    }
+
+    // Same, for two regions of the arena
+    public int compare(long a, int alen, long b, int blen) {
+        ByteBuffer abuf = block(a);
+        ByteBuffer bbuf = block(b);
+        int ap = offset(a);
+        int bp = offset(b);
+        if (abuf.hasArray() && bbuf.hasArray()) {
+            return util.compareTo(abuf.array(), abuf.arrayOffset() + ap, alen,
+                    bbuf.array(), bbuf.arrayOffset() + bp, blen);
+        }
+        int n = Math.min(alen, blen);
+        for (int i = 0; i < n; i++) {
+            int x = abuf.get(ap + i) & 0xff;
+            int y = bbuf.get(bp + i) & 0xff;
+            if (x != y) {
+                return x - y;
+            }
+        }
+        return alen - blen;
+    }
+
+    // Return a Slice over [addr, addr+len). Heap slabs are shared without
+    // copying; direct slabs have to be copied out.
+    public Slice slice(long addr, int len) {
+        ByteBuffer b = block(addr);
+        if (b.hasArray()) {
+            return new Slice(b.array(), b.arrayOffset() + offset(addr), len);
+        }
+        byte[] copy = new byte[len];
+        read(addr, copy, 0, len);
+        return new Slice(copy);
+    }
+
+    // No copying allowed
+}
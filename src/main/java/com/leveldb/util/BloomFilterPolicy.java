@@ -0,0 +1,95 @@
+package com.leveldb.util;
+
+import com.leveldb.common.FilterPolicy;
+import com.leveldb.common.Slice;
+
+import java.util.List;
+
+/**
+ * The filter of FilterPolicy.newBloomFilterPolicy(): a bloom filter over
+ * all the keys, followed by one byte with the number of probes.
+ */
+public class BloomFilterPolicy extends FilterPolicy {
+    private final int bits_per_key_;
+    private final int k_;
+
+    public BloomFilterPolicy(int bits_per_key) {
+        bits_per_key_ = bits_per_key;
+        // We intentionally round down to reduce probing cost a little bit
+        int k = (int) (bits_per_key * 0.69); // 0.69 =~ ln(2)
+        if (k < 1) {
+            k = 1;
+        }
+        if (k > 30) {
+            k = 30;
+        }
+        k_ = k;
+    }
+
+    @Override
+    public String name() {
+        return "leveldb.BuiltinBloomFilter";
+    }
+
+    @Override
+    public byte[] createFilter(List<Slice> keys) {
+        // Compute bloom filter size (in both bits and bytes)
+        int bits = keys.size() * bits_per_key_;
+
+        // For small n, we can see a very high false positive rate. Fix it
+        // by enforcing a minimum bloom filter length.
+        if (bits < 64) {
+            bits = 64;
+        }
+
+        int bytes = (bits + 7) / 8;
+        bits = bytes * 8;
+
+        byte[] array = new byte[bytes + 1];
+        array[bytes] = (byte) k_; // Remember # of probes in filter
+        for (int i = 0; i < keys.size(); i++) {
+            // Use double-hashing to generate a sequence of hash values.
+            // See analysis in [Kirsch,Mitzenmacher 2006].
+            int h = DynamicBloom.bloomHash(keys.get(i));
+            int delta = (h >>> 17) | (h << 15); // Rotate right 17 bits
+            for (int j = 0; j < k_; j++) {
+                int bitpos = (int) ((h & 0xffffffffL) % bits);
+                array[bitpos / 8] |= (1 << (bitpos % 8));
+                h += delta;
+            }
+        }
+        return array;
+    }
+
+    @Override
+    public boolean keyMayMatch(Slice key, Slice bloom_filter) {
+        int len = bloom_filter.size();
+        if (len < 2) {
+            return false;
+        }
+
+        byte[] array = bloom_filter.getBuffer();
+        int offset = bloom_filter.getOffset();
+        int bits = (len - 1) * 8;
+
+        // Use the encoded k so that we can read filters generated by
+        // bloom filters created using different parameters.
+        int k = array[offset + len - 1];
+        if (k > 30) {
+            // Reserved for potentially new encodings for short bloom filters.
+            // Consider it a match.
+            return true;
+        }
+
+        int h = DynamicBloom.bloomHash(key);
+        int delta = (h >>> 17) | (h << 15); // Rotate right 17 bits
+        for (int j = 0; j < k; j++) {
+            int bitpos = (int) ((h & 0xffffffffL) % bits);
+            if ((array[offset + bitpos / 8] & (1 << (bitpos % 8))) == 0) {
+                return false;
+            }
+            h += delta;
+        }
+        return true;
+    }
+}
@@ -11,7 +11,6 @@ import java.io.RandomAccessFile;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
 import java.util.ArrayList;
-import java.util.Date;
 import java.util.List;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
@@ -88,6 +87,16 @@ public class DefaultEnv extends Env {
         return new DefaultWritableFile(fname, 4 << 10, 4 << 10);
     }
 
+    // The old contents are kept, and overwritten as the file is written.
+    @Override
+    public _WritableFile reuseWritableFile(String fname, String old_fname) {
+        Status s = renameFile(old_fname, fname);
+        if (!s.ok()) {
+            return null;
+        }
+        return new DefaultWritableFile(fname, 4 << 10, 4 << 10);
+    }
+
     @Override
     public boolean fileExists(String fname) {
         return (new File(fname)).exists();
@@ -264,13 +273,13 @@ public class DefaultEnv extends Env {
 
     @Override
     public long nowMicros() {
-        return (new Date()).getTime();
+        return System.nanoTime() / 1000;
     }
 
     @Override
     public void sleepForMicroseconds(int micros) {
         try {
-            Thread.sleep(micros);
+            Thread.sleep(micros / 1000, (micros % 1000) * 1000);
         } catch (InterruptedException e) {
             e.printStackTrace();
         }
@@ -0,0 +1,76 @@
+package com.leveldb.util;
+
+import com.leveldb.common.Slice;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-size in-memory bloom filter that keys can be added to at any
+ * time, for structures such as the memtable whose final key count is not
+ * known up front.
+ * <p/>
+ * add() may be called from several threads at once and concurrently with
+ * mayContain().
+ */
+public class DynamicBloom {
+    private final AtomicLongArray bits_;
+    private final long num_bits_;
+    private final int num_probes_;
+
+    // total_bits is rounded up to a multiple of 64
+    public DynamicBloom(long total_bits, int num_probes) {
+        assert (total_bits > 0);
+        assert (num_probes > 0);
+        int words = (int) ((total_bits + 63) / 64);
+        bits_ = new AtomicLongArray(words);
+        num_bits_ = words * 64L;
+        num_probes_ = num_probes;
+    }
+
+    public static int bloomHash(Slice key) {
+        return Hash.hash(key, 0xbc9f1d34);
+    }
+
+    public void add(Slice key) {
+        addHash(bloomHash(key));
+    }
+
+    public void addHash(int h) {
+        // Use double-hashing to generate a sequence of hash values.
+        // See analysis in [Kirsch,Mitzenmacher 2006].
+        int delta = (h >>> 17) | (h << 15); // Rotate right 17 bits
+        for (int i = 0; i < num_probes_; i++) {
+            long bitpos = (h & 0xffffffffL) % num_bits_;
+            int word = (int) (bitpos >>> 6);
+            long mask = 1L << (bitpos & 63);
+            while (true) {
+                long old = bits_.get(word);
+                if ((old & mask) != 0
+                        || bits_.compareAndSet(word, old, old | mask)) {
+                    break;
+                }
+            }
+            h += delta;
+        }
+    }
+
+    public boolean mayContain(Slice key) {
+        return mayContainHash(bloomHash(key));
+    }
+
+    public boolean mayContainHash(int h) {
+        int delta = (h >>> 17) | (h << 15);
+        for (int i = 0; i < num_probes_; i++) {
+            long bitpos = (h & 0xffffffffL) % num_bits_;
+            if ((bits_.get((int) (bitpos >>> 6)) & (1L << (bitpos & 63))) == 0) {
+                return false;
+            }
+            h += delta;
+        }
+        return true;
+    }
+
+    public long memoryUsage() {
+        return bits_.length() * 8L;
+    }
+}
@@ -0,0 +1,77 @@
+package com.leveldb.util;
+
+import com.leveldb.common.Slice;
+
+/**
+ * The simple murmur-like hash LevelDB uses for bloom filters (util/hash.cc).
+ */
+public class Hash {
+
+    @SuppressWarnings("fallthrough")
+    public static int hash(byte[] data, int off, int n, int seed) {
+        // Similar to murmur hash
+        final int m = 0xc6a4a793;
+        final int r = 24;
+        int limit = off + n;
+        int h = seed ^ (n * m);
+
+        // Pick up four bytes at a time
+        int i = off;
+        for (; i + 4 <= limit; i += 4) {
+            int w = (data[i] & 0xff) | ((data[i + 1] & 0xff) << 8)
+                    | ((data[i + 2] & 0xff) << 16) | ((data[i + 3] & 0xff) << 24);
+            h += w;
+            h *= m;
+            h ^= (h >>> 16);
+        }
+
+        // Pick up remaining bytes
+        switch (limit - i) {
+            case 3:
+                h += (data[i + 2] & 0xff) << 16;
+                // fall through
+            case 2:
+                h += (data[i + 1] & 0xff) << 8;
+                // fall through
+            case 1:
+                h += (data[i] & 0xff);
+                h *= m;
+                h ^= (h >>> r);
+                break;
+        }
+        return h;
+    }
+
+    // Same as above, reading the slice in place
+    @SuppressWarnings("fallthrough")
+    public static int hash(Slice s, int seed) {
+        final int m = 0xc6a4a793;
+        final int r = 24;
+        int n = s.size();
+        int h = seed ^ (n * m);
+
+        int i = 0;
+        for (; i + 4 <= n; i += 4) {
+            int w = (s.get(i) & 0xff) | ((s.get(i + 1) & 0xff) << 8)
+                    | ((s.get(i + 2) & 0xff) << 16) | ((s.get(i + 3) & 0xff) << 24);
+            h += w;
+            h *= m;
+            h ^= (h >>> 16);
+        }
+
+        switch (n - i) {
+            case 3:
+                h += (s.get(i + 2) & 0xff) << 16;
+                // fall through
+            case 2:
+                h += (s.get(i + 1) & 0xff) << 8;
+                // fall through
+            case 1:
+                h += (s.get(i) & 0xff);
+                h *= m;
+                h ^= (h >>> r);
+                break;
+        }
+        return h;
+    }
+}
@@ -115,7 +115,8 @@ public class LRUCache extends Cache {
             dummy.next = dummy;
             dummy.value = key;
             LRUHandle e = table.get(dummy.hashCode());
-            if (e == null) {
+            if (e == null || e.key().compareTo(key) != 0) {
+                // entries are only found by hash: check it is the key
                 return null;
             } else {
                 //e.refs++;
@@ -148,7 +149,7 @@ public class LRUCache extends Cache {
             dummy.next = dummy;
             dummy.value = key;
             LRUHandle e = table.get(dummy.hashCode());
-            if (e != null) {
+            if (e != null && e.key().compareTo(key) == 0) {
                 LRU_Remove(e);
                 table.remove(e.hashCode());
                 Unref(e);
@@ -201,7 +202,9 @@ public class LRUCache extends Cache {
         e.refs--; // from 2 to 1, but when to be 0?
         if (e.refs <= 0) {
             usage_ -= e.charge;
-            e.deleter.exec(e.key(), e.value);
+            if (e.deleter != null) {
+                e.deleter.exec(e.key(), e.value);
+            }
             e = null;
         }
     }
@@ -221,7 +224,9 @@ public class LRUCache extends Cache {
             }
             //Unref(e);
             // I find the refs is not always 1, a bug, so, Just delete!
-            e.deleter.exec(e.key(), e.value);
+            if (e.deleter != null) {
+                e.deleter.exec(e.key(), e.value);
+            }
             e = next;
         }
 
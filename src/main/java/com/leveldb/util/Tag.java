@@ -10,5 +10,11 @@ public class Tag {
     public static final int kNewFile = 7;
     // 8 was used for large value refs
     public static final int kPrevLogNumber = 9;
+    // Column families, only in the MANIFEST of the default family
+    public static final int kColumnFamilyAdd = 10;
+    public static final int kColumnFamilyDrop = 11;
+    public static final int kMaxColumnFamily = 12;
+    // A kNewFile followed by the global sequence number of the file
+    public static final int kNewIngestedFile = 13;
 
 }
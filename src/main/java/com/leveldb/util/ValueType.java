@@ -4,6 +4,8 @@ public class ValueType {
 
     public static final byte kTypeDeletion = 0x0;
     public static final byte kTypeValue = 0x1;
+    // An operand for Options.merge_operator, applied to the older value
+    public static final byte kTypeMerge = 0x2;
 
     // kValueTypeForSeek defines the ValueType that should be passed when
     // constructing a ParsedInternalKey object for seeking to a particular
@@ -11,7 +13,7 @@ public class ValueType {
     // and the value type is embedded as the low 8 bits in the sequence
     // number in internal keys, we need to use the highest-numbered
     // ValueType, not the lowest).
-    public static byte kValueTypeForSeek = kTypeValue;
+    public static final byte kValueTypeForSeek = kTypeMerge;
 
     public byte value;
 
@@ -25,5 +27,6 @@ public class ValueType {
 
     public static ValueType TypeValue = new ValueType(kTypeValue);
     public static ValueType TypeDeletion = new ValueType(kTypeDeletion);
+    public static ValueType TypeMerge = new ValueType(kTypeMerge);
     public static ValueType ValueTypeForSeek = new ValueType(kValueTypeForSeek);
 }
@@ -42,6 +42,18 @@ public class coding {
         return des;
     }
 
+    // Encode v into dst starting at offset, and return the offset just
+    // past the encoded bytes. dst must have room for varintLength(v) bytes.
+    public static int encodeVarint32(byte[] dst, int offset, int v) {
+        int B = 128;
+        while ((v & ~0x7f) != 0) {
+            dst[offset++] = (byte) (v | B);
+            v >>>= 7;
+        }
+        dst[offset++] = (byte) v;
+        return offset;
+    }
+
     // actually just return the byte[] of Varint
     public static byte[] putVarint32(int v) {
         return encodeVarint32(v);
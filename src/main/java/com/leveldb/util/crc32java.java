@@ -84,6 +84,13 @@ public class crc32java {
         return crc32val;
     }
 
+    // Same as above, for data[offset, offset + n - 1]
+    public int Extend(int init_crc, byte[] data, int offset, int n) {
+        crc32val = init_crc;
+        update(data, offset, n);
+        return crc32val;
+    }
+
     // Return the crc32c of data[0,n-1]
     public int Value(byte[] data, int length) {
         reset();
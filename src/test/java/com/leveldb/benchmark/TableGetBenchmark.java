@@ -0,0 +1,147 @@
+package com.leveldb.benchmark;
+
+import com.leveldb.common.Cache;
+import com.leveldb.common.Env;
+import com.leveldb.common.Iterator;
+import com.leveldb.common.Slice;
+import com.leveldb.common.Table;
+import com.leveldb.common.file._RandomAccessFile;
+import com.leveldb.common.file._WritableFile;
+import com.leveldb.common.options.Options;
+import com.leveldb.common.options.ReadOptions;
+import com.leveldb.common.table.TableBuilder;
+import com.leveldb.util.util;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Point lookups in one table with its blocks cached: seeking an iterator of
+ * Table.NewIterator() and copying the value out, as Version.Get() used to,
+ * against Table.InternalGet().
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TableGetBenchmark {
+    @Param({"100000"})
+    int num_keys;
+
+    @Param({"100"})
+    int value_size;
+
+    private String fname_;
+    private _RandomAccessFile file_;
+    private Table table_;
+    private Slice[] keys_;
+    private int next_;
+    private final ReadOptions read_options_ = new ReadOptions();
+
+    // Keeps the value InternalGet() finds for "key"
+    static class ValueHandler implements Table.ResultHandler {
+        Slice key;
+        Slice value;
+
+        public boolean handleResult(Slice k, Slice v) {
+            if (k.compareTo(key) == 0) {
+                value = v;
+            }
+            return false;
+        }
+    }
+
+    private final ValueHandler handler_ = new ValueHandler();
+
+    @Setup
+    public void setUp() {
+        Env env = Env.Default();
+        fname_ = env.getTestDirectory() + "/table_get_benchmark.sst";
+        Options options = new Options();
+        options.block_cache = Cache.newLRUCache(256 << 20);
+        _WritableFile out = env.newWritableFile(fname_);
+        TableBuilder builder = new TableBuilder(options, out);
+        Random rnd = new Random(301);
+        keys_ = new Slice[num_keys];
+        for (int i = 0; i < num_keys; i++) {
+            keys_[i] = new Slice(String.format("key%010d", i));
+            builder.Add(keys_[i], new Slice(util.RandomString(rnd, value_size)));
+        }
+        builder.Finish();
+        long size = builder.FileSize();
+        out.Close();
+
+        // The builder sets block_restart_interval for its index block on
+        // the options it is given
+        Options table_options = new Options();
+        table_options.block_cache = options.block_cache;
+        file_ = env.newRandomAccessFile(fname_);
+        table_ = Table.Open(table_options, file_, size);
+
+        // Look the keys up in random order
+        for (int i = num_keys - 1; i > 0; i--) {
+            int j = rnd.nextInt(i + 1);
+            Slice t = keys_[i];
+            keys_[i] = keys_[j];
+            keys_[j] = t;
+        }
+        // Fill the block cache
+        for (int i = 0; i < num_keys; i++) {
+            iteratorSeek();
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        file_.Close();
+        Env.Default().deleteFile(fname_);
+    }
+
+    private Slice nextKey() {
+        Slice key = keys_[next_];
+        next_ = next_ + 1 == keys_.length ? 0 : next_ + 1;
+        return key;
+    }
+
+    @Benchmark
+    public byte[] iteratorSeek() {
+        Slice key = nextKey();
+        Iterator iter = table_.NewIterator(read_options_);
+        iter.seek(key);
+        byte[] value = new byte[0];
+        if (iter.valid() && iter.key().compareTo(key) == 0) {
+            value = util.add(value, iter.value().data());
+        }
+        return value;
+    }
+
+    @Benchmark
+    public byte[] internalGet() {
+        handler_.key = nextKey();
+        handler_.value = null;
+        table_.InternalGet(read_options_, handler_.key, handler_);
+        return handler_.value != null ? handler_.value.data() : null;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(
+                TableGetBenchmark.class.getSimpleName()).build()).run();
+    }
+}